@@ -30,7 +30,7 @@ import java.io.File;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.spout.api.Spout;
-import org.spout.api.io.store.simple.BinaryFileStore;
+import org.spout.api.io.store.simple.MappedFileStore;
 import org.spout.api.util.StringMap;
 
 public final class BiomeRegistry {
@@ -38,7 +38,7 @@ public final class BiomeRegistry {
 	@SuppressWarnings("unchecked")
 	private final static AtomicReference<Biome>[] biomes = new AtomicReference[MAX_BIOMES];
 	private static boolean setup = false;
-	private final static BinaryFileStore store = new BinaryFileStore();
+	private final static MappedFileStore store = new MappedFileStore();
 	private final static StringMap biomeRegistry = new StringMap(null, store, 1, MAX_BIOMES, Biome.class.getName());
 
 	static {
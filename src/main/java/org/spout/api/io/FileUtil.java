@@ -36,8 +36,12 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -304,4 +308,45 @@ public class FileUtil {
 
 		return true;
 	}
+
+	/**
+	 * Unmaps a mapped buffer, without waiting for it to be garbage collected.<br>
+	 * <br>
+	 * Some platforms do not allow a file to be truncated, renamed or deleted while any part of it is mapped.<br>
+	 * <br>
+	 * WARNING:  The buffer, and any buffers which share its memory, must not be accessed after it is unmapped.
+	 *
+	 * @param buffer the buffer
+	 * @return true if the buffer was unmapped, false if unmapping is not supported by the JVM
+	 */
+	public static boolean unmap(MappedByteBuffer buffer) {
+		if (buffer == null) {
+			return true;
+		}
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner;
+			try {
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			} catch (NoSuchMethodException e) {
+				invokeCleaner = null;
+			}
+			if (invokeCleaner != null) {
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), buffer);
+				return true;
+			}
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner == null) {
+				return false;
+			}
+			cleaner.getClass().getMethod("clean").invoke(cleaner);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
 }
@@ -0,0 +1,77 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.bytearrayarray;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view of the data stored in a block of a ByteArrayArray.<br>
+ * <br>
+ * The view points directly into the storage of the array, no copy of the block is made.<br>
+ * <br>
+ * WARNING: The block is read locked until the view is closed.  The view must be closed by the thread that created it.
+ */
+public interface BAABlockView extends Closeable {
+
+	/**
+	 * Gets the read-only buffers which hold the stored data for the block, in order.<br>
+	 * <br>
+	 * The stored data is the block as encoded by the array, and may be compressed.
+	 * 
+	 * @return the buffers
+	 */
+	public ByteBuffer[] getBuffers();
+
+	/**
+	 * Gets the total length of the stored data
+	 * 
+	 * @return the length in bytes
+	 */
+	public int getLength();
+
+	/**
+	 * Gets an InputStream which decodes the block directly from the buffers.<br>
+	 * <br>
+	 * The stream is only valid until the view is closed.  Closing the stream does not close the view.
+	 * 
+	 * @return the InputStream
+	 * @throws IOException
+	 */
+	public InputStream getInputStream() throws IOException;
+
+	/**
+	 * Closes the view and releases the lock on the block
+	 * 
+	 * @throws IOException if the view has already been closed
+	 */
+	@Override
+	public void close() throws IOException;
+
+}
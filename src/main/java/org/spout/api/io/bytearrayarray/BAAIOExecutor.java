@@ -0,0 +1,317 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.bytearrayarray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.spout.api.util.future.SimpleFuture;
+
+/**
+ * Performs block reads and writes for BAAWrappers on a dedicated pool of I/O threads.<br>
+ * <br>
+ * Requests for each file are queued and processed in order, while different files are processed in parallel.  Queued requests are coalesced:<br>
+ * <br>
+ * - a read of a block which already has a queued read shares the queued read's future<br>
+ * - a read of a block which has a queued write is completed immediately with the data being written<br>
+ * - a write to a block which already has a queued write replaces the queued data, and both writes share the same future<br>
+ */
+public class BAAIOExecutor {
+	private static final int MAX_BATCH = 64;
+
+	private final ExecutorService executor;
+	private final ConcurrentHashMap<BAAWrapper, FileQueue> queues = new ConcurrentHashMap<BAAWrapper, FileQueue>();
+	private final AtomicInteger coalesced = new AtomicInteger(0);
+
+	/**
+	 * Creates an executor
+	 * 
+	 * @param threads the number of I/O threads
+	 */
+	public BAAIOExecutor(int threads) {
+		final AtomicInteger threadCount = new AtomicInteger(0);
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BAA I/O Thread " + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Reads a block asynchronously.<br>
+	 * <br>
+	 * The result is a read-only buffer containing the decoded block, or null if the block is empty.  If the block can not be read, 
+	 * for example because its checksum does not match, the future fails with the IOException.
+	 * 
+	 * @param wrapper the wrapper for the file
+	 * @param i the block index
+	 * @return a future for the block data
+	 */
+	public Future<ByteBuffer> readAsync(BAAWrapper wrapper, int i) {
+		while (true) {
+			Future<ByteBuffer> future = getQueue(wrapper).read(i);
+			if (future != null) {
+				return future;
+			}
+		}
+	}
+
+	/**
+	 * Writes a block asynchronously.<br>
+	 * <br>
+	 * The remaining bytes of the buffer are written to the block.  The buffer must not be modified until the future completes.
+	 * 
+	 * @param wrapper the wrapper for the file
+	 * @param i the block index
+	 * @param data the data to write
+	 * @return a future which completes with true once the block has been written
+	 */
+	public Future<Boolean> writeAsync(BAAWrapper wrapper, int i, ByteBuffer data) {
+		ByteBuffer duplicate = data.duplicate();
+		while (true) {
+			Future<Boolean> future = getQueue(wrapper).write(i, duplicate);
+			if (future != null) {
+				return future;
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of requests which have been coalesced with a queued request
+	 * 
+	 * @return the number of coalesced requests
+	 */
+	public int getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Shuts down the executor.  Queued requests are still processed.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private FileQueue getQueue(BAAWrapper wrapper) {
+		FileQueue queue = queues.get(wrapper);
+		if (queue == null) {
+			queue = new FileQueue(wrapper);
+			FileQueue old = queues.putIfAbsent(wrapper, queue);
+			if (old != null) {
+				queue = old;
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * Reads a block.  I/O errors, including checksum failures, are thrown rather than reported as an empty block.
+	 */
+	private static ByteBuffer readBlock(BAAWrapper wrapper, int i) throws IOException {
+		BAABlockView view;
+		while (true) {
+			ByteArrayArray baa = wrapper.getByteArrayArray();
+			if (baa == null) {
+				throw new BAAException("Unable to open " + wrapper.getFilename());
+			}
+			try {
+				view = baa.getBlockView(i);
+				break;
+			} catch (BAAClosedException e) {
+				continue;
+			}
+		}
+		if (view == null) {
+			return null;
+		}
+		try {
+			InputStream in = view.getInputStream();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(view.getLength() << 1);
+			byte[] buf = new byte[4096];
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				out.write(buf, 0, read);
+			}
+			return ByteBuffer.wrap(out.toByteArray()).asReadOnlyBuffer();
+		} finally {
+			view.close();
+		}
+	}
+
+	private static void writeBlock(BAAWrapper wrapper, int i, ByteBuffer data) throws IOException {
+		OutputStream out = wrapper.getBlockOutputStream(i);
+		if (out == null) {
+			throw new BAAException("Unable to open block " + i + " of " + wrapper.getFilename() + " for writing");
+		}
+		try {
+			if (data.hasArray()) {
+				out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			} else {
+				byte[] buf = new byte[data.remaining()];
+				data.duplicate().get(buf);
+				out.write(buf);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * The queue of requests for a file.  A queue is retired and removed from the queue map once it is empty, so requests 
+	 * must be retried on a new queue if the queue is retired.
+	 */
+	private class FileQueue implements Runnable {
+		private final BAAWrapper wrapper;
+		private final LinkedList<Request> queue = new LinkedList<Request>();
+		private final HashMap<Integer, Request> queuedReads = new HashMap<Integer, Request>();
+		private final HashMap<Integer, Request> queuedWrites = new HashMap<Integer, Request>();
+		private boolean scheduled = false;
+		private boolean retired = false;
+
+		public FileQueue(BAAWrapper wrapper) {
+			this.wrapper = wrapper;
+		}
+
+		@SuppressWarnings("unchecked")
+		public synchronized Future<ByteBuffer> read(int i) {
+			if (retired) {
+				return null;
+			}
+			Request write = queuedWrites.get(i);
+			if (write != null) {
+				coalesced.incrementAndGet();
+				SimpleFuture<ByteBuffer> future = new SimpleFuture<ByteBuffer>();
+				future.setResult(write.data.asReadOnlyBuffer());
+				return future;
+			}
+			Request read = queuedReads.get(i);
+			if (read != null) {
+				coalesced.incrementAndGet();
+				return (Future<ByteBuffer>) read.future;
+			}
+			read = new Request(i, null, new SimpleFuture<ByteBuffer>());
+			queuedReads.put(i, read);
+			enqueue(read);
+			return (Future<ByteBuffer>) read.future;
+		}
+
+		@SuppressWarnings("unchecked")
+		public synchronized Future<Boolean> write(int i, ByteBuffer data) {
+			if (retired) {
+				return null;
+			}
+			Request write = queuedWrites.get(i);
+			if (write != null) {
+				coalesced.incrementAndGet();
+				write.data = data;
+				return (Future<Boolean>) write.future;
+			}
+			write = new Request(i, data, new SimpleFuture<Boolean>());
+			queuedWrites.put(i, write);
+			enqueue(write);
+			return (Future<Boolean>) write.future;
+		}
+
+		private void enqueue(Request request) {
+			queue.add(request);
+			if (!scheduled) {
+				scheduled = true;
+				executor.execute(this);
+			}
+		}
+
+		private synchronized Request poll(int processed) {
+			Request request = processed < MAX_BATCH ? queue.poll() : null;
+			if (request == null) {
+				if (queue.isEmpty()) {
+					// Idle queues are removed, so that the queue map does not hold every file that was ever accessed
+					scheduled = false;
+					retired = true;
+					queues.remove(wrapper, this);
+				} else {
+					// Yield the thread to other files, the remaining requests are processed by a new task
+					executor.execute(this);
+				}
+				return null;
+			}
+			if (request.data == null) {
+				queuedReads.remove(request.index);
+			} else {
+				queuedWrites.remove(request.index);
+			}
+			return request;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void run() {
+			int processed = 0;
+			Request request;
+			while ((request = poll(processed++)) != null) {
+				if (request.future.isCancelled()) {
+					continue;
+				}
+				try {
+					if (request.data == null) {
+						((SimpleFuture<ByteBuffer>) request.future).setResult(readBlock(wrapper, request.index));
+					} else {
+						writeBlock(wrapper, request.index, request.data);
+						((SimpleFuture<Boolean>) request.future).setResult(Boolean.TRUE);
+					}
+				} catch (Throwable t) {
+					request.future.setThrowable(t);
+				}
+			}
+		}
+	}
+
+	private static class Request {
+		private final int index;
+		private ByteBuffer data;
+		private final SimpleFuture<?> future;
+
+		public Request(int index, ByteBuffer data, SimpleFuture<?> future) {
+			this.index = index;
+			this.data = data;
+			this.future = future;
+		}
+	}
+}
@@ -46,6 +46,11 @@ public final class BAAOpenInProgress implements ByteArrayArray {
 		return null;
 	}
 
+	@Override
+	public BAABlockView getBlockView(int i) throws IOException {
+		return null;
+	}
+
 	@Override
 	public DataOutputStream getOutputStream(int i) throws IOException {
 		return null;
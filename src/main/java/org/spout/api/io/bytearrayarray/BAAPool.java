@@ -0,0 +1,271 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.bytearrayarray;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded pool of open ByteArrayArrays, shared by a group of BAAWrappers.<br>
+ * <br>
+ * When a wrapper opens its array and the pool is over capacity, the least recently used arrays are closed.  Arrays which have 
+ * open block streams or views are pinned, and are skipped until a later eviction.  The pool also checks its capacity periodically, 
+ * so arrays which were pinned are closed once they are released, even if no other array is opened.<br>
+ * <br>
+ * Wrappers which use a pool do not need timeoutCheck to be called in order to close their files.  While a write-behind region file 
+ * is open, the pool commits its pending writes once its commit interval has expired.  The periodic checks run on a daemon thread.
+ */
+public class BAAPool {
+	private static final int DEFAULT_EVICTION_INTERVAL = 1000;
+	private final int capacity;
+	private final ConcurrentHashMap<BAAWrapper, Boolean> open = new ConcurrentHashMap<BAAWrapper, Boolean>();
+	private final ConcurrentHashMap<BAAWrapper, ScheduledFuture<?>> commitChecks = new ConcurrentHashMap<BAAWrapper, ScheduledFuture<?>>();
+	private final ScheduledExecutorService commitScheduler;
+	private final Object evictionSync = new Object();
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+	private final AtomicLong pinnedSkips = new AtomicLong(0);
+
+	/**
+	 * Creates a pool
+	 * 
+	 * @param capacity the maximum number of arrays which are kept open
+	 */
+	public BAAPool(int capacity) {
+		this(capacity, DEFAULT_EVICTION_INTERVAL);
+	}
+
+	/**
+	 * Creates a pool
+	 * 
+	 * @param capacity the maximum number of arrays which are kept open
+	 * @param evictionInterval the interval between capacity checks, in ms
+	 */
+	public BAAPool(int capacity, int evictionInterval) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Pool capacity must be at least 1");
+		}
+		if (evictionInterval < 1) {
+			throw new IllegalArgumentException("Eviction interval must be at least 1ms");
+		}
+		this.capacity = capacity;
+		this.commitScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BAA Pool Commit Thread");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.commitScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (open.size() > BAAPool.this.capacity) {
+					evict(null);
+				}
+			}
+		}, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Records an access to an array which was already open
+	 */
+	void hit() {
+		hits.incrementAndGet();
+	}
+
+	/**
+	 * Records that a wrapper has opened its array, and evicts arrays if the pool is over capacity
+	 * 
+	 * @param wrapper the wrapper
+	 */
+	void opened(BAAWrapper wrapper) {
+		misses.incrementAndGet();
+		open.put(wrapper, Boolean.TRUE);
+		scheduleCommitCheck(wrapper);
+		if (open.size() > capacity) {
+			evict(wrapper);
+		}
+	}
+
+	/**
+	 * Records that a wrapper has closed its array
+	 * 
+	 * @param wrapper the wrapper
+	 */
+	void closed(BAAWrapper wrapper) {
+		open.remove(wrapper);
+		ScheduledFuture<?> commitCheck = commitChecks.remove(wrapper);
+		if (commitCheck != null) {
+			commitCheck.cancel(false);
+		}
+	}
+
+	/**
+	 * Schedules periodic commits for a wrapper in write-behind mode.  The check runs twice per commit interval, so pending writes are 
+	 * held for at most one and a half intervals.
+	 * 
+	 * @param wrapper the wrapper
+	 */
+	private void scheduleCommitCheck(final BAAWrapper wrapper) {
+		int interval = wrapper.getCommitInterval();
+		if (interval < 0 || interval == Integer.MAX_VALUE || commitScheduler.isShutdown()) {
+			return;
+		}
+		long period = Math.max(1, interval / 2);
+		ScheduledFuture<?> commitCheck;
+		try {
+			commitCheck = commitScheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					wrapper.commitCheck();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ree) {
+			// The pool has been shut down
+			return;
+		}
+		ScheduledFuture<?> old = commitChecks.put(wrapper, commitCheck);
+		if (old != null) {
+			old.cancel(false);
+		}
+		if (!open.containsKey(wrapper) && commitChecks.remove(wrapper, commitCheck)) {
+			// The wrapper was closed while the check was being scheduled
+			commitCheck.cancel(false);
+		}
+	}
+
+	/**
+	 * Stops the periodic commits and capacity checks.  Pending writes of open files are still committed when the files are closed.
+	 */
+	public void shutdown() {
+		commitScheduler.shutdownNow();
+	}
+
+	/**
+	 * Closes the least recently used arrays until the pool is within capacity
+	 * 
+	 * @param exclude a wrapper which should not be evicted, or null
+	 */
+	private void evict(BAAWrapper exclude) {
+		synchronized (evictionSync) {
+			int excess = open.size() - capacity;
+			if (excess <= 0) {
+				return;
+			}
+			BAAWrapper[] candidates = open.keySet().toArray(new BAAWrapper[0]);
+			final long[] lastAccess = new long[candidates.length];
+			Integer[] order = new Integer[candidates.length];
+			for (int i = 0; i < candidates.length; i++) {
+				lastAccess[i] = candidates[i].getLastAccess();
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					long diff = lastAccess[a] - lastAccess[b];
+					return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+				}
+			});
+			for (int i = 0; i < order.length && excess > 0; i++) {
+				BAAWrapper candidate = candidates[order[i]];
+				if (candidate == exclude) {
+					continue;
+				}
+				if (candidate.attemptCloseForEviction()) {
+					evictions.incrementAndGet();
+					excess--;
+				} else {
+					pinnedSkips.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the maximum number of open arrays
+	 * 
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the number of arrays that are currently open
+	 * 
+	 * @return the number of open arrays
+	 */
+	public int getOpenCount() {
+		return open.size();
+	}
+
+	/**
+	 * Gets the number of accesses which found the array already open
+	 * 
+	 * @return the number of hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of accesses which required the array to be opened
+	 * 
+	 * @return the number of misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of arrays which have been closed to keep the pool within capacity
+	 * 
+	 * @return the number of evictions
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Gets the number of times an eviction candidate was skipped because it had open streams
+	 * 
+	 * @return the number of skipped candidates
+	 */
+	public long getPinnedSkips() {
+		return pinnedSkips.get();
+	}
+}
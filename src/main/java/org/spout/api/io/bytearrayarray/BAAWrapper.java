@@ -32,6 +32,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.spout.api.io.regionfile.CachedPagePool;
+import org.spout.api.io.regionfile.SRFCodec;
+import org.spout.api.io.regionfile.SRFWriteBehind;
 import org.spout.api.io.regionfile.SimpleRegionFile;
 
 public class BAAWrapper {
@@ -44,12 +47,98 @@ public class BAAWrapper {
 	private final int segmentSize;
 	private final int entries;
 	private final int timeout;
+	private final SRFCodec codec;
+	private final SRFWriteBehind writeBehind;
+	private final BAAPool pool;
+	private final CachedPagePool pagePool;
+	private final boolean checksums;
+	private volatile long lastAccess = System.nanoTime();
 	
 	public BAAWrapper(File file, int segmentSize, int entries, int timeout) {
+		this(file, segmentSize, entries, timeout, SRFCodec.DEFLATE);
+	}
+	
+	/**
+	 * Creates a wrapper for a region file
+	 * 
+	 * @param file the file
+	 * @param segmentSize log2(the segment size)
+	 * @param entries the number of blocks in the file
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param codec the codec used to compress the blocks if a new file is created
+	 */
+	public BAAWrapper(File file, int segmentSize, int entries, int timeout, SRFCodec codec) {
+		this(file, segmentSize, entries, timeout, codec, null);
+	}
+	
+	/**
+	 * Creates a wrapper for a region file
+	 * 
+	 * @param file the file
+	 * @param segmentSize log2(the segment size)
+	 * @param entries the number of blocks in the file
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param codec the codec used to compress the blocks if a new file is created
+	 * @param writeBehind the write-behind settings, or null for write-through
+	 */
+	public BAAWrapper(File file, int segmentSize, int entries, int timeout, SRFCodec codec, SRFWriteBehind writeBehind) {
+		this(file, segmentSize, entries, timeout, codec, writeBehind, null);
+	}
+	
+	/**
+	 * Creates a wrapper for a region file
+	 * 
+	 * @param file the file
+	 * @param segmentSize log2(the segment size)
+	 * @param entries the number of blocks in the file
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param codec the codec used to compress the blocks if a new file is created
+	 * @param writeBehind the write-behind settings, or null for write-through
+	 * @param pool the pool which limits the number of open files, or null to rely on timeoutCheck
+	 */
+	public BAAWrapper(File file, int segmentSize, int entries, int timeout, SRFCodec codec, SRFWriteBehind writeBehind, BAAPool pool) {
+		this(file, segmentSize, entries, timeout, codec, writeBehind, pool, false);
+	}
+	
+	/**
+	 * Creates a wrapper for a region file
+	 * 
+	 * @param file the file
+	 * @param segmentSize log2(the segment size)
+	 * @param entries the number of blocks in the file
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param codec the codec used to compress the blocks if a new file is created
+	 * @param writeBehind the write-behind settings, or null for write-through
+	 * @param pool the pool which limits the number of open files, or null to rely on timeoutCheck
+	 * @param checksums true if a new file should store a checksum for each block
+	 */
+	public BAAWrapper(File file, int segmentSize, int entries, int timeout, SRFCodec codec, SRFWriteBehind writeBehind, BAAPool pool, boolean checksums) {
+		this(file, segmentSize, entries, timeout, codec, writeBehind, pool, checksums, null);
+	}
+	
+	/**
+	 * Creates a wrapper for a region file
+	 * 
+	 * @param file the file
+	 * @param segmentSize log2(the segment size)
+	 * @param entries the number of blocks in the file
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param codec the codec used to compress the blocks if a new file is created
+	 * @param writeBehind the write-behind settings, or null for write-through
+	 * @param pool the pool which limits the number of open files, or null to rely on timeoutCheck
+	 * @param checksums true if a new file should store a checksum for each block
+	 * @param pagePool the pool used to cache the pages of the file, or null to memory map the file
+	 */
+	public BAAWrapper(File file, int segmentSize, int entries, int timeout, SRFCodec codec, SRFWriteBehind writeBehind, BAAPool pool, boolean checksums, CachedPagePool pagePool) {
 		this.file = file;
 		this.segmentSize = segmentSize;
 		this.entries = entries;
 		this.timeout = timeout;
+		this.codec = codec;
+		this.writeBehind = writeBehind;
+		this.pool = pool;
+		this.checksums = checksums;
+		this.pagePool = pagePool;
 	}
 	
 
@@ -66,9 +155,32 @@ public class BAAWrapper {
 			} catch (IOException ioe) {
 			}
 			if (baa.isClosed()) {
-				baaRef.compareAndSet(baa, null);
+				if (baaRef.compareAndSet(baa, null) && pool != null) {
+					pool.closed(this);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Compacts the region file, if it is open and the fraction of free space inside the file is at least the given fragmentation.<br>
+	 * <br>
+	 * This method can be called periodically, alongside timeoutCheck.  It does not open the file.
+	 * 
+	 * @param maxBlocks the maximum number of blocks to move
+	 * @param minFragmentation the fragmentation required before the file is compacted
+	 * @return the number of blocks moved
+	 * @throws IOException if the compaction failed
+	 */
+	public int compact(int maxBlocks, float minFragmentation) throws IOException {
+		ByteArrayArray baa = baaRef.get();
+		if (baa instanceof SimpleRegionFile) {
+			SimpleRegionFile srf = (SimpleRegionFile) baa;
+			if (srf.getFragmentation() >= minFragmentation) {
+				return srf.compact(maxBlocks);
 			}
 		}
+		return 0;
 	}
 	
 	/**
@@ -84,7 +196,9 @@ public class BAAWrapper {
 			try {
 				boolean success = baa.attemptClose();
 				if (baa.isClosed()) {
-					baaRef.compareAndSet(baa, null);
+					if (baaRef.compareAndSet(baa, null) && pool != null) {
+						pool.closed(this);
+					}
 				}
 				return success;
 			} catch (IOException ioe) {
@@ -92,6 +206,50 @@ public class BAAWrapper {
 		}
 		return true;
 	}
+	
+	/**
+	 * Attempts to close the array so that it can be evicted from the pool
+	 * 
+	 * @return true if an open array was closed
+	 */
+	boolean attemptCloseForEviction() {
+		ByteArrayArray baa = baaRef.get();
+		if (baa == null || baa == openInProgress) {
+			return false;
+		}
+		return attemptClose() && baa.isClosed();
+	}
+	
+	/**
+	 * Commits the pending writes of a write-behind region file, if the commit interval or threshold has been reached.  This does not open the file.
+	 */
+	void commitCheck() {
+		ByteArrayArray baa = baaRef.get();
+		if (baa instanceof SimpleRegionFile) {
+			try {
+				((SimpleRegionFile) baa).commitIfDue();
+			} catch (IOException ioe) {
+			}
+		}
+	}
+	
+	/**
+	 * Gets the write-behind commit interval
+	 * 
+	 * @return the commit interval in ms, or -1 if the wrapper is in write-through mode
+	 */
+	int getCommitInterval() {
+		return writeBehind == null ? -1 : writeBehind.getCommitInterval();
+	}
+	
+	/**
+	 * Gets the time of the last access to the array, as given by System.nanoTime()
+	 * 
+	 * @return the last access time
+	 */
+	long getLastAccess() {
+		return lastAccess;
+	}
 
 	/**
 	 * Checks if the InputStream exists at the given index.
@@ -170,6 +328,32 @@ public class BAAWrapper {
 		}
 	}
 	
+	/**
+	 * Gets a read-only view of the given block, without copying it.<br>
+	 * <br>
+	 * WARNING: This block will be locked until the view is closed
+	 * 
+	 * @param i the block index
+	 * @return the view, or null if the block is empty
+	 */
+	public BAABlockView getBlockView(int i) {
+		while (true) {
+			ByteArrayArray baa = getByteArrayArray();
+			if (baa == null) {
+				return null;
+			}
+			BAABlockView view;
+			try {
+				view = baa.getBlockView(i);
+			} catch (BAAClosedException e) {
+				continue;
+			} catch (IOException e) {
+				return null;
+			}
+			return view;
+		}
+	}
+	
 	/**
 	 * Gets the filename of the file handled by this wrapper
 	 * 
@@ -179,7 +363,12 @@ public class BAAWrapper {
 		return file.getPath();
 	}
 
-	private ByteArrayArray getByteArrayArray() {
+	/**
+	 * Gets the array, opening it if required
+	 * 
+	 * @return the array, or null if it could not be opened
+	 */
+	ByteArrayArray getByteArrayArray() {
 		int count = 0;
 		while (true) {
 			ByteArrayArray baa = baaRef.get();
@@ -187,9 +376,15 @@ public class BAAWrapper {
 			if (baa != null) {
 				// If the baa exists and isn't closed return it
 				if (!baa.isClosed()) {
+					if (pool != null && baa != openInProgress) {
+						lastAccess = System.nanoTime();
+						pool.hit();
+					}
 					return baa;
 				}
-				baaRef.compareAndSet(baa, null);
+				if (baaRef.compareAndSet(baa, null) && pool != null) {
+					pool.closed(this);
+				}
 				continue;
 			}
 
@@ -199,18 +394,22 @@ public class BAAWrapper {
 				//baa = null; // not needed - already null
 				try {
 					try {
-						baa = new SimpleRegionFile(file, segmentSize, entries, timeout);
+						baa = new SimpleRegionFile(file, segmentSize, entries, timeout, codec, writeBehind, checksums, pagePool);
 					} catch (IOException e) {
 						System.out.println("Error when creating SimpleRegionFile object: " + file);
 						//baa = null; // not needed - already null. The assignment above comes after the potential IOException. 
 					}
-
-					return baa;
 				} finally {
 					if (!baaRef.compareAndSet(openInProgress, baa)) {
 						throw new IllegalStateException("chunkStore variable changed outside locking scheme");
 					}
 				}
+				
+				if (baa != null && pool != null) {
+					lastAccess = System.nanoTime();
+					pool.opened(this);
+				}
+				return baa;
 			}
 
 			// Some other thread is trying to open the file
@@ -50,6 +50,19 @@ public interface ByteArrayArray {
 	 */
 	public InputStream getInputStream(int i) throws IOException;
 	
+	/**
+	 * Gets a read-only view of a block.<br>
+	 * <br>
+	 * Unlike getInputStream, no copy of the block is made.<br>
+	 * <br>
+	 * WARNING:  This locks the block until the view is closed.<br>
+	 * 
+	 * @param i the index of the block
+	 * @return the view, or null if the block is empty
+	 * @throws IOException on error
+	 */
+	public BAABlockView getBlockView(int i) throws IOException;
+	
 	/**
 	 * Gets a DataOutputStream for writing to a block.<br>
 	 * <br>
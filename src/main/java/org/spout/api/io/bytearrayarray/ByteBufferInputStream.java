@@ -0,0 +1,105 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.bytearrayarray;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream which reads from a sequence of ByteBuffers.<br>
+ * <br>
+ * The buffers are duplicated, so reading from the stream does not change their positions.
+ */
+public class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer[] buffers;
+	private int current = 0;
+
+	public ByteBufferInputStream(ByteBuffer... buffers) {
+		this.buffers = new ByteBuffer[buffers.length];
+		for (int i = 0; i < buffers.length; i++) {
+			this.buffers[i] = buffers[i].duplicate();
+		}
+	}
+
+	@Override
+	public int read() {
+		ByteBuffer buffer = nextBuffer();
+		if (buffer == null) {
+			return -1;
+		}
+		return buffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		ByteBuffer buffer = nextBuffer();
+		if (buffer == null) {
+			return -1;
+		}
+		int length = Math.min(len, buffer.remaining());
+		buffer.get(b, off, length);
+		return length;
+	}
+
+	@Override
+	public long skip(long n) {
+		long skipped = 0;
+		while (skipped < n) {
+			ByteBuffer buffer = nextBuffer();
+			if (buffer == null) {
+				break;
+			}
+			int length = (int) Math.min(n - skipped, buffer.remaining());
+			buffer.position(buffer.position() + length);
+			skipped += length;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		long remaining = 0;
+		for (int i = current; i < buffers.length; i++) {
+			remaining += buffers[i].remaining();
+		}
+		return (int) Math.min(Integer.MAX_VALUE, remaining);
+	}
+
+	private ByteBuffer nextBuffer() {
+		while (current < buffers.length) {
+			ByteBuffer buffer = buffers[current];
+			if (buffer.hasRemaining()) {
+				return buffer;
+			}
+			current++;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A page of a CachedRandomAccessFile held in a CachedPagePool.<br>
+ * <br>
+ * The contents of the page must only be accessed while synchronized on the page.  A page which has been evicted must not be used.
+ */
+class CachedPage {
+	private final CachedRandomAccessFile file;
+	private final int index;
+	private final ByteBuffer buffer;
+	private boolean dirty = false;
+	private boolean evicted = false;
+	private volatile boolean referenced = true;
+	/**
+	 * The slot in the pool's clock, only accessed while synchronized on the pool
+	 */
+	private int slot = -1;
+
+	CachedPage(CachedRandomAccessFile file, int index, ByteBuffer buffer) {
+		this.file = file;
+		this.index = index;
+		this.buffer = buffer;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public boolean isEvicted() {
+		return evicted;
+	}
+
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	public void setDirty() {
+		dirty = true;
+	}
+
+	public void reference() {
+		referenced = true;
+	}
+
+	/**
+	 * Clears the referenced flag
+	 * 
+	 * @return true if the page was referenced since the last call
+	 */
+	public boolean clearReferenced() {
+		if (referenced) {
+			referenced = false;
+			return true;
+		}
+		return false;
+	}
+
+	int getSlot() {
+		return slot;
+	}
+
+	void setSlot(int slot) {
+		this.slot = slot;
+	}
+
+	/**
+	 * Writes the page back to the file if it is dirty
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void writeBack() throws IOException {
+		if (dirty && !evicted) {
+			file.writePage(this);
+			dirty = false;
+		}
+	}
+
+	/**
+	 * Removes the page from its file without writing it back.  This must be called while synchronized on the page.
+	 */
+	public void discard() {
+		dirty = false;
+		evicted = true;
+		file.removePage(this);
+	}
+
+	/**
+	 * Writes back the page if it is dirty and removes it from its file
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void evict() throws IOException {
+		if (evicted) {
+			return;
+		}
+		writeBack();
+		evicted = true;
+		file.removePage(this);
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct buffers which is shared by CachedRandomAccessFiles.<br>
+ * <br>
+ * The total size of the cached pages is limited to the memory budget of the pool.  When a page is needed and the budget is used up, pages are evicted using the CLOCK algorithm.  Dirty pages are written back to their file when they are evicted.<br>
+ * <br>
+ * Buffers from evicted pages are reused for new pages of the same size.
+ */
+public class CachedPagePool {
+	private static final CachedPagePool defaultPool = new CachedPagePool(64 << 20);
+
+	private final ArrayList<CachedPage> clock = new ArrayList<CachedPage>();
+	private final Map<Integer, LinkedList<ByteBuffer>> freeBuffers = new HashMap<Integer, LinkedList<ByteBuffer>>();
+	private long budget;
+	private long used = 0;
+	private long free = 0;
+	private int hand = 0;
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+	private final AtomicLong writeBacks = new AtomicLong(0);
+
+	/**
+	 * Creates a pool
+	 * 
+	 * @param budget the maximum number of bytes to use for cached pages
+	 */
+	public CachedPagePool(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Gets the pool used by files which are not given a pool
+	 * 
+	 * @return the default pool
+	 */
+	public static CachedPagePool getDefault() {
+		return defaultPool;
+	}
+
+	/**
+	 * Sets the memory budget.  If the budget is reduced, pages are evicted as new pages are needed.
+	 * 
+	 * @param budget the maximum number of bytes to use for cached pages
+	 */
+	public synchronized void setBudget(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Gets the memory budget
+	 * 
+	 * @return the maximum number of bytes to use for cached pages
+	 */
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Gets the number of bytes currently allocated to pages, including buffers waiting to be reused
+	 * 
+	 * @return the number of bytes used
+	 */
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	/**
+	 * Gets the number of pages in the pool
+	 * 
+	 * @return the number of pages
+	 */
+	public synchronized int getPageCount() {
+		return clock.size();
+	}
+
+	/**
+	 * Gets the number of page lookups which found the page in the pool
+	 * 
+	 * @return the number of hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of page lookups which required the page to be read from the file
+	 * 
+	 * @return the number of misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the fraction of page lookups which found the page in the pool
+	 * 
+	 * @return the hit rate, or 0 if there have been no lookups
+	 */
+	public float getHitRate() {
+		long hits = this.hits.get();
+		long total = hits + misses.get();
+		return total == 0 ? 0F : ((float) hits) / total;
+	}
+
+	/**
+	 * Gets the number of pages evicted from the pool
+	 * 
+	 * @return the number of evictions
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Gets the number of dirty pages written back to their file
+	 * 
+	 * @return the number of write backs
+	 */
+	public long getWriteBacks() {
+		return writeBacks.get();
+	}
+
+	void hit() {
+		hits.incrementAndGet();
+	}
+
+	void miss() {
+		misses.incrementAndGet();
+	}
+
+	void wroteBack() {
+		writeBacks.incrementAndGet();
+	}
+
+	/**
+	 * Allocates a buffer for a new page, evicting other pages if the budget is used up.<br>
+	 * <br>
+	 * The contents of the buffer are undefined.
+	 * 
+	 * @param size the size of the buffer
+	 * @return the buffer
+	 * @throws IOException if a dirty page could not be written back
+	 */
+	ByteBuffer allocate(int size) throws IOException {
+		while (true) {
+			CachedPage victim;
+			synchronized (this) {
+				LinkedList<ByteBuffer> list = freeBuffers.get(size);
+				if (list != null && !list.isEmpty()) {
+					free -= size;
+					ByteBuffer buffer = list.removeFirst();
+					buffer.clear();
+					return buffer;
+				}
+				if (used + size > budget && free > 0) {
+					// Buffers of other sizes are dropped before live pages are evicted
+					used -= free;
+					free = 0;
+					freeBuffers.clear();
+				}
+				if (used + size <= budget || clock.isEmpty()) {
+					used += size;
+					return ByteBuffer.allocateDirect(size);
+				}
+				victim = selectVictim();
+			}
+			try {
+				victim.evict();
+			} catch (IOException e) {
+				add(victim);
+				throw e;
+			}
+			evictions.incrementAndGet();
+			release(victim.getBuffer());
+		}
+	}
+
+	/**
+	 * Adds a page to the pool so that it can be evicted
+	 * 
+	 * @param page the page
+	 */
+	synchronized void add(CachedPage page) {
+		page.setSlot(clock.size());
+		clock.add(page);
+	}
+
+	/**
+	 * Removes a page from the pool and makes its buffer available for reuse.  The page must not be dirty.
+	 * 
+	 * @param page the page
+	 */
+	void remove(CachedPage page) {
+		boolean removed;
+		synchronized (this) {
+			removed = removeFromClock(page);
+		}
+		if (removed) {
+			release(page.getBuffer());
+		}
+	}
+
+	/**
+	 * Makes a buffer available for reuse
+	 * 
+	 * @param buffer the buffer
+	 */
+	synchronized void release(ByteBuffer buffer) {
+		int size = buffer.capacity();
+		if (used > budget) {
+			used -= size;
+			return;
+		}
+		LinkedList<ByteBuffer> list = freeBuffers.get(size);
+		if (list == null) {
+			list = new LinkedList<ByteBuffer>();
+			freeBuffers.put(size, list);
+		}
+		list.add(buffer);
+		free += size;
+	}
+
+	private CachedPage selectVictim() {
+		while (true) {
+			if (hand >= clock.size()) {
+				hand = 0;
+			}
+			CachedPage page = clock.get(hand);
+			if (page.clearReferenced()) {
+				hand++;
+			} else {
+				removeFromClock(page);
+				return page;
+			}
+		}
+	}
+
+	private boolean removeFromClock(CachedPage page) {
+		int slot = page.getSlot();
+		if (slot < 0) {
+			return false;
+		}
+		CachedPage last = clock.remove(clock.size() - 1);
+		if (last != page) {
+			clock.set(slot, last);
+			last.setSlot(slot);
+		}
+		page.setSlot(-1);
+		return true;
+	}
+}
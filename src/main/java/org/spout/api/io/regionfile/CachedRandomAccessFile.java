@@ -30,18 +30,31 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
-public class CachedRandomAccessFile {
+/**
+ * A file which caches its pages in direct buffers allocated from a CachedPagePool.<br>
+ * <br>
+ * Writes are made to the cached pages and are written back to the file when a page is evicted from the pool, or when the file is forced or closed.  This can be used instead of MappedRandomAccessFile where memory mapping is not desirable.<br>
+ * <br>
+ * As with RandomAccessFile, the file position is not thread safe.  Pages may be evicted by other threads at any time.
+ */
+public class CachedRandomAccessFile implements SRFRandomAccessFile {
 
 	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final CachedPagePool pool;
 	private long pos = 0;
-	private boolean posDirty = false;
-	private final ArrayList<byte[]> pages = new ArrayList<byte[]>();
+	private volatile long length;
+	private final ConcurrentHashMap<Integer, CachedPage> pages = new ConcurrentHashMap<Integer, CachedPage>();
 	private final int PAGE_SHIFT;
 	private final int PAGE_SIZE;
 	private final long PAGE_MASK;
+	private final byte[] intArray = new byte[4];
 
 	private static boolean debug = false;
 	private static AtomicLong timeUsed = new AtomicLong(0);
@@ -53,184 +66,288 @@ public class CachedRandomAccessFile {
 	}
 
 	public CachedRandomAccessFile(File filePath, String permissions, int pageShift) throws FileNotFoundException {
+		this(filePath, permissions, pageShift, CachedPagePool.getDefault());
+	}
+
+	/**
+	 * Opens a file
+	 * 
+	 * @param filePath the file
+	 * @param permissions the permissions, as for RandomAccessFile
+	 * @param pageShift log2(the page size)
+	 * @param pool the pool used to cache the pages
+	 * @throws FileNotFoundException if the file could not be opened
+	 */
+	public CachedRandomAccessFile(File filePath, String permissions, int pageShift, CachedPagePool pool) throws FileNotFoundException {
 		this.file = new RandomAccessFile(filePath, permissions);
+		this.channel = file.getChannel();
+		this.pool = pool;
+		try {
+			this.length = file.length();
+		} catch (IOException e) {
+			try {
+				file.close();
+			} catch (IOException ignore) {
+			}
+			FileNotFoundException fnfe = new FileNotFoundException("Unable to get the length of " + filePath);
+			fnfe.initCause(e);
+			throw fnfe;
+		}
 		this.PAGE_SHIFT = pageShift;
 		PAGE_SIZE = (1 << PAGE_SHIFT);
 		PAGE_MASK = PAGE_SIZE - 1;
 	}
 
+	/**
+	 * Gets the length of the file, including data which has not been written back
+	 * 
+	 * @return the length
+	 * @throws IOException
+	 */
 	public long length() throws IOException {
+		return length;
+	}
+
+	/**
+	 * Writes back all dirty pages, releases the cached pages to the pool and closes the file
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
 		timeStart();
 		try {
-			return file.length();
+			try {
+				writeBack();
+			} finally {
+				for (CachedPage page : new ArrayList<CachedPage>(pages.values())) {
+					discard(page);
+				}
+				file.close();
+			}
 		} finally {
 			timeEnd();
 		}
 	}
 
-	public void close() throws IOException {
+	/**
+	 * Writes back all dirty pages and forces them to be written to disk
+	 * 
+	 * @throws IOException
+	 */
+	public void force() throws IOException {
 		timeStart();
 		try {
-			file.close();
+			writeBack();
+			channel.force(false);
 		} finally {
 			timeEnd();
 		}
 	}
 
 	public void writeInt(int i) throws IOException {
+		intArray[0] = (byte) (i >> 24);
+		intArray[1] = (byte) (i >> 16);
+		intArray[2] = (byte) (i >> 8);
+		intArray[3] = (byte) (i >> 0);
+		write(intArray, 0, 4);
+	}
+
+	public int readInt() throws IOException {
+		readFully(intArray);
+		int i = 0;
+		i |= (intArray[0] & 0xFF) << 24;
+		i |= (intArray[1] & 0xFF) << 16;
+		i |= (intArray[2] & 0xFF) << 8;
+		i |= (intArray[3] & 0xFF) << 0;
+		return i;
+	}
+
+	public void seek(long pos) throws IOException {
+		this.pos = pos;
+	}
+
+	/**
+	 * Reads bytes from the current position.  Bytes beyond the end of the file are read as zero.
+	 * 
+	 * @param b the array to fill
+	 * @throws IOException
+	 */
+	public void readFully(byte[] b) throws IOException {
 		timeStart();
 		try {
-			writeCacheByte((byte)(i >> 24));
-			writeCacheByte((byte)(i >> 16));
-			writeCacheByte((byte)(i >> 8));
-			writeCacheByte((byte)(i >> 0));
+			transfer(b, 0, b.length, false);
 		} finally {
 			timeEnd();
 		}
 	}
 
-	public int readInt() throws IOException {
+	public void write(byte[] b, int off, int len) throws IOException {
 		timeStart();
 		try {
-			int i = 0;
-			i |= (readCacheByte() & 0xFF) << 24;
-			i |= (readCacheByte() & 0xFF) << 16;
-			i |= (readCacheByte() & 0xFF) << 8;
-			i |= (readCacheByte() & 0xFF) << 0;
-			return i;
+			// The length is extended first so that pages evicted during the write are written back in full
+			if (pos + len > length) {
+				length = pos + len;
+			}
+			transfer(b, off, len, true);
 		} finally {
 			timeEnd();
 		}
 	}
 
-	private byte[] getPage(int pageIndex) throws IOException {
-		while (pageIndex >= pages.size()) {
-			pages.add(null);
-		}
-		byte[] page = pages.get(pageIndex);
-		if (page == null) {
-			long oldPos = pos;
-			long pagePosition = pageIndex << PAGE_SHIFT;
-			file.seek(pagePosition);
-			page = new byte[PAGE_SIZE];
-			long len = Math.min(file.length() - pagePosition, page.length);
-			if (len > 0) {
-				file.readFully(page, 0, (int)len);
-			}
-			pages.set(pageIndex, page);
-			pos = oldPos;
-			posDirty = true;
+	/**
+	 * Gets a read-only copy of a region of the file.  Unlike MappedRandomAccessFile, the buffer does not share the cached pages.<br>
+	 * <br>
+	 * This does not change the file position.
+	 * 
+	 * @param pos the start of the region
+	 * @param len the length of the region
+	 * @return the buffers
+	 * @throws IOException
+	 */
+	public ByteBuffer[] slice(long pos, int len) throws IOException {
+		if (len <= 0) {
+			return new ByteBuffer[0];
 		}
-		return page;
-
-	}
-
-	public void seek(long pos) throws IOException {
+		byte[] data = new byte[len];
+		long oldPos = this.pos;
+		this.pos = pos;
 		timeStart();
 		try {
-			file.seek(pos);
-			this.pos = pos;
-			posDirty = false;
+			transfer(data, 0, len, false);
 		} finally {
+			this.pos = oldPos;
 			timeEnd();
 		}
+		return new ByteBuffer[] {ByteBuffer.wrap(data).asReadOnlyBuffer()};
 	}
 
-	public void readFully(byte[] b) throws IOException {
-		timeStart();
-		try {
-			int pageIndex = (int)(pos >> PAGE_SHIFT);
-			int offset = (int)(pos & PAGE_MASK);
-			int endPageOne = Math.min(b.length + offset, PAGE_SIZE);
-
-			byte[] page = getPage(pageIndex);
-
-			int j = 0;
-			for (int i = offset; i < endPageOne; i++) {
-				b[j++] = page[i];
-			}
-
-			while (b.length > j) {
-				pageIndex++;
-				page = getPage(pageIndex);
-				if (b.length - j > PAGE_SIZE) {
-					for (int i = 0; i < PAGE_SIZE; i++) {
-						b[j++] = page[i];
-					}
-				} else {
-					for (int i = 0; j < b.length; i++) {
-						b[j++] = page[i];
-					}
-				}
+	/**
+	 * Truncates the file.  The length is rounded up to a whole number of pages.<br>
+	 * <br>
+	 * The file is not extended if it is already shorter than the given length.
+	 * 
+	 * @param length the minimum length to keep
+	 * @throws IOException
+	 */
+	public void truncate(long length) throws IOException {
+		int pageCount = (int)((length + PAGE_MASK) >> PAGE_SHIFT);
+		long newLength = ((long) pageCount) << PAGE_SHIFT;
+		if (newLength >= this.length) {
+			return;
+		}
+		for (CachedPage page : new ArrayList<CachedPage>(pages.values())) {
+			if (page.getIndex() >= pageCount) {
+				discard(page);
 			}
-
-			pos += b.length;
-			posDirty = true;
-		} finally {
-			timeEnd();
+		}
+		this.length = newLength;
+		if (newLength < file.length()) {
+			file.setLength(newLength);
 		}
 	}
 
-	public void write(byte[] b, int off, int len) throws IOException {
-		timeStart();
-		try {
+	private void transfer(byte[] b, int off, int len, boolean write) throws IOException {
+		while (len > 0) {
 			int pageIndex = (int)(pos >> PAGE_SHIFT);
 			int offset = (int)(pos & PAGE_MASK);
-			int endPageOne = Math.min(len + offset, PAGE_SIZE);
-
-			byte[] page = getPage(pageIndex);
-
-			int j = 0;
-			for (int i = offset; i < endPageOne; i++) {
-				page[i] = b[off + (j++)];
-			}
-
-			while (len > j) {
-				pageIndex++;
-				page = getPage(pageIndex);
-				if (len - j > PAGE_SIZE) {
-					for (int i = 0; i < PAGE_SIZE; i++) {
-						page[i] = b[off + (j++)];
-					}
-				} else {
-					for (int i = 0; j < len; i++) {
-						page[i] = b[off + (j++)];
+			int length = Math.min(len, PAGE_SIZE - offset);
+			boolean done = false;
+			while (!done) {
+				CachedPage page = getPage(pageIndex);
+				synchronized (page) {
+					if (!page.isEvicted()) {
+						ByteBuffer buffer = page.getBuffer();
+						buffer.clear();
+						buffer.position(offset);
+						if (write) {
+							buffer.put(b, off, length);
+							page.setDirty();
+						} else {
+							buffer.get(b, off, length);
+						}
+						page.reference();
+						done = true;
 					}
 				}
 			}
+			off += length;
+			len -= length;
+			pos += length;
+		}
+	}
 
-			if (posDirty) {
-				file.seek(pos);
-				posDirty = false;
+	private CachedPage getPage(int pageIndex) throws IOException {
+		CachedPage page = pages.get(pageIndex);
+		if (page != null) {
+			pool.hit();
+			return page;
+		}
+		pool.miss();
+		ByteBuffer buffer = pool.allocate(PAGE_SIZE);
+		long pagePosition = ((long) pageIndex) << PAGE_SHIFT;
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, pagePosition + buffer.position()) < 0) {
+				break;
 			}
-			file.write(b, off, len);
+		}
+		while (buffer.hasRemaining()) {
+			buffer.put((byte) 0);
+		}
+		page = new CachedPage(this, pageIndex, buffer);
+		CachedPage old = pages.putIfAbsent(pageIndex, page);
+		if (old != null) {
+			pool.release(buffer);
+			return old;
+		}
+		pool.add(page);
+		return page;
+	}
 
-			pos += b.length;
-		} finally {
-			timeEnd();
+	private void writeBack() throws IOException {
+		for (CachedPage page : pages.values()) {
+			page.writeBack();
+		}
+	}
+
+	private void discard(CachedPage page) {
+		synchronized (page) {
+			if (page.isEvicted()) {
+				return;
+			}
+			page.discard();
 		}
+		pool.remove(page);
 	}
 
-	private void writeCacheByte(byte b) throws IOException {
-		int pageIndex = (int)(pos >> PAGE_SHIFT);
-		int offset = (int)(pos & PAGE_MASK);
-		byte[] page = getPage(pageIndex);
-		page[offset] = b;
-		if (posDirty) {
-			file.seek(pos);
-			posDirty = false;
+	/**
+	 * Writes a page to the file.  This is called while synchronized on the page.
+	 * 
+	 * @param page the page
+	 * @throws IOException
+	 */
+	void writePage(CachedPage page) throws IOException {
+		long pagePosition = ((long) page.getIndex()) << PAGE_SHIFT;
+		long length = Math.min(PAGE_SIZE, this.length - pagePosition);
+		if (length <= 0) {
+			return;
+		}
+		ByteBuffer buffer = page.getBuffer();
+		buffer.clear();
+		buffer.limit((int) length);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, pagePosition + buffer.position());
 		}
-		file.writeByte(b & 0xFF);
-		pos++;
+		pool.wroteBack();
 	}
 
-	private byte readCacheByte() throws IOException {
-		int pageIndex = (int)(pos >> PAGE_SHIFT);
-		int offset = (int)(pos & PAGE_MASK);
-		byte[] page = getPage(pageIndex);
-		pos++;
-		posDirty = true;
-		return page[offset];
+	/**
+	 * Removes an evicted page from the file
+	 * 
+	 * @param page the page
+	 */
+	void removePage(CachedPage page) {
+		pages.remove(page.getIndex(), page);
 	}
 
 	private void timeStart() {
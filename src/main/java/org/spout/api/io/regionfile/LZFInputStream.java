@@ -0,0 +1,123 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream which expands data written by an LZFOutputStream
+ */
+class LZFInputStream extends InputStream {
+	private final InputStream in;
+	private final byte[] buf = new byte[LZFOutputStream.CHUNK_SIZE];
+	private final byte[] compressed = new byte[SRFLZFCodec.maxCompressedLength(LZFOutputStream.CHUNK_SIZE)];
+	private final byte[] header = new byte[8];
+	private int pos = 0;
+	private int count = 0;
+	private boolean eof = false;
+
+	LZFInputStream(InputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos == count && !readChunk()) {
+			return -1;
+		}
+		return buf[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (pos == count && !readChunk()) {
+			return -1;
+		}
+		int length = Math.min(len, count - pos);
+		System.arraycopy(buf, pos, b, off, length);
+		pos += length;
+		return length;
+	}
+
+	@Override
+	public int available() {
+		return count - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private boolean readChunk() throws IOException {
+		if (eof) {
+			return false;
+		}
+		if (!readFully(header, 0, 8, true)) {
+			eof = true;
+			return false;
+		}
+		int length = getInt(header, 0);
+		int storedLength = getInt(header, 4);
+		if (length <= 0 || length > buf.length || storedLength <= 0 || storedLength > length) {
+			throw new SRFException("Corrupt LZF chunk header");
+		}
+		if (storedLength == length) {
+			readFully(buf, 0, length, false);
+		} else {
+			readFully(compressed, 0, storedLength, false);
+			SRFLZFCodec.expand(compressed, storedLength, buf, length);
+		}
+		pos = 0;
+		count = length;
+		return true;
+	}
+
+	private boolean readFully(byte[] b, int off, int len, boolean eofAllowed) throws IOException {
+		int read = 0;
+		while (read < len) {
+			int r = in.read(b, off + read, len - read);
+			if (r < 0) {
+				if (read == 0 && eofAllowed) {
+					return false;
+				}
+				throw new EOFException("Unexpected end of LZF stream");
+			}
+			read += r;
+		}
+		return true;
+	}
+
+	private static int getInt(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream which compresses data using LZF.<br>
+ * <br>
+ * The data is split into chunks.  Each chunk is prefixed by its uncompressed and stored lengths.  Chunks which do not compress are stored directly.
+ */
+class LZFOutputStream extends OutputStream {
+	static final int CHUNK_SIZE = 1 << 16;
+
+	private final OutputStream out;
+	private final byte[] buf = new byte[CHUNK_SIZE];
+	private final byte[] compressed = new byte[SRFLZFCodec.maxCompressedLength(CHUNK_SIZE)];
+	private final int[] hashTable = new int[1 << 14];
+	private final byte[] header = new byte[8];
+	private int count = 0;
+	private boolean closed = false;
+
+	LZFOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == CHUNK_SIZE) {
+			writeChunk();
+		}
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == CHUNK_SIZE) {
+				writeChunk();
+			}
+			int length = Math.min(len, CHUNK_SIZE - count);
+			System.arraycopy(b, off, buf, count, length);
+			count += length;
+			off += length;
+			len -= length;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writeChunk();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			writeChunk();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeChunk() throws IOException {
+		if (count == 0) {
+			return;
+		}
+		int compressedLength = SRFLZFCodec.compress(buf, count, compressed, hashTable);
+		if (compressedLength >= count) {
+			writeHeader(count, count);
+			out.write(buf, 0, count);
+		} else {
+			writeHeader(count, compressedLength);
+			out.write(compressed, 0, compressedLength);
+		}
+		count = 0;
+	}
+
+	private void writeHeader(int length, int storedLength) throws IOException {
+		header[0] = (byte) (length >> 24);
+		header[1] = (byte) (length >> 16);
+		header[2] = (byte) (length >> 8);
+		header[3] = (byte) (length >> 0);
+		header[4] = (byte) (storedLength >> 24);
+		header[5] = (byte) (storedLength >> 16);
+		header[6] = (byte) (storedLength >> 8);
+		header[7] = (byte) (storedLength >> 0);
+		out.write(header, 0, 8);
+	}
+}
@@ -30,11 +30,14 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 
-public class MappedRandomAccessFile {
+import org.spout.api.io.FileUtil;
+
+public class MappedRandomAccessFile implements SRFRandomAccessFile {
 
 	private final RandomAccessFile file;
 	private long pos = 0;
@@ -59,12 +62,21 @@ public class MappedRandomAccessFile {
 	}
 
 	public void close() throws IOException {
+		force();
+		file.close();
+	}
+
+	/**
+	 * Forces all mapped pages to be written to disk
+	 * 
+	 * @throws IOException
+	 */
+	public void force() throws IOException {
 		for (MappedByteBuffer m : pages) {
 			if (m != null) {
 				m.force();
 			}
 		}
-		file.close();
 	}
 
 	byte[] intArray = new byte[4];
@@ -138,6 +150,62 @@ public class MappedRandomAccessFile {
 		pos += b.length;
 	}
 
+	/**
+	 * Truncates the file.  The length is rounded up to a whole number of pages.<br>
+	 * <br>
+	 * The file is not extended if it is already shorter than the given length.<br>
+	 * <br>
+	 * Some platforms do not allow a mapped file to be shrunk, so all pages are forced to disk and unmapped first.  They are mapped again when next accessed.  
+	 * Buffers returned by slice must not be in use when the file is truncated.
+	 * 
+	 * @param length the minimum length to keep
+	 * @throws IOException if the file could not be truncated
+	 */
+	public void truncate(long length) throws IOException {
+		int pageCount = (int)((length + PAGE_MASK) >> PAGE_SHIFT);
+		long newLength = ((long) pageCount) << PAGE_SHIFT;
+		if (newLength >= file.length()) {
+			return;
+		}
+		force();
+		for (MappedByteBuffer m : pages) {
+			FileUtil.unmap(m);
+		}
+		pages.clear();
+		file.setLength(newLength);
+	}
+
+	/**
+	 * Gets read-only buffers which share the mapped pages holding a region of the file.  One buffer is returned for each page the region spans.<br>
+	 * <br>
+	 * This does not change the file position.
+	 * 
+	 * @param pos the start of the region
+	 * @param len the length of the region
+	 * @return the buffers
+	 * @throws IOException
+	 */
+	public ByteBuffer[] slice(long pos, int len) throws IOException {
+		int pageIndex = (int)(pos >> PAGE_SHIFT);
+		int offset = (int)(pos & PAGE_MASK);
+		int endPageIndex = (int)((pos + len - 1) >> PAGE_SHIFT);
+		
+		ByteBuffer[] buffers = new ByteBuffer[len <= 0 ? 0 : endPageIndex - pageIndex + 1];
+		
+		int j = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			int length = Math.min(len - j, PAGE_SIZE - offset);
+			ByteBuffer page = getPage(pageIndex + i).duplicate();
+			page.limit(offset + length);
+			page.position(offset);
+			buffers[i] = page.slice().asReadOnlyBuffer();
+			j += length;
+			offset = 0;
+		}
+		
+		return buffers;
+	}
+
 	public void write(byte[] b, int off, int len) throws IOException {
 		int pageIndex = (int)(pos >> PAGE_SHIFT);
 		int offset = (int)(pos & PAGE_MASK);
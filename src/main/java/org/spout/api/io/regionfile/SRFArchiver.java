@@ -0,0 +1,534 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Exports the live blocks of a folder of region files to a single sequential archive, and rebuilds region files from an archive.<br>
+ * <br>
+ * Blocks are copied in their stored (compressed) form, so they are not decoded and encoded again.  Segments which are not in use are not exported, and imported files are written sequentially, so they contain no gaps.<br>
+ * <br>
+ * The archive consists of a header, a section for each region file and an index of the sections.  The trailer holds the position of the index, so the archive can be listed without reading the sections.<br>
+ * <br>
+ * Files are read (on export) and written (on import) in parallel.  The region files should not be open elsewhere while they are exported or imported.<br>
+ * <br>
+ * Exported files are mapped read-only and are never modified.  Files whose header is not a valid region file header are skipped.
+ */
+public class SRFArchiver {
+	public static final int MAGIC = 0x53524641;
+	private static final int VERSION = 1;
+	private static final int SECTION_MAGIC = 0x53454354;
+	private static final int INDEX_MAGIC = 0x494E4458;
+
+	private final int threads;
+
+	/**
+	 * Creates an archiver
+	 * 
+	 * @param threads the number of region files to process in parallel
+	 */
+	public SRFArchiver(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Exports all matching region files in a folder and its sub-folders
+	 * 
+	 * @param folder the folder
+	 * @param filter the filter for region files, or null to export all files
+	 * @param out the stream to write the archive to, it is not closed
+	 * @return the index of the archive
+	 * @throws IOException if a region file is corrupt or has a journal which has not been recovered
+	 */
+	public List<Entry> exportFolder(File folder, FileFilter filter, OutputStream out) throws IOException {
+		List<String> paths = new ArrayList<String>();
+		findFiles(folder, "", filter, paths);
+
+		CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(out));
+		DataOutputStream dos = new DataOutputStream(counter);
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+
+		List<Entry> index = new ArrayList<Entry>(paths.size());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			LinkedList<Future<Section>> pending = new LinkedList<Future<Section>>();
+			int next = 0;
+			while (next < paths.size() || !pending.isEmpty()) {
+				// Sections are written in order, so the number of files read ahead is limited to bound memory use
+				while (next < paths.size() && pending.size() < threads * 2) {
+					final String path = paths.get(next++);
+					final File file = new File(folder, path);
+					pending.add(executor.submit(new Callable<Section>() {
+						@Override
+						public Section call() throws IOException {
+							return readSection(file, path);
+						}
+					}));
+				}
+				Section section = get(pending.removeFirst());
+				if (section == null) {
+					continue;
+				}
+				long offset = counter.getByteCount();
+				section.write(dos);
+				index.add(new Entry(section.path, offset, section.blocks.size(), counter.getByteCount() - offset));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		long indexOffset = counter.getByteCount();
+		dos.writeInt(INDEX_MAGIC);
+		dos.writeInt(index.size());
+		for (Entry entry : index) {
+			dos.writeUTF(entry.path);
+			dos.writeLong(entry.offset);
+			dos.writeInt(entry.blocks);
+			dos.writeLong(entry.length);
+		}
+		dos.writeLong(indexOffset);
+		dos.writeInt(MAGIC);
+		dos.flush();
+		return index;
+	}
+
+	/**
+	 * Rebuilds the region files stored in an archive.  The archive is read sequentially, so it may be read from a pipe.
+	 * 
+	 * @param in the stream to read the archive from, it is not closed
+	 * @param folder the folder to create the region files in
+	 * @return the number of region files created
+	 * @throws IOException if the archive is invalid, or a region file already exists
+	 */
+	public int importFolder(InputStream in, final File folder) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+		if (dis.readInt() != MAGIC) {
+			throw new SRFException("Not a region file archive");
+		}
+		int version = dis.readInt();
+		if (version != VERSION) {
+			throw new SRFException("Unknown region file archive version " + version);
+		}
+
+		int count = 0;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			LinkedList<Future<Boolean>> pending = new LinkedList<Future<Boolean>>();
+			while (true) {
+				final Section section = Section.read(dis);
+				if (section == null) {
+					break;
+				}
+				if (pending.size() >= threads * 2) {
+					get(pending.removeFirst());
+				}
+				pending.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws IOException {
+						writeSection(new File(folder, section.path), section);
+						return true;
+					}
+				}));
+				count++;
+			}
+			while (!pending.isEmpty()) {
+				get(pending.removeFirst());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return count;
+	}
+
+	/**
+	 * Reads the index of an archive file
+	 * 
+	 * @param archive the archive
+	 * @return the index
+	 * @throws IOException if the archive is invalid
+	 */
+	public static List<Entry> list(File archive) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(archive, "r");
+		try {
+			if (raf.length() < 20) {
+				throw new SRFException("Region file archive is truncated");
+			}
+			raf.seek(raf.length() - 12);
+			long indexOffset = raf.readLong();
+			if (raf.readInt() != MAGIC || indexOffset < 8 || indexOffset > raf.length() - 16) {
+				throw new SRFException("Region file archive has no index");
+			}
+			raf.seek(indexOffset);
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+			if (dis.readInt() != INDEX_MAGIC) {
+				throw new SRFException("Region file archive index is corrupt");
+			}
+			int count = dis.readInt();
+			List<Entry> index = new ArrayList<Entry>(count);
+			for (int i = 0; i < count; i++) {
+				index.add(new Entry(dis.readUTF(), dis.readLong(), dis.readInt(), dis.readLong()));
+			}
+			return index;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads the stored blocks of a region file.  The file is mapped read-only, so it is not modified even if it is not a region file.
+	 * 
+	 * @param file the file
+	 * @param path the path of the file relative to the exported folder
+	 * @return the section, or null if the file is not a region file
+	 * @throws IOException
+	 */
+	private static Section readSection(File file, String path) throws IOException {
+		if (SRFJournal.getJournalFile(file).exists()) {
+			throw new SRFException("Region file " + file + " has a journal which has not been recovered");
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long size = raf.length();
+			if (size < 12) {
+				return null;
+			}
+			if (size > Integer.MAX_VALUE) {
+				throw new SRFException("Region file " + file + " is too large to export");
+			}
+			ByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			int version = map.getInt(0);
+			int segmentSize = map.getInt(4);
+			int entries = map.getInt(8);
+			if (version < 1 || version > 3 || segmentSize < 0 || segmentSize > SRFScanner.MAX_SEGMENT_SIZE || entries < 0) {
+				return null;
+			}
+			int FATOffset = SimpleRegionFile.getFATOffset(version);
+			if (size < FATOffset) {
+				return null;
+			}
+			SRFCodec codec = version >= 2 ? SRFCodec.getCodec(map.getInt(12)) : SRFCodec.DEFLATE;
+			int flags = version >= 3 ? map.getInt(16) : 0;
+			int FATEntrySize = SimpleRegionFile.getFATEntrySize(flags);
+			if (codec == null || (long) FATOffset + (long) entries * FATEntrySize > size) {
+				return null;
+			}
+			boolean checksums = FATEntrySize > 8;
+
+			Section section = new Section(path, segmentSize, entries, codec.getId(), checksums);
+			CRC32C crc = new CRC32C();
+			for (int i = 0; i < entries; i++) {
+				int entry = FATOffset + i * FATEntrySize;
+				int start = map.getInt(entry);
+				int length = map.getInt(entry + 4);
+				if (length == 0) {
+					continue;
+				}
+				long position = ((long) start) << segmentSize;
+				if (start < 0 || length < 0 || position + length > size) {
+					throw new SRFException("Invalid FAT entry for block " + i + " of region file " + file);
+				}
+				ByteBuffer block = map.duplicate();
+				block.limit((int) position + length);
+				block.position((int) position);
+				if (checksums) {
+					crc.reset();
+					crc.update(block.duplicate());
+					if ((int) crc.getValue() != map.getInt(entry + 8)) {
+						throw new SRFException("Checksum mismatch for block " + i + " of region file " + file);
+					}
+				}
+				byte[] data = new byte[length];
+				block.get(data);
+				section.add(i, data);
+			}
+			return section;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void writeSection(File file, Section section) throws IOException {
+		if (file.exists()) {
+			throw new SRFException("Region file " + file + " already exists");
+		}
+		if (SRFJournal.getJournalFile(file).exists()) {
+			// Opening the new file would replay the stale journal into it
+			throw new SRFException("Region file " + file + " has a journal left over from a previous file");
+		}
+		SRFCodec codec = SRFCodec.getCodec(section.codecId);
+		if (codec == null) {
+			throw new SRFException("Unknown codec id " + section.codecId + " for file " + section.path);
+		}
+		File parent = file.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new SRFException("Unable to create folder " + parent);
+		}
+		SimpleRegionFile srf = new SimpleRegionFile(file, section.segmentSize, section.entries, SimpleRegionFile.DEFAULT_TIMEOUT, codec, null, section.checksums);
+		try {
+			for (int j = 0; j < section.blocks.size(); j++) {
+				OutputStream out = srf.getRawOutputStream(section.indexes.get(j));
+				out.write(section.blocks.get(j));
+				out.close();
+			}
+		} finally {
+			if (!srf.attemptClose()) {
+				throw new SRFException("Unable to close imported region file " + file);
+			}
+		}
+	}
+
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SRFException("Interrupted while waiting for region file", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new SRFException("Unable to process region file", e.getCause());
+		}
+	}
+
+	private static void findFiles(File folder, String prefix, FileFilter filter, List<String> paths) {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (child.isDirectory()) {
+				findFiles(child, prefix + child.getName() + "/", filter, paths);
+			} else if (!child.getName().endsWith(".journal") && (filter == null || filter.accept(child))) {
+				paths.add(prefix + child.getName());
+			}
+		}
+	}
+
+	/**
+	 * Exports, imports or lists an archive.<br>
+	 * <br>
+	 * Usage: SRFArchiver export folder archive [extension] [threads]<br>
+	 * SRFArchiver import archive folder [threads]<br>
+	 * SRFArchiver list archive
+	 * 
+	 * @param args the arguments
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length >= 3 && args[0].equals("export")) {
+			final String extension = args.length > 3 ? args[3] : null;
+			int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+			FileFilter filter = new FileFilter() {
+				@Override
+				public boolean accept(File file) {
+					return extension == null || file.getName().endsWith(extension);
+				}
+			};
+			OutputStream out = new FileOutputStream(args[2]);
+			try {
+				List<Entry> index = new SRFArchiver(threads).exportFolder(new File(args[1]), filter, out);
+				System.out.println("Exported " + index.size() + " region files");
+			} finally {
+				out.close();
+			}
+		} else if (args.length >= 3 && args[0].equals("import")) {
+			int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+			InputStream in = new FileInputStream(args[1]);
+			try {
+				int count = new SRFArchiver(threads).importFolder(in, new File(args[2]));
+				System.out.println("Imported " + count + " region files");
+			} finally {
+				in.close();
+			}
+		} else if (args.length >= 2 && args[0].equals("list")) {
+			for (Entry entry : list(new File(args[1]))) {
+				System.out.println(entry);
+			}
+		} else {
+			System.out.println("Usage: SRFArchiver export folder archive [extension] [threads]");
+			System.out.println("       SRFArchiver import archive folder [threads]");
+			System.out.println("       SRFArchiver list archive");
+		}
+	}
+
+	/**
+	 * An entry in the index of an archive
+	 */
+	public static class Entry {
+		private final String path;
+		private final long offset;
+		private final int blocks;
+		private final long length;
+
+		public Entry(String path, long offset, int blocks, long length) {
+			this.path = path;
+			this.offset = offset;
+			this.blocks = blocks;
+			this.length = length;
+		}
+
+		/**
+		 * Gets the path of the region file, relative to the exported folder, using '/' as the separator
+		 * 
+		 * @return the path
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Gets the position of the file's section in the archive
+		 * 
+		 * @return the offset
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Gets the number of non-empty blocks in the region file
+		 * 
+		 * @return the number of blocks
+		 */
+		public int getBlocks() {
+			return blocks;
+		}
+
+		/**
+		 * Gets the length of the file's section in the archive
+		 * 
+		 * @return the length in bytes
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		@Override
+		public String toString() {
+			return path + ": " + blocks + " blocks, " + length + " bytes";
+		}
+	}
+
+	private static class Section {
+		private final String path;
+		private final int segmentSize;
+		private final int entries;
+		private final int codecId;
+		private final boolean checksums;
+		private final List<Integer> indexes = new ArrayList<Integer>();
+		private final List<byte[]> blocks = new ArrayList<byte[]>();
+
+		public Section(String path, int segmentSize, int entries, int codecId, boolean checksums) {
+			this.path = path;
+			this.segmentSize = segmentSize;
+			this.entries = entries;
+			this.codecId = codecId;
+			this.checksums = checksums;
+		}
+
+		public void add(int index, byte[] data) {
+			indexes.add(index);
+			blocks.add(data);
+		}
+
+		public void write(DataOutputStream dos) throws IOException {
+			dos.writeInt(SECTION_MAGIC);
+			dos.writeUTF(path);
+			dos.writeInt(segmentSize);
+			dos.writeInt(entries);
+			dos.writeInt(codecId);
+			dos.writeBoolean(checksums);
+			dos.writeInt(blocks.size());
+			for (int i = 0; i < blocks.size(); i++) {
+				byte[] data = blocks.get(i);
+				dos.writeInt(indexes.get(i));
+				dos.writeInt(data.length);
+				dos.write(data);
+			}
+		}
+
+		/**
+		 * Reads a section
+		 * 
+		 * @param dis the stream
+		 * @return the section, or null if the index has been reached
+		 * @throws IOException
+		 */
+		public static Section read(DataInputStream dis) throws IOException {
+			int magic = dis.readInt();
+			if (magic == INDEX_MAGIC) {
+				return null;
+			} else if (magic != SECTION_MAGIC) {
+				throw new SRFException("Region file archive is corrupt");
+			}
+			String path = dis.readUTF();
+			if (path.startsWith("/") || path.contains("..")) {
+				throw new SRFException("Invalid path in region file archive " + path);
+			}
+			Section section = new Section(path, dis.readInt(), dis.readInt(), dis.readInt(), dis.readBoolean());
+			int count = dis.readInt();
+			for (int i = 0; i < count; i++) {
+				int index = dis.readInt();
+				int length = dis.readInt();
+				if (index < 0 || index >= section.entries || length <= 0) {
+					throw new SRFException("Invalid block " + index + " in region file archive for " + path);
+				}
+				byte[] data = new byte[length];
+				dis.readFully(data);
+				section.add(index, data);
+			}
+			return section;
+		}
+	}
+}
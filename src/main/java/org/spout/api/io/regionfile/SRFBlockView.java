@@ -0,0 +1,96 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import org.spout.api.io.bytearrayarray.BAABlockView;
+import org.spout.api.io.bytearrayarray.ByteBufferInputStream;
+
+public class SRFBlockView implements BAABlockView {
+
+	private final ByteBuffer[] buffers;
+	private final int length;
+	private final SRFCodec codec;
+	private final Lock lock;
+	private final AtomicInteger openViews;
+	private final AtomicBoolean lockUnlocked;
+	
+	SRFBlockView(ByteBuffer[] buffers, int length, SRFCodec codec, Lock lock, AtomicInteger openViews) {
+		this.buffers = buffers;
+		this.length = length;
+		this.codec = codec;
+		this.lock = lock;
+		this.openViews = openViews;
+		this.lockUnlocked = new AtomicBoolean(false);
+	}
+
+	@Override
+	public ByteBuffer[] getBuffers() {
+		checkOpen();
+		ByteBuffer[] copy = new ByteBuffer[buffers.length];
+		for (int i = 0; i < buffers.length; i++) {
+			copy[i] = buffers[i].duplicate();
+		}
+		return copy;
+	}
+
+	@Override
+	public int getLength() {
+		return length;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		checkOpen();
+		return new BufferedInputStream(codec.wrapInputStream(new ByteBufferInputStream(buffers)));
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.lockUnlocked.compareAndSet(false, true)) {
+			if (openViews != null) {
+				openViews.decrementAndGet();
+			}
+			lock.unlock();
+		} else {
+			throw new SRFException("Attempt made to close a block view twice");
+		}
+	}
+	
+	private void checkOpen() {
+		if (lockUnlocked.get()) {
+			throw new IllegalStateException("Block view has been closed");
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Represents the compression scheme used for the blocks of a SimpleRegionFile.<br>
+ * <br>
+ * The id of the codec is stored in the header of the region file, so each file is always read back using the codec that it was written with.
+ */
+public abstract class SRFCodec {
+	private static final ConcurrentHashMap<Integer, SRFCodec> map = new ConcurrentHashMap<Integer, SRFCodec>();
+
+	/**
+	 * Blocks are stored without compression
+	 */
+	public static final SRFCodec NONE = register(new SRFNullCodec(0));
+	/**
+	 * Blocks are compressed using Deflate with the default compression level
+	 */
+	public static final SRFCodec DEFLATE = register(new SRFDeflateCodec(1, Deflater.DEFAULT_COMPRESSION));
+	/**
+	 * Blocks are compressed using LZF, which trades compression ratio for speed
+	 */
+	public static final SRFCodec LZF = register(new SRFLZFCodec(2));
+
+	private final int id;
+	private final String name;
+
+	protected SRFCodec(int id, String name) {
+		this.id = id;
+		this.name = name;
+	}
+
+	/**
+	 * Gets the id of the codec, as stored in the region file header
+	 *
+	 * @return the id
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the name of the codec
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Wraps a stream containing the compressed data of a block
+	 *
+	 * @param in the stream of compressed data
+	 * @return a stream of the uncompressed data
+	 * @throws IOException
+	 */
+	public abstract InputStream wrapInputStream(InputStream in) throws IOException;
+
+	/**
+	 * Wraps a stream so that data written to it is compressed.  Closing the returned stream must close the wrapped stream.
+	 *
+	 * @param out the stream to receive the compressed data
+	 * @return a stream which accepts uncompressed data
+	 * @throws IOException
+	 */
+	public abstract OutputStream wrapOutputStream(OutputStream out) throws IOException;
+
+	@Override
+	public String toString() {
+		return "SRFCodec{" + id + ", " + name + "}";
+	}
+
+	/**
+	 * Gets a Deflate codec which compresses using the given level.<br>
+	 * <br>
+	 * The level only affects writing, files written at any level share the Deflate codec id.
+	 *
+	 * @param level the compression level, from 0 to 9, or -1 for the default level
+	 * @return the codec
+	 */
+	public static SRFCodec deflate(int level) {
+		if (level == Deflater.DEFAULT_COMPRESSION) {
+			return DEFLATE;
+		}
+		return new SRFDeflateCodec(DEFLATE.getId(), level);
+	}
+
+	/**
+	 * Registers a codec so that region files using its id can be opened
+	 *
+	 * @param codec the codec
+	 * @return the codec
+	 * @throws IllegalStateException if a different codec is already registered with the same id
+	 */
+	public static <T extends SRFCodec> T register(T codec) {
+		SRFCodec old = map.putIfAbsent(codec.getId(), codec);
+		if (old != null && old != codec) {
+			throw new IllegalStateException("Codec id " + codec.getId() + " is already registered to " + old);
+		}
+		return codec;
+	}
+
+	/**
+	 * Gets the codec registered to an id
+	 *
+	 * @param id the codec id
+	 * @return the codec, or null if no codec is registered for the id
+	 */
+	public static SRFCodec getCodec(int id) {
+		return map.get(id);
+	}
+}
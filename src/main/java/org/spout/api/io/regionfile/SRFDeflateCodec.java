@@ -0,0 +1,86 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A codec which compresses blocks using Deflate
+ */
+public class SRFDeflateCodec extends SRFCodec {
+	private final int level;
+
+	SRFDeflateCodec(int id, int level) {
+		super(id, "deflate");
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("Invalid deflate compression level " + level);
+		}
+		this.level = level;
+	}
+
+	/**
+	 * Gets the compression level used when writing blocks
+	 *
+	 * @return the level
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	@Override
+	public InputStream wrapInputStream(InputStream in) {
+		return new InflaterInputStream(in);
+	}
+
+	@Override
+	public OutputStream wrapOutputStream(OutputStream out) {
+		if (level == Deflater.DEFAULT_COMPRESSION) {
+			return new DeflaterOutputStream(out);
+		}
+		final Deflater deflater = new Deflater(level);
+		return new DeflaterOutputStream(out, deflater) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "SRFCodec{" + getId() + ", " + getName() + ", level=" + level + "}";
+	}
+}
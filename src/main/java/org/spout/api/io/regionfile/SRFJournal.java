@@ -0,0 +1,315 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The write journal for a SimpleRegionFile in write-behind mode.<br>
+ * <br>
+ * Each commit is stored as a header, the block records and a CRC32 of the commit.  Commits which are incomplete or which fail 
+ * the CRC check are discarded during recovery.<br>
+ * <br>
+ * All methods must be called while synchronized on the file sync object of the region file.
+ */
+class SRFJournal {
+	private static final int COMMIT_MAGIC = 0x5352464A;
+
+	private final File journalFile;
+	private final SRFWriteBehind settings;
+	private final int FATOffset;
+	private final int FATEntrySize;
+	private final int segmentSize;
+	private final Map<Integer, PendingWrite> pending = new LinkedHashMap<Integer, PendingWrite>();
+	private RandomAccessFile journal;
+	private int pendingBytes = 0;
+	private long lastCommit = System.currentTimeMillis();
+	private long sequence = 0;
+
+	SRFJournal(File journalFile, SRFWriteBehind settings, int FATOffset, int FATEntrySize, int segmentSize) {
+		this.journalFile = journalFile;
+		this.settings = settings;
+		this.FATOffset = FATOffset;
+		this.FATEntrySize = FATEntrySize;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Gets the journal file for a region file
+	 * 
+	 * @param filePath the region file
+	 * @return the journal file
+	 */
+	static File getJournalFile(File filePath) {
+		return new File(filePath.getPath() + ".journal");
+	}
+
+	/**
+	 * Adds a block write to the pending commit.  This replaces any pending write for the same block.
+	 * 
+	 * @param i the block index
+	 * @param start the start segment
+	 * @param buf the block data
+	 * @param length the block length
+	 * @param checksum the block checksum, if the region file stores checksums
+	 */
+	void add(int i, int start, byte[] buf, int length, int checksum) {
+		PendingWrite old = pending.remove(i);
+		if (old != null) {
+			pendingBytes -= old.data.length;
+		}
+		pending.put(i, new PendingWrite(i, start, Arrays.copyOf(buf, length), checksum));
+		pendingBytes += length;
+	}
+
+	/**
+	 * Gets the pending data for a block
+	 * 
+	 * @param i the block index
+	 * @return the data, or null if there is no pending write for the block
+	 */
+	byte[] getPending(int i) {
+		PendingWrite write = pending.get(i);
+		return write == null ? null : write.data;
+	}
+
+	/**
+	 * Checks if the pending writes should be committed
+	 * 
+	 * @return true if the commit threshold or interval has been reached
+	 */
+	boolean isCommitDue() {
+		if (pending.isEmpty()) {
+			return false;
+		}
+		return pendingBytes >= settings.getCommitThreshold() || System.currentTimeMillis() - lastCommit >= settings.getCommitInterval();
+	}
+
+	/**
+	 * Commits the pending writes.  The commit is appended to the journal and forced to disk, and then applied to the region file.  
+	 * If the journal has reached the checkpoint threshold, a checkpoint is made.
+	 * 
+	 * @param file the region file
+	 * @return true if a checkpoint was made
+	 * @throws IOException
+	 */
+	boolean commit(SRFRandomAccessFile file) throws IOException {
+		lastCommit = System.currentTimeMillis();
+		if (pending.isEmpty()) {
+			return false;
+		}
+
+		ByteArrayOutputStream byteOut = new ByteArrayOutputStream(pendingBytes + 32 + pending.size() * 16);
+		DataOutputStream out = new DataOutputStream(byteOut);
+		out.writeInt(COMMIT_MAGIC);
+		out.writeLong(sequence++);
+		out.writeInt(pending.size());
+		for (PendingWrite write : pending.values()) {
+			out.writeInt(write.index);
+			out.writeInt(write.start);
+			out.writeInt(write.checksum);
+			out.writeInt(write.data.length);
+			out.write(write.data);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(byteOut.toByteArray(), 0, byteOut.size());
+		out.writeInt((int) crc.getValue());
+		out.flush();
+
+		if (journal == null) {
+			journal = new RandomAccessFile(journalFile, "rw");
+		}
+		journal.seek(journal.length());
+		journal.write(byteOut.toByteArray());
+		journal.getChannel().force(false);
+
+		for (PendingWrite write : pending.values()) {
+			apply(file, FATOffset, FATEntrySize, segmentSize, write.index, write.start, write.checksum, write.data, 0, write.data.length);
+		}
+		pending.clear();
+		pendingBytes = 0;
+
+		if (journal.length() >= settings.getCheckpointThreshold()) {
+			checkpoint(file);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Forces the region file to disk and truncates the journal.  Pending writes are not committed.
+	 * 
+	 * @param file the region file
+	 * @throws IOException
+	 */
+	void checkpoint(SRFRandomAccessFile file) throws IOException {
+		file.force();
+		if (journal == null) {
+			return;
+		}
+		journal.setLength(0);
+		journal.getChannel().force(true);
+	}
+
+	/**
+	 * Commits any pending writes, forces the region file to disk and deletes the journal
+	 * 
+	 * @param file the region file
+	 * @throws IOException
+	 */
+	void close(SRFRandomAccessFile file) throws IOException {
+		commit(file);
+		if (journal != null) {
+			file.force();
+			journal.close();
+			journal = null;
+			if (!journalFile.delete()) {
+				throw new SRFException("Unable to delete journal file " + journalFile);
+			}
+		}
+	}
+
+	/**
+	 * Replays the complete commits in a journal file to a region file.  Incomplete commits are discarded and the journal is deleted.
+	 * 
+	 * @param journalFile the journal file
+	 * @param file the region file
+	 * @param FATOffset the position of the FAT in the region file
+	 * @param FATEntrySize the size of each FAT entry
+	 * @param segmentSize log2(the segment size) of the region file
+	 * @return the number of commits that were replayed
+	 * @throws IOException
+	 */
+	static int recover(File journalFile, SRFRandomAccessFile file, int FATOffset, int FATEntrySize, int segmentSize) throws IOException {
+		if (!journalFile.exists()) {
+			return 0;
+		}
+
+		byte[] data;
+		RandomAccessFile in = new RandomAccessFile(journalFile, "r");
+		try {
+			if (in.length() > Integer.MAX_VALUE) {
+				throw new SRFException("Journal file " + journalFile + " is too large to replay");
+			}
+			data = new byte[(int) in.length()];
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		int commits = 0;
+		CRC32 crc = new CRC32();
+		while (true) {
+			int commitStart = buf.position();
+			if (buf.remaining() < 16 || buf.getInt() != COMMIT_MAGIC) {
+				break;
+			}
+			buf.getLong();
+			int count = buf.getInt();
+			boolean valid = count >= 0;
+			for (int j = 0; j < count && valid; j++) {
+				if (buf.remaining() < 16) {
+					valid = false;
+					break;
+				}
+				buf.position(buf.position() + 12);
+				int length = buf.getInt();
+				if (length < 0 || buf.remaining() < length) {
+					valid = false;
+					break;
+				}
+				buf.position(buf.position() + length);
+			}
+			if (!valid || buf.remaining() < 4) {
+				break;
+			}
+			int commitEnd = buf.position();
+			crc.reset();
+			crc.update(data, commitStart, commitEnd - commitStart);
+			if (buf.getInt() != (int) crc.getValue()) {
+				break;
+			}
+
+			buf.position(commitStart + 16);
+			for (int j = 0; j < count; j++) {
+				int index = buf.getInt();
+				int start = buf.getInt();
+				int checksum = buf.getInt();
+				int length = buf.getInt();
+				apply(file, FATOffset, FATEntrySize, segmentSize, index, start, checksum, data, buf.position(), length);
+				buf.position(buf.position() + length);
+			}
+			buf.position(commitEnd + 4);
+			commits++;
+		}
+
+		if (commits > 0) {
+			file.force();
+		}
+		if (!journalFile.delete()) {
+			throw new SRFException("Unable to delete journal file " + journalFile + " after recovery");
+		}
+		return commits;
+	}
+
+	private static void apply(SRFRandomAccessFile file, int FATOffset, int FATEntrySize, int segmentSize, int i, int start, int checksum, byte[] data, int off, int length) throws IOException {
+		file.seek(FATOffset + i * FATEntrySize);
+		file.writeInt(start);
+		file.writeInt(length);
+		if (FATEntrySize > 8) {
+			file.writeInt(checksum);
+		}
+		if (length > 0) {
+			file.seek(((long) start) << segmentSize);
+			file.write(data, off, length);
+		}
+	}
+
+	private static class PendingWrite {
+		private final int index;
+		private final int start;
+		private final byte[] data;
+		private final int checksum;
+
+		public PendingWrite(int index, int start, byte[] data, int checksum) {
+			this.index = index;
+			this.start = start;
+			this.data = data;
+			this.checksum = checksum;
+		}
+	}
+}
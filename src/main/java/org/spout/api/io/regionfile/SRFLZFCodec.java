@@ -0,0 +1,204 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A codec which compresses blocks using LZF.<br>
+ * <br>
+ * LZF is a byte oriented LZ77 scheme.  It compresses less than Deflate, but encodes and decodes many times faster.
+ */
+public class SRFLZFCodec extends SRFCodec {
+	private static final int HASH_LOG = 14;
+	private static final int HASH_SIZE = 1 << HASH_LOG;
+	private static final int MAX_LITERAL = 1 << 5;
+	private static final int MAX_OFFSET = 1 << 13;
+	private static final int MAX_REFERENCE = (1 << 8) + (1 << 3);
+
+	SRFLZFCodec(int id) {
+		super(id, "lzf");
+	}
+
+	@Override
+	public InputStream wrapInputStream(InputStream in) {
+		return new LZFInputStream(in);
+	}
+
+	@Override
+	public OutputStream wrapOutputStream(OutputStream out) {
+		return new LZFOutputStream(out);
+	}
+
+	/**
+	 * Gets the size of buffer required to hold the compressed form of the given number of bytes
+	 *
+	 * @param length the uncompressed length
+	 * @return the worst case compressed length
+	 */
+	static int maxCompressedLength(int length) {
+		return length + (length >> 5) + 16;
+	}
+
+	/**
+	 * Compresses an array of bytes
+	 *
+	 * @param in the uncompressed data
+	 * @param inLength the number of bytes to compress
+	 * @param out the array to store the compressed data, this must be at least maxCompressedLength(inLength) long
+	 * @param hashTable an array of length HASH_SIZE used as scratch space
+	 * @return the compressed length
+	 */
+	static int compress(byte[] in, int inLength, byte[] out, int[] hashTable) {
+		if (inLength == 0) {
+			return 0;
+		}
+
+		for (int i = 0; i < HASH_SIZE; i++) {
+			hashTable[i] = -1;
+		}
+
+		int inPos = 0;
+		// out[0] is reserved for the first literal run control byte
+		int outPos = 1;
+		int literals = 0;
+
+		while (inPos < inLength - 2) {
+			int hash = hash(in, inPos);
+			int ref = hashTable[hash];
+			hashTable[hash] = inPos;
+			int offset = inPos - ref - 1;
+			if (ref >= 0 && offset < MAX_OFFSET && in[ref] == in[inPos] && in[ref + 1] == in[inPos + 1] && in[ref + 2] == in[inPos + 2]) {
+				if (literals == 0) {
+					outPos--;
+				} else {
+					out[outPos - literals - 1] = (byte) (literals - 1);
+				}
+
+				int maxLength = Math.min(inLength - inPos, MAX_REFERENCE);
+				int length = 3;
+				while (length < maxLength && in[ref + length] == in[inPos + length]) {
+					length++;
+				}
+				inPos += length;
+
+				length -= 2;
+				if (length < 7) {
+					out[outPos++] = (byte) ((offset >> 8) + (length << 5));
+				} else {
+					out[outPos++] = (byte) ((offset >> 8) + (7 << 5));
+					out[outPos++] = (byte) (length - 7);
+				}
+				out[outPos++] = (byte) offset;
+
+				outPos++;
+				literals = 0;
+			} else {
+				out[outPos++] = in[inPos++];
+				literals++;
+				if (literals == MAX_LITERAL) {
+					out[outPos - literals - 1] = (byte) (literals - 1);
+					literals = 0;
+					outPos++;
+				}
+			}
+		}
+
+		while (inPos < inLength) {
+			out[outPos++] = in[inPos++];
+			literals++;
+			if (literals == MAX_LITERAL) {
+				out[outPos - literals - 1] = (byte) (literals - 1);
+				literals = 0;
+				outPos++;
+			}
+		}
+
+		if (literals == 0) {
+			outPos--;
+		} else {
+			out[outPos - literals - 1] = (byte) (literals - 1);
+		}
+		return outPos;
+	}
+
+	/**
+	 * Expands an array of compressed bytes
+	 *
+	 * @param in the compressed data
+	 * @param inLength the number of compressed bytes
+	 * @param out the array to store the uncompressed data
+	 * @param outLength the expected uncompressed length
+	 * @throws IOException if the compressed data is corrupt
+	 */
+	static void expand(byte[] in, int inLength, byte[] out, int outLength) throws IOException {
+		int inPos = 0;
+		int outPos = 0;
+		while (inPos < inLength) {
+			int ctrl = in[inPos++] & 0xFF;
+			if (ctrl < MAX_LITERAL) {
+				ctrl++;
+				if (inPos + ctrl > inLength || outPos + ctrl > outLength) {
+					throw new SRFException("Corrupt LZF literal run");
+				}
+				System.arraycopy(in, inPos, out, outPos, ctrl);
+				inPos += ctrl;
+				outPos += ctrl;
+			} else {
+				int length = ctrl >> 5;
+				if (length == 7) {
+					if (inPos >= inLength) {
+						throw new SRFException("Corrupt LZF back reference");
+					}
+					length += in[inPos++] & 0xFF;
+				}
+				length += 2;
+				if (inPos >= inLength) {
+					throw new SRFException("Corrupt LZF back reference");
+				}
+				int ref = outPos - ((ctrl & 0x1F) << 8) - (in[inPos++] & 0xFF) - 1;
+				if (ref < 0 || outPos + length > outLength) {
+					throw new SRFException("Corrupt LZF back reference");
+				}
+				// The reference may overlap the output, so copy byte by byte
+				for (int i = 0; i < length; i++) {
+					out[outPos++] = out[ref++];
+				}
+			}
+		}
+		if (outPos != outLength) {
+			throw new SRFException("LZF data expanded to " + outPos + " bytes, expected " + outLength);
+		}
+	}
+
+	private static int hash(byte[] in, int pos) {
+		int v = ((in[pos] & 0xFF) << 16) | ((in[pos + 1] & 0xFF) << 8) | (in[pos + 2] & 0xFF);
+		return ((v * 0x9E3779B1) >>> (32 - HASH_LOG));
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The file used to store a SimpleRegionFile.<br>
+ * <br>
+ * As with RandomAccessFile, the file position is not thread safe.  The region file only uses the file while synchronized on its file sync object.
+ */
+interface SRFRandomAccessFile {
+
+	public long length() throws IOException;
+
+	public void close() throws IOException;
+
+	/**
+	 * Forces all changes to be written to disk
+	 * 
+	 * @throws IOException
+	 */
+	public void force() throws IOException;
+
+	public void seek(long pos) throws IOException;
+
+	public int readInt() throws IOException;
+
+	public void writeInt(int i) throws IOException;
+
+	public void readFully(byte[] b) throws IOException;
+
+	public void write(byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * Truncates the file.  The file is not extended if it is already shorter than the given length.
+	 * 
+	 * @param length the minimum length to keep
+	 * @throws IOException
+	 */
+	public void truncate(long length) throws IOException;
+
+	/**
+	 * Gets read-only buffers containing a region of the file.  This does not change the file position.
+	 * 
+	 * @param pos the start of the region
+	 * @param len the length of the region
+	 * @return the buffers
+	 * @throws IOException
+	 */
+	public ByteBuffer[] slice(long pos, int len) throws IOException;
+}
@@ -0,0 +1,333 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.spout.api.io.bytearrayarray.ByteBufferInputStream;
+
+/**
+ * Checks the integrity of SimpleRegionFiles without opening them for writing.<br>
+ * <br>
+ * Each file is mapped read-only and its FAT is checked for entries which are out of range or which overlap.  
+ * If the file stores checksums, the checksum of each block is checked.  Otherwise, blocks can optionally be decoded using the file's codec.<br>
+ * <br>
+ * Files are scanned in parallel.  The files should not be open while they are scanned.
+ */
+public class SRFScanner {
+	static final int MAX_SEGMENT_SIZE = 24;
+
+	private final int threads;
+	private final boolean decode;
+
+	/**
+	 * Creates a scanner
+	 * 
+	 * @param threads the number of files to scan in parallel
+	 * @param decode true if blocks should be decoded when the file does not store checksums
+	 */
+	public SRFScanner(int threads, boolean decode) {
+		this.threads = threads;
+		this.decode = decode;
+	}
+
+	/**
+	 * Scans all matching files in a folder and its sub-folders
+	 * 
+	 * @param folder the folder
+	 * @param filter the filter for region files
+	 * @return the problems found
+	 */
+	public List<Problem> scan(File folder, FileFilter filter) {
+		List<File> files = new ArrayList<File>();
+		findFiles(folder, filter, files);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<List<Problem>>> futures = new ArrayList<Future<List<Problem>>>(files.size());
+			for (final File file : files) {
+				futures.add(executor.submit(new Callable<List<Problem>>() {
+					@Override
+					public List<Problem> call() {
+						return scan(file);
+					}
+				}));
+			}
+
+			List<Problem> problems = new ArrayList<Problem>();
+			for (int i = 0; i < files.size(); i++) {
+				try {
+					problems.addAll(futures.get(i).get());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					problems.add(new Problem(files.get(i), -1, "Scan interrupted"));
+					break;
+				} catch (ExecutionException e) {
+					problems.add(new Problem(files.get(i), -1, "Scan failed: " + e.getCause()));
+				}
+			}
+			return problems;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Scans a single region file.  Any error while scanning the file is reported as a problem with the file.
+	 * 
+	 * @param file the file
+	 * @return the problems found
+	 */
+	public List<Problem> scan(File file) {
+		List<Problem> problems = new ArrayList<Problem>();
+		if (SRFJournal.getJournalFile(file).exists()) {
+			problems.add(new Problem(file, -1, "Journal present, the file has not been recovered"));
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				long size = raf.length();
+				if (size > Integer.MAX_VALUE) {
+					problems.add(new Problem(file, -1, "File is too large"));
+					return problems;
+				}
+				MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+				scan(file, map, (int) size, problems);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			problems.add(new Problem(file, -1, "Unable to read file: " + e.getMessage()));
+		} catch (RuntimeException e) {
+			problems.add(new Problem(file, -1, "Scan failed: " + e));
+		}
+		return problems;
+	}
+
+	private void scan(File file, ByteBuffer map, int size, List<Problem> problems) {
+		if (size < 12) {
+			problems.add(new Problem(file, -1, "File is too short for a header"));
+			return;
+		}
+		int version = map.getInt(0);
+		int segmentSize = map.getInt(4);
+		int entries = map.getInt(8);
+		if (version < 1 || version > 3) {
+			problems.add(new Problem(file, -1, "Unknown version " + version));
+			return;
+		}
+		if (segmentSize < 0 || segmentSize > MAX_SEGMENT_SIZE || entries < 0) {
+			problems.add(new Problem(file, -1, "Invalid header, segment size " + segmentSize + ", entries " + entries));
+			return;
+		}
+		int FATOffset = SimpleRegionFile.getFATOffset(version);
+		if (size < FATOffset) {
+			problems.add(new Problem(file, -1, "File is too short for a header"));
+			return;
+		}
+		SRFCodec codec = version >= 2 ? SRFCodec.getCodec(map.getInt(12)) : SRFCodec.DEFLATE;
+		int flags = version >= 3 ? map.getInt(16) : 0;
+		int FATEntrySize = SimpleRegionFile.getFATEntrySize(flags);
+		// The header size is computed as a long, since a corrupt entry count can overflow an int
+		long headerSize = (long) FATOffset + (long) FATEntrySize * entries;
+		if (headerSize > size) {
+			problems.add(new Problem(file, -1, "File is too short for the FAT"));
+			return;
+		}
+		if (codec == null) {
+			problems.add(new Problem(file, -1, "Unknown codec " + map.getInt(12)));
+		}
+		boolean checksums = FATEntrySize > 8;
+
+		BitSet used = new BitSet();
+		used.set(0, segments(headerSize, segmentSize));
+
+		CRC32C crc = new CRC32C();
+		for (int i = 0; i < entries; i++) {
+			int entry = FATOffset + i * FATEntrySize;
+			int start = map.getInt(entry);
+			int length = map.getInt(entry + 4);
+			if (length == 0) {
+				continue;
+			}
+			if (start < 0 || length < 0) {
+				problems.add(new Problem(file, i, "Invalid FAT entry, start " + start + ", length " + length));
+				continue;
+			}
+			long position = ((long) start) << segmentSize;
+			if (position + length > size) {
+				problems.add(new Problem(file, i, "Block extends past the end of the file"));
+				continue;
+			}
+			int segmentCount = segments(length, segmentSize);
+			int overlap = used.nextSetBit(start);
+			if (overlap >= 0 && overlap < start + segmentCount) {
+				problems.add(new Problem(file, i, "Block overlaps another block at segment " + overlap));
+			}
+			used.set(start, start + segmentCount);
+
+			ByteBuffer block = map.duplicate();
+			block.limit((int) position + length);
+			block.position((int) position);
+			if (checksums) {
+				crc.reset();
+				crc.update(block);
+				if ((int) crc.getValue() != map.getInt(entry + 8)) {
+					problems.add(new Problem(file, i, "Checksum mismatch"));
+				}
+			} else if (decode && codec != null) {
+				try {
+					InputStream in = codec.wrapInputStream(new ByteBufferInputStream(block));
+					try {
+						byte[] buf = new byte[4096];
+						while (in.read(buf) != -1) {
+						}
+					} finally {
+						in.close();
+					}
+				} catch (IOException e) {
+					problems.add(new Problem(file, i, "Unable to decode block: " + e.getMessage()));
+				}
+			}
+		}
+	}
+
+	private static int segments(long size, int segmentSize) {
+		if (size <= 0) {
+			return 0;
+		}
+		return (int) (((size - 1) >> segmentSize) + 1);
+	}
+
+	private static void findFiles(File folder, FileFilter filter, List<File> files) {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (child.isDirectory()) {
+				findFiles(child, filter, files);
+			} else if (filter == null || filter.accept(child)) {
+				files.add(child);
+			}
+		}
+	}
+
+	/**
+	 * Scans a world folder and prints any problems that are found.<br>
+	 * <br>
+	 * Usage: SRFScanner folder [extension] [threads] [decode]
+	 * 
+	 * @param args the arguments
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: SRFScanner folder [extension] [threads] [decode]");
+			return;
+		}
+		File folder = new File(args[0]);
+		final String extension = args.length > 1 ? args[1] : null;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		boolean decode = args.length > 3 && Boolean.parseBoolean(args[3]);
+
+		FileFilter filter = new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return !file.getName().endsWith(".journal") && (extension == null || file.getName().endsWith(extension));
+			}
+		};
+
+		long startTime = System.currentTimeMillis();
+		List<Problem> problems = new SRFScanner(threads, decode).scan(folder, filter);
+		for (Problem problem : problems) {
+			System.out.println(problem);
+		}
+		System.out.println("Found " + problems.size() + " problems in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+
+	/**
+	 * A problem found in a region file
+	 */
+	public static class Problem {
+		private final File file;
+		private final int block;
+		private final String description;
+
+		public Problem(File file, int block, String description) {
+			this.file = file;
+			this.block = block;
+			this.description = description;
+		}
+
+		/**
+		 * Gets the file that the problem was found in
+		 * 
+		 * @return the file
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Gets the index of the affected block
+		 * 
+		 * @return the block index, or -1 if the problem affects the whole file
+		 */
+		public int getBlock() {
+			return block;
+		}
+
+		/**
+		 * Gets a description of the problem
+		 * 
+		 * @return the description
+		 */
+		public String getDescription() {
+			return description;
+		}
+
+		@Override
+		public String toString() {
+			return file.getPath() + (block < 0 ? "" : " block " + block) + ": " + description;
+		}
+	}
+}
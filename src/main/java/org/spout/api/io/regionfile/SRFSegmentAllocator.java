@@ -0,0 +1,235 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Tracks the free segments of a SimpleRegionFile.<br>
+ * <br>
+ * Free space below the end of the last used segment is stored as a set of free runs.  The runs are indexed by start, 
+ * so that released runs can be merged with their neighbours, and by length, so that allocations are best fit.<br>
+ * <br>
+ * Runs which reach the end of the used area are dropped, so the limit is always the end of the last used segment.
+ */
+public class SRFSegmentAllocator {
+	private final TreeMap<Integer, Integer> runsByStart = new TreeMap<Integer, Integer>();
+	private final TreeMap<Integer, TreeSet<Integer>> runsByLength = new TreeMap<Integer, TreeSet<Integer>>();
+	private int limit = 0;
+	private int freeSegments = 0;
+
+	/**
+	 * Reserves a specific group of segments.  The reservation fails if any of the segments are already in use.
+	 * 
+	 * @param start the first segment
+	 * @param length the number of segments
+	 * @return true if the segments were reserved
+	 */
+	public synchronized boolean reserve(int start, int length) {
+		if (length <= 0) {
+			return true;
+		}
+		int end = start + length;
+		if (start >= limit) {
+			if (start > limit) {
+				addRun(limit, start - limit);
+			}
+			limit = end;
+			return true;
+		}
+
+		Entry<Integer, Integer> run = runsByStart.floorEntry(start);
+		if (run == null) {
+			return false;
+		}
+		int runStart = run.getKey();
+		int runEnd = runStart + run.getValue();
+
+		if (runEnd == limit && end > limit) {
+			// The reservation extends past the limit, so the tail run can be claimed
+			removeRun(runStart, runEnd - runStart);
+			if (runStart < start) {
+				addRun(runStart, start - runStart);
+			}
+			limit = end;
+			return true;
+		}
+
+		if (end > runEnd) {
+			return false;
+		}
+		removeRun(runStart, runEnd - runStart);
+		if (runStart < start) {
+			addRun(runStart, start - runStart);
+		}
+		if (end < runEnd) {
+			addRun(end, runEnd - end);
+		}
+		return true;
+	}
+
+	/**
+	 * Allocates a group of segments using the smallest free run that is large enough.  If no run is large enough, the 
+	 * segments are allocated at the end of the used area.
+	 * 
+	 * @param length the number of segments
+	 * @return the first segment
+	 */
+	public synchronized int allocate(int length) {
+		int start = allocateBelow(length, Integer.MAX_VALUE);
+		if (start >= 0) {
+			return start;
+		}
+		Entry<Integer, Integer> last = runsByStart.lastEntry();
+		if (last != null && last.getKey() + last.getValue() == limit) {
+			start = last.getKey();
+			removeRun(start, last.getValue());
+		} else {
+			start = limit;
+		}
+		limit = start + length;
+		return start;
+	}
+
+	/**
+	 * Allocates a group of segments from the smallest free run which is large enough and which starts below the given segment.
+	 * 
+	 * @param length the number of segments
+	 * @param below the segment that the run must start before
+	 * @return the first segment, or -1 if no suitable run exists
+	 */
+	public synchronized int allocateBelow(int length, int below) {
+		if (length <= 0) {
+			return 0;
+		}
+		Entry<Integer, TreeSet<Integer>> sizeClass = runsByLength.ceilingEntry(length);
+		while (sizeClass != null) {
+			Integer start = sizeClass.getValue().first();
+			if (start < below) {
+				int runLength = sizeClass.getKey();
+				removeRun(start, runLength);
+				if (runLength > length) {
+					addRun(start + length, runLength - length);
+				}
+				return start;
+			}
+			sizeClass = runsByLength.higherEntry(sizeClass.getKey());
+		}
+		return -1;
+	}
+
+	/**
+	 * Releases a group of segments.  The segments are merged with any adjacent free runs.
+	 * 
+	 * @param start the first segment
+	 * @param length the number of segments
+	 */
+	public synchronized void release(int start, int length) {
+		if (length <= 0) {
+			return;
+		}
+		int end = start + length;
+		if (end > limit) {
+			throw new IllegalStateException("Attempt made to release segments beyond the end of the used area");
+		}
+
+		Entry<Integer, Integer> before = runsByStart.floorEntry(start);
+		if (before != null) {
+			int beforeEnd = before.getKey() + before.getValue();
+			if (beforeEnd > start) {
+				throw new IllegalStateException("Attempt made to release segments which are already free");
+			} else if (beforeEnd == start) {
+				removeRun(before.getKey(), before.getValue());
+				start = before.getKey();
+			}
+		}
+
+		Entry<Integer, Integer> after = runsByStart.ceilingEntry(start);
+		if (after != null && after.getKey() < end) {
+			throw new IllegalStateException("Attempt made to release segments which are already free");
+		} else if (after != null && after.getKey() == end) {
+			removeRun(after.getKey(), after.getValue());
+			end = after.getKey() + after.getValue();
+		}
+
+		if (end == limit) {
+			limit = start;
+		} else {
+			addRun(start, end - start);
+		}
+	}
+
+	/**
+	 * Gets the end of the last used segment
+	 * 
+	 * @return the limit
+	 */
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Gets the number of free segments below the limit
+	 * 
+	 * @return the number of free segments
+	 */
+	public synchronized int getFreeSegments() {
+		return freeSegments;
+	}
+
+	/**
+	 * Gets the number of free runs below the limit
+	 * 
+	 * @return the number of free runs
+	 */
+	public synchronized int getFreeRuns() {
+		return runsByStart.size();
+	}
+
+	private void addRun(int start, int length) {
+		runsByStart.put(start, length);
+		TreeSet<Integer> starts = runsByLength.get(length);
+		if (starts == null) {
+			starts = new TreeSet<Integer>();
+			runsByLength.put(length, starts);
+		}
+		starts.add(start);
+		freeSegments += length;
+	}
+
+	private void removeRun(int start, int length) {
+		runsByStart.remove(start);
+		TreeSet<Integer> starts = runsByLength.get(length);
+		starts.remove(start);
+		if (starts.isEmpty()) {
+			runsByLength.remove(length);
+		}
+		freeSegments -= length;
+	}
+}
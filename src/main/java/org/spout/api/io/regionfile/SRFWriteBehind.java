@@ -0,0 +1,98 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+/**
+ * Settings for the write-behind mode of a SimpleRegionFile.<br>
+ * <br>
+ * In write-behind mode, block writes are held in memory and committed as a group.  Each commit is appended to a journal file, 
+ * which is forced to disk once, before the writes are applied to the region file itself.<br>
+ * <br>
+ * The region file is only forced to disk when the journal is checkpointed.
+ */
+public class SRFWriteBehind {
+	private static final int DEFAULT_CHECKPOINT_FACTOR = 8;
+
+	private final int commitInterval;
+	private final int commitThreshold;
+	private final long checkpointThreshold;
+
+	/**
+	 * Creates write-behind settings
+	 * 
+	 * @param commitInterval the maximum time in ms that a write is held before being committed
+	 * @param commitThreshold the number of pending bytes which triggers a commit
+	 */
+	public SRFWriteBehind(int commitInterval, int commitThreshold) {
+		this(commitInterval, commitThreshold, (long) commitThreshold * DEFAULT_CHECKPOINT_FACTOR);
+	}
+
+	/**
+	 * Creates write-behind settings
+	 * 
+	 * @param commitInterval the maximum time in ms that a write is held before being committed
+	 * @param commitThreshold the number of pending bytes which triggers a commit
+	 * @param checkpointThreshold the journal length which triggers a checkpoint
+	 */
+	public SRFWriteBehind(int commitInterval, int commitThreshold, long checkpointThreshold) {
+		if (commitInterval < 0 || commitThreshold < 0 || checkpointThreshold < 0) {
+			throw new IllegalArgumentException("Write-behind settings may not be negative");
+		}
+		this.commitInterval = commitInterval;
+		this.commitThreshold = commitThreshold;
+		this.checkpointThreshold = checkpointThreshold;
+	}
+
+	/**
+	 * Gets the maximum time in ms that a write is held before being committed.<br>
+	 * <br>
+	 * Commits due to the interval are made by SimpleRegionFile.commitIfDue(), which is called by SimpleRegionFile.closeIfTimedOut() and by the BAAPool of a pooled BAAWrapper, or by the next write.
+	 * 
+	 * @return the commit interval
+	 */
+	public int getCommitInterval() {
+		return commitInterval;
+	}
+
+	/**
+	 * Gets the number of pending bytes which triggers a commit
+	 * 
+	 * @return the commit threshold
+	 */
+	public int getCommitThreshold() {
+		return commitThreshold;
+	}
+
+	/**
+	 * Gets the journal length which causes the region file to be forced to disk and the journal to be truncated
+	 * 
+	 * @return the checkpoint threshold
+	 */
+	public long getCheckpointThreshold() {
+		return checkpointThreshold;
+	}
+}
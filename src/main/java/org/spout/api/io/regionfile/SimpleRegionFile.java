@@ -34,43 +34,61 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
 
+import gnu.trove.list.array.TIntArrayList;
+
+import org.spout.api.io.bytearrayarray.BAABlockView;
 import org.spout.api.io.bytearrayarray.ByteArrayArray;
 
 public class SimpleRegionFile implements ByteArrayArray {
 	
 	private static ConcurrentHashMap<String, Boolean> openMap = new ConcurrentHashMap<String, Boolean>();
 	
-	private static final int VERSION = 1;
-	private static final int DEFAULT_TIMEOUT = 120000; // timeout delay
+	private static final int VERSION = 3;
+	private static final int FLAG_CHECKSUMS = 1;
+	static final int DEFAULT_TIMEOUT = 120000; // timeout delay
 	public static final int FILE_CLOSED = -1;
+	private static final int CACHED_PAGE_SHIFT = 16;
 
 	private final File filePath;
 	private final Object fileSyncObject = new Object();
-	private MappedRandomAccessFile file;
+	private SRFRandomAccessFile file;
+	private final CachedPagePool pagePool;
 	@SuppressWarnings("unused")
 	private final int version;
 	private final int timeout;
+	private final SRFCodec codec;
+	private final int FATOffset;
+	private final int FATEntrySize;
+	private final boolean checksums;
+	private final SRFJournal journal;
+	/**
+	 * Segments which were released by writes in write-behind mode.  The FAT on disk may still point at them until the next checkpoint.
+	 */
+	private final TIntArrayList heldSegments = new TIntArrayList();
 	
 	private final AtomicInteger[] blockSegmentStart;
 	private final AtomicInteger[] blockSegmentLength;
 	private final AtomicInteger[] blockActualLength;
+	private final AtomicInteger[] blockChecksum;
 	private final SRFReentrantReadWriteLock[] blockLock;
 	private final AtomicInteger numberBlocksLocked;
+	private final AtomicInteger openViews = new AtomicInteger(0);
 	
 	private final AtomicBoolean closed;
 	private final AtomicLong lastAccess;
 	private final AtomicLong lastSync;
 	
-	private final AtomicReference<AtomicBoolean[]> inuse;
+	private final SRFSegmentAllocator allocator;
+	private final Object compactionSyncObject = new Object();
 	private final int segmentSize;
 	private final int segmentMask;
 	private final int entries;
@@ -97,8 +115,82 @@ public class SimpleRegionFile implements ByteArrayArray {
 	 * @throws IOException on error
 	 */
 	public SimpleRegionFile(File filePath, int desiredSegmentSize, int entries, int timeout) throws IOException {
+		this(filePath, desiredSegmentSize, entries, timeout, SRFCodec.DEFLATE);
+	}
+	
+	/**
+	 * Creates a SimpleRegionFile<br>
+	 * <br>
+	 * The codec is only used when a new file is created.  Existing files are read and written using the codec stored in their header.  
+	 * If the stored codec has the same id as the given codec, the given codec is used, so the Deflate level can be changed for existing files.
+	 * 
+	 * @param filePath the path to the file
+	 * @param desiredSegmentSize log2(the desired segment size) 
+	 * @param entries the number of blocks (sub-files) in the RegionFile
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param codec the codec used to compress the blocks of new files
+	 * @throws IOException on error
+	 */
+	public SimpleRegionFile(File filePath, int desiredSegmentSize, int entries, int timeout, SRFCodec codec) throws IOException {
+		this(filePath, desiredSegmentSize, entries, timeout, codec, null);
+	}
+	
+	/**
+	 * Creates a SimpleRegionFile<br>
+	 * <br>
+	 * If a journal was left by a previous write-behind session, its complete commits are replayed and any partial commit is discarded.
+	 * 
+	 * @param filePath the path to the file
+	 * @param desiredSegmentSize log2(the desired segment size) 
+	 * @param entries the number of blocks (sub-files) in the RegionFile
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param codec the codec used to compress the blocks of new files
+	 * @param writeBehind the write-behind settings, or null to write blocks through to the file when their stream is closed
+	 * @throws IOException on error
+	 */
+	public SimpleRegionFile(File filePath, int desiredSegmentSize, int entries, int timeout, SRFCodec codec, SRFWriteBehind writeBehind) throws IOException {
+		this(filePath, desiredSegmentSize, entries, timeout, codec, writeBehind, false);
+	}
+	
+	/**
+	 * Creates a SimpleRegionFile<br>
+	 * <br>
+	 * If checksums are enabled, a CRC32C of the stored data of each block is kept in the FAT and checked whenever the block is read.  
+	 * The setting is stored in the header, so it only has an effect when a new file is created.
+	 * 
+	 * @param filePath the path to the file
+	 * @param desiredSegmentSize log2(the desired segment size) 
+	 * @param entries the number of blocks (sub-files) in the RegionFile
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param codec the codec used to compress the blocks of new files
+	 * @param writeBehind the write-behind settings, or null to write blocks through to the file when their stream is closed
+	 * @param checksums true if new files should store a checksum for each block
+	 * @throws IOException on error
+	 */
+	public SimpleRegionFile(File filePath, int desiredSegmentSize, int entries, int timeout, SRFCodec codec, SRFWriteBehind writeBehind, boolean checksums) throws IOException {
+		this(filePath, desiredSegmentSize, entries, timeout, codec, writeBehind, checksums, null);
+	}
+	
+	/**
+	 * Creates a SimpleRegionFile<br>
+	 * <br>
+	 * If a page pool is given, the file is read and written through pages cached in the pool, instead of being memory mapped.  
+	 * Block views are then copies of the block, rather than views of the mapped pages.
+	 * 
+	 * @param filePath the path to the file
+	 * @param desiredSegmentSize log2(the desired segment size) 
+	 * @param entries the number of blocks (sub-files) in the RegionFile
+	 * @param timeout the time in ms until the file times out for auto-closing
+	 * @param codec the codec used to compress the blocks of new files
+	 * @param writeBehind the write-behind settings, or null to write blocks through to the file when their stream is closed
+	 * @param checksums true if new files should store a checksum for each block
+	 * @param pagePool the pool used to cache the pages of the file, or null to memory map the file
+	 * @throws IOException on error
+	 */
+	public SimpleRegionFile(File filePath, int desiredSegmentSize, int entries, int timeout, SRFCodec codec, SRFWriteBehind writeBehind, boolean checksums, CachedPagePool pagePool) throws IOException {
 		
 		this.filePath = filePath;
+		this.pagePool = pagePool;
 		this.closed = new AtomicBoolean(false);
 		
 		this.timeout = timeout;
@@ -106,67 +198,119 @@ public class SimpleRegionFile implements ByteArrayArray {
 		this.lastSync = new AtomicLong(System.currentTimeMillis());
 		refreshAccess();
 		
-		try {
-			this.file = new MappedRandomAccessFile(this.filePath, "rw");
-		} catch (FileNotFoundException e) {
+		// The file must be claimed before the journal is recovered or the header is written, since another instance may be using them
+		String openKey = filePath.getCanonicalPath().toLowerCase();
+		Boolean old = openMap.putIfAbsent(openKey, Boolean.TRUE);
+		
+		if (old != null) {
 			this.closed.set(true);
-			throw new SRFException("Unable to open region file " + this.filePath, e);
+			throw new SRFException("Attempt made to open a second region file with the same filename");
 		}
 		
-		int headerSize = getHeaderSize(entries);
+		boolean opened = false;
+		try {
+			try {
+				this.file = openFile();
+			} catch (FileNotFoundException e) {
+				this.closed.set(true);
+				throw new SRFException("Unable to open region file " + this.filePath, e);
+			}
+		
+			int newFlags = checksums ? FLAG_CHECKSUMS : 0;
+			int headerSize = getHeaderSize(VERSION, newFlags, entries);
+		
+			if (file.length() <= headerSize) {
+				file.seek(0);
+				file.writeInt(VERSION);
+				file.writeInt(desiredSegmentSize);
+				file.writeInt(entries);
+				file.writeInt(codec.getId());
+				file.writeInt(newFlags);
+				for (int i = getFATOffset(VERSION); i < headerSize; i += 4) {
+					file.writeInt(0);
+				}
+			}
 		
-		if (file.length() <= headerSize) {
 			file.seek(0);
-			file.writeInt(VERSION);
-			file.writeInt(desiredSegmentSize);
-			file.writeInt(entries);
-			for (int i = 0; i < entries << 1; i++) {
-				file.writeInt(0);
+			this.version = file.readInt();
+			this.segmentSize = file.readInt();
+			this.segmentMask = (1 << this.segmentSize) - 1;
+			this.entries = file.readInt();
+		
+			if (entries != this.entries) {
+				file.close();
+				this.closed.set(true);
+				throw new SRFException("Number of entries mismatch for file " + this.filePath + ", expected " + entries + " got " + this.entries);
 			}
-		}
 		
-		file.seek(0);
-		this.version = file.readInt();
-		this.segmentSize = file.readInt();
-		this.segmentMask = (1 << this.segmentSize) - 1;
-		this.entries = file.readInt();
+			if (this.version < 1 || this.version > VERSION) {
+				file.close();
+				this.closed.set(true);
+				throw new SRFException("Unknown region file version " + this.version + " for file " + this.filePath);
+			}
 		
-		if (entries != this.entries) {
-			file.close();
-			this.closed.set(true);
-			throw new SRFException("Number of entries mismatch for file " + this.filePath + ", expected " + entries + " got " + this.entries);
-		}
+			int codecId = this.version >= 2 ? file.readInt() : SRFCodec.DEFLATE.getId();
+			if (codecId == codec.getId()) {
+				this.codec = codec;
+			} else {
+				this.codec = SRFCodec.getCodec(codecId);
+				if (this.codec == null) {
+					file.close();
+					this.closed.set(true);
+					throw new SRFException("Unknown codec id " + codecId + " for file " + this.filePath);
+				}
+			}
 		
-		inuse = new AtomicReference<AtomicBoolean[]>(new AtomicBoolean[0]);
+			int flags = this.version >= 3 ? file.readInt() : 0;
+			this.checksums = (flags & FLAG_CHECKSUMS) != 0;
 		
-		int headerSegments = sizeToSegments(headerSize);
+			this.FATOffset = getFATOffset(this.version);
+			this.FATEntrySize = getFATEntrySize(flags);
+			headerSize = getHeaderSize(this.version, flags, entries);
 		
-		int segmentsLocked = reserveSegments(0, headerSegments);
-		if (segmentsLocked != headerSegments) {
-			throw new SRFException("Unabled to lock header segments");
-		}
+			File journalFile = SRFJournal.getJournalFile(filePath);
+			SRFJournal.recover(journalFile, file, FATOffset, FATEntrySize, segmentSize);
+			this.journal = writeBehind == null ? null : new SRFJournal(journalFile, writeBehind, FATOffset, FATEntrySize, segmentSize);
 		
-		blockSegmentStart = new AtomicInteger[entries];
-		blockSegmentLength = new AtomicInteger[entries];
-		blockActualLength = new AtomicInteger[entries];
-		blockLock = new SRFReentrantReadWriteLock[entries];
-		numberBlocksLocked = new AtomicInteger(0);
+			file.seek(FATOffset);
 		
-		for (int i = 0; i < entries; i++) {
-			blockSegmentStart[i] = new AtomicInteger(file.readInt());
-			blockActualLength[i] = new AtomicInteger(file.readInt());
-			blockSegmentLength[i] = new AtomicInteger(sizeToSegments(blockActualLength[i].get()));
-			blockLock[i] = new SRFReentrantReadWriteLock(numberBlocksLocked);
-			int length = reserveSegments(blockSegmentStart[i].get(), blockSegmentLength[i].get());
-			if (length != blockSegmentLength[i].get()) {
-				throw new SRFException("Reserved segments for Block " + i + " overlap with another block");
+			allocator = new SRFSegmentAllocator();
+		
+			int headerSegments = sizeToSegments(headerSize);
+		
+			if (!allocator.reserve(0, headerSegments)) {
+				throw new SRFException("Unabled to lock header segments");
 			}
-		}
 		
-		Boolean old = openMap.putIfAbsent(filePath.getCanonicalPath().toLowerCase(), Boolean.TRUE);
+			blockSegmentStart = new AtomicInteger[entries];
+			blockSegmentLength = new AtomicInteger[entries];
+			blockActualLength = new AtomicInteger[entries];
+			blockChecksum = new AtomicInteger[entries];
+			blockLock = new SRFReentrantReadWriteLock[entries];
+			numberBlocksLocked = new AtomicInteger(0);
 		
-		if (old != null) {
-			throw new SRFException("Attempt made to open a second region file with the same filename");
+			for (int i = 0; i < entries; i++) {
+				blockSegmentStart[i] = new AtomicInteger(file.readInt());
+				blockActualLength[i] = new AtomicInteger(file.readInt());
+				blockChecksum[i] = new AtomicInteger(this.checksums ? file.readInt() : 0);
+				blockSegmentLength[i] = new AtomicInteger(sizeToSegments(blockActualLength[i].get()));
+				blockLock[i] = new SRFReentrantReadWriteLock(numberBlocksLocked);
+				if (!allocator.reserve(blockSegmentStart[i].get(), blockSegmentLength[i].get())) {
+					throw new SRFException("Reserved segments for Block " + i + " overlap with another block");
+				}
+			}
+
+			opened = true;
+		} finally {
+			if (!opened) {
+				if (this.file != null && this.closed.compareAndSet(false, true)) {
+					try {
+						this.file.close();
+					} catch (IOException ignore) {
+					}
+				}
+				openMap.remove(openKey);
+			}
 		}
 	}
 
@@ -209,20 +353,80 @@ public class SimpleRegionFile implements ByteArrayArray {
 
 			int start = blockSegmentStart[i].get() << segmentSize;
 			int actualLength = blockActualLength[i].get();
-			byte[] result = new byte[actualLength];
+			byte[] result;
 			synchronized (fileSyncObject) {
-				if (file == null) {
-					this.file = new MappedRandomAccessFile(this.filePath, "rw");
+				result = journal == null ? null : journal.getPending(i);
+				if (result == null) {
+					result = new byte[actualLength];
+					if (file == null) {
+						this.file = openFile();
+					}
+					file.seek(start);
+					file.readFully(result);
+					if (checksums) {
+						CRC32C crc = new CRC32C();
+						crc.update(result, 0, actualLength);
+						verifyChecksum(i, crc);
+					}
 				}
-				file.seek(start);
-				file.readFully(result);
 			}
-			return new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(result)));
+			return new BufferedInputStream(codec.wrapInputStream(new ByteArrayInputStream(result)));
 		} finally {
 			lock.unlock();
 		}
 	}
 
+	@Override
+	public BAABlockView getBlockView(int i) throws IOException {
+		if (i < 0 || i > entries) {
+			throw new SRFException("Read block index out of range");
+		}
+		refreshAccess();
+		Lock lock = blockLock[i].readLock();
+		lock.lock();
+		boolean success = false;
+		try {
+			if (this.isClosed()) {
+				throw new SRFClosedException("File closed");
+			}
+			if (blockActualLength[i].get() == 0) {
+				return null;
+			}
+
+			int start = blockSegmentStart[i].get() << segmentSize;
+			int actualLength = blockActualLength[i].get();
+			ByteBuffer[] buffers;
+			AtomicInteger views = null;
+			synchronized (fileSyncObject) {
+				byte[] pending = journal == null ? null : journal.getPending(i);
+				if (pending != null) {
+					buffers = new ByteBuffer[] {ByteBuffer.wrap(pending).asReadOnlyBuffer()};
+				} else {
+					if (file == null) {
+						this.file = openFile();
+					}
+					buffers = file.slice(start, actualLength);
+					if (checksums) {
+						CRC32C crc = new CRC32C();
+						for (ByteBuffer buffer : buffers) {
+							crc.update(buffer.duplicate());
+						}
+						verifyChecksum(i, crc);
+					}
+					// The buffers share the mapped pages, so the file must not be truncated until the view is closed
+					views = openViews;
+					views.incrementAndGet();
+				}
+			}
+			success = true;
+			return new SRFBlockView(buffers, actualLength, codec, lock, views);
+		} finally {
+			if (!success) {
+				lock.unlock();
+			}
+		}
+	}
+
 	@Override
 	public OutputStream getOutputStream(int i) throws IOException {
 		if (i < 0 || i > entries) {
@@ -234,13 +438,47 @@ public class SimpleRegionFile implements ByteArrayArray {
 		if (this.isClosed()) {
 			throw new SRFClosedException("File closed");
 		}
-		return new BufferedOutputStream(new DeflaterOutputStream(new SRFOutputStream(this, i, this.segmentMask + 1, lock)));
+		return new BufferedOutputStream(codec.wrapOutputStream(new SRFOutputStream(this, i, this.segmentMask + 1, lock)));
+	}
+	
+	/**
+	 * Gets an output stream which writes the stored form of a block directly, without passing it through the codec.  This is for internal use only.<br>
+	 * <br>
+	 * WARNING:  This locks the block until the output stream is closed.<br>
+	 * 
+	 * @param i the block index
+	 * @return the output stream
+	 * @throws IOException
+	 */
+	OutputStream getRawOutputStream(int i) throws IOException {
+		if (i < 0 || i > entries) {
+			throw new SRFException("Write block index out of range");
+		}
+		refreshAccess();
+		Lock lock = blockLock[i].writeLock();
+		lock.lock();
+		if (this.isClosed()) {
+			lock.unlock();
+			throw new SRFClosedException("File closed");
+		}
+		return new SRFOutputStream(this, i, this.segmentMask + 1, lock);
+	}
+	
+	/**
+	 * Gets the codec used to compress the blocks in this file
+	 * 
+	 * @return the codec
+	 */
+	public SRFCodec getCodec() {
+		return codec;
 	}
 	
 	/**
 	 * Writes a byte array to a block.  This is for internal use only. <br>
 	 * <br>
 	 * Note: It is assumed that the block is locked when making these changes<br>
+	 * <br>
+	 * In write-behind mode, the write is added to the pending commit instead.
 	 * 
 	 * @param i the block index
 	 * @param buf the buffer
@@ -249,12 +487,27 @@ public class SimpleRegionFile implements ByteArrayArray {
 	 */
 	void write(int i, byte[] buf, int length) throws IOException {
 		refreshAccess();
-		int start = reserveBlockSegments(i, length);
+		int checksum = 0;
+		if (checksums) {
+			CRC32C crc = new CRC32C();
+			crc.update(buf, 0, length);
+			checksum = (int) crc.getValue();
+		}
 		synchronized(fileSyncObject) {
 			if (file == null) {
-				this.file = new MappedRandomAccessFile(this.filePath, "rw");
+				this.file = openFile();
+			}
+			// The segments are reserved while synchronized, so that the write is added to the journal before a checkpoint releases the held segments
+			int start = reserveBlockSegments(i, length);
+			blockChecksum[i].set(checksum);
+			if (journal != null) {
+				journal.add(i, start, buf, length, checksum);
+				if (journal.isCommitDue()) {
+					commitJournal();
+				}
+				return;
 			}
-			this.writeFAT(i, start, length);
+			this.writeFAT(i, start, length, checksum);
 			file.seek(start << segmentSize);
 			file.write(buf, 0, length);
 		}
@@ -270,12 +523,16 @@ public class SimpleRegionFile implements ByteArrayArray {
 		if (isTimedOut()) {
 			attemptClose();
 		}
+		commitIfDue();
 		if (syncCheck()) {
 			synchronized (fileSyncObject) {
 				if (file != null) {
+					if (journal != null) {
+						checkpointJournal();
+					}
 					file.close();
 					try {
-						this.file = new MappedRandomAccessFile(this.filePath, "rw");
+						this.file = openFile();
 					} catch (FileNotFoundException e) {
 						this.closed.set(true);
 						throw new SRFException("Unable to refresh open region file " + this.filePath, e);
@@ -298,6 +555,213 @@ public class SimpleRegionFile implements ByteArrayArray {
 		return true;
 	}
 	
+	/**
+	 * Commits the pending writes if the commit interval or threshold has been reached.  This has no effect if the file is in write-through mode.
+	 * 
+	 * @throws IOException
+	 */
+	public void commitIfDue() throws IOException {
+		if (journal == null) {
+			return;
+		}
+		synchronized (fileSyncObject) {
+			if (file != null && journal.isCommitDue()) {
+				commitJournal();
+			}
+		}
+	}
+	
+	/**
+	 * Commits any pending writes when in write-behind mode.  This has no effect if the file is in write-through mode.
+	 * 
+	 * @throws IOException
+	 */
+	public void commit() throws IOException {
+		if (journal == null) {
+			return;
+		}
+		synchronized (fileSyncObject) {
+			if (file != null) {
+				commitJournal();
+			}
+		}
+	}
+	
+	/**
+	 * Moves blocks from the end of the file into free space nearer the start of the file, and then truncates any free space at the end of the file.<br>
+	 * <br>
+	 * Each block is moved while holding its write lock, so the file can be in use during compaction.  The new locations are forced to disk 
+	 * before the old segments are released, so a crash during compaction never leaves a block pointing at reused segments.<br>
+	 * <br>
+	 * In write-behind mode, the pending writes are committed and checkpointed before compaction starts, so that no segment named by the FAT on disk or by the journal is reused.  
+	 * Blocks with writes pending in the write-behind journal are not moved.  The file is not truncated while block views are open, since they share the mapped pages.
+	 * 
+	 * @param maxBlocks the maximum number of blocks to move
+	 * @return the number of blocks moved
+	 * @throws IOException
+	 */
+	public int compact(int maxBlocks) throws IOException {
+		synchronized (compactionSyncObject) {
+			refreshAccess();
+			if (journal != null) {
+				synchronized (fileSyncObject) {
+					if (file != null) {
+						checkpointJournal();
+					}
+				}
+			}
+			Integer[] order = new Integer[entries];
+			for (int i = 0; i < entries; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int startA = blockSegmentStart[a].get();
+					int startB = blockSegmentStart[b].get();
+					return startA > startB ? -1 : (startA == startB ? 0 : 1);
+				}
+			});
+
+			int[] releaseStart = new int[Math.min(maxBlocks, entries)];
+			int[] releaseLength = new int[releaseStart.length];
+			int moved = 0;
+
+			for (int j = 0; j < entries && moved < releaseStart.length; j++) {
+				int i = order[j];
+				Lock lock = blockLock[i].writeLock();
+				lock.lock();
+				try {
+					if (this.isClosed()) {
+						throw new SRFClosedException("File closed");
+					}
+					int start = blockSegmentStart[i].get();
+					int length = blockSegmentLength[i].get();
+					int actualLength = blockActualLength[i].get();
+					if (length == 0) {
+						continue;
+					}
+					synchronized (fileSyncObject) {
+						if (journal != null && journal.getPending(i) != null) {
+							continue;
+						}
+					}
+					int newStart = allocator.allocateBelow(length, start);
+					if (newStart < 0) {
+						continue;
+					}
+					byte[] data = new byte[actualLength];
+					synchronized (fileSyncObject) {
+						if (file == null) {
+							this.file = openFile();
+						}
+						file.seek(((long) start) << segmentSize);
+						file.readFully(data);
+						file.seek(((long) newStart) << segmentSize);
+						file.write(data, 0, actualLength);
+						writeFAT(i, newStart, actualLength, blockChecksum[i].get());
+					}
+					blockSegmentStart[i].set(newStart);
+					releaseStart[moved] = start;
+					releaseLength[moved] = length;
+					moved++;
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			synchronized (fileSyncObject) {
+				if (file == null) {
+					return moved;
+				}
+				if (moved > 0) {
+					if (journal != null) {
+						checkpointJournal();
+					} else {
+						file.force();
+					}
+				}
+				for (int j = 0; j < moved; j++) {
+					allocator.release(releaseStart[j], releaseLength[j]);
+				}
+				if (openViews.get() == 0) {
+					file.truncate(((long) allocator.getLimit()) << segmentSize);
+				}
+			}
+			return moved;
+		}
+	}
+	
+	/**
+	 * Commits the pending writes, and releases the held segments if the commit made a checkpoint.  This must be called while synchronized on the file sync object.
+	 * 
+	 * @throws IOException
+	 */
+	private void commitJournal() throws IOException {
+		if (journal.commit(file)) {
+			releaseHeldSegments();
+		}
+	}
+	
+	/**
+	 * Commits the pending writes, makes a checkpoint and releases the held segments.  This must be called while synchronized on the file sync object.
+	 * 
+	 * @throws IOException
+	 */
+	private void checkpointJournal() throws IOException {
+		journal.commit(file);
+		journal.checkpoint(file);
+		releaseHeldSegments();
+	}
+	
+	private void releaseHeldSegments() {
+		for (int j = 0; j < heldSegments.size(); j += 2) {
+			allocator.release(heldSegments.get(j), heldSegments.get(j + 1));
+		}
+		heldSegments.clear();
+	}
+	
+	/**
+	 * Releases segments which are no longer used by a block.  In write-behind mode, the segments are held until the next checkpoint, since the FAT on disk and the journal may still point at them.
+	 * This must be called while synchronized on the file sync object.
+	 * 
+	 * @param start the first segment
+	 * @param length the number of segments
+	 */
+	private void releaseBlockSegments(int start, int length) {
+		if (length <= 0) {
+			return;
+		}
+		if (journal == null) {
+			allocator.release(start, length);
+		} else {
+			heldSegments.add(start);
+			heldSegments.add(length);
+		}
+	}
+	
+	/**
+	 * Gets the fraction of the used area of the file which is free space
+	 * 
+	 * @return the fragmentation, from 0 to 1
+	 */
+	public float getFragmentation() {
+		int limit = allocator.getLimit();
+		if (limit == 0) {
+			return 0;
+		}
+		return allocator.getFreeSegments() / (float) limit;
+	}
+	
+	/**
+	 * Gets if the file is in write-behind mode
+	 * 
+	 * @return true if block writes are committed through a journal
+	 */
+	public boolean isWriteBehind() {
+		return journal != null;
+	}
+	
 	@Override
 	public boolean isClosed() {
 		return this.numberBlocksLocked.get() == FILE_CLOSED;
@@ -314,8 +778,14 @@ public class SimpleRegionFile implements ByteArrayArray {
 		synchronized(fileSyncObject) {
 			try {
 				if (file != null) {
-					file.close();
-					file = null;
+					try {
+						if (journal != null) {
+							journal.close(file);
+						}
+					} finally {
+						file.close();
+						file = null;
+					}
 				}
 			} finally {
 				Boolean old = openMap.remove(filePath.getCanonicalPath().toLowerCase());
@@ -327,29 +797,75 @@ public class SimpleRegionFile implements ByteArrayArray {
 		return true;
 	}
 	
+	/**
+	 * Gets if a CRC32C of each block is stored and checked on read
+	 * 
+	 * @return true if blocks are checksummed
+	 */
+	public boolean hasChecksums() {
+		return checksums;
+	}
+	
+	/**
+	 * Checks the checksum of a block against the value stored in the FAT.
+	 * 
+	 * @param i the block index
+	 * @param crc the checksum of the stored data
+	 * @throws SRFException if the checksums do not match
+	 */
+	private void verifyChecksum(int i, CRC32C crc) throws SRFException {
+		int expected = blockChecksum[i].get();
+		int actual = (int) crc.getValue();
+		if (expected != actual) {
+			throw new SRFException("Checksum mismatch for block " + i + " of " + filePath + ", expected " + Integer.toHexString(expected) + " got " + Integer.toHexString(actual));
+		}
+	}
+	
 	/**
 	 * Gets the size of the header in bytes
 	 * 
+	 * @param version the file version
+	 * @param flags the header flags
 	 * @param entries the number of entries
 	 * @return the header size
 	 */
-	private static int getHeaderSize(int entries) {
-		int headerSize = getFATOffset();
-		headerSize += 4 * entries;  // start array (int[entries])
-		headerSize += 4 * entries;  // size array (int[entries])
-		return headerSize;
+	static int getHeaderSize(int version, int flags, int entries) {
+		return getFATOffset(version) + getFATEntrySize(flags) * entries;
+	}
+	
+	/**
+	 * Gets the size of each FAT entry
+	 * 
+	 * @param flags the header flags
+	 * @return the entry size in bytes
+	 */
+	static int getFATEntrySize(int flags) {
+		int entrySize = 0;
+		entrySize += 4;             // start (int)
+		entrySize += 4;             // size (int)
+		if ((flags & FLAG_CHECKSUMS) != 0) {
+			entrySize += 4;         // CRC32C (int)
+		}
+		return entrySize;
 	}
 	
 	/**
 	 * Gets the FAT base position
 	 * 
+	 * @param version the file version
 	 * @return the base position
 	 */
-	private static int getFATOffset() {
+	static int getFATOffset(int version) {
 		int headerSize = 0;
 		headerSize += 4;            // Version (int)
 		headerSize += 4;            // Segment size (int)
 		headerSize += 4;            // entries (int)
+		if (version >= 2) {
+			headerSize += 4;        // codec id (int)
+		}
+		if (version >= 3) {
+			headerSize += 4;        // flags (int)
+		}
 		return headerSize;
 	}
 	
@@ -374,51 +890,6 @@ public class SimpleRegionFile implements ByteArrayArray {
 		return ((size - 1) >> segmentSize) + 1;
 	}
 	
-	/**
-	 * Releases a segment.
-	 * 
-	 * @param i the segment index
-	 * @return true on success
-	 */
-	private boolean releaseSegment(int i) {
-		boolean oldUsed = setInUse(i, false);
-		return oldUsed;
-	}
-	
-	/**
-	 * Reserves a segment.
-	 * 
-	 * @param i the segment index
-	 * @return true on success
-	 */
-	private boolean reserveSegment(int i) {
-		boolean oldUsed = setInUse(i, true);
-		return !oldUsed;
-	}
-	
-	/**
-	 * Reserves a group of segments.  If all segments can't be locked, any locked segments are immediately released.
-	 * 
-	 * @param start the index of the first segment
-	 * @param length the number of segments to lock
-	 * @return the number of segments locked (this is equal to length on success)
-	 * @throws IOException
-	 */
-	private int reserveSegments(int start, int length) throws IOException {
-		int end = start + length;
-		for (int i = start; i < end; i++) {
-			if (!reserveSegment(i)) {
-				for (int j = i - 1; j >= start; j--) {
-					if (!releaseSegment(j)) {
-						throw new SRFException("Release error when releasing a group of segments that had just been locked");
-					}
-				}
-				return i - start;
-			}
-		}
-		return length;
-	}
-	
 	/**
 	 * Reserves a contiguous group of segments for a block.<br>
 	 * <br>
@@ -426,9 +897,9 @@ public class SimpleRegionFile implements ByteArrayArray {
 	 * <br>
 	 * If there is space after the current allocation so that it can be expanded to the new size, then it is expanded.<br>
 	 * <br>
-	 * Otherwise, it scans from the start until it finds a large enough group of segments.<br>
+	 * Otherwise, the smallest free run of segments which is large enough is used.<br>
 	 * <br>
-	 * This may result in the file length needing to be increased.
+	 * This may result in the file length needing to be increased.  This must be called while synchronized on the file sync object.
 	 * 
 	 * @param i the block index
 	 * @param length the actual length of the new block
@@ -448,38 +919,23 @@ public class SimpleRegionFile implements ByteArrayArray {
 		int newEnd = oldStart + newLength;
 		
 		if (newLength <= oldLength) { // file has shrunk
-			for (int j = newEnd; j < oldEnd; j++) {
-				if (!this.releaseSegment(j)) {
-					throw new SRFException("Unable to unlock blocks due to file shrinking");
-				}
-			}
+			releaseBlockSegments(newEnd, oldEnd - newEnd);
 			blockLength.set(newLength);
 			blockBytes.set(length);
 			return oldStart;
 		}
 		
 		int extraLength = newLength - oldLength;
-		int lockedSegments = this.reserveSegments(oldEnd, extraLength);
 		
-		if (lockedSegments == extraLength) {
+		if (oldLength > 0 && allocator.reserve(oldEnd, extraLength)) {
 			blockLength.set(newLength);
 			blockBytes.set(length);
 			return oldStart;
 		}
 		
-		int newStart = 0;
-		lockedSegments = 0;
+		int newStart = allocator.allocate(newLength);
 		
-		while (lockedSegments != newLength) {
-			lockedSegments = this.reserveSegments(newStart, newLength);
-			if (lockedSegments != newLength) {
-				newStart = newStart + lockedSegments + 1;
-			}
-		}
-		
-		for (int j = oldStart; j < oldEnd; j++) {
-			releaseSegment(j);
-		}
+		releaseBlockSegments(oldStart, oldLength);
 		
 		blockStart.set(newStart);
 		blockLength.set(newLength);
@@ -487,65 +943,25 @@ public class SimpleRegionFile implements ByteArrayArray {
 		return newStart;
 	}
 	
-	private void writeFAT(int i, int start, int actualLength) throws IOException {
-		int FATEntryPosition = getFATOffset() + (i << 3);
+	private SRFRandomAccessFile openFile() throws FileNotFoundException {
+		if (pagePool == null) {
+			return new MappedRandomAccessFile(this.filePath, "rw");
+		}
+		return new CachedRandomAccessFile(this.filePath, "rw", CACHED_PAGE_SHIFT, pagePool);
+	}
+	
+	private void writeFAT(int i, int start, int actualLength, int checksum) throws IOException {
+		int FATEntryPosition = FATOffset + i * FATEntrySize;
 		synchronized(fileSyncObject) {
 			if (file == null) {
-				this.file = new MappedRandomAccessFile(this.filePath, "rw");
+				this.file = openFile();
 			}
 			file.seek(FATEntryPosition);
 			file.writeInt(start);
 			file.writeInt(actualLength);
-		}
-	}
-	
-	/**
-	 * Sets an element in the in use array and returns the old value.
-	 * 
-	 * @param i the segment index
-	 * @param used true if the segment should be in use
-	 * @return the old value
-	 */
-	private boolean setInUse(int i, boolean used) {
-		AtomicBoolean[] localArray = inuse.get();
-		
-		if (localArray.length <= i) {
-			expandInUseArray(Math.max(i+1, localArray.length * 3 / 2));
-		}
-		
-		localArray = inuse.get();
-		
-		return localArray[i].getAndSet(used);
-	}
-	
-	/**
-	 * Expands the in use array.  When this method returns, the in use array will be at least newSize elements long
-	 * 
-	 * @param newSize the desired new size
-	 */
-	private void expandInUseArray(int newSize) {
-		
-		boolean success = false;
-		
-		while (!success) {
-			AtomicBoolean[] oldArray = inuse.get();
-
-			if (newSize <= oldArray.length) {
-				return;
-			}
-			
-			AtomicBoolean[] newArray = new AtomicBoolean[newSize];
-			
-			for (int i = 0; i < oldArray.length; i++) {
-				newArray[i] = oldArray[i];
+			if (checksums) {
+				file.writeInt(checksum);
 			}
-			
-			for (int i = oldArray.length; i < newSize; i++) {
-				newArray[i] = new AtomicBoolean(false);
-			}
-			
-			success = inuse.compareAndSet(oldArray, newArray);
 		}
-		
 	}
 }
@@ -0,0 +1,484 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.store.simple;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.lang3.Validate;
+
+import org.spout.api.io.FileUtil;
+
+/**
+ * This implements a SimpleStore that is persisted to a memory mapped, append-only log.<br>
+ * <br>
+ * Each change to the store is appended to the log as it is made, so save only needs to force the log to disk.  Reads do not lock.  
+ * Calls to setIfAbsent append to the log concurrently, while set, remove and clear are serialized so that the log records them in the order they were applied.<br>
+ * <br>
+ * When the log holds many more records than the store has entries, save rewrites the log with only the live entries.  
+ * The new log is written to a temporary file, which replaces the log once it is complete.  If the log is missing when the store is loaded, it is recovered from the temporary file.<br>
+ * <br>
+ * Files written by BinaryFileStore are converted when they are loaded.  The conversion can not be read by BinaryFileStore, so the original 
+ * file is first copied to a backup file, with ".bak" appended to its name.
+ */
+public class MappedFileStore implements SimpleStore<Integer> {
+	private static final int MAGIC = 0x53544F52;
+	private static final int OP_SET = 1;
+	private static final int OP_REMOVE = 2;
+	private static final int OP_CLEAR = 3;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int MIN_MAP_SIZE = 1 << 16;
+	private static final int MIN_COMPACTION_RECORDS = 256;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ConcurrentHashMap<String, Integer> map = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentHashMap<Integer, String> reverseMap = new ConcurrentHashMap<Integer, String>();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Object growSyncObject = new Object();
+	private final List<MappedByteBuffer> oldBuffers = new ArrayList<MappedByteBuffer>();
+	private final AtomicInteger end = new AtomicInteger(0);
+	private final AtomicInteger records = new AtomicInteger(0);
+	private volatile MappedByteBuffer buffer = null;
+	private volatile boolean appendFailed = false;
+	private RandomAccessFile raf = null;
+	private File file;
+
+	public MappedFileStore(File file) {
+		this.file = file;
+	}
+
+	public MappedFileStore() {
+		this(null);
+	}
+
+	/**
+	 * Sets the file used to persist the store.  Changes are not written to the new file until the store is loaded or saved.
+	 * 
+	 * @param file the file
+	 */
+	public void setFile(File file) {
+		lock.writeLock().lock();
+		try {
+			closeLog();
+			this.file = file;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public File getFile() {
+		lock.readLock().lock();
+		try {
+			return file;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean save() {
+		lock.writeLock().lock();
+		try {
+			if (file == null) {
+				return false;
+			}
+			if (buffer == null || appendFailed || records.get() > MIN_COMPACTION_RECORDS + 2 * map.size()) {
+				rewrite();
+			} else {
+				buffer.force();
+			}
+			return true;
+		} catch (IOException ioe) {
+			return false;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean load() {
+		lock.writeLock().lock();
+		try {
+			if (file == null) {
+				return false;
+			}
+			closeLog();
+			recoverTemp();
+			if (!file.exists()) {
+				return false;
+			}
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			byte[] data;
+			try {
+				data = new byte[(int) in.length()];
+				in.readFully(data);
+			} finally {
+				in.close();
+			}
+			if (data.length >= 4 && ByteBuffer.wrap(data).getInt(0) == MAGIC) {
+				replay(data);
+			} else {
+				replayLegacy(data);
+				backupLegacy(data);
+			}
+			rewrite();
+			return true;
+		} catch (IOException ioe) {
+			return false;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Collection<String> getKeys() {
+		return Collections.unmodifiableSet(map.keySet());
+	}
+
+	@Override
+	public Set<Entry<String, Integer>> getEntrySet() {
+		return Collections.unmodifiableSet(map.entrySet());
+	}
+
+	@Override
+	public int getSize() {
+		return map.size();
+	}
+
+	@Override
+	public boolean clear() {
+		lock.writeLock().lock();
+		try {
+			map.clear();
+			reverseMap.clear();
+			append(OP_CLEAR, "", 0);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Integer get(String key) {
+		return map.get(key);
+	}
+
+	@Override
+	public Integer get(String key, Integer def) {
+		Integer value = map.get(key);
+		if (value == null) {
+			return def;
+		}
+		return value;
+	}
+
+	@Override
+	public String reverseGet(Integer value) {
+		return reverseMap.get(value);
+	}
+
+	@Override
+	public Integer remove(String key) {
+		lock.writeLock().lock();
+		try {
+			Integer value = map.remove(key);
+			if (value != null) {
+				reverseMap.remove(value);
+				append(OP_REMOVE, key, 0);
+			}
+			return value;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Integer set(String key, Integer value) {
+		Validate.notNull(key);
+		Validate.notNull(value);
+
+		lock.writeLock().lock();
+		try {
+			Integer oldValue = map.put(key, value);
+			if (oldValue != null) {
+				reverseMap.remove(oldValue);
+			}
+			reverseMap.put(value, key);
+			append(OP_SET, key, value);
+			return oldValue;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean setIfAbsent(String key, Integer value) {
+		Validate.notNull(key);
+		Validate.notNull(value);
+
+		lock.readLock().lock();
+		try {
+			if (map.containsKey(key)) {
+				return false;
+			}
+			if (reverseMap.putIfAbsent(value, key) != null) {
+				return false;
+			}
+			if (map.putIfAbsent(key, value) != null) {
+				reverseMap.remove(value, key);
+				return false;
+			}
+			append(OP_SET, key, value);
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends a record to the log.  Space for the record is reserved atomically, so records can be appended concurrently.  The record header is written last, so a record which is only partly written ends the log.<br>
+	 * <br>
+	 * If the log is not open, nothing is written.  The entire store is written when it is next saved.
+	 */
+	private void append(int op, String key, int value) {
+		if (buffer == null) {
+			return;
+		}
+		byte[] keyBytes = key.getBytes(UTF8);
+		int size = RECORD_HEADER_SIZE + keyBytes.length;
+		int position = end.getAndAdd(size);
+		try {
+			ByteBuffer buf = ensureCapacity(position + size).duplicate();
+			buf.position(position + 4);
+			buf.putInt(value);
+			buf.put(keyBytes);
+			buf.putInt(position, (op << 24) | keyBytes.length);
+			records.incrementAndGet();
+		} catch (IOException ioe) {
+			appendFailed = true;
+		}
+	}
+
+	private MappedByteBuffer ensureCapacity(int required) throws IOException {
+		MappedByteBuffer current = buffer;
+		if (current.capacity() >= required) {
+			return current;
+		}
+		synchronized (growSyncObject) {
+			current = buffer;
+			if (current.capacity() < required) {
+				// The old mapping remains valid, so appends which are still using it are not lost
+				oldBuffers.add(current);
+				current = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(required, current.capacity() * 2));
+				buffer = current;
+			}
+			return current;
+		}
+	}
+
+	/**
+	 * Writes the live entries to a new log, replaces the file with it and maps the new log.  This must be called with the write lock held.<br>
+	 * <br>
+	 * The new log is written and synced to the temporary file before the file is replaced, so the file is only removed once a complete replacement exists.
+	 */
+	private void rewrite() throws IOException {
+		closeLog();
+		recoverTemp();
+		File temp = getTempFile();
+		FileOutputStream fileOut = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		int length = 4;
+		int count = 0;
+		try {
+			out.writeInt(MAGIC);
+			for (Entry<String, Integer> entry : map.entrySet()) {
+				byte[] keyBytes = entry.getKey().getBytes(UTF8);
+				out.writeInt((OP_SET << 24) | keyBytes.length);
+				out.writeInt(entry.getValue());
+				out.write(keyBytes);
+				length += RECORD_HEADER_SIZE + keyBytes.length;
+				count++;
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			// Some platforms will not rename over an existing file.  If the second rename fails, the log is recovered from the temporary file when the store is next loaded or saved
+			if (file.exists() && !file.delete()) {
+				temp.delete();
+				throw new IOException("Unable to replace " + file);
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to rename " + temp + " to " + file);
+			}
+		}
+		raf = new RandomAccessFile(file, "rw");
+		buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(MIN_MAP_SIZE, length * 2));
+		end.set(length);
+		records.set(count);
+		appendFailed = false;
+	}
+
+	/**
+	 * Keeps a copy of a file written by BinaryFileStore, before it is converted.  An existing backup is not replaced.
+	 * 
+	 * @param data the contents of the file
+	 */
+	private void backupLegacy(byte[] data) throws IOException {
+		File backup = new File(file.getPath() + ".bak");
+		if (backup.exists()) {
+			return;
+		}
+		FileOutputStream out = new FileOutputStream(backup);
+		try {
+			out.write(data);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Completes a rewrite which was interrupted after the file was removed.  If the file still exists, the temporary file was not complete and is deleted.
+	 */
+	private void recoverTemp() throws IOException {
+		File temp = getTempFile();
+		if (!temp.exists()) {
+			return;
+		}
+		if (file.exists()) {
+			temp.delete();
+		} else if (!temp.renameTo(file)) {
+			throw new IOException("Unable to recover " + file + " from " + temp);
+		}
+	}
+
+	private File getTempFile() {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	/**
+	 * Forces the log to disk and unmaps it.  This must be called with the write lock held, so that no appends are using the mappings.
+	 */
+	private void closeLog() {
+		if (buffer != null) {
+			buffer.force();
+			FileUtil.unmap(buffer);
+			buffer = null;
+		}
+		synchronized (growSyncObject) {
+			for (MappedByteBuffer old : oldBuffers) {
+				old.force();
+				FileUtil.unmap(old);
+			}
+			oldBuffers.clear();
+		}
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException ignore) {
+			}
+			raf = null;
+		}
+	}
+
+	private void replay(byte[] data) {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		int position = 4;
+		while (position + RECORD_HEADER_SIZE <= data.length) {
+			int header = buf.getInt(position);
+			int op = header >>> 24;
+			int keyLength = header & 0xFFFFFF;
+			if (op < OP_SET || op > OP_CLEAR || position + RECORD_HEADER_SIZE + keyLength > data.length) {
+				break;
+			}
+			int value = buf.getInt(position + 4);
+			String key = new String(data, position + RECORD_HEADER_SIZE, keyLength, UTF8);
+			switch (op) {
+				case OP_SET:
+					Integer oldValue = map.put(key, value);
+					if (oldValue != null) {
+						reverseMap.remove(oldValue);
+					}
+					reverseMap.put(value, key);
+					break;
+				case OP_REMOVE:
+					Integer removed = map.remove(key);
+					if (removed != null) {
+						reverseMap.remove(removed);
+					}
+					break;
+				case OP_CLEAR:
+					map.clear();
+					reverseMap.clear();
+					break;
+			}
+			position += RECORD_HEADER_SIZE + keyLength;
+		}
+	}
+
+	private void replayLegacy(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		while (true) {
+			int value;
+			String key;
+			try {
+				value = in.readInt();
+				key = in.readUTF();
+			} catch (EOFException eofe) {
+				break;
+			}
+			Integer oldValue = map.put(key, value);
+			if (oldValue != null) {
+				reverseMap.remove(oldValue);
+			}
+			reverseMap.put(value, key);
+		}
+	}
+}
@@ -32,7 +32,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.spout.api.Spout;
-import org.spout.api.io.store.simple.BinaryFileStore;
+import org.spout.api.io.store.simple.MappedFileStore;
 import org.spout.api.material.block.BlockFullState;
 import org.spout.api.math.MathHelper;
 import org.spout.api.util.StringMap;
@@ -47,7 +47,7 @@ public abstract class MaterialRegistry {
 	@SuppressWarnings("unchecked")
 	private final static AtomicReference<Material>[] materialLookup = new AtomicReference[MAX_SIZE];
 	private static boolean setup = false;
-	private final static BinaryFileStore store = new BinaryFileStore();
+	private final static MappedFileStore store = new MappedFileStore();
 	private final static StringMap materialRegistry = new StringMap(null, store, 1, Short.MAX_VALUE, Material.class.getName());
 
 	static {
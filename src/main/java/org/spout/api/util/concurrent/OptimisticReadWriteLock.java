@@ -26,15 +26,48 @@
  */
 package org.spout.api.util.concurrent;
 
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Implements a non-reentrant optimistic lock.<br>
+ * Implements an optimistic read/write lock.<br>
+ * <br>
+ * Readers normally do not lock at all.  They record the sequence number
+ * returned by {@link #readLock()}, perform their reads and then check that no
+ * write occurred with {@link #readUnlock(int)}.  A failed check means the read
+ * must be repeated.<br>
+ * <br>
+ * Readers which cannot repeat their reads can instead take a shared hold using
+ * {@link #sharedLock()}, which excludes writers until released.<br>
+ * <br>
+ * Writers are given preference.  Once a writer has claimed the lock, no new
+ * shared holds or optimistic reads can start and the writer only waits for the
+ * existing shared holds to drain.  Threads which have to wait are parked in
+ * arrival order and are woken directly when the lock is released.<br>
+ * <br>
+ * The sequence based methods are not reentrant.  The {@link #lock()} and
+ * {@link #unlock()} methods give a reentrant exclusive view of the lock, and
+ * the thread which holds the write lock may also take shared holds.
  */
 public class OptimisticReadWriteLock {
 
-	private final AtomicInteger waiting = new AtomicInteger(0);
 	private final AtomicInteger sequence = new AtomicInteger(0);
+	private final AtomicInteger shared = new AtomicInteger(0);
+	private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+	private final AtomicLong optimisticFailures = new AtomicLong(0);
+	private final AtomicLong readContentions = new AtomicLong(0);
+	private final AtomicLong writeContentions = new AtomicLong(0);
+	private volatile Thread owner = null;
+	/**
+	 * These fields are only accessed by the owner thread
+	 */
+	private int ownerSequence;
+	private int ownerHolds;
+	private int ownerShared;
 	public final static int UNSTABLE = 1;
 
 	/**
@@ -56,28 +89,22 @@ public class OptimisticReadWriteLock {
 		if ((seq = tryReadLock()) != UNSTABLE) {
 			return seq;
 		}
-
-		synchronized (this) {
-			boolean interrupted = false;
-			waiting.incrementAndGet();
-			try {
-				while (true) {
-					if ((seq = tryReadLock()) != UNSTABLE) {
-						if (interrupted) {
-							Thread.currentThread().interrupt();
-						}
-						return seq;
-					}
-					try {
-						wait();
-					} catch (InterruptedException ie) {
-						interrupted = true;
-					}
-				}
-			} finally {
-				waiting.decrementAndGet();
+		readContentions.incrementAndGet();
+		Waiter waiter = new Waiter(false);
+		waiters.add(waiter);
+		boolean interrupted = false;
+		try {
+			while ((seq = tryReadLock()) == UNSTABLE) {
+				LockSupport.park(this);
+				interrupted |= Thread.interrupted();
 			}
+		} finally {
+			leave(waiter);
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
 		}
+		return seq;
 	}
 
 	/**
@@ -94,7 +121,70 @@ public class OptimisticReadWriteLock {
 			throw new IllegalArgumentException("UNSTABLE sequence number passed to readUnlock");
 		}
 
-		return this.sequence.compareAndSet(sequence, sequence);
+		if (this.sequence.compareAndSet(sequence, sequence)) {
+			return true;
+		}
+		optimisticFailures.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Attempts to take a shared hold on the lock.  A shared hold excludes
+	 * writers until it is released using {@link #sharedUnlock()}.<br>
+	 * <br>
+	 * This method always succeeds for the thread which holds the write lock.
+	 *
+	 * @return true on success
+	 */
+	public boolean trySharedLock() {
+		if (owner == Thread.currentThread()) {
+			ownerShared++;
+			return true;
+		}
+		shared.incrementAndGet();
+		if (sequence.get() != UNSTABLE) {
+			return true;
+		}
+		releaseShared();
+		return false;
+	}
+
+	/**
+	 * Takes a shared hold on the lock, and waits if necessary.
+	 */
+	public void sharedLock() {
+		if (trySharedLock()) {
+			return;
+		}
+		readContentions.incrementAndGet();
+		Waiter waiter = new Waiter(false);
+		waiters.add(waiter);
+		boolean interrupted = false;
+		try {
+			while (!trySharedLock()) {
+				LockSupport.park(this);
+				interrupted |= Thread.interrupted();
+			}
+		} finally {
+			leave(waiter);
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Releases a shared hold on the lock.
+	 */
+	public void sharedUnlock() {
+		if (owner == Thread.currentThread() && ownerShared > 0) {
+			ownerShared--;
+			return;
+		}
+		if (shared.get() <= 0) {
+			throw new IllegalStateException("Shared unlock called when no shared hold was active");
+		}
+		releaseShared();
 	}
 
 	/**
@@ -104,7 +194,37 @@ public class OptimisticReadWriteLock {
 	 *         fail
 	 */
 	public int tryWriteLock() {
-		return sequence.getAndSet(UNSTABLE);
+		int seq = sequence.get();
+		if (seq == UNSTABLE || !sequence.compareAndSet(seq, UNSTABLE)) {
+			return UNSTABLE;
+		}
+		if (shared.get() != 0) {
+			restore(seq);
+			return UNSTABLE;
+		}
+		setOwner(seq);
+		return seq;
+	}
+
+	/**
+	 * Attempts to write lock the lock, waiting up to the given time if
+	 * necessary.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 * @return the old sequence number, or OptimisticReadWriteLock.UNSTABLE if
+	 *         the timeout expired
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public int tryWriteLock(long timeout, TimeUnit unit) throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		int seq;
+		if ((seq = tryWriteLock()) != UNSTABLE) {
+			return seq;
+		}
+		return acquireWrite(true, System.nanoTime() + unit.toNanos(timeout));
 	}
 
 	/**
@@ -115,28 +235,38 @@ public class OptimisticReadWriteLock {
 		if ((seq = tryWriteLock()) != UNSTABLE) {
 			return seq;
 		}
+		try {
+			return acquireWrite(false, 0L);
+		} catch (InterruptedException ie) {
+			throw new IllegalStateException("Uninterruptible write lock was interrupted", ie);
+		}
+	}
 
-		synchronized (this) {
-			boolean interrupted = false;
-			waiting.incrementAndGet();
-			try {
-				while (true) {
-					if ((seq = tryWriteLock()) != UNSTABLE) {
-						if (interrupted) {
-							Thread.currentThread().interrupt();
-						}
-						return seq;
-					}
-					try {
-						wait();
-					} catch (InterruptedException ie) {
-						interrupted = true;
-					}
-				}
-			} finally {
-				waiting.decrementAndGet();
-			}
+	/**
+	 * Attempts to upgrade an optimistic read to a write lock.  This only
+	 * succeeds if no write has occurred since the sequence number was read and
+	 * no shared holds are active.<br>
+	 * <br>
+	 * On success, the reads made since the sequence number was obtained are
+	 * valid and the lock must be released using {@link #writeUnlock(int)}.
+	 *
+	 * @param sequence the sequence number when the lock was read locked
+	 * @return the sequence number, or OptimisticReadWriteLock.UNSTABLE on fail
+	 */
+	public int tryConvertToWriteLock(int sequence) {
+		if (sequence == UNSTABLE) {
+			throw new IllegalArgumentException("UNSTABLE sequence number passed to tryConvertToWriteLock");
 		}
+		if (!this.sequence.compareAndSet(sequence, UNSTABLE)) {
+			optimisticFailures.incrementAndGet();
+			return UNSTABLE;
+		}
+		if (shared.get() != 0) {
+			restore(sequence);
+			return UNSTABLE;
+		}
+		setOwner(sequence);
+		return sequence;
 	}
 
 	/**
@@ -146,15 +276,243 @@ public class OptimisticReadWriteLock {
 	 */
 	public void writeUnlock(int sequence) {
 		try {
+			owner = null;
 			if (!this.sequence.compareAndSet(UNSTABLE, sequence + 2)) {
 				throw new IllegalStateException("Write unlock called when the write lock was not active");
 			}
 		} finally {
-			if (!waiting.compareAndSet(0, 0)) {
-				synchronized (this) {
-					notifyAll();
+			wakeHead();
+		}
+	}
+
+	/**
+	 * Write locks the lock, and waits if necessary.  This method is reentrant
+	 * and may also be called by a thread which locked the lock using
+	 * {@link #writeLock()}.
+	 */
+	public void lock() {
+		if (owner == Thread.currentThread()) {
+			ownerHolds++;
+		} else {
+			writeLock();
+		}
+	}
+
+	/**
+	 * Attempts to write lock the lock.  This method is reentrant.
+	 *
+	 * @return true on success
+	 */
+	public boolean tryLock() {
+		if (owner == Thread.currentThread()) {
+			ownerHolds++;
+			return true;
+		}
+		return tryWriteLock() != UNSTABLE;
+	}
+
+	/**
+	 * Releases one hold acquired by {@link #lock()} or {@link #tryLock()}.  The
+	 * lock is unlocked once all holds have been released.
+	 */
+	public void unlock() {
+		if (owner != Thread.currentThread()) {
+			throw new IllegalStateException("Unlock called by a thread which does not hold the write lock");
+		}
+		if (--ownerHolds == 0) {
+			writeUnlock(ownerSequence);
+		}
+	}
+
+	/**
+	 * Gets if the lock is write locked.
+	 *
+	 * @return true if write locked
+	 */
+	public boolean isWriteLocked() {
+		return sequence.get() == UNSTABLE;
+	}
+
+	/**
+	 * Gets if the lock is write locked by the current thread.
+	 *
+	 * @return true if write locked by the current thread
+	 */
+	public boolean isHeldByCurrentThread() {
+		return owner == Thread.currentThread();
+	}
+
+	/**
+	 * Gets the number of holds on the write lock by the current thread.
+	 *
+	 * @return the hold count, or zero if the current thread does not hold the lock
+	 */
+	public int getHoldCount() {
+		return isHeldByCurrentThread() ? ownerHolds : 0;
+	}
+
+	/**
+	 * Gets the number of shared holds, not including holds taken by the write
+	 * lock owner.
+	 *
+	 * @return the number of shared holds
+	 */
+	public int getSharedCount() {
+		return shared.get();
+	}
+
+	/**
+	 * Gets the number of optimistic reads and write lock upgrades which failed
+	 * due to a write.
+	 *
+	 * @return the number of failed optimistic reads
+	 */
+	public long getOptimisticFailures() {
+		return optimisticFailures.get();
+	}
+
+	/**
+	 * Gets the number of read and shared locks which had to wait for a writer.
+	 *
+	 * @return the number of contended read locks
+	 */
+	public long getReadContentions() {
+		return readContentions.get();
+	}
+
+	/**
+	 * Gets the number of write locks which had to wait.
+	 *
+	 * @return the number of contended write locks
+	 */
+	public long getWriteContentions() {
+		return writeContentions.get();
+	}
+
+	private void setOwner(int seq) {
+		ownerSequence = seq;
+		ownerHolds = 1;
+		ownerShared = 0;
+		owner = Thread.currentThread();
+	}
+
+	private int acquireWrite(boolean timed, long deadline) throws InterruptedException {
+		writeContentions.incrementAndGet();
+		Waiter waiter = new Waiter(true);
+		waiters.add(waiter);
+		boolean interrupted = false;
+		try {
+			while (true) {
+				int seq = sequence.get();
+				if (seq != UNSTABLE && sequence.compareAndSet(seq, UNSTABLE)) {
+					// New readers are now locked out, wait for the shared holds to drain
+					owner = Thread.currentThread();
+					while (shared.get() != 0) {
+						if (!park(timed, deadline)) {
+							owner = null;
+							restore(seq);
+							return UNSTABLE;
+						}
+						if (Thread.interrupted()) {
+							if (timed) {
+								owner = null;
+								restore(seq);
+								throw new InterruptedException();
+							}
+							interrupted = true;
+						}
+					}
+					setOwner(seq);
+					return seq;
 				}
+				if (!park(timed, deadline)) {
+					return UNSTABLE;
+				}
+				if (Thread.interrupted()) {
+					if (timed) {
+						throw new InterruptedException();
+					}
+					interrupted = true;
+				}
+			}
+		} finally {
+			waiters.remove(waiter);
+			if (owner != Thread.currentThread()) {
+				// Pass on any wake up which may have been meant for this thread
+				wakeHead();
 			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Parks the current thread
+	 *
+	 * @return false if the deadline has passed
+	 */
+	private boolean park(boolean timed, long deadline) {
+		if (!timed) {
+			LockSupport.park(this);
+			return true;
+		}
+		long remaining = deadline - System.nanoTime();
+		if (remaining <= 0) {
+			return false;
+		}
+		LockSupport.parkNanos(this, remaining);
+		return true;
+	}
+
+	/**
+	 * Reverts a write lock claim which was abandoned before anything was written
+	 */
+	private void restore(int seq) {
+		sequence.set(seq);
+		wakeHead();
+	}
+
+	private void releaseShared() {
+		if (shared.decrementAndGet() == 0) {
+			Thread writer = owner;
+			if (writer != null) {
+				LockSupport.unpark(writer);
+			}
+		}
+	}
+
+	private void leave(Waiter waiter) {
+		waiters.remove(waiter);
+		wakeHead();
+	}
+
+	/**
+	 * Wakes the first waiting thread.  If it is a reader, all readers up to the
+	 * next waiting writer are also woken.
+	 */
+	private void wakeHead() {
+		Iterator<Waiter> i = waiters.iterator();
+		boolean first = true;
+		while (i.hasNext()) {
+			Waiter w = i.next();
+			if (w.writer && !first) {
+				return;
+			}
+			LockSupport.unpark(w.thread);
+			if (w.writer) {
+				return;
+			}
+			first = false;
+		}
+	}
+
+	private static class Waiter {
+		private final Thread thread = Thread.currentThread();
+		private final boolean writer;
+
+		public Waiter(boolean writer) {
+			this.writer = writer;
 		}
 	}
 
@@ -31,6 +31,8 @@ import gnu.trove.set.hash.TIntHashSet;
 import org.spout.api.material.source.MaterialSource;
 import org.spout.api.math.Vector3;
 import org.spout.api.render.RenderMaterial;
+import org.spout.api.util.IntTripleConsumer;
+import org.spout.api.util.cuboid.CuboidBlockMaterialBuffer;
 
 /**
  * This store stores block data for each chunk. Each block can either store a
@@ -177,6 +179,47 @@ public interface AtomicBlockStore {
 	 */
 	public boolean compareAndSetBlock(int x, int y, int z, short expectId, short expectData, short newId, short newData);
 
+	/**
+	 * Sets a group of blocks, if every block in the group matches its expected state.  Either all the blocks are updated or none are.<br>
+	 * <br>
+	 * The store is locked once for the whole group, and the changed blocks are marked as dirty together.  
+	 * Reads do not lock the store, so a reader may see part of the group before the update completes.<br>
+	 * <br>
+	 * The states are packed ids and data, as returned by {@link #getFullData(int)}.  The indexes must be distinct.
+	 * 
+	 * @param indexes the block indexes
+	 * @param expect the expected states
+	 * @param update the new states
+	 * @param count the number of blocks in the group
+	 * @return true if the group was updated
+	 */
+	public boolean compareAndSetBlocks(int[] indexes, int[] expect, int[] update, int count);
+	
+	/**
+	 * Sets the blocks in the part of a buffer which overlaps this store.<br>
+	 * <br>
+	 * The store is locked once for the whole update, rather than once for each block.  Changed blocks are marked as dirty.
+	 *
+	 * @param x the x coordinate of this store's origin, in the buffer's coordinates
+	 * @param y the y coordinate of this store's origin, in the buffer's coordinates
+	 * @param z the z coordinate of this store's origin, in the buffer's coordinates
+	 * @param buffer the buffer containing the new blocks
+	 * @return the number of blocks which were changed
+	 */
+	public int setBlocks(int x, int y, int z, CuboidBlockMaterialBuffer buffer);
+
+	/**
+	 * Copies the blocks in the part of a buffer which overlaps this store into the buffer.<br>
+	 * <br>
+	 * Reads do not lock the store, so tearing may occur if the store is updated during this method call.
+	 *
+	 * @param x the x coordinate of this store's origin, in the buffer's coordinates
+	 * @param y the y coordinate of this store's origin, in the buffer's coordinates
+	 * @param z the z coordinate of this store's origin, in the buffer's coordinates
+	 * @param buffer the buffer to copy the blocks into
+	 */
+	public void getBlocks(int x, int y, int z, CuboidBlockMaterialBuffer buffer);
+
 	/**
 	 * Gets if the store would benefit from compression.<br>
 	 * <br>
@@ -232,6 +275,23 @@ public interface AtomicBlockStore {
 	 */
 	public short[] getDataArray(short[] array);
 
+	/**
+	 * Gets the version of the store.  The version is increased by each write, including failed compare and set attempts, and by compression.
+	 * 
+	 * @return the version
+	 */
+	public long getVersion();
+	
+	/**
+	 * Gets an immutable snapshot of the blocks in the store.<br>
+	 * <br>
+	 * The same snapshot is returned until the store is next modified, so repeated snapshots of an unchanged store do not copy the blocks.  
+	 * Snapshots do not include partial updates, so data tearing does not occur.
+	 * 
+	 * @return the snapshot
+	 */
+	public BlockStoreSnapshot getSnapshot();
+	
 	/**
 	 * Compresses the store.<br>
 	 */
@@ -306,6 +366,17 @@ public interface AtomicBlockStore {
 	 * @return
 	 */
 	public int getDirtyNewState(int i);
+
+	/**
+	 * Calls the consumer with the chunk coordinates of each dirty block, without allocating.<br>
+	 * <br>
+	 * If the store tracks dirty blocks in a bitset, every dirty block is visited, even after the dirty arrays have overflowed.
+	 * Otherwise, the blocks in the dirty arrays are visited and nothing is visited after an overflow.<br>
+	 *
+	 * @param consumer the consumer
+	 * @return false if the dirty arrays have overflowed and the dirty blocks are unknown
+	 */
+	public boolean forEachDirty(IntTripleConsumer consumer);
 	
 	/**
 	 * Gets the width of each entry in the packed array
@@ -0,0 +1,154 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compacts block stores incrementally, spreading the work over several ticks.<br>
+ * <br>
+ * Stores are queued by {@link #request(AtomicBlockStore)}.  Each tick, {@link #compact(long)} compresses queued stores until the time budget is used up, and the remaining stores wait for the next tick.  
+ * Stores which no longer need compression are dropped without being locked, and stores which are locked by another thread are moved to the back of the queue.
+ */
+public class AtomicBlockStoreCompactor {
+	
+	private final ConcurrentLinkedQueue<AtomicBlockStore> queue = new ConcurrentLinkedQueue<AtomicBlockStore>();
+	private final Set<AtomicBlockStore> queued = Collections.newSetFromMap(new ConcurrentHashMap<AtomicBlockStore, Boolean>());
+	private final TIntHashSet inUseSet = new TIntHashSet();
+	
+	private final AtomicLong compacted = new AtomicLong(0);
+	private final AtomicLong skipped = new AtomicLong(0);
+	private final AtomicLong deferred = new AtomicLong(0);
+	
+	/**
+	 * Queues a store for compaction
+	 * 
+	 * @param store the store
+	 * @return true if the store was queued, false if it was already waiting
+	 */
+	public boolean request(AtomicBlockStore store) {
+		if (queued.add(store)) {
+			queue.add(store);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Removes a store from the queue, for example when its chunk is unloaded
+	 * 
+	 * @param store the store
+	 * @return true if the store was waiting
+	 */
+	public boolean remove(AtomicBlockStore store) {
+		if (queued.remove(store)) {
+			queue.remove(store);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Compacts queued stores until the time budget is used up.  Each store is compacted in a single step, so the budget may be exceeded by the time to compact one store.
+	 * 
+	 * @param budgetNanos the time budget, in nanoseconds
+	 * @return the number of stores compacted
+	 */
+	public synchronized int compact(long budgetNanos) {
+		long start = System.nanoTime();
+		int done = 0;
+		// Deferred stores are moved to the back of the queue, so each store is visited at most once per call
+		int remaining = queue.size();
+		while (remaining-- > 0 && System.nanoTime() - start < budgetNanos) {
+			AtomicBlockStore store = queue.poll();
+			if (store == null) {
+				break;
+			}
+			// The store is removed from the set first, so a request made during compaction queues it again
+			queued.remove(store);
+			if (!store.needsCompression()) {
+				skipped.incrementAndGet();
+				continue;
+			}
+			if (!store.tryWriteLock()) {
+				deferred.incrementAndGet();
+				request(store);
+				continue;
+			}
+			try {
+				store.compress(inUseSet);
+			} finally {
+				store.writeUnlock();
+			}
+			compacted.incrementAndGet();
+			done++;
+		}
+		return done;
+	}
+	
+	/**
+	 * Gets the number of stores waiting for compaction
+	 * 
+	 * @return the number of stores
+	 */
+	public int getPending() {
+		return queued.size();
+	}
+	
+	/**
+	 * Gets the total number of stores compacted
+	 * 
+	 * @return the number of stores
+	 */
+	public long getCompacted() {
+		return compacted.get();
+	}
+	
+	/**
+	 * Gets the total number of queued stores which no longer needed compression when they were reached
+	 * 
+	 * @return the number of stores
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+	
+	/**
+	 * Gets the total number of times a store was moved to the back of the queue, because it was locked
+	 * 
+	 * @return the number of times
+	 */
+	public long getDeferred() {
+		return deferred.get();
+	}
+}
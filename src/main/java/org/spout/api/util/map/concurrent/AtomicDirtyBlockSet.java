@@ -0,0 +1,225 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.spout.api.util.IntTripleConsumer;
+
+/**
+ * A set of dirty blocks for a cube of blocks, stored as an atomic bitset with one bit per block.<br>
+ * <br>
+ * The blocks are grouped into sections of 64 blocks, each stored in a single long.  A summary bitset holds a bit for each section which may contain dirty blocks, so clean sections are skipped without being read.<br>
+ * <br>
+ * Blocks are indexed in the same order as AtomicBlockStore, (y << (2 * shift)) + (z << shift) + x.  For a 16x16x16 cube, each section holds 4 rows of a single layer.
+ */
+public class AtomicDirtyBlockSet {
+	private final int shift;
+	private final int doubleShift;
+	private final int mask;
+	private final int sections;
+	private final AtomicLongArray bits;
+	private final AtomicLongArray summary;
+
+	/**
+	 * Creates a set for a cube of blocks
+	 * 
+	 * @param shift log2(the side length of the cube), at least 2
+	 */
+	public AtomicDirtyBlockSet(int shift) {
+		if (shift < 2) {
+			throw new IllegalArgumentException("The cube must contain at least 64 blocks");
+		}
+		this.shift = shift;
+		this.doubleShift = shift << 1;
+		this.mask = (1 << shift) - 1;
+		this.sections = (1 << (3 * shift)) >> 6;
+		this.bits = new AtomicLongArray(sections);
+		this.summary = new AtomicLongArray((sections + 63) >> 6);
+	}
+
+	/**
+	 * Marks a block as dirty
+	 * 
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return true if the block was not already dirty
+	 */
+	public boolean mark(int x, int y, int z) {
+		return mark((y << doubleShift) + (z << shift) + x);
+	}
+
+	/**
+	 * Marks a block as dirty
+	 * 
+	 * @param index the block index
+	 * @return true if the block was not already dirty
+	 */
+	public boolean mark(int index) {
+		int section = index >> 6;
+		long bit = 1L << (index & 63);
+		boolean success = false;
+		while (!success) {
+			long current = bits.get(section);
+			if ((current & bit) != 0) {
+				break;
+			}
+			success = bits.compareAndSet(section, current, current | bit);
+		}
+		// The summary bit is set after the block bit, so that a concurrent drain either sees both or leaves the summary bit set
+		setBit(summary, section);
+		return success;
+	}
+
+	/**
+	 * Gets if a block is dirty
+	 * 
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return true if the block is dirty
+	 */
+	public boolean isDirty(int x, int y, int z) {
+		int index = (y << doubleShift) + (z << shift) + x;
+		return (bits.get(index >> 6) & (1L << (index & 63))) != 0;
+	}
+
+	/**
+	 * Gets if any block is dirty
+	 * 
+	 * @return true if any block is dirty
+	 */
+	public boolean isDirty() {
+		for (int i = 0; i < summary.length(); i++) {
+			if (summary.get(i) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the number of sections of 64 blocks
+	 * 
+	 * @return the number of sections
+	 */
+	public int getSections() {
+		return sections;
+	}
+
+	/**
+	 * Gets if a section of 64 blocks may contain dirty blocks.  This only reads the summary bits.
+	 * 
+	 * @param section the section index, which is the block index divided by 64
+	 * @return true if the section may contain dirty blocks
+	 */
+	public boolean isSectionDirty(int section) {
+		return (summary.get(section >> 6) & (1L << (section & 63))) != 0;
+	}
+
+	/**
+	 * Gets the number of dirty blocks
+	 * 
+	 * @return the number of dirty blocks
+	 */
+	public int getDirtyCount() {
+		int count = 0;
+		for (int i = 0; i < summary.length(); i++) {
+			long s = summary.get(i);
+			while (s != 0) {
+				int section = (i << 6) + Long.numberOfTrailingZeros(s);
+				s &= s - 1;
+				count += Long.bitCount(bits.get(section));
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Calls the consumer for each dirty block, without clearing the set
+	 * 
+	 * @param consumer the consumer
+	 */
+	public void forEachDirty(IntTripleConsumer consumer) {
+		for (int i = 0; i < summary.length(); i++) {
+			long s = summary.get(i);
+			while (s != 0) {
+				int section = (i << 6) + Long.numberOfTrailingZeros(s);
+				s &= s - 1;
+				visit(section, bits.get(section), consumer);
+			}
+		}
+	}
+
+	/**
+	 * Clears the set and calls the consumer for each block which was dirty.<br>
+	 * <br>
+	 * Blocks which are marked while the set is drained are either passed to the consumer or remain in the set.
+	 * 
+	 * @param consumer the consumer, or null to only clear the set
+	 * @return true if any blocks were dirty
+	 */
+	public boolean drain(IntTripleConsumer consumer) {
+		boolean dirty = false;
+		for (int i = 0; i < summary.length(); i++) {
+			long s = summary.getAndSet(i, 0);
+			while (s != 0) {
+				int section = (i << 6) + Long.numberOfTrailingZeros(s);
+				s &= s - 1;
+				long b = bits.getAndSet(section, 0);
+				if (b != 0) {
+					dirty = true;
+					if (consumer != null) {
+						visit(section, b, consumer);
+					}
+				}
+			}
+		}
+		return dirty;
+	}
+
+	private void visit(int section, long b, IntTripleConsumer consumer) {
+		int base = section << 6;
+		while (b != 0) {
+			int index = base + Long.numberOfTrailingZeros(b);
+			b &= b - 1;
+			consumer.accept(index & mask, index >> doubleShift, (index >> shift) & mask);
+		}
+	}
+
+	private static void setBit(AtomicLongArray array, int bitIndex) {
+		int i = bitIndex >> 6;
+		long bit = 1L << (bitIndex & 63);
+		while (true) {
+			long current = array.get(i);
+			if ((current & bit) != 0 || array.compareAndSet(i, current, current | bit)) {
+				return;
+			}
+		}
+	}
+}
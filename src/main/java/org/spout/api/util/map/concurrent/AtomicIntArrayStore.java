@@ -32,6 +32,7 @@ import java.util.concurrent.atomic.AtomicReference;
 
 import org.spout.api.math.MathHelper;
 import org.spout.api.util.concurrent.AtomicSequenceNumber;
+import org.spout.api.util.concurrent.OptimisticReadWriteLock;
 
 /**
  * Implements a store that stores {int, &lt;T&gt;} elementa.<br>
@@ -49,15 +50,15 @@ import org.spout.api.util.concurrent.AtomicSequenceNumber;
  * A method is provided to test if an index is a reserved index, based on the
  * maximum lengths of the arrays. Only reserved indexes are used as element
  * indexes.<br>
+ * <br>
+ * Reads are optimistic and never lock.  Adds and removes take a shared hold on
+ * the store lock, so that they only exclude resizes and not each other.<br>
  *
  * @param <T> the type of the Object in the {int, &lt;T&gt;} pair
  */
 public final class AtomicIntArrayStore {
 
 	private final int SPINS = 10;
-	private final int MAX_FAIL_THRESHOLD = 256;
-	private final int WAIT_COUNT = 32;
-	private final int WAIT_MASK = WAIT_COUNT - 1;
 	private final int INITIAL_MIN_SIZE = 16; // the initial size to resize to
 
 	private final int maxLength;
@@ -69,8 +70,8 @@ public final class AtomicIntArrayStore {
 	private final AtomicReference<boolean[]> emptyArray;
 	private final AtomicReference<AtomicIntegerArray> seqArray;
 	private final AtomicReference<int[]> intArray;
-	
-	private AtomicInteger[] waiting;
+
+	private final OptimisticReadWriteLock lock = new OptimisticReadWriteLock();
 
 	public AtomicIntArrayStore(int maxEntries) {
 		this(maxEntries, 0.49);
@@ -91,10 +92,6 @@ public final class AtomicIntArrayStore {
 		seqArray = new AtomicReference<AtomicIntegerArray>(new AtomicIntegerArray(this.length.get()));
 		emptyArray = new AtomicReference<boolean[]>(new boolean[this.length.get()]);
 		emptyFill(emptyArray.get(), seqArray.get());
-		waiting = new AtomicInteger[WAIT_COUNT];
-		for (int i = 0; i < WAIT_COUNT; i++) {
-			waiting[i] = new AtomicInteger(0);
-		}
 	}
 
 	/**
@@ -126,24 +123,27 @@ public final class AtomicIntArrayStore {
 	 */
 	public final int getInt(int index) {
 		index = toInternal(index);
+		if (lock.isHeldByCurrentThread()) {
+			return intArray.get()[index];
+		}
 		int spins = 0;
-		boolean interrupted = false;
 		while (true) {
 			if (spins++ > SPINS) {
-				interrupted |= atomicWait(index);
+				Thread.yield();
 			}
-			int initialSequence = seqArray.get().get(index);
+			int storeSequence = lock.readLock();
+			AtomicIntegerArray seqs = seqArray.get();
+			int initialSequence = seqs.get(index);
 			if (initialSequence == AtomicSequenceNumber.UNSTABLE) {
 				continue;
 			}
 			int value = intArray.get()[index];
-			if (!seqArray.get().compareAndSet(index, initialSequence, initialSequence)) {
+			if (!seqs.compareAndSet(index, initialSequence, initialSequence)) {
 				continue;
 			}
-			if (interrupted) {
-				Thread.currentThread().interrupt();
+			if (lock.readUnlock(storeSequence)) {
+				return value;
 			}
-			return value;
 		}
 	}
 
@@ -151,7 +151,8 @@ public final class AtomicIntArrayStore {
 	 * Gets the sequence number associated with the element at a given index.<br>
 	 * <br>
 	 * A sequence number of DatatableSequenceNumber.UNSTABLE indicates that the
-	 * record is unstable.<br>
+	 * record is unstable.  All records are unstable while the store is
+	 * locked.<br>
 	 * <br>
 	 * This method should NOT be used to test if a sequence number has changed.
 	 * Use testSequence(int index, int sequence) instead.
@@ -160,6 +161,9 @@ public final class AtomicIntArrayStore {
 	 * @return the sequence number
 	 */
 	public int getSequence(int index) {
+		if (lock.isWriteLocked()) {
+			return AtomicSequenceNumber.UNSTABLE;
+		}
 		return this.seqArray.get().get(toInternal(index));
 	}
 
@@ -188,6 +192,9 @@ public final class AtomicIntArrayStore {
 	}
 	
 	private boolean testUnstableInternal(int index) {
+		if (lock.isWriteLocked()) {
+			return true;
+		}
 		int expected = AtomicSequenceNumber.UNSTABLE;
 		return seqArray.get().compareAndSet(index, expected, expected);
 	}
@@ -240,22 +247,26 @@ public final class AtomicIntArrayStore {
 			if (needsResize()) {
 				resizeArrays();
 			}
-			int testIndex = scan.getAndIncrement() & length.get() - 1;
-			int prevSeq = seqArray.get().getAndSet(testIndex, AtomicSequenceNumber.UNSTABLE);
-			if (prevSeq == AtomicSequenceNumber.UNSTABLE) {
-				continue;
-			}
+			lock.sharedLock();
 			try {
-				if (!emptyArray.get()[testIndex]) {
+				int testIndex = scan.getAndIncrement() & length.get() - 1;
+				int prevSeq = seqArray.get().getAndSet(testIndex, AtomicSequenceNumber.UNSTABLE);
+				if (prevSeq == AtomicSequenceNumber.UNSTABLE) {
 					continue;
 				}
-				int idAndData = id << 16 | data & 0xFFFF;
-				intArray.get()[testIndex] = idAndData;
-				emptyArray.get()[testIndex] = false;
-				return toExternal(testIndex);
+				try {
+					if (!emptyArray.get()[testIndex]) {
+						continue;
+					}
+					int idAndData = id << 16 | data & 0xFFFF;
+					intArray.get()[testIndex] = idAndData;
+					emptyArray.get()[testIndex] = false;
+					return toExternal(testIndex);
+				} finally {
+					seqArray.get().set(testIndex, AtomicSequenceNumber.get());
+				}
 			} finally {
-				seqArray.get().set(testIndex, AtomicSequenceNumber.get());
-				atomicNotify(testIndex);
+				lock.sharedUnlock();
 			}
 		}
 	}
@@ -271,33 +282,37 @@ public final class AtomicIntArrayStore {
 	public int remove(int index) {
 		index = toInternal(index);
 
-		while (true) {
-			int prevSeq = seqArray.get().getAndSet(index, AtomicSequenceNumber.UNSTABLE);
-			if (prevSeq == AtomicSequenceNumber.UNSTABLE) {
-				continue;
-			}
-			try {
-				int oldInt = intArray.get()[index];
-				boolean current = emptyArray.get()[index];
-				if (current) {
-					throw new IllegalStateException("Expected to remove a record but no record was found");
+		lock.sharedLock();
+		try {
+			while (true) {
+				int prevSeq = seqArray.get().getAndSet(index, AtomicSequenceNumber.UNSTABLE);
+				if (prevSeq == AtomicSequenceNumber.UNSTABLE) {
+					continue;
+				}
+				try {
+					int oldInt = intArray.get()[index];
+					boolean current = emptyArray.get()[index];
+					if (current) {
+						throw new IllegalStateException("Expected to remove a record but no record was found");
+					}
+					emptyArray.get()[index] = true;
+					entries.decrementAndGet();
+					return oldInt;
+				} finally {
+					seqArray.get().set(index, AtomicSequenceNumber.get());
 				}
-				emptyArray.get()[index] = true;
-				entries.decrementAndGet();
-				return oldInt;
-			} finally {
-				seqArray.get().set(index, AtomicSequenceNumber.get());
-				atomicNotify(index);
 			}
+		} finally {
+			lock.sharedUnlock();
 		}
 	}
 	
 	/**
 	 * Attempts to lock the store.<br>
 	 * <br>
-	 * The lock will fail if the first element is already locked.  Once the first element is locked, it will keep attempting to lock the rest of the store until all elements are locked.
+	 * The lock will fail if the store is already locked by another thread.  Otherwise, it waits for any adds or removes in progress to complete.
 	 * <br>
-	 * NOTE:  The store using spinning locks, so it must only be locked for a very short period of time
+	 * The lock is reentrant.
 	 * 
 	 * @return true if the store is locked
 	 */
@@ -308,42 +323,29 @@ public final class AtomicIntArrayStore {
 	/**
 	 * Attempts to lock the store.<br>
 	 * <br>
-	 * The lock will fail if the first element is already locked.  <br>
+	 * The lock will fail if the store is already locked by another thread.  <br>
 	 * <br>
-	 * Once the first element is successfully locked, it will keep attempting to lock the rest of the store until all elements are locked, or the number of times it fails to lock exceeds maxFails.
+	 * Otherwise, it will keep attempting to lock the store until the adds and removes in progress have completed, or the number of times it fails to lock exceeds maxFails.
 	 * <br>
-	 * NOTE:  The store using spinning locks, so it must only be locked for a very short period of time
+	 * The lock is reentrant.
 	 * 
-	 * @param maxFails the maximum number of lock failures before the method returns false
+	 * @param maxFails the maximum number of lock failures before the method returns false, or zero or less to wait
 	 * @return true if the store is locked
 	 */
 	public boolean tryLock(int maxFails) {
-		int lockedIndexes = 0;
-		// Lock the first element
-		int firstSeq;
-		firstSeq = seqArray.get().getAndSet(0, AtomicSequenceNumber.UNSTABLE);
-		if (firstSeq == AtomicSequenceNumber.UNSTABLE) {
-			return false;
-		}
-		lockedIndexes++;
-
 		int fails = 0;
-		
-		// Lock the remaining elements
-		for (int i = 1; i < length.get(); i++) {
-			int seq;
-			do {
-				if (fails > maxFails && maxFails > 0) {
-					unlock(lockedIndexes);
-					return false;
-				}
-
-				seq = seqArray.get().getAndSet(i, AtomicSequenceNumber.UNSTABLE);
-				if (seq == AtomicSequenceNumber.UNSTABLE) {
-					fails++;
-				}
-			} while (seq == AtomicSequenceNumber.UNSTABLE);
-			lockedIndexes++;
+		while (!lock.tryLock()) {
+			if (lock.isWriteLocked()) {
+				return false;
+			}
+			if (maxFails <= 0) {
+				lock.lock();
+				return true;
+			}
+			if (++fails > maxFails) {
+				return false;
+			}
+			Thread.yield();
 		}
 		return true;
 	}
@@ -352,16 +354,14 @@ public final class AtomicIntArrayStore {
 	 * Unlocks the store.
 	 */
 	public void unlock() {
-		unlock(length.get());
-	}
-	
-	private void unlock(int lockedIndexes) {
-		for (int i = 0; i < lockedIndexes; i++) {
-			if (!seqArray.get().compareAndSet(i, AtomicSequenceNumber.UNSTABLE, AtomicSequenceNumber.get())) {
-				throw new IllegalStateException("Element " + i + " + was not locked when released by unlock");
+		if (lock.getHoldCount() == 1) {
+			// Elements may have been changed while the store was locked
+			AtomicIntegerArray seqs = seqArray.get();
+			for (int i = 0; i < seqs.length(); i++) {
+				seqs.set(i, AtomicSequenceNumber.get());
 			}
-			atomicNotify(i);
 		}
+		lock.unlock();
 	}
 
 	/**
@@ -370,14 +370,7 @@ public final class AtomicIntArrayStore {
 	 * The array length is doubled if needsResize returns true.
 	 */
 	private void resizeArrays() {
-		boolean locked = false;
-		while (needsResize() && !(locked = tryLock(MAX_FAIL_THRESHOLD)))
-			;
-		
-		if (!locked) {
-			return;
-		}
-		int lockedIndexes = length.get();
+		lock.lock();
 		try {
 			// Calculate new length
 			final int oldLength = length.get();
@@ -398,15 +391,15 @@ public final class AtomicIntArrayStore {
 			emptyFill(newEmptyArray, null);
 
 			// Copy the state of the current array to the new array
-			for (int i = 0; i < length.get(); i++) {
+			for (int i = 0; i < oldLength; i++) {
 				newIntArray[i] = intArray.get()[i];
 				newEmptyArray[i] = emptyArray.get()[i];
-				newSeqArray.set(i, AtomicSequenceNumber.UNSTABLE);
+				newSeqArray.set(i, AtomicSequenceNumber.get());
 			}
 
-			// Set the top half of the new array to unstable and EMPTY
-			for (int i = length.get(); i < newLength; i++) {
-				newSeqArray.set(i, AtomicSequenceNumber.UNSTABLE);
+			// Set the top half of the new array to EMPTY
+			for (int i = oldLength; i < newLength; i++) {
+				newSeqArray.set(i, AtomicSequenceNumber.get());
 				newEmptyArray[i] = true;
 			}
 			intArray.set(newIntArray);
@@ -415,15 +408,8 @@ public final class AtomicIntArrayStore {
 
 			// Update the length, the array already has been lengthened, so this is safe
 			length.set(newLength);
-
-			// Set the top half of the array's sequence number to 0 (from UNSTABLE)
-			for (int i = oldLength; i < newLength; i++) {
-				if (!seqArray.get().compareAndSet(i, AtomicSequenceNumber.UNSTABLE, AtomicSequenceNumber.get())) {
-					throw new IllegalStateException("Element " + i + " + was not locked when released during resizing");
-				}
-			}
 		} finally {
-			unlock(lockedIndexes);
+			lock.unlock();
 		}
 
 	}
@@ -503,55 +489,4 @@ public final class AtomicIntArrayStore {
 	public final boolean isAboveMinimumSize() {
 		return length.get() > this.INITIAL_MIN_SIZE;
 	}
-
-	/**
-	 * Waits until a notify
-	 *
-	 * @return true if interrupted during the wait
-	 */
-	private final boolean atomicWait(int index) {
-		AtomicInteger i = getWaitingInternal(index);
-		i.incrementAndGet();
-		try {
-			synchronized (i) {
-				if (!testUnstableInternal(index)) {
-					return false;
-				}
-				try {
-					i.wait();
-				} catch (InterruptedException e) {
-					return true;
-				}
-			}
-		} finally {
-			i.decrementAndGet();
-		}
-		return false;
-	}
-
-	/**
-	 * Notifies all waiting threads
-	 */
-	private final void atomicNotify(int index) {
-		AtomicInteger i = getWaitingInternal(index);
-		if (!i.compareAndSet(0, 0)) {
-			synchronized (i) {
-				i.notifyAll();
-			}
-		}
-	}
-	
-	/**
-	 * Gets the waiting counter for the given index
-	 * 
-	 * @param index
-	 * @return
-	 */
-	public final AtomicInteger getWaiting(int index) {
-		return getWaitingInternal(toInternal(index));
-	}
-	
-	private final AtomicInteger getWaitingInternal(int index) {
-		return waiting[index & WAIT_MASK];
-	}
 }
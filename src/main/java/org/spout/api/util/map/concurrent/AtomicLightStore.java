@@ -0,0 +1,379 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.spout.api.geo.cuboid.ContainerFillOrder;
+import org.spout.api.geo.cuboid.LightContainer;
+
+/**
+ * This store stores a light level between 0 and 15 for each block in a cube.<br>
+ * <br>
+ * The light levels are stored as nibbles, packed 8 to an int, so the store uses half the memory of one byte per block.  
+ * Each nibble can be updated atomically.  Bulk reads do not lock the store, so tearing may occur if the store is updated during the read.<br>
+ * <br>
+ * The blocks are stored in (y, z, x) order, with x changing fastest, as for {@link AtomicBlockStore}.
+ */
+public class AtomicLightStore {
+	private static final int NIBBLES_PER_INT = 8;
+	private static final int INDEX_SHIFT = 3;
+	private static final int SUB_INDEX_MASK = NIBBLES_PER_INT - 1;
+	
+	private final int side;
+	private final int shift;
+	private final int doubleShift;
+	private final int length;
+	private final AtomicIntegerArray array;
+	
+	/**
+	 * Creates a store where every block has a light level of zero
+	 * 
+	 * @param shift log2(the side length of the store)
+	 */
+	public AtomicLightStore(int shift) {
+		this.side = 1 << shift;
+		this.shift = shift;
+		this.doubleShift = shift << 1;
+		this.length = side * side * side;
+		if (length < NIBBLES_PER_INT) {
+			throw new IllegalArgumentException("The store must hold at least " + NIBBLES_PER_INT + " blocks");
+		}
+		this.array = new AtomicIntegerArray(length >> INDEX_SHIFT);
+	}
+	
+	/**
+	 * Creates a store from a nibble array, in the format returned by {@link #getNibbleArray()}
+	 * 
+	 * @param shift log2(the side length of the store)
+	 * @param nibbles the nibble array
+	 */
+	public AtomicLightStore(int shift, byte[] nibbles) {
+		this(shift);
+		setNibbleArray(nibbles);
+	}
+	
+	/**
+	 * Gets the number of blocks in the store
+	 * 
+	 * @return the length
+	 */
+	public int length() {
+		return length;
+	}
+	
+	/**
+	 * Gets the light level for a block
+	 * 
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the light level
+	 */
+	public byte get(int x, int y, int z) {
+		return get(getIndex(x, y, z));
+	}
+	
+	/**
+	 * Gets the light level for the block at a given index
+	 * 
+	 * @param index the index
+	 * @return the light level
+	 */
+	public byte get(int index) {
+		return unpack(array.get(index >> INDEX_SHIFT), index);
+	}
+	
+	/**
+	 * Sets the light level for a block
+	 * 
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param light the new light level
+	 * @return the old light level
+	 */
+	public byte set(int x, int y, int z, byte light) {
+		return set(getIndex(x, y, z), light);
+	}
+	
+	/**
+	 * Sets the light level for the block at a given index
+	 * 
+	 * @param index the index
+	 * @param light the new light level
+	 * @return the old light level
+	 */
+	public byte set(int index, byte light) {
+		int i = index >> INDEX_SHIFT;
+		int bitShift = getShift(index);
+		int mask = 0xF << bitShift;
+		int value = (light & 0xF) << bitShift;
+		while (true) {
+			int old = array.get(i);
+			if ((old & mask) == value || array.compareAndSet(i, old, (old & ~mask) | value)) {
+				return (byte) ((old & mask) >>> bitShift);
+			}
+		}
+	}
+	
+	/**
+	 * Sets the light level for a block, if the light level matches the expected value
+	 * 
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @param expect the expected light level
+	 * @param update the new light level
+	 * @return true on success
+	 */
+	public boolean compareAndSet(int x, int y, int z, byte expect, byte update) {
+		return compareAndSet(getIndex(x, y, z), expect, update);
+	}
+	
+	/**
+	 * Sets the light level for the block at a given index, if the light level matches the expected value.<br>
+	 * <br>
+	 * Changes to the other nibbles in the same int do not cause this method to fail.
+	 * 
+	 * @param index the index
+	 * @param expect the expected light level
+	 * @param update the new light level
+	 * @return true on success
+	 */
+	public boolean compareAndSet(int index, byte expect, byte update) {
+		int i = index >> INDEX_SHIFT;
+		int bitShift = getShift(index);
+		int mask = 0xF << bitShift;
+		int expected = (expect & 0xF) << bitShift;
+		int value = (update & 0xF) << bitShift;
+		while (true) {
+			int old = array.get(i);
+			if ((old & mask) != expected) {
+				return false;
+			}
+			if (expected == value || array.compareAndSet(i, old, (old & ~mask) | value)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Sets the light level for every block in the store
+	 * 
+	 * @param light the light level
+	 */
+	public void fill(byte light) {
+		fill(0, length, light);
+	}
+	
+	/**
+	 * Sets the light level for the blocks with y coordinates from startY (inclusive) to endY (exclusive).
+	 * 
+	 * @param startY the first layer
+	 * @param endY the layer after the last layer
+	 * @param light the light level
+	 */
+	public void fillLayers(int startY, int endY, byte light) {
+		fill(startY << doubleShift, endY << doubleShift, light);
+	}
+	
+	/**
+	 * Sets the light level for the blocks with indexes from start (inclusive) to end (exclusive).  Whole ints are written directly, and the nibbles at either end are written by compare and set.
+	 * 
+	 * @param start the first index
+	 * @param end the index after the last index
+	 * @param light the light level
+	 */
+	public void fill(int start, int end, byte light) {
+		if (start < 0 || end > length || start > end) {
+			throw new IndexOutOfBoundsException("Fill range " + start + " to " + end + " is outside the store, length " + length);
+		}
+		while (start < end && (start & SUB_INDEX_MASK) != 0) {
+			set(start++, light);
+		}
+		while (end > start && (end & SUB_INDEX_MASK) != 0) {
+			set(--end, light);
+		}
+		int pattern = (light & 0xF) * 0x11111111;
+		for (int i = start >> INDEX_SHIFT; i < end >> INDEX_SHIFT; i++) {
+			array.set(i, pattern);
+		}
+	}
+	
+	/**
+	 * Gets the light levels as a nibble array, with two blocks per byte.  The block with the even index is stored in the low nibble of each byte.
+	 * 
+	 * @return the nibble array
+	 */
+	public byte[] getNibbleArray() {
+		byte[] nibbles = new byte[length >> 1];
+		for (int i = 0, j = 0; i < array.length(); i++) {
+			int word = array.get(i);
+			nibbles[j++] = (byte) word;
+			nibbles[j++] = (byte) (word >> 8);
+			nibbles[j++] = (byte) (word >> 16);
+			nibbles[j++] = (byte) (word >> 24);
+		}
+		return nibbles;
+	}
+	
+	/**
+	 * Sets the light levels from a nibble array, in the format returned by {@link #getNibbleArray()}
+	 * 
+	 * @param nibbles the nibble array
+	 */
+	public void setNibbleArray(byte[] nibbles) {
+		if (nibbles.length != length >> 1) {
+			throw new IllegalArgumentException("Nibble array length mismatch, expected " + (length >> 1) + ", got " + nibbles.length);
+		}
+		for (int i = 0, j = 0; i < array.length(); i++) {
+			int word = nibbles[j++] & 0xFF;
+			word |= (nibbles[j++] & 0xFF) << 8;
+			word |= (nibbles[j++] & 0xFF) << 16;
+			word |= (nibbles[j++] & 0xFF) << 24;
+			array.set(i, word);
+		}
+	}
+	
+	/**
+	 * Gets the light levels as a run-length encoded array.  Each entry is a run of blocks with the same light level, stored as (run length << 4) | light level.
+	 * 
+	 * @return the runs
+	 */
+	public int[] getRuns() {
+		int[] runs = new int[16];
+		int count = 0;
+		int current = -1;
+		int run = 0;
+		for (int i = 0; i < array.length(); i++) {
+			int word = array.get(i);
+			if (current >= 0 && word == current * 0x11111111) {
+				run += NIBBLES_PER_INT;
+				continue;
+			}
+			for (int j = 0; j < NIBBLES_PER_INT; j++) {
+				int light = word & 0xF;
+				word >>>= 4;
+				if (light == current) {
+					run++;
+				} else {
+					if (run > 0) {
+						if (count == runs.length) {
+							runs = grow(runs);
+						}
+						runs[count++] = (run << 4) | current;
+					}
+					current = light;
+					run = 1;
+				}
+			}
+		}
+		if (count == runs.length) {
+			runs = grow(runs);
+		}
+		runs[count++] = (run << 4) | current;
+		int[] trimmed = new int[count];
+		System.arraycopy(runs, 0, trimmed, 0, count);
+		return trimmed;
+	}
+	
+	/**
+	 * Sets the light levels from a run-length encoded array, in the format returned by {@link #getRuns()}
+	 * 
+	 * @param runs the runs
+	 */
+	public void setRuns(int[] runs) {
+		int total = 0;
+		for (int i = 0; i < runs.length; i++) {
+			total += runs[i] >>> 4;
+		}
+		if (total != length) {
+			throw new IllegalArgumentException("Runs cover " + total + " blocks, expected " + length);
+		}
+		int index = 0;
+		for (int i = 0; i < runs.length; i++) {
+			int run = runs[i] >>> 4;
+			fill(index, index + run, (byte) (runs[i] & 0xF));
+			index += run;
+		}
+	}
+	
+	/**
+	 * Copies the light levels into a light container, in the container's fill order
+	 * 
+	 * @param container the container
+	 */
+	public void copyTo(LightContainer container) {
+		ContainerFillOrder order = container.getOrder();
+		if (order == ContainerFillOrder.XZY) {
+			for (int i = 0; i < array.length(); i++) {
+				int word = array.get(i);
+				for (int j = 0; j < NIBBLES_PER_INT; j++) {
+					container.setLightLevel((byte) (word & 0xF));
+					word >>>= 4;
+				}
+			}
+			return;
+		}
+		ContainerFillOrder source = ContainerFillOrder.XZY;
+		int thirdStep = order.thirdStep(source, side, side, side);
+		int secondStep = order.secondStep(source, side, side, side);
+		int firstStep = order.firstStep(source, side, side, side);
+		int index = 0;
+		for (int third = 0; third < side; third++) {
+			int secondStart = index;
+			for (int second = 0; second < side; second++) {
+				int firstStart = index;
+				for (int first = 0; first < side; first++) {
+					container.setLightLevel(get(index));
+					index += firstStep;
+				}
+				index = firstStart + secondStep;
+			}
+			index = secondStart + thirdStep;
+		}
+	}
+	
+	private static int[] grow(int[] runs) {
+		int[] newRuns = new int[runs.length << 1];
+		System.arraycopy(runs, 0, newRuns, 0, runs.length);
+		return newRuns;
+	}
+	
+	private static int getShift(int index) {
+		return (index & SUB_INDEX_MASK) << 2;
+	}
+	
+	private static byte unpack(int word, int index) {
+		return (byte) ((word >>> getShift(index)) & 0xF);
+	}
+	
+	private final int getIndex(int x, int y, int z) {
+		return (y << doubleShift) + (z << shift) + x;
+	}
+}
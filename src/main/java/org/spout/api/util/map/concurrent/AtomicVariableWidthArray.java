@@ -221,6 +221,78 @@ public class AtomicVariableWidthArray implements Serializable {
 		return unPack(prev, subIndex);
 	}
 	
+	/**
+	 * Sets a number of elements and stores their old values.<br>
+	 * <br>
+	 * Elements which are packed into the same int are updated with a single compare and set, so the indexes should be sorted, or at least grouped into runs.
+	 * 
+	 * @param indexes the indexes of the elements
+	 * @param values the new values
+	 * @param oldValues the array to store the old values in, or null
+	 * @param count the number of elements to set
+	 */
+	public final void getAndSet(int[] indexes, int[] values, int[] oldValues, int count) {
+		if (fullWidth) {
+			for (int j = 0; j < count; j++) {
+				int old = array.getAndSet(indexes[j], values[j]);
+				if (oldValues != null) {
+					oldValues[j] = old;
+				}
+			}
+			return;
+		}
+		int j = 0;
+		while (j < count) {
+			int index = getIndex(indexes[j]);
+			int end = j + 1;
+			while (end < count && getIndex(indexes[end]) == index) {
+				end++;
+			}
+			boolean success = false;
+			int prev = 0;
+			while (!success) {
+				prev = array.get(index);
+				int next = prev;
+				for (int k = j; k < end; k++) {
+					next = pack(next, values[k], getSubIndex(indexes[k]));
+				}
+				success = array.compareAndSet(index, prev, next);
+			}
+			if (oldValues != null) {
+				for (int k = j; k < end; k++) {
+					oldValues[k] = unPack(prev, getSubIndex(indexes[k]));
+				}
+			}
+			j = end;
+		}
+	}
+	
+	/**
+	 * Gets a number of elements.  Elements which are packed into the same int are read together.
+	 * 
+	 * @param indexes the indexes of the elements
+	 * @param values the array to store the values in
+	 * @param count the number of elements to get
+	 */
+	public final void get(int[] indexes, int[] values, int count) {
+		if (fullWidth) {
+			for (int j = 0; j < count; j++) {
+				values[j] = array.get(indexes[j]);
+			}
+			return;
+		}
+		int lastIndex = -1;
+		int packed = 0;
+		for (int j = 0; j < count; j++) {
+			int index = getIndex(indexes[j]);
+			if (index != lastIndex) {
+				packed = array.get(index);
+				lastIndex = index;
+			}
+			values[j] = unPack(packed, getSubIndex(indexes[j]));
+		}
+	}
+	
 	private final int addAndGet(int i, int delta, boolean old) {
 		if (fullWidth) {
 			if (old) {
@@ -286,6 +358,150 @@ public class AtomicVariableWidthArray implements Serializable {
 		return array;
 	}
 	
+	/**
+	 * Copies all the elements into an array.  Each packed int is read once and the elements are unpacked by a loop specialised for the width.<br>
+	 * <br>
+	 * The inner loops have a fixed trip count and independent iterations, so HotSpot can unroll and vectorise them.  Tearing may occur if the array is updated during this method call.
+	 * 
+	 * @param dest the destination array, which must be at least as long as this array
+	 */
+	public final void unpackTo(int[] dest) {
+		if (dest.length < length) {
+			throw new IllegalArgumentException("Destination array is too short, expected at least " + length + ", got " + dest.length);
+		}
+		switch (width) {
+			case 1: unpack1(dest); break;
+			case 2: unpack2(dest); break;
+			case 4: unpack4(dest); break;
+			case 8: unpack8(dest); break;
+			case 16: unpack16(dest); break;
+			default:
+				for (int i = 0; i < length; i++) {
+					dest[i] = array.get(i);
+				}
+		}
+	}
+	
+	/**
+	 * Copies all the elements into a short array.  Each packed int is read once and the elements are unpacked by a loop specialised for the width.<br>
+	 * <br>
+	 * Elements are unsigned, so values above 32767 are stored as negative shorts.  Tearing may occur if the array is updated during this method call.
+	 * 
+	 * @param dest the destination array, which must be at least as long as this array
+	 * @throws IllegalStateException if the width of the array is more than 16 bits
+	 */
+	public final void unpackTo(short[] dest) {
+		if (dest.length < length) {
+			throw new IllegalArgumentException("Destination array is too short, expected at least " + length + ", got " + dest.length);
+		}
+		switch (width) {
+			case 1: unpack1(dest); break;
+			case 2: unpack2(dest); break;
+			case 4: unpack4(dest); break;
+			case 8: unpack8(dest); break;
+			case 16: unpack16(dest); break;
+			default: throw new IllegalStateException("Elements of width " + width + " do not fit in a short");
+		}
+	}
+	
+	private void unpack1(int[] dest) {
+		int words = array.length();
+		for (int k = 0, i = 0; k < words; k++, i += 32) {
+			int packed = array.get(k);
+			for (int s = 0; s < 32; s++) {
+				dest[i + s] = (packed >>> s) & 0x1;
+			}
+		}
+	}
+	
+	private void unpack2(int[] dest) {
+		int words = array.length();
+		for (int k = 0, i = 0; k < words; k++, i += 16) {
+			int packed = array.get(k);
+			for (int s = 0; s < 16; s++) {
+				dest[i + s] = (packed >>> (s * 2)) & 0x3;
+			}
+		}
+	}
+	
+	private void unpack4(int[] dest) {
+		int words = array.length();
+		for (int k = 0, i = 0; k < words; k++, i += 8) {
+			int packed = array.get(k);
+			for (int s = 0; s < 8; s++) {
+				dest[i + s] = (packed >>> (s * 4)) & 0xf;
+			}
+		}
+	}
+	
+	private void unpack8(int[] dest) {
+		int words = array.length();
+		for (int k = 0, i = 0; k < words; k++, i += 4) {
+			int packed = array.get(k);
+			for (int s = 0; s < 4; s++) {
+				dest[i + s] = (packed >>> (s * 8)) & 0xff;
+			}
+		}
+	}
+	
+	private void unpack16(int[] dest) {
+		int words = array.length();
+		for (int k = 0, i = 0; k < words; k++, i += 2) {
+			int packed = array.get(k);
+			dest[i] = packed & 0xffff;
+			dest[i + 1] = packed >>> 16;
+		}
+	}
+	
+	private void unpack1(short[] dest) {
+		int words = array.length();
+		for (int k = 0, i = 0; k < words; k++, i += 32) {
+			int packed = array.get(k);
+			for (int s = 0; s < 32; s++) {
+				dest[i + s] = (short) ((packed >>> s) & 0x1);
+			}
+		}
+	}
+	
+	private void unpack2(short[] dest) {
+		int words = array.length();
+		for (int k = 0, i = 0; k < words; k++, i += 16) {
+			int packed = array.get(k);
+			for (int s = 0; s < 16; s++) {
+				dest[i + s] = (short) ((packed >>> (s * 2)) & 0x3);
+			}
+		}
+	}
+	
+	private void unpack4(short[] dest) {
+		int words = array.length();
+		for (int k = 0, i = 0; k < words; k++, i += 8) {
+			int packed = array.get(k);
+			for (int s = 0; s < 8; s++) {
+				dest[i + s] = (short) ((packed >>> (s * 4)) & 0xf);
+			}
+		}
+	}
+	
+	private void unpack8(short[] dest) {
+		int words = array.length();
+		for (int k = 0, i = 0; k < words; k++, i += 4) {
+			int packed = array.get(k);
+			for (int s = 0; s < 4; s++) {
+				dest[i + s] = (short) ((packed >>> (s * 8)) & 0xff);
+			}
+		}
+	}
+	
+	private void unpack16(short[] dest) {
+		int words = array.length();
+		for (int k = 0, i = 0; k < words; k++, i += 2) {
+			int packed = array.get(k);
+			dest[i] = (short) (packed & 0xffff);
+			dest[i + 1] = (short) (packed >>> 16);
+		}
+	}
+	
 	/**
 	 * Gets a packed version of this array.  Tearing may occur if the array is updated during this method call.
 	 * 
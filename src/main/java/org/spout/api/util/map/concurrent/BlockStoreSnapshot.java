@@ -0,0 +1,237 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.util.Arrays;
+
+import org.spout.api.material.block.BlockFullState;
+
+/**
+ * An immutable copy of the blocks in a block store, in the packed palette format.<br>
+ * <br>
+ * A store returns the same snapshot for each request until the store is next modified, so repeated snapshots of unchanged stores do not copy the blocks.  
+ * The block id and data arrays are only unpacked when first requested.
+ */
+public class BlockStoreSnapshot {
+	private final long version;
+	private final int shift;
+	private final int doubleShift;
+	private final int length;
+	private final int[] palette;
+	private final int width;
+	private final int[] packed;
+	private final int indexShift;
+	private final int subIndexMask;
+	private final int valueMask;
+	private volatile short[] blockIds;
+	private volatile short[] blockData;
+	
+	/**
+	 * Creates a snapshot from a packed array, in the format returned by {@link AtomicBlockStore#getPackedArray()}
+	 * 
+	 * @param shift log2(the side length of the store)
+	 * @param version the version of the store when the snapshot was taken
+	 * @param palette the palette, or an empty array if the packed array holds the block states directly
+	 * @param width the width of the packed array
+	 * @param packed the packed array, or an empty array if the store is uniform
+	 */
+	public BlockStoreSnapshot(int shift, long version, int[] palette, int width, int[] packed) {
+		this.shift = shift;
+		this.doubleShift = shift << 1;
+		this.length = 1 << (3 * shift);
+		this.version = version;
+		this.palette = palette;
+		this.width = width;
+		this.packed = packed;
+		if (palette.length == 0) {
+			if (packed.length != length) {
+				throw new IllegalArgumentException("Unpacked array length mismatch, expected " + length + ", got " + packed.length);
+			}
+		} else if (packed.length == 0) {
+			if (palette.length != 1) {
+				throw new IllegalArgumentException("Uniform snapshots must have a palette of length 1, got " + palette.length);
+			}
+		} else if (width < 1 || width > 16 || Integer.bitCount(width) != 1 || (packed.length << 5) != length * width) {
+			throw new IllegalArgumentException("Packed array length " + packed.length + " does not match width " + width);
+		}
+		int valuesPerInt = width == 0 ? 1 : 32 / width;
+		this.indexShift = Integer.numberOfTrailingZeros(valuesPerInt);
+		this.subIndexMask = valuesPerInt - 1;
+		this.valueMask = width == 0 ? 0 : (1 << width) - 1;
+	}
+	
+	/**
+	 * Gets the version of the store when the snapshot was taken.  Snapshots of the same store with the same version hold the same blocks.
+	 * 
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Gets the packed id and data for the block at a particular location
+	 * 
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the packed id and data
+	 */
+	public int getFullData(int x, int y, int z) {
+		return getFullData((y << doubleShift) + (z << shift) + x);
+	}
+	
+	/**
+	 * Gets the packed id and data for the block at a particular index
+	 * 
+	 * @param index the index
+	 * @return the packed id and data
+	 */
+	public int getFullData(int index) {
+		if (palette.length == 0) {
+			return packed[index];
+		} else if (packed.length == 0) {
+			return palette[0];
+		}
+		int word = packed[index >> indexShift];
+		return palette[(word >>> ((index & subIndexMask) * width)) & valueMask];
+	}
+	
+	/**
+	 * Gets the block id for the block at a particular location
+	 * 
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the block id
+	 */
+	public int getBlockId(int x, int y, int z) {
+		return BlockFullState.getId(getFullData(x, y, z));
+	}
+	
+	/**
+	 * Gets the block data for the block at a particular location
+	 * 
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the block data
+	 */
+	public int getData(int x, int y, int z) {
+		return BlockFullState.getData(getFullData(x, y, z));
+	}
+	
+	/**
+	 * Gets if all the blocks in the snapshot are the same
+	 * 
+	 * @return true if the snapshot is uniform
+	 */
+	public boolean isUniform() {
+		return packed.length == 0;
+	}
+	
+	/**
+	 * Gets the palette.  The array is shared and must not be modified.
+	 * 
+	 * @return the palette, or an empty array if the packed array holds the block states directly
+	 */
+	public int[] getPalette() {
+		return palette;
+	}
+	
+	/**
+	 * Gets the width of the packed array
+	 * 
+	 * @return the width
+	 */
+	public int getPackedWidth() {
+		return width;
+	}
+	
+	/**
+	 * Gets the packed array.  The array is shared and must not be modified.
+	 * 
+	 * @return the packed array
+	 */
+	public int[] getPackedArray() {
+		return packed;
+	}
+	
+	/**
+	 * Gets the block ids.  The array is unpacked on the first call and shared by later calls, so it must not be modified.
+	 * 
+	 * @return the block ids
+	 */
+	public short[] getBlockIdArray() {
+		short[] ids = blockIds;
+		if (ids == null) {
+			blockIds = ids = unpack(false);
+		}
+		return ids;
+	}
+	
+	/**
+	 * Gets the block data.  The array is unpacked on the first call and shared by later calls, so it must not be modified.
+	 * 
+	 * @return the block data
+	 */
+	public short[] getDataArray() {
+		short[] data = blockData;
+		if (data == null) {
+			blockData = data = unpack(true);
+		}
+		return data;
+	}
+	
+	private short[] unpack(boolean data) {
+		short[] array = new short[length];
+		if (palette.length == 0) {
+			for (int i = 0; i < length; i++) {
+				array[i] = data ? BlockFullState.getData(packed[i]) : BlockFullState.getId(packed[i]);
+			}
+			return array;
+		}
+		short[] lookup = new short[palette.length];
+		for (int i = 0; i < palette.length; i++) {
+			lookup[i] = data ? BlockFullState.getData(palette[i]) : BlockFullState.getId(palette[i]);
+		}
+		if (packed.length == 0) {
+			Arrays.fill(array, lookup[0]);
+			return array;
+		}
+		int valuesPerInt = subIndexMask + 1;
+		int i = 0;
+		for (int w = 0; w < packed.length; w++) {
+			int word = packed[w];
+			for (int j = 0; j < valuesPerInt; j++) {
+				array[i++] = lookup[word & valueMask];
+				word >>>= width;
+			}
+		}
+		return array;
+	}
+}
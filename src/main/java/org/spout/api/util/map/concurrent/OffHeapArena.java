@@ -0,0 +1,210 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An allocator for off-heap int arrays.<br>
+ * <br>
+ * Memory is reserved from the operating system in large direct buffers, called slabs, which are never released.  Blocks are allocated from the slabs in power of 2 size classes and freed blocks are reused for later allocations of the same size class.  
+ * Blocks which are larger than a slab are allocated in their own direct buffer, which is released by the garbage collector once the block is freed.<br>
+ * <br>
+ * Since the block memory is outside the heap, the garbage collector does not need to scan or copy it.
+ */
+public class OffHeapArena {
+	
+	private final static int MIN_SIZE_SHIFT = 6;
+	private final static OffHeapArena defaultArena = new OffHeapArena(1 << 20);
+	
+	private final int slabSize;
+	private final int slabShift;
+	private final ArrayList<ArrayList<OffHeapBlock>> freeBlocks;
+	private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	private ByteBuffer slab;
+	private int slabPosition;
+	
+	private final AtomicLong reservedBytes = new AtomicLong(0);
+	private final AtomicLong usedBytes = new AtomicLong(0);
+	private final AtomicLong liveBlocks = new AtomicLong(0);
+	private final AtomicLong allocations = new AtomicLong(0);
+	private final AtomicLong reuses = new AtomicLong(0);
+	
+	/**
+	 * Creates an arena
+	 * 
+	 * @param slabSize the size of each slab, in bytes, rounded up to a power of 2
+	 */
+	public OffHeapArena(int slabSize) {
+		int shift = MIN_SIZE_SHIFT;
+		while ((1 << shift) < slabSize) {
+			shift++;
+		}
+		this.slabShift = shift;
+		this.slabSize = 1 << shift;
+		this.freeBlocks = new ArrayList<ArrayList<OffHeapBlock>>();
+		for (int i = MIN_SIZE_SHIFT; i <= slabShift; i++) {
+			freeBlocks.add(new ArrayList<OffHeapBlock>());
+		}
+	}
+	
+	/**
+	 * Gets the arena shared by all off-heap stores which are not given their own arena
+	 * 
+	 * @return the default arena
+	 */
+	public static OffHeapArena getDefault() {
+		return defaultArena;
+	}
+	
+	/**
+	 * Allocates a block.  The block is zeroed.
+	 * 
+	 * @param length the length of the block, in ints
+	 * @return the block
+	 */
+	public OffHeapBlock allocate(int length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("Length must not be negative, got " + length);
+		}
+		int bytes = length << 2;
+		int shift = MIN_SIZE_SHIFT;
+		while ((1 << shift) < bytes) {
+			shift++;
+		}
+		int capacity = 1 << shift;
+		OffHeapBlock block;
+		if (shift > slabShift) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+			reservedBytes.addAndGet(capacity);
+			block = new OffHeapBlock(this, buffer, 0, capacity, length);
+		} else {
+			synchronized (slabs) {
+				ArrayList<OffHeapBlock> free = freeBlocks.get(shift - MIN_SIZE_SHIFT);
+				if (!free.isEmpty()) {
+					OffHeapBlock old = free.remove(free.size() - 1);
+					block = new OffHeapBlock(this, old.getBuffer(), old.getOffset(), capacity, length);
+					reuses.incrementAndGet();
+				} else {
+					if (slab == null || slabPosition + capacity > slabSize) {
+						slab = ByteBuffer.allocateDirect(slabSize).order(ByteOrder.nativeOrder());
+						slabs.add(slab);
+						slabPosition = 0;
+						reservedBytes.addAndGet(slabSize);
+					}
+					block = new OffHeapBlock(this, slab, slabPosition, capacity, length);
+					slabPosition += capacity;
+				}
+			}
+		}
+		allocations.incrementAndGet();
+		liveBlocks.incrementAndGet();
+		usedBytes.addAndGet(capacity);
+		return block;
+	}
+	
+	/**
+	 * Returns a block to the arena.  This is called by {@link OffHeapBlock#free()}.
+	 * 
+	 * @param block the block
+	 */
+	void free(OffHeapBlock block) {
+		int capacity = block.capacity();
+		int shift = Integer.numberOfTrailingZeros(capacity);
+		if (shift > slabShift) {
+			reservedBytes.addAndGet(-capacity);
+		} else {
+			synchronized (slabs) {
+				freeBlocks.get(shift - MIN_SIZE_SHIFT).add(block);
+			}
+		}
+		liveBlocks.decrementAndGet();
+		usedBytes.addAndGet(-capacity);
+	}
+	
+	/**
+	 * Gets the size of each slab
+	 * 
+	 * @return the slab size, in bytes
+	 */
+	public int getSlabSize() {
+		return slabSize;
+	}
+	
+	/**
+	 * Gets the off-heap memory reserved by the arena, including free blocks and unused space in slabs
+	 * 
+	 * @return the reserved memory, in bytes
+	 */
+	public long getReservedBytes() {
+		return reservedBytes.get();
+	}
+	
+	/**
+	 * Gets the off-heap memory used by live blocks, including the rounding up of each block to its size class
+	 * 
+	 * @return the used memory, in bytes
+	 */
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+	
+	/**
+	 * Gets the number of blocks which have been allocated and not freed
+	 * 
+	 * @return the number of live blocks
+	 */
+	public long getLiveBlocks() {
+		return liveBlocks.get();
+	}
+	
+	/**
+	 * Gets the total number of blocks allocated
+	 * 
+	 * @return the number of allocations
+	 */
+	public long getAllocations() {
+		return allocations.get();
+	}
+	
+	/**
+	 * Gets the number of allocations which reused a freed block
+	 * 
+	 * @return the number of reused blocks
+	 */
+	public long getReuses() {
+		return reuses.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "OffHeapArena{reserved=" + getReservedBytes() + ", used=" + getUsedBytes() + ", liveBlocks=" + getLiveBlocks() + ", allocations=" + getAllocations() + ", reuses=" + getReuses() + "}";
+	}
+}
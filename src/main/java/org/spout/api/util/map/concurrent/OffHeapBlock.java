@@ -0,0 +1,233 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An int array which is stored outside the heap, in a region of a direct ByteBuffer allocated by an {@link OffHeapArena}.<br>
+ * <br>
+ * Elements are accessed atomically through sun.misc.Unsafe, which is the Java 6 equivalent of VarHandles.  If Unsafe is not available, accesses synchronize on the block.<br>
+ * <br>
+ * Once the block is freed, its memory may be reused by another block, so it must not be accessed again.
+ */
+public class OffHeapBlock {
+	
+	private final static sun.misc.Unsafe unsafe;
+	private final static long addressOffset;
+	
+	static {
+		sun.misc.Unsafe u = null;
+		long offset = -1;
+		try {
+			Field field = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			u = (sun.misc.Unsafe) field.get(null);
+			offset = u.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+		} catch (Throwable t) {
+			u = null;
+		}
+		unsafe = u;
+		addressOffset = offset;
+	}
+	
+	private final OffHeapArena arena;
+	private final ByteBuffer buffer;
+	private final int offset;
+	private final int capacity;
+	private final int length;
+	private final long address;
+	private final AtomicBoolean freed = new AtomicBoolean(false);
+	
+	/**
+	 * Creates a block
+	 * 
+	 * @param arena the arena which allocated the block
+	 * @param buffer the direct buffer containing the block
+	 * @param offset the offset of the block in the buffer, in bytes
+	 * @param capacity the size of the region reserved for the block, in bytes
+	 * @param length the length of the block, in ints
+	 */
+	OffHeapBlock(OffHeapArena arena, ByteBuffer buffer, int offset, int capacity, int length) {
+		this.arena = arena;
+		this.buffer = buffer;
+		this.offset = offset;
+		this.capacity = capacity;
+		this.length = length;
+		if (unsafe != null) {
+			this.address = unsafe.getLong(buffer, addressOffset) + offset;
+		} else {
+			this.address = 0;
+		}
+		clear();
+	}
+	
+	/**
+	 * Gets if off-heap memory is accessed through sun.misc.Unsafe, rather than by synchronizing
+	 * 
+	 * @return true if Unsafe is available
+	 */
+	public static boolean isUnsafeAvailable() {
+		return unsafe != null;
+	}
+	
+	/**
+	 * Gets the length of the block
+	 * 
+	 * @return the length, in ints
+	 */
+	public int length() {
+		return length;
+	}
+	
+	/**
+	 * Gets the size of the region reserved for the block
+	 * 
+	 * @return the capacity, in bytes
+	 */
+	public int capacity() {
+		return capacity;
+	}
+	
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+	
+	int getOffset() {
+		return offset;
+	}
+	
+	/**
+	 * Gets an element
+	 * 
+	 * @param i the index
+	 * @return the element
+	 */
+	public int get(int i) {
+		checkIndex(i);
+		if (unsafe != null) {
+			return unsafe.getIntVolatile(null, address + (i << 2));
+		}
+		synchronized (this) {
+			return buffer.getInt(offset + (i << 2));
+		}
+	}
+	
+	/**
+	 * Sets an element
+	 * 
+	 * @param i the index
+	 * @param value the new value
+	 */
+	public void set(int i, int value) {
+		checkIndex(i);
+		if (unsafe != null) {
+			unsafe.putIntVolatile(null, address + (i << 2), value);
+			return;
+		}
+		synchronized (this) {
+			buffer.putInt(offset + (i << 2), value);
+		}
+	}
+	
+	/**
+	 * Sets an element, but only if the previous value was the expected value
+	 * 
+	 * @param i the index
+	 * @param expect the expected value
+	 * @param update the new value
+	 * @return true on success
+	 */
+	public boolean compareAndSet(int i, int expect, int update) {
+		checkIndex(i);
+		if (unsafe != null) {
+			return unsafe.compareAndSwapInt(null, address + (i << 2), expect, update);
+		}
+		synchronized (this) {
+			if (buffer.getInt(offset + (i << 2)) != expect) {
+				return false;
+			}
+			buffer.putInt(offset + (i << 2), update);
+			return true;
+		}
+	}
+	
+	/**
+	 * Copies the block into an array
+	 * 
+	 * @return the array
+	 */
+	public int[] toIntArray() {
+		int[] array = new int[length];
+		for (int i = 0; i < length; i++) {
+			array[i] = get(i);
+		}
+		return array;
+	}
+	
+	/**
+	 * Gets if the block has been freed
+	 * 
+	 * @return true if freed
+	 */
+	public boolean isFreed() {
+		return freed.get();
+	}
+	
+	/**
+	 * Returns the block to its arena.  The block must not be accessed after it is freed.
+	 * 
+	 * @throws IllegalStateException if the block has already been freed
+	 */
+	public void free() {
+		if (!freed.compareAndSet(false, true)) {
+			throw new IllegalStateException("Block has already been freed");
+		}
+		arena.free(this);
+	}
+	
+	private void clear() {
+		if (unsafe != null) {
+			unsafe.setMemory(address, capacity, (byte) 0);
+		} else {
+			synchronized (this) {
+				for (int i = 0; i < capacity; i += 4) {
+					buffer.putInt(offset + i, 0);
+				}
+			}
+		}
+	}
+	
+	private void checkIndex(int i) {
+		if (i < 0 || i >= length) {
+			throw new ArrayIndexOutOfBoundsException(i);
+		}
+	}
+}
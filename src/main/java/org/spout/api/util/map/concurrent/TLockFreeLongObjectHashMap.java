@@ -0,0 +1,729 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import gnu.trove.function.TObjectFunction;
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongObjectIterator;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.procedure.TLongObjectProcedure;
+import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.procedure.TObjectProcedure;
+import gnu.trove.set.TLongSet;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.spout.api.math.MathHelper;
+
+/**
+ * A lock-free long to object hash map.<br>
+ * <br>
+ * Keys are stored by linear probing in an array of longs.  A slot is claimed for a key by compare and set, and the key in a slot never changes after that.  
+ * Values are updated by compare and set, and removed values are replaced by a tombstone, so the slot can be reused if the key is added again.<br>
+ * <br>
+ * When the table fills up, a new table is created and the entries are copied across by the threads which write to the map.  
+ * Each value is frozen while it is copied, and writers which find a frozen value copy it themselves before writing to the new table.  
+ * Reads never lock and never wait for a copy to complete.<br>
+ * <br>
+ * Bulk operations, such as {@link #keys()} and {@link #forEachEntry(TLongObjectProcedure)}, are weakly consistent.  They do not lock the map and may or may not include concurrent updates.
+ *
+ * @param <V> the value type
+ */
+public class TLockFreeLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
+	/**
+	 * Marks a value which has been removed
+	 */
+	private static final Object TOMBSTONE = new Object();
+	/**
+	 * Marks a slot which has been copied to the next table
+	 */
+	private static final Object MOVED = new Object();
+	/**
+	 * The number of slots claimed by a thread at a time when copying a table
+	 */
+	private static final int COPY_CHUNK = 64;
+	
+	private final long no_entry_key;
+	private final AtomicReference<Table> table;
+	private final AtomicReference<Object> noEntryKeyValue = new AtomicReference<Object>();
+	private final AtomicInteger totalKeys = new AtomicInteger(0);
+	
+	/**
+	 * Creates a lock-free long to object map
+	 */
+	public TLockFreeLongObjectHashMap() {
+		this(32);
+	}
+	
+	/**
+	 * Creates a lock-free long to object map
+	 * 
+	 * @param initialCapacity the initial capacity of the map
+	 */
+	public TLockFreeLongObjectHashMap(int initialCapacity) {
+		this(initialCapacity, Constants.DEFAULT_LONG_NO_ENTRY_VALUE);
+	}
+	
+	/**
+	 * Creates a lock-free long to object map
+	 * 
+	 * @param initialCapacity the initial capacity of the map
+	 * @param noEntryKey the key used to indicate a null key
+	 */
+	public TLockFreeLongObjectHashMap(int initialCapacity, long noEntryKey) {
+		if (initialCapacity > 0x40000000) {
+			throw new IllegalArgumentException("Initial capacity exceeds valid range");
+		}
+		this.no_entry_key = noEntryKey;
+		this.table = new AtomicReference<Table>(new Table(MathHelper.roundUpPow2(Math.max(16, initialCapacity << 1)), noEntryKey));
+	}
+	
+	@Override
+	public V get(long key) {
+		if (key == no_entry_key) {
+			return unwrap(noEntryKeyValue.get());
+		}
+		return unwrap(get(table.get(), key));
+	}
+	
+	private Object get(Table t, long key) {
+		while (true) {
+			int mask = t.mask;
+			int index = hash(key) & mask;
+			for (int probes = 0; probes <= mask; probes++) {
+				long k = t.keys.get(index);
+				if (k == key) {
+					Object v = t.values.get(index);
+					if (v == MOVED || v instanceof Prime) {
+						copySlot(t, index);
+						break;
+					}
+					return v;
+				} else if (k == no_entry_key) {
+					break;
+				}
+				index = (index + 1) & mask;
+			}
+			// The key may have been added to the next table, if there is a copy in progress
+			Table next = t.next.get();
+			if (next == null) {
+				return null;
+			}
+			t = next;
+		}
+	}
+	
+	@Override
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+	
+	@Override
+	public V put(long key, V value) {
+		return unwrap(putIfMatch(key, value, null, false));
+	}
+	
+	@Override
+	public V putIfAbsent(long key, V value) {
+		return unwrap(putIfMatch(key, value, null, true));
+	}
+	
+	@Override
+	public V remove(long key) {
+		return unwrap(putIfMatch(key, TOMBSTONE, null, false));
+	}
+	
+	@Override
+	public boolean remove(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Cannot remove null values");
+		}
+		return putIfMatch(key, TOMBSTONE, value, false) == value;
+	}
+	
+	/**
+	 * Updates the value for a key
+	 * 
+	 * @param key the key
+	 * @param value the new value, or TOMBSTONE to remove the key
+	 * @param expect the value which must be present for the update, or null for any value
+	 * @param ifAbsent true to only update the value if the key is not present
+	 * @return the previous value
+	 */
+	private Object putIfMatch(long key, Object value, Object expect, boolean ifAbsent) {
+		if (value == null) {
+			throw new IllegalArgumentException("Null values are not supported");
+		}
+		if (key == no_entry_key) {
+			return putIfMatch(noEntryKeyValue, value, expect, ifAbsent);
+		}
+		Table t = table.get();
+		while (true) {
+			int index = claimSlot(t, key, value != TOMBSTONE);
+			if (index < 0) {
+				// Removing a key which was never added
+				Table next = t.next.get();
+				if (next == null) {
+					return null;
+				}
+				t = next;
+				continue;
+			}
+			Table next = t.next.get();
+			if (index >= t.keys.length() || next != null) {
+				if (index < t.keys.length()) {
+					copySlot(t, index);
+				}
+				helpCopy(t);
+				t = t.next.get();
+				continue;
+			}
+			while (true) {
+				Object v = t.values.get(index);
+				if (v == MOVED || v instanceof Prime) {
+					copySlot(t, index);
+					break;
+				}
+				if (t.next.get() != null) {
+					// Writes go to the next table while a copy is in progress
+					copySlot(t, index);
+					break;
+				}
+				boolean present = v != null && v != TOMBSTONE;
+				if (ifAbsent && present) {
+					return v;
+				}
+				if (expect != null && v != expect) {
+					return present ? v : null;
+				}
+				if (!present && value == TOMBSTONE) {
+					return null;
+				}
+				if (t.values.compareAndSet(index, v, value)) {
+					if (!present) {
+						totalKeys.incrementAndGet();
+					} else if (value == TOMBSTONE) {
+						totalKeys.decrementAndGet();
+					}
+					return present ? v : null;
+				}
+			}
+			helpCopy(t);
+			t = t.next.get();
+		}
+	}
+	
+	private Object putIfMatch(AtomicReference<Object> ref, Object value, Object expect, boolean ifAbsent) {
+		while (true) {
+			Object v = ref.get();
+			if (ifAbsent && v != null) {
+				return v;
+			}
+			if (expect != null && v != expect) {
+				return v;
+			}
+			Object update = value == TOMBSTONE ? null : value;
+			if (v == update) {
+				return v;
+			}
+			if (ref.compareAndSet(v, update)) {
+				if (v == null) {
+					totalKeys.incrementAndGet();
+				} else if (update == null) {
+					totalKeys.decrementAndGet();
+				}
+				return v;
+			}
+		}
+	}
+	
+	/**
+	 * Finds the slot for a key, claiming an empty slot if the key is not present
+	 * 
+	 * @param t the table
+	 * @param key the key
+	 * @param claim true to claim a slot if the key is not present
+	 * @return the slot index, -1 if the key is not present and claim is false, or the table length if the table is full
+	 */
+	private int claimSlot(Table t, long key, boolean claim) {
+		int mask = t.mask;
+		int index = hash(key) & mask;
+		for (int probes = 0; probes <= mask; probes++) {
+			long k = t.keys.get(index);
+			if (k == no_entry_key) {
+				if (!claim) {
+					return -1;
+				}
+				// New keys are not added to a table which is being copied
+				if (t.next.get() != null) {
+					return t.keys.length();
+				}
+				if (t.keys.compareAndSet(index, no_entry_key, key)) {
+					if (t.slots.incrementAndGet() > t.threshold) {
+						resize(t);
+					}
+					return index;
+				}
+				k = t.keys.get(index);
+			}
+			if (k == key) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+		if (!claim) {
+			return -1;
+		}
+		resize(t);
+		return t.keys.length();
+	}
+	
+	/**
+	 * Starts copying a table to a new table, if a copy has not already started
+	 */
+	private void resize(Table t) {
+		if (t.next.get() != null) {
+			return;
+		}
+		int length = t.keys.length();
+		// Tables which are mostly tombstones are copied to a table of the same size
+		int live = totalKeys.get();
+		int newLength = live < (t.threshold >> 1) ? length : length << 1;
+		if (newLength < 0) {
+			throw new IllegalStateException("Map exceeds maximum capacity");
+		}
+		t.next.compareAndSet(null, new Table(newLength, no_entry_key));
+	}
+	
+	/**
+	 * Copies a chunk of slots from a table to the next table
+	 */
+	private void helpCopy(Table t) {
+		int length = t.keys.length();
+		int start = t.copyIndex.getAndAdd(COPY_CHUNK);
+		if (start >= length) {
+			return;
+		}
+		int end = Math.min(length, start + COPY_CHUNK);
+		for (int i = start; i < end; i++) {
+			copySlot(t, i);
+		}
+	}
+	
+	/**
+	 * Copies all the remaining slots in a table to the next table
+	 */
+	private void copyAll(Table t) {
+		int length = t.keys.length();
+		while (t.copyIndex.get() < length) {
+			helpCopy(t);
+		}
+		for (int i = 0; i < length; i++) {
+			copySlot(t, i);
+		}
+	}
+	
+	/**
+	 * Copies a slot from a table to the next table.  This may be called by several threads for the same slot.
+	 */
+	private void copySlot(Table t, int index) {
+		Table next = t.next.get();
+		while (true) {
+			Object v = t.values.get(index);
+			if (v == MOVED) {
+				return;
+			}
+			if (v == null || v == TOMBSTONE) {
+				if (t.values.compareAndSet(index, v, MOVED)) {
+					slotCopied(t);
+					return;
+				}
+				continue;
+			}
+			Prime prime;
+			if (v instanceof Prime) {
+				prime = (Prime) v;
+			} else {
+				prime = new Prime(v);
+				if (!t.values.compareAndSet(index, v, prime)) {
+					continue;
+				}
+			}
+			copyInto(next, t.keys.get(index), prime.value);
+			if (t.values.compareAndSet(index, prime, MOVED)) {
+				slotCopied(t);
+			}
+			return;
+		}
+	}
+	
+	/**
+	 * Adds an entry which was copied from the previous table, unless a newer value was already written
+	 */
+	private void copyInto(Table t, long key, Object value) {
+		while (true) {
+			int index = claimCopySlot(t, key);
+			if (index >= 0) {
+				while (true) {
+					Object v = t.values.get(index);
+					if (v == null) {
+						if (t.values.compareAndSet(index, null, value)) {
+							return;
+						}
+						continue;
+					}
+					if (v == MOVED || v instanceof Prime) {
+						copySlot(t, index);
+						break;
+					}
+					// A newer value or a tombstone was written after the copy
+					return;
+				}
+			} else {
+				resize(t);
+			}
+			t = t.next.get();
+		}
+	}
+	
+	/**
+	 * Claims a slot for a copied key, even if the table is being copied
+	 * 
+	 * @return the slot index, or -1 if the table is full
+	 */
+	private int claimCopySlot(Table t, long key) {
+		int mask = t.mask;
+		int index = hash(key) & mask;
+		for (int probes = 0; probes <= mask; probes++) {
+			long k = t.keys.get(index);
+			if (k == no_entry_key) {
+				if (t.keys.compareAndSet(index, no_entry_key, key)) {
+					if (t.slots.incrementAndGet() > t.threshold) {
+						resize(t);
+					}
+					return index;
+				}
+				k = t.keys.get(index);
+			}
+			if (k == key) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Counts a copied slot, and replaces the table once every slot has been copied
+	 */
+	private void slotCopied(Table t) {
+		if (t.copyDone.incrementAndGet() == t.keys.length()) {
+			while (t != null && t.copyDone.get() == t.keys.length()) {
+				Table next = t.next.get();
+				if (!table.compareAndSet(t, next)) {
+					return;
+				}
+				t = next;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the current table, after completing any copies in progress
+	 */
+	private Table getStableTable() {
+		while (true) {
+			Table t = table.get();
+			if (t.next.get() == null) {
+				return t;
+			}
+			copyAll(t);
+		}
+	}
+	
+	@Override
+	public void clear() {
+		Object v = noEntryKeyValue.getAndSet(null);
+		if (v != null) {
+			totalKeys.decrementAndGet();
+		}
+		Table t = table.get();
+		while (t != null) {
+			for (int i = 0; i < t.keys.length(); i++) {
+				long k = t.keys.get(i);
+				if (k != no_entry_key) {
+					remove(k);
+				}
+			}
+			t = t.next.get();
+		}
+	}
+	
+	@Override
+	public boolean containsValue(Object value) {
+		if (value == null) {
+			return false;
+		}
+		Object v = noEntryKeyValue.get();
+		if (value.equals(v)) {
+			return true;
+		}
+		Table t = getStableTable();
+		for (int i = 0; i < t.keys.length(); i++) {
+			if (value.equals(getLive(t, i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Gets the value in a slot, or null if there is no value.  If the slot is being copied, the value is read from the next table.
+	 */
+	private Object getLive(Table t, int index) {
+		Object v = t.values.get(index);
+		if (v == null || v == TOMBSTONE) {
+			return null;
+		}
+		if (v == MOVED || v instanceof Prime) {
+			long k = t.keys.get(index);
+			return k == no_entry_key ? null : unwrap(get(k));
+		}
+		return v;
+	}
+	
+	@Override
+	public boolean forEachEntry(TLongObjectProcedure<? super V> procedure) {
+		V v = unwrap(noEntryKeyValue.get());
+		if (v != null && !procedure.execute(no_entry_key, v)) {
+			return false;
+		}
+		Table t = getStableTable();
+		for (int i = 0; i < t.keys.length(); i++) {
+			v = unwrap(getLive(t, i));
+			if (v != null && !procedure.execute(t.keys.get(i), v)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	@Override
+	public boolean forEachKey(final TLongProcedure procedure) {
+		return forEachEntry(new TLongObjectProcedure<V>() {
+			@Override
+			public boolean execute(long key, V value) {
+				return procedure.execute(key);
+			}
+		});
+	}
+	
+	@Override
+	public boolean forEachValue(final TObjectProcedure<? super V> procedure) {
+		return forEachEntry(new TLongObjectProcedure<V>() {
+			@Override
+			public boolean execute(long key, V value) {
+				return procedure.execute(value);
+			}
+		});
+	}
+	
+	@Override
+	public long getNoEntryKey() {
+		return no_entry_key;
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return totalKeys.get() == 0;
+	}
+	
+	@Override
+	public TLongObjectIterator<V> iterator() {
+		throw new UnsupportedOperationException("This operation is not supported");
+	}
+	
+	@Override
+	public TLongSet keySet() {
+		throw new UnsupportedOperationException("This operation is not supported");
+	}
+	
+	@Override
+	public long[] keys() {
+		return keys(null);
+	}
+	
+	@Override
+	public long[] keys(long[] dest) {
+		final ArrayList<Long> keys = new ArrayList<Long>(size());
+		forEachKey(new TLongProcedure() {
+			@Override
+			public boolean execute(long key) {
+				keys.add(key);
+				return true;
+			}
+		});
+		long[] array = dest == null || dest.length < keys.size() ? new long[keys.size()] : dest;
+		for (int i = 0; i < keys.size(); i++) {
+			array[i] = keys.get(i);
+		}
+		return array;
+	}
+	
+	@Override
+	public void putAll(Map<? extends Long, ? extends V> map) {
+		for (Map.Entry<? extends Long, ? extends V> e : map.entrySet()) {
+			put(e.getKey(), e.getValue());
+		}
+	}
+	
+	@Override
+	public void putAll(TLongObjectMap<? extends V> map) {
+		map.forEachEntry(new TLongObjectProcedure<V>() {
+			@Override
+			public boolean execute(long key, V value) {
+				put(key, value);
+				return true;
+			}
+		});
+	}
+	
+	@Override
+	public boolean retainEntries(TLongObjectProcedure<? super V> procedure) {
+		throw new UnsupportedOperationException("This operation is not supported");
+	}
+	
+	@Override
+	public int size() {
+		return totalKeys.get();
+	}
+	
+	@Override
+	public void transformValues(TObjectFunction<V, V> function) {
+		throw new UnsupportedOperationException("This operation is not supported");
+	}
+	
+	@Override
+	public Collection<V> valueCollection() {
+		final ArrayList<V> values = new ArrayList<V>(size());
+		forEachValue(new TObjectProcedure<V>() {
+			@Override
+			public boolean execute(V value) {
+				values.add(value);
+				return true;
+			}
+		});
+		return Collections.unmodifiableCollection(values);
+	}
+	
+	@Override
+	public Object[] values() {
+		return valueCollection().toArray();
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public V[] values(V[] dest) {
+		if (dest == null) {
+			throw new IllegalArgumentException("Destination array must not be null");
+		}
+		Collection<V> values = valueCollection();
+		V[] array = dest.length < values.size() ? (V[]) Array.newInstance(dest.getClass().getComponentType(), values.size()) : dest;
+		int position = 0;
+		for (V value : values) {
+			array[position++] = value;
+		}
+		for (int i = position; i < array.length; i++) {
+			array[i] = null;
+		}
+		return array;
+	}
+	
+	/**
+	 * Gets the number of slots in the table.  Any copy to a new table which is in progress is completed first.
+	 * 
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return getStableTable().keys.length();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private V unwrap(Object v) {
+		if (v == null || v == TOMBSTONE) {
+			return null;
+		}
+		return (V) v;
+	}
+	
+	private static int hash(long key) {
+		int h = (int) (key ^ (key >>> 32));
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+	
+	private static final class Prime {
+		private final Object value;
+		
+		public Prime(Object value) {
+			this.value = value;
+		}
+	}
+	
+	private static final class Table {
+		private final AtomicLongArray keys;
+		private final AtomicReferenceArray<Object> values;
+		private final int mask;
+		private final int threshold;
+		private final AtomicInteger slots = new AtomicInteger(0);
+		private final AtomicReference<Table> next = new AtomicReference<Table>();
+		private final AtomicInteger copyIndex = new AtomicInteger(0);
+		private final AtomicInteger copyDone = new AtomicInteger(0);
+		
+		public Table(int length, long noEntryKey) {
+			keys = new AtomicLongArray(length);
+			if (noEntryKey != 0) {
+				for (int i = 0; i < length; i++) {
+					keys.set(i, noEntryKey);
+				}
+			}
+			values = new AtomicReferenceArray<Object>(length);
+			mask = length - 1;
+			threshold = length - (length >> 2);
+		}
+	}
+}
@@ -27,6 +27,11 @@
 package org.spout.api.util.map.concurrent;
 
 import gnu.trove.map.TLongObjectMap;
+import gnu.trove.procedure.TLongObjectProcedure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.spout.api.util.map.TInt21TripleObjectHashMap;
 
@@ -89,7 +94,7 @@ public class TSyncInt21TripleObjectHashMap<K> extends TInt21TripleObjectHashMap<
 	@Override
 	public boolean remove(int x, int y, int z, K value) {
 		long key = key(x, y, z);
-		return ((TSyncLongObjectHashMap<K>) map).remove(key, value);
+		return ((TSyncLongObjectMap<K>) map).remove(key, value);
 	}
 
 	/**
@@ -105,6 +110,127 @@ public class TSyncInt21TripleObjectHashMap<K> extends TInt21TripleObjectHashMap<
 	@Override
 	public K putIfAbsent(int x, int y, int z, K value) {
 		long key = key(x, y, z);
-		return ((TSyncLongObjectHashMap<K>) map).putIfAbsent(key, value);
+		return ((TSyncLongObjectMap<K>) map).putIfAbsent(key, value);
+	}
+
+	/**
+	 * Executes the procedure for each key/value pair with a key inside the given box.<br>
+	 * <br>
+	 * Small boxes are scanned by looking up each key in the box, and larger boxes by iterating over the backing map.
+	 *
+	 * @param minX
+	 * @param minY
+	 * @param minZ
+	 * @param maxX
+	 * @param maxY
+	 * @param maxZ
+	 * @param procedure the procedure
+	 * @return false if the procedure returned false for a key/value pair
+	 */
+	@Override
+	public boolean forEachInBox(final int minX, final int minY, final int minZ, final int maxX, final int maxY, final int maxZ, final TripleIntObjectProcedure<? super K> procedure) {
+		if (minX > maxX || minY > maxY || minZ > maxZ) {
+			return true;
+		}
+		int size = map.size();
+		long edgeX = (long) maxX - minX + 1;
+		long edgeY = (long) maxY - minY + 1;
+		long edgeZ = (long) maxZ - minZ + 1;
+		if (edgeX <= size && edgeY <= size && edgeX * edgeY <= size && edgeZ <= size && edgeX * edgeY * edgeZ <= size) {
+			for (int x = minX; x <= maxX; x++) {
+				for (int y = minY; y <= maxY; y++) {
+					for (int z = minZ; z <= maxZ; z++) {
+						K value = map.get(key(x, y, z));
+						if (value != null && !procedure.execute(x, y, z, value)) {
+							return false;
+						}
+						if (z == Integer.MAX_VALUE) {
+							break;
+						}
+					}
+					if (y == Integer.MAX_VALUE) {
+						break;
+					}
+				}
+				if (x == Integer.MAX_VALUE) {
+					break;
+				}
+			}
+			return true;
+		}
+		return map.forEachEntry(new TLongObjectProcedure<K>() {
+			@Override
+			public boolean execute(long key, K value) {
+				int x = key1(key);
+				int y = key2(key);
+				int z = key3(key);
+				if (x < minX || x > maxX || y < minY || y > maxY || z < minZ || z > maxZ) {
+					return true;
+				}
+				return procedure.execute(x, y, z, value);
+			}
+		});
+	}
+
+	/**
+	 * Executes the procedure for each key/value pair with a key within the given Manhattan distance of (x, y, z).<br>
+	 * <br>
+	 * The pairs in the bounding box are collected and sorted by distance before the procedure is executed.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param maxDistance the maximum Manhattan distance
+	 * @param procedure the procedure
+	 * @return false if the procedure returned false for a key/value pair
+	 */
+	@Override
+	public boolean forEachNearest(final int x, final int y, final int z, final int maxDistance, TripleIntObjectProcedure<? super K> procedure) {
+		if (maxDistance < 0) {
+			return true;
+		}
+		final List<NearestEntry<K>> entries = new ArrayList<NearestEntry<K>>();
+		forEachInBox(clamp((long) x - maxDistance), clamp((long) y - maxDistance), clamp((long) z - maxDistance), clamp((long) x + maxDistance), clamp((long) y + maxDistance), clamp((long) z + maxDistance), new TripleIntObjectProcedure<K>() {
+			@Override
+			public boolean execute(int ex, int ey, int ez, K value) {
+				long distance = Math.abs((long) ex - x) + Math.abs((long) ey - y) + Math.abs((long) ez - z);
+				if (distance <= maxDistance) {
+					entries.add(new NearestEntry<K>(distance, ex, ey, ez, value));
+				}
+				return true;
+			}
+		});
+		Collections.sort(entries);
+		for (NearestEntry<K> e : entries) {
+			if (!procedure.execute(e.x, e.y, e.z, e.value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int clamp(long value) {
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+	}
+
+	private static class NearestEntry<K> implements Comparable<NearestEntry<K>> {
+		private final long distance;
+		private final int x;
+		private final int y;
+		private final int z;
+		private final K value;
+
+		public NearestEntry(long distance, int x, int y, int z, K value) {
+			this.distance = distance;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.value = value;
+		}
+
+		@Override
+		public int compareTo(NearestEntry<K> o) {
+			return distance < o.distance ? -1 : (distance == o.distance ? 0 : 1);
+		}
 	}
 }
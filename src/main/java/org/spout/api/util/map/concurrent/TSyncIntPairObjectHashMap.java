@@ -76,7 +76,7 @@ public class TSyncIntPairObjectHashMap<K> extends TIntPairObjectHashMap<K> {
 	 */
 	public boolean remove(int x, int z, K value) {
 		long key = key(x, z);
-		return ((TSyncLongObjectHashMap<K>) map).remove(key, value);
+		return ((TSyncLongObjectMap<K>) map).remove(key, value);
 	}
 
 	/**
@@ -90,6 +90,6 @@ public class TSyncIntPairObjectHashMap<K> extends TIntPairObjectHashMap<K> {
 	 */
 	public K putIfAbsent(int x, int z, K value) {
 		long key = key(x, z);
-		return ((TSyncLongObjectHashMap<K>) map).putIfAbsent(key, value);
+		return ((TSyncLongObjectMap<K>) map).putIfAbsent(key, value);
 	}
 }
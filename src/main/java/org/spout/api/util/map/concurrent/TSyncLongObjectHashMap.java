@@ -28,6 +28,7 @@ package org.spout.api.util.map.concurrent;
 
 import gnu.trove.function.TObjectFunction;
 import gnu.trove.impl.Constants;
+import gnu.trove.impl.hash.TPrimitiveHash;
 import gnu.trove.iterator.TLongObjectIterator;
 import gnu.trove.map.TLongObjectMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
@@ -41,7 +42,9 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -56,6 +59,9 @@ import org.spout.api.math.MathHelper;
  * By default, it creates 16 sub-maps and there is a separate read/write lock
  * for each submap.
  *
+ * The forEach methods and the iterator do not lock the map.  They read each sub-map directly and
+ * retry any entry which was being written, so they are weakly consistent and do not block writers.
+ *
  * @param <V> the value type
  */
 public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
@@ -63,7 +69,11 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 	private final int mapMask;
 	private final int hashScramble;
 	private final ReadWriteLock[] lockArray;
-	private final TLongObjectHashMap<V>[] mapArray;
+	private final Stripe<V>[] mapArray;
+	/**
+	 * The version of each sub-map, which is odd while the sub-map is being written
+	 */
+	private final AtomicIntegerArray versions;
 	private final long no_entry_key;
 	private final AtomicInteger totalKeys = new AtomicInteger(0);
 
@@ -121,10 +131,11 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 		mapMask = mapCount - 1;
 		this.mapCount = mapCount;
 		this.hashScramble = (mapCount << 8) + 1;
-		mapArray = new TLongObjectHashMap[mapCount];
+		mapArray = new Stripe[mapCount];
 		lockArray = new ReadWriteLock[mapCount];
+		versions = new AtomicIntegerArray(mapCount);
 		for (int i = 0; i < mapCount; i++) {
-			mapArray[i] = new TLongObjectHashMap<V>(initialCapacity / mapCount, loadFactor, noEntryKey);
+			mapArray[i] = new Stripe<V>(initialCapacity / mapCount, loadFactor, noEntryKey);
 			lockArray[i] = new ReentrantReadWriteLock();
 		}
 		this.no_entry_key = noEntryKey;
@@ -140,10 +151,12 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 	private void clear(int m) {
 		Lock lock = lockArray[m].writeLock();
 		lock.lock();
+		versions.incrementAndGet(m);
 		try {
 			totalKeys.addAndGet(-mapArray[m].size());
 			mapArray[m].clear();
 		} finally {
+			versions.incrementAndGet(m);
 			lock.unlock();
 		}
 	}
@@ -181,18 +194,36 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 	}
 
 	@Override
-	public boolean forEachEntry(TLongObjectProcedure<? super V> arg0) {
-		throw new UnsupportedOperationException("This operation is not supported");
+	public boolean forEachEntry(TLongObjectProcedure<? super V> procedure) {
+		Cursor cursor = new Cursor();
+		while (cursor.next()) {
+			if (!procedure.execute(cursor.key, cursor.value)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	@Override
-	public boolean forEachKey(TLongProcedure arg0) {
-		throw new UnsupportedOperationException("This operation is not supported");
+	public boolean forEachKey(TLongProcedure procedure) {
+		Cursor cursor = new Cursor();
+		while (cursor.next()) {
+			if (!procedure.execute(cursor.key)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	@Override
-	public boolean forEachValue(TObjectProcedure<? super V> arg0) {
-		throw new UnsupportedOperationException("This operation is not supported");
+	public boolean forEachValue(TObjectProcedure<? super V> procedure) {
+		Cursor cursor = new Cursor();
+		while (cursor.next()) {
+			if (!procedure.execute(cursor.value)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	@Override
@@ -219,7 +250,7 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 
 	@Override
 	public TLongObjectIterator<V> iterator() {
-		throw new UnsupportedOperationException("This operation is not supported");
+		return new EntryIterator();
 	}
 
 	@Override
@@ -268,6 +299,7 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 		int m = mapHash(key);
 		Lock lock = lockArray[m].writeLock();
 		lock.lock();
+		versions.incrementAndGet(m);
 		try {
 			V previous = mapArray[m].put(key, value);
 			if (previous == null && value != null) {
@@ -275,6 +307,7 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 			}
 			return previous;
 		} finally {
+			versions.incrementAndGet(m);
 			lock.unlock();
 		}
 	}
@@ -295,6 +328,7 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 		int m = mapHash(key);
 		Lock lock = lockArray[m].writeLock();
 		lock.lock();
+		versions.incrementAndGet(m);
 		try {
 			V previous = mapArray[m].putIfAbsent(key, value);
 			if (previous == null && value != null) {
@@ -302,6 +336,7 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 			}
 			return previous;
 		} finally {
+			versions.incrementAndGet(m);
 			lock.unlock();
 		}
 	}
@@ -311,6 +346,7 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 		int m = mapHash(key);
 		Lock lock = lockArray[m].writeLock();
 		lock.lock();
+		versions.incrementAndGet(m);
 		try {
 			V previous = mapArray[m].remove(key);
 			if (previous != null) {
@@ -318,6 +354,7 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 			}
 			return previous;
 		} finally {
+			versions.incrementAndGet(m);
 			lock.unlock();
 		}
 	}
@@ -330,6 +367,7 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 		int m = mapHash(key);
 		Lock lock = lockArray[m].writeLock();
 		lock.lock();
+		versions.incrementAndGet(m);
 		try {
 			V current = mapArray[m].get(key);
 			if (current != value) {
@@ -340,6 +378,7 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 			mapArray[m].remove(key);
 			return true;
 		} finally {
+			versions.incrementAndGet(m);
 			lock.unlock();
 		}
 	}
@@ -446,4 +485,156 @@ public class TSyncLongObjectHashMap<V> implements TSyncLongObjectMap<V> {
 
 		return (0x7FFFFFFF & intKey) % hashScramble & mapMask;
 	}
+
+	/**
+	 * Waits until a sub-map is not being written
+	 *
+	 * @return the version of the sub-map
+	 */
+	private int awaitVersion(int m) {
+		int version;
+		while (((version = versions.get(m)) & 1) != 0) {
+			Thread.yield();
+		}
+		return version;
+	}
+
+	/**
+	 * Reads the entries in each sub-map without locking.<br>
+	 * <br>
+	 * Each entry is read between two reads of the sub-map version, and is read again if the version changed.
+	 * If the sub-map was resized, the cursor continues with the old arrays, which are no longer written.<br>
+	 * <br>
+	 * The iteration is weakly consistent.  An entry which is removed and added again while the cursor is
+	 * running may be visited more than once.
+	 */
+	private final class Cursor {
+		private int m = -1;
+		private int index = 0;
+		private long[] keys;
+		private V[] values;
+		private byte[] states;
+		private boolean resized;
+		private long key;
+		private V value;
+
+		public boolean next() {
+			while (true) {
+				if (index == 0) {
+					if (++m >= mapCount) {
+						return false;
+					}
+					load();
+					continue;
+				}
+				if (read(--index)) {
+					return true;
+				}
+			}
+		}
+
+		private void load() {
+			while (true) {
+				int version = awaitVersion(m);
+				Stripe<V> map = mapArray[m];
+				keys = map._set;
+				values = map.getValueArray();
+				states = map._states;
+				if (versions.get(m) == version) {
+					break;
+				}
+			}
+			index = states.length;
+			resized = false;
+		}
+
+		private boolean read(int i) {
+			while (true) {
+				int version = resized ? 0 : awaitVersion(m);
+				byte state = states[i];
+				long k = keys[i];
+				V v = values[i];
+				if (resized || versions.get(m) == version) {
+					if (state != TPrimitiveHash.FULL) {
+						return false;
+					}
+					key = k;
+					value = v;
+					return true;
+				}
+				awaitVersion(m);
+				resized = mapArray[m]._set != keys;
+			}
+		}
+	}
+
+	private final class EntryIterator implements TLongObjectIterator<V> {
+		private final Cursor cursor = new Cursor();
+		private boolean hasNext;
+		private boolean hasCurrent = false;
+		private long key;
+		private V value;
+
+		public EntryIterator() {
+			hasNext = cursor.next();
+		}
+
+		@Override
+		public void advance() {
+			if (!hasNext) {
+				throw new NoSuchElementException();
+			}
+			key = cursor.key;
+			value = cursor.value;
+			hasCurrent = true;
+			hasNext = cursor.next();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		@Override
+		public void remove() {
+			if (!hasCurrent) {
+				throw new IllegalStateException("No entry to remove");
+			}
+			TSyncLongObjectHashMap.this.remove(key, value);
+			hasCurrent = false;
+		}
+
+		@Override
+		public long key() {
+			return key;
+		}
+
+		@Override
+		public V value() {
+			return value;
+		}
+
+		@Override
+		public V setValue(V value) {
+			V old = this.value;
+			put(key, value);
+			this.value = value;
+			return old;
+		}
+	}
+
+	/**
+	 * A sub-map, which exposes its value array to the cursor
+	 */
+	private static class Stripe<V> extends TLongObjectHashMap<V> {
+		private static final long serialVersionUID = 1L;
+
+		public Stripe(int initialCapacity, float loadFactor, long noEntryKey) {
+			super(initialCapacity, loadFactor, noEntryKey);
+		}
+
+		public V[] getValueArray() {
+			return _values;
+		}
+	}
 }
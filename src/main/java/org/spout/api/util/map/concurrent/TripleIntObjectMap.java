@@ -88,5 +88,32 @@ public interface TripleIntObjectMap<T> {
 	 * @return
 	 */
 	public Collection<T> valueCollection();
+	
+	/**
+	 * Executes the procedure for each key/value pair with a key inside the given box.  The bounds are inclusive.
+	 * 
+	 * @param minX
+	 * @param minY
+	 * @param minZ
+	 * @param maxX
+	 * @param maxY
+	 * @param maxZ
+	 * @param procedure the procedure
+	 * @return false if the procedure returned false for a key/value pair
+	 */
+	public boolean forEachInBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, TripleIntObjectProcedure<? super T> procedure);
+	
+	/**
+	 * Executes the procedure for each key/value pair with a key within the given Manhattan distance of (x, y, z).  The pairs
+	 * are visited in order of increasing distance.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param maxDistance the maximum Manhattan distance
+	 * @param procedure the procedure
+	 * @return false if the procedure returned false for a key/value pair
+	 */
+	public boolean forEachNearest(int x, int y, int z, int maxDistance, TripleIntObjectProcedure<? super T> procedure);
 
 }
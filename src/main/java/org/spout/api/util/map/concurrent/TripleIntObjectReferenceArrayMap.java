@@ -26,9 +26,15 @@
  */
 package org.spout.api.util.map.concurrent;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
@@ -53,8 +59,23 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
  * variable reduces the depth of the internal tree at the expense of more memory
  * used per array.<br>
  * <br>
- * The map is thread-safe.  Map update operations can not be carried out by more
- * than one thread at the same time.  However, read operations are concurrent.<br>
+ * The map is thread-safe.  Reads never block, and updates use compare and set
+ * operations on the tree nodes, so updates to different keys proceed in parallel.
+ * Removing a key unlinks its leaf from the tree.<br>
+ * <br>
+ * If two keys collide at the leaf level, the tree is rebuilt with a greater depth.  
+ * The leaf nodes are shared with the new tree, and each slot in the old tree is 
+ * replaced by a moved marker as it is copied.  Reads continue through the marker,
+ * but updates that reach a marker wait until the new tree is in place.<br>
+ * <br>
+ * The value collection counts the number of keys that map to each value.  A value 
+ * is counted before the update that stores it and uncounted after the update that 
+ * removes it, so a value moved from one key to another is never missing from the
+ * collection.<br>
+ * <br>
+ * Items may only be added once to the map.  A put of a value which is already in the
+ * map fails, unless a remove of that value is in progress, so a value removed from one
+ * key and put at another by a different thread may briefly be counted for both keys.<br>
  * <br>
  * The map is optimised for use where all the coordinates occur in a small number of
  * contiguous cuboids.
@@ -70,11 +91,11 @@ public class TripleIntObjectReferenceArrayMap<T> implements TripleIntObjectMap<T
 	private final int arraySize;
 	
 	private final AtomicReference<Entry<T>> root;
-	private final LinkedHashSet<T> values;
-	private final LinkedHashSet<LeafEntry> leafEntries;
-	private final AtomicReference<Collection<T>> valuesSnapshot = new AtomicReference<Collection<T>>(null);
-	
-	private int removed = 0;
+	private final AtomicBoolean resizing = new AtomicBoolean(false);
+	private final MovedEntry movedEmpty = new MovedEntry(null);
+	private final ConcurrentHashMap<T, ValueCount> values;
+	private final AtomicInteger valuesVersion = new AtomicInteger(0);
+	private final AtomicReference<ValuesSnapshot<T>> valuesSnapshot = new AtomicReference<ValuesSnapshot<T>>(null);
 	
 	public TripleIntObjectReferenceArrayMap(int bits) {
 		this(bits, 1);
@@ -88,8 +109,7 @@ public class TripleIntObjectReferenceArrayMap<T> implements TripleIntObjectMap<T
 		this.arraySize = (width) * (width) * (width);
 		this.root = new AtomicReference<Entry<T>>();
 		this.root.set(new AtomicReferenceArrayEntry(depth));
-		this.values = new LinkedHashSet<T>();
-		this.leafEntries = new LinkedHashSet<LeafEntry>();
+		this.values = new ConcurrentHashMap<T, ValueCount>();
 	}
 
 	@Override
@@ -103,34 +123,41 @@ public class TripleIntObjectReferenceArrayMap<T> implements TripleIntObjectMap<T
 	}
 
 	@Override
-	public synchronized T remove(int x, int y, int z) {
+	public T remove(int x, int y, int z) {
 		Entry<T> entry = getEntryRaw(x, y, z);
 		if (entry != null) {
-			T value = entry.remove();
-			if (value != null) {
-				valuesSnapshot.set(null);
-				removed++;
-				if (!values.remove(value)) {
-					throw new IllegalStateException("Item removed from map was not in item set");
+			while (true) {
+				T value = entry.getValue();
+				if (value == null) {
+					return null;
+				}
+				ValueCount count = removeStarted(value);
+				if (entry.remove(value)) {
+					valueRemoved(value, count);
+					unlink((LeafEntry) entry);
+					return value;
 				}
+				removeFailed(count);
 			}
-			return value;
 		} else {
 			return null;
 		}
 	}
 
 	@Override
-	public synchronized boolean remove(int x, int y, int z, T value) {
+	public boolean remove(int x, int y, int z, T value) {
+		if (value == null) {
+			return false;
+		}
 		Entry<T> entry = getEntryRaw(x, y, z);
 		if (entry != null) {
+			ValueCount count = removeStarted(value);
 			boolean b = entry.remove(value);
 			if (b) {
-				valuesSnapshot.set(null);
-				removed++;
-				if (!values.remove(value)) {
-					throw new IllegalStateException("Item removed from map was not in item set");
-				}
+				valueRemoved(value, count);
+				unlink((LeafEntry) entry);
+			} else {
+				removeFailed(count);
 			}
 			return b;
 		} else {
@@ -139,145 +166,503 @@ public class TripleIntObjectReferenceArrayMap<T> implements TripleIntObjectMap<T
 	}
 
 	@Override
-	public synchronized T put(int x, int y, int z, T value) {
+	public T put(int x, int y, int z, T value) {
 		if (value == null) {
 			throw new NullPointerException("Null values are not permitted");
 		}
-		Entry<T> entry = getOrCreateEntry(x, y, z);
-		if (entry != null) {
-			T old = entry.put(value);
-			valuesSnapshot.set(null);
-			if (!values.add(value)) {
-				throw new IllegalStateException("Failed to add item to the value set, items may only be added once to the map");
+		valueAdded(value);
+		T old = putRaw(x, y, z, value, false);
+		if (old != null) {
+			if (old == value) {
+				throw new IllegalStateException("Failed to add item to the map, the key already maps to the item");
 			}
-			if (old != null) {
-				if (!values.remove(old)) {
-					throw new IllegalStateException("Item removed from map was not in item set");
-				}
-			}
-			return old;
-		} else {
-			throw new IllegalStateException("Unable to create entry for put");
 		}
+		return old;
 	}
 
 	@Override
-	public synchronized T putIfAbsent(int x, int y, int z, T value) {
+	public T putIfAbsent(int x, int y, int z, T value) {
 		if (value == null) {
 			throw new NullPointerException("Null values are not permitted");
 		}
-		Entry<T> entry = getOrCreateEntry(x, y, z);
-		if (entry != null) {
-			T old = entry.putIfAbsent(value);
-			if (old == null) {
-				valuesSnapshot.set(null);
-				if (!values.add(value)) {
-					throw new IllegalStateException("Failed to add item to the value set, items may only be added once to the map");
+		T current = get(x, y, z);
+		if (current != null) {
+			return current;
+		}
+		valueAdded(value);
+		T old = putRaw(x, y, z, value, true);
+		if (old != null) {
+			addFailed(value);
+		}
+		return old;
+	}
+	
+	@Override
+	public Collection<T> valueCollection() {
+		int version = valuesVersion.get();
+		ValuesSnapshot<T> snapshot = this.valuesSnapshot.get();
+		if (snapshot != null && snapshot.getVersion() == version) {
+			return snapshot.getValues();
+		}
+		Collection<T> newValues = Collections.unmodifiableCollection(new LinkedHashSet<T>(this.values.keySet()));
+		this.valuesSnapshot.set(new ValuesSnapshot<T>(version, newValues));
+		return newValues;
+	}
+	
+	@Override
+	public boolean forEachInBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, TripleIntObjectProcedure<? super T> procedure) {
+		if (minX > maxX || minY > maxY || minZ > maxZ) {
+			return true;
+		}
+		Entry<T> root = this.root.get();
+		int shift = root.getInitialShift();
+		return forEachInBox((AtomicReferenceArrayEntry) root, shift, shift + bits, 0, 0, 0, minX, minY, minZ, maxX, maxY, maxZ, procedure);
+	}
+	
+	/**
+	 * Executes the procedure for each leaf below the given branch which is inside the box.  The branches 
+	 * which can not contain keys inside the box are skipped.
+	 * 
+	 * @param branch the branch
+	 * @param shift the shift for the slots in the branch
+	 * @param topShift the shift above the root of the tree
+	 * @param px the bits of the x coordinate which select the branch
+	 * @param py the bits of the y coordinate which select the branch
+	 * @param pz the bits of the z coordinate which select the branch
+	 */
+	private boolean forEachInBox(AtomicReferenceArrayEntry branch, int shift, int topShift, long px, long py, long pz, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, TripleIntObjectProcedure<? super T> procedure) {
+		int width = topShift - shift;
+		for (int x = 0; x <= bitMask; x++) {
+			long nx = (px << bits) | x;
+			if (!intersects(minX, maxX, shift, width, nx)) {
+				continue;
+			}
+			for (int y = 0; y <= bitMask; y++) {
+				long ny = (py << bits) | y;
+				if (!intersects(minY, maxY, shift, width, ny)) {
+					continue;
+				}
+				for (int z = 0; z <= bitMask; z++) {
+					long nz = (pz << bits) | z;
+					if (!intersects(minZ, maxZ, shift, width, nz)) {
+						continue;
+					}
+					Entry<T> entry = getSlot(branch, (x << doubleBits) | (y << bits) | z);
+					if (entry == null) {
+						continue;
+					}
+					if (shift == 0) {
+						LeafEntry leaf = (LeafEntry) entry;
+						T value = leaf.getValue();
+						int lx = leaf.getX();
+						int ly = leaf.getY();
+						int lz = leaf.getZ();
+						if (value != null && lx >= minX && lx <= maxX && ly >= minY && ly <= maxY && lz >= minZ && lz <= maxZ) {
+							if (!procedure.execute(lx, ly, lz, value)) {
+								return false;
+							}
+						}
+					} else if (!forEachInBox((AtomicReferenceArrayEntry) entry, shift - bits, topShift, nx, ny, nz, minX, minY, minZ, maxX, maxY, maxZ, procedure)) {
+						return false;
+					}
 				}
 			}
-			return old;
-		} else {
-			throw new IllegalStateException("Unable to create entry for put");
 		}
+		return true;
 	}
 	
 	@Override
-	public Collection<T> valueCollection() {
-		Collection<T> newValues = this.valuesSnapshot.get();
-		if (newValues != null) {
-			return newValues;
-		}
-		synchronized (this) {
-			newValues = this.valuesSnapshot.get();
-			if (newValues != null) {
-				return newValues;
+	public boolean forEachNearest(int x, int y, int z, int maxDistance, TripleIntObjectProcedure<? super T> procedure) {
+		if (maxDistance < 0) {
+			return true;
+		}
+		Entry<T> root = this.root.get();
+		int topShift = root.getInitialShift() + bits;
+		PriorityQueue<SearchEntry> queue = new PriorityQueue<SearchEntry>();
+		queue.add(new SearchEntry(0, root, root.getInitialShift(), 0, 0, 0));
+		
+		SearchEntry next;
+		while ((next = queue.poll()) != null) {
+			if (next.shift < 0) {
+				LeafEntry leaf = (LeafEntry) next.entry;
+				T value = leaf.getValue();
+				if (value != null && !procedure.execute(leaf.getX(), leaf.getY(), leaf.getZ(), value)) {
+					return false;
+				}
+				continue;
+			}
+			AtomicReferenceArrayEntry branch = (AtomicReferenceArrayEntry) next.entry;
+			int shift = next.shift;
+			int width = topShift - shift;
+			for (int i = 0; i < arraySize; i++) {
+				Entry<T> entry = getSlot(branch, i);
+				if (entry == null) {
+					continue;
+				}
+				long distance;
+				if (shift == 0) {
+					LeafEntry leaf = (LeafEntry) entry;
+					distance = Math.abs((long) leaf.getX() - x) + Math.abs((long) leaf.getY() - y) + Math.abs((long) leaf.getZ() - z);
+					if (distance <= maxDistance) {
+						queue.add(new SearchEntry(distance, leaf, -1, 0, 0, 0));
+					}
+				} else {
+					long nx = (next.px << bits) | ((i >> doubleBits) & bitMask);
+					long ny = (next.py << bits) | ((i >> bits) & bitMask);
+					long nz = (next.pz << bits) | (i & bitMask);
+					distance = distance(x, shift, width, nx) + distance(y, shift, width, ny) + distance(z, shift, width, nz);
+					if (distance <= maxDistance) {
+						queue.add(new SearchEntry(distance, entry, shift - bits, nx, ny, nz));
+					}
+				}
 			}
-			newValues = Collections.unmodifiableCollection(new LinkedHashSet<T>(this.values));
-			this.valuesSnapshot.set(newValues);
-			return newValues;
 		}
+		return true;
 	}
 	
-	private synchronized Entry<T> getOrCreateEntry(int x, int y, int z) {
-		Entry<T> entry = getEntryRaw(x, y, z);
-		if (entry != null) {
-			return entry;
+	/**
+	 * Gets the entry in a slot, reading through moved markers
+	 * 
+	 * @param branch the branch
+	 * @param index the index of the slot
+	 * @return the entry, or null if the slot is empty
+	 */
+	private Entry<T> getSlot(AtomicReferenceArrayEntry branch, int index) {
+		Entry<T> entry = branch.get(index);
+		if (entry instanceof TripleIntObjectReferenceArrayMap.MovedEntry) {
+			entry = ((MovedEntry) entry).getPrevious();
+		}
+		return entry;
+	}
+	
+	/**
+	 * Tests if there is a coordinate in the given range which is selected by a branch.  The branch selects the
+	 * coordinates where the given number of bits, starting at the shift, match the prefix.
+	 * 
+	 * @param min the minimum coordinate
+	 * @param max the maximum coordinate
+	 * @param shift the shift of the lowest bit in the prefix
+	 * @param width the number of bits in the prefix
+	 * @param prefix the prefix
+	 * @return true if the branch selects a coordinate in the range
+	 */
+	private static boolean intersects(int min, int max, int shift, int width, long prefix) {
+		long low = min >> shift;
+		long high = max >> shift;
+		long period = 1L << width;
+		if (high - low >= period - 1) {
+			return true;
+		}
+		return ((prefix - low) & (period - 1)) <= high - low;
+	}
+	
+	/**
+	 * Gets the distance from a coordinate to the nearest coordinate selected by a branch
+	 * 
+	 * @param c the coordinate
+	 * @param shift the shift of the lowest bit in the prefix
+	 * @param width the number of bits in the prefix
+	 * @param prefix the prefix
+	 * @return the distance
+	 */
+	private static long distance(int c, int shift, int width, long prefix) {
+		long cell = c >> shift;
+		long period = 1L << width;
+		long below = cell - ((cell - prefix) & (period - 1));
+		if (below == cell) {
+			return 0;
+		}
+		long above = below + period;
+		return Math.min(c - (((below + 1) << shift) - 1), (above << shift) - c);
+	}
+	
+	/**
+	 * Counts a value which is about to be stored.  This must be called before the update which stores the value.
+	 * 
+	 * @param value the value
+	 * @throws IllegalStateException if the value is already in the map, and no remove of the value is in progress
+	 */
+	private void valueAdded(T value) {
+		while (true) {
+			ValueCount count = values.get(value);
+			if (count == null) {
+				count = values.putIfAbsent(value, new ValueCount());
+				if (count == null) {
+					valuesVersion.incrementAndGet();
+					return;
+				}
+			}
+			int c = count.keys.get();
+			if (c == 0) {
+				// The count is being removed from the map
+				values.remove(value, count);
+			} else if (count.removing.get() == 0) {
+				throw new IllegalStateException("Failed to add item to the value set, items may only be added once to the map");
+			} else if (count.keys.compareAndSet(c, c + 1)) {
+				return;
+			}
 		}
-		entry = this.root.get();
-		int depth = entry.getDepth();
-		int shift = entry.getInitialShift();
-		Entry<T> prevEntry = null;
-		
-		int keyDepth = 0;
-		while (entry != null) {
-			prevEntry = entry;
-			entry = entry.getSubEntry(x, y, z, shift);
-			shift -= bits;
-			if (entry == null) {
-				break;
+	}
+	
+	/**
+	 * Uncounts a value which was counted for an update which did not store it
+	 * 
+	 * @param value the value
+	 */
+	private void addFailed(T value) {
+		valueRemoved(value, null);
+	}
+	
+	/**
+	 * Marks a remove of a value as in progress.  This must be called before the update which removes the value, and followed 
+	 * by {@link #valueRemoved(Object, ValueCount)} if the update succeeds, or by {@link #removeFailed(ValueCount)} if it fails.
+	 * 
+	 * @param value the value
+	 * @return the count which was marked, or null if the value is not counted
+	 */
+	private ValueCount removeStarted(T value) {
+		ValueCount count = values.get(value);
+		if (count != null) {
+			count.removing.incrementAndGet();
+		}
+		return count;
+	}
+	
+	/**
+	 * Clears the mark made for a remove which did not remove the value
+	 * 
+	 * @param count the count which was marked, or null
+	 */
+	private void removeFailed(ValueCount count) {
+		if (count != null) {
+			count.removing.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Uncounts a value which has been removed.  This must be called after the update which removed the value.
+	 * 
+	 * @param value the value
+	 * @param marked the count which was marked when the remove started, or null
+	 */
+	private void valueRemoved(T value, ValueCount marked) {
+		ValueCount count = values.get(value);
+		if (count == null || count.keys.get() <= 0) {
+			throw new IllegalStateException("Item removed from map was not in item set");
+		}
+		if (count.keys.decrementAndGet() == 0) {
+			values.remove(value, count);
+			valuesVersion.incrementAndGet();
+		}
+		removeFailed(marked);
+	}
+	
+	/**
+	 * Replaces the value of a leaf.  The old value is marked as being removed before it is replaced, and is uncounted afterwards.
+	 * 
+	 * @param entry the leaf
+	 * @param value the new value
+	 * @return the old value, or null if the leaf has been removed
+	 */
+	private T replace(Entry<T> entry, T value) {
+		while (true) {
+			T old = entry.getValue();
+			if (old == null) {
+				return null;
 			}
-			keyDepth++;
+			ValueCount count = removeStarted(old);
+			if (entry.replace(old, value)) {
+				valueRemoved(old, count);
+				return old;
+			}
+			removeFailed(count);
 		}
-		
-		// Map must be resized if we hit a leaf node (collision) or the map was already at max depth
-		if (keyDepth > depth || prevEntry instanceof TripleIntObjectReferenceArrayMap.LeafEntry) {
-			resizeMap();
-			return getOrCreateEntry(x, y, z);
-		} else if (keyDepth > depth) {
-			throw new IllegalStateException("Map has a depth that exceeds the depth variable");
+	}
+	
+	/**
+	 * Stores a value in the leaf for the given key, creating the leaf if required
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param value the value
+	 * @param onlyIfAbsent true to leave an existing value in place
+	 * @return the previous value, or null if the key had no value
+	 */
+	private T putRaw(int x, int y, int z, T value, boolean onlyIfAbsent) {
+		while (true) {
+			Entry<T> root = this.root.get();
+			AtomicReferenceArrayEntry leafArray = getLeafArray(root, x, y, z, true);
+			if (leafArray == null) {
+				awaitResize(root);
+				continue;
+			}
+			int index = getIndex(x, y, z, 0);
+			Entry<T> entry = leafArray.get(index);
+			if (entry == null) {
+				if (leafArray.compareAndSet(index, null, new LeafEntry(x, y, z, value))) {
+					return null;
+				}
+			} else if (entry instanceof TripleIntObjectReferenceArrayMap.MovedEntry) {
+				awaitResize(root);
+			} else if (entry.testKey(x, y, z)) {
+				T old = onlyIfAbsent ? entry.putIfAbsent(value) : replace(entry, value);
+				if (old != null) {
+					return old;
+				}
+				// The leaf was removed, so it is unlinked and a new leaf is created
+				leafArray.compareAndSet(index, entry, null);
+			} else if (entry.getValue() == null) {
+				leafArray.compareAndSet(index, entry, null);
+			} else {
+				resizeMap(root);
+			}
 		}
+	}
+	
+	/**
+	 * Gets the array at the bottom of the tree which holds the leaf for the given key
+	 * 
+	 * @param root the root of the tree
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param create true to create any missing arrays
+	 * @return the array, or null if it does not exist or the tree is being resized
+	 */
+	private AtomicReferenceArrayEntry getLeafArray(Entry<T> root, int x, int y, int z, boolean create) {
+		Entry<T> entry = root;
+		int depth = root.getDepth();
+		int shift = root.getInitialShift();
 		
-		entry = prevEntry;
-		shift += bits;
-
-		for (int i = keyDepth; i < depth; i++) {
-			Entry<T> newEntry = new AtomicReferenceArrayEntry(depth);
-			if (!((AtomicReferenceArrayEntry) entry).addNewEntry(x, y, z, shift, newEntry)) {
-				throw new IllegalStateException("Unable to add new map entry");
+		for (int i = 0; i < depth; i++) {
+			AtomicReferenceArrayEntry branch = (AtomicReferenceArrayEntry) entry;
+			int index = getIndex(x, y, z, shift);
+			entry = branch.get(index);
+			if (entry == null) {
+				if (!create) {
+					return null;
+				}
+				Entry<T> newEntry = new AtomicReferenceArrayEntry(depth);
+				if (branch.compareAndSet(index, null, newEntry)) {
+					entry = newEntry;
+				} else {
+					entry = branch.get(index);
+				}
+			}
+			if (entry instanceof TripleIntObjectReferenceArrayMap.MovedEntry) {
+				return null;
 			}
 			shift -= bits;
-			entry = newEntry;
 		}
-		if (shift != 0) {
-			throw new IllegalStateException("Shift counter in illegal state: " + shift);
+		return (AtomicReferenceArrayEntry) entry;
+	}
+	
+	/**
+	 * Unlinks a removed leaf from the tree.  If the tree is being resized, the 
+	 * leaf is left in place, since removed leaves are not copied, and any removed
+	 * leaf remaining in the new tree is unlinked by the next put for that slot.
+	 * 
+	 * @param leaf the leaf
+	 */
+	private void unlink(LeafEntry leaf) {
+		int x = leaf.getX();
+		int y = leaf.getY();
+		int z = leaf.getZ();
+		AtomicReferenceArrayEntry leafArray = getLeafArray(this.root.get(), x, y, z, false);
+		if (leafArray != null) {
+			leafArray.compareAndSet(getIndex(x, y, z, 0), leaf, null);
 		}
-		LeafEntry newEntry = new LeafEntry(x, y, z);
-		if (!((AtomicReferenceArrayEntry) entry).addNewEntry(x, y, z, 0, newEntry)) {
-			throw new IllegalStateException("Unable to add new leaf entry");
+	}
+	
+	private void awaitResize(Entry<T> oldRoot) {
+		while (this.root.get() == oldRoot) {
+			Thread.yield();
 		}
-		this.leafEntries.add(newEntry);
-		return newEntry;
 	}
 	
-	private synchronized void resizeMap() {
-		TripleIntObjectReferenceArrayMap.Entry<T> oldRoot = this.root.get();
-		int newDepth = oldRoot.getDepth() + 1;
-		TripleIntObjectReferenceArrayMap<T> temp = new TripleIntObjectReferenceArrayMap<T>(bits, newDepth);
-		
-		for (LeafEntry le : leafEntries) {
-			T value = le.getValue();
-			if (value != null) {
-				int x = le.getX();
-				int y = le.getY();
-				int z = le.getZ();
-				temp.put(x, y, z, value);
-				if (!values.remove(value)) {
-					throw new IllegalStateException("Value moved to other map on resize was not in value list");
-				}
+	private void resizeMap(Entry<T> oldRoot) {
+		if (!resizing.compareAndSet(false, true)) {
+			awaitResize(oldRoot);
+			return;
+		}
+		try {
+			if (this.root.get() != oldRoot) {
+				return;
+			}
+			List<LeafEntry> leaves = new ArrayList<LeafEntry>();
+			freeze((AtomicReferenceArrayEntry) oldRoot, leaves);
+			
+			int newDepth = oldRoot.getDepth() + 1;
+			AtomicReferenceArrayEntry newRoot;
+			while ((newRoot = buildTree(newDepth, leaves)) == null) {
+				newDepth++;
 			}
+			
+			if (!this.root.compareAndSet(oldRoot, newRoot)) {
+				throw new IllegalStateException("Old root changed while resizing");
+			}
+		} finally {
+			resizing.set(false);
 		}
-		
-		if (!this.values.isEmpty()) {
-			throw new IllegalStateException("Some values were not transferred to the new map on resize");
+	}
+	
+	/**
+	 * Replaces every empty slot and leaf in the given branch with a moved marker
+	 * 
+	 * @param branch the branch
+	 * @param leaves the list to add the live leaves to
+	 */
+	private void freeze(AtomicReferenceArrayEntry branch, List<LeafEntry> leaves) {
+		for (int i = 0; i < arraySize; i++) {
+			while (true) {
+				Entry<T> entry = branch.get(i);
+				if (entry == null) {
+					if (branch.compareAndSet(i, null, movedEmpty)) {
+						break;
+					}
+				} else if (entry instanceof TripleIntObjectReferenceArrayMap.AtomicReferenceArrayEntry) {
+					freeze((AtomicReferenceArrayEntry) entry, leaves);
+					break;
+				} else if (entry instanceof TripleIntObjectReferenceArrayMap.LeafEntry) {
+					if (branch.compareAndSet(i, entry, new MovedEntry(entry))) {
+						if (entry.getValue() != null) {
+							leaves.add((LeafEntry) entry);
+						}
+						break;
+					}
+				} else {
+					throw new IllegalStateException("Slot already frozen during resize");
+				}
+			}
 		}
-		
-		this.leafEntries.clear();
-		this.leafEntries.addAll(temp.leafEntries);
-		
-		this.values.addAll(temp.values);
-		if (!this.root.compareAndSet(oldRoot, temp.root.get())) {
-			throw new IllegalStateException("Old root changed while resizing");
+	}
+	
+	/**
+	 * Builds a new tree containing the given leaves
+	 * 
+	 * @param depth the depth of the new tree
+	 * @param leaves the leaves
+	 * @return the root of the new tree, or null if two leaves collide at the given depth
+	 */
+	private AtomicReferenceArrayEntry buildTree(int depth, List<LeafEntry> leaves) {
+		AtomicReferenceArrayEntry newRoot = new AtomicReferenceArrayEntry(depth);
+		for (LeafEntry le : leaves) {
+			if (le.getValue() == null) {
+				continue;
+			}
+			int x = le.getX();
+			int y = le.getY();
+			int z = le.getZ();
+			AtomicReferenceArrayEntry leafArray = getLeafArray(newRoot, x, y, z, true);
+			int index = getIndex(x, y, z, 0);
+			Entry<T> entry = leafArray.get(index);
+			if (entry != null && entry.getValue() != null) {
+				return null;
+			}
+			leafArray.set(index, le);
 		}
+		return newRoot;
 	}
 	
 	private Entry<T> getEntryRaw(int x, int y, int z) {
@@ -287,6 +672,9 @@ public class TripleIntObjectReferenceArrayMap<T> implements TripleIntObjectMap<T
 		
 		for (int i = 0; i <= depth; i++) {
 			entry = entry.getSubEntry(x, y, z, shift);
+			if (entry instanceof TripleIntObjectReferenceArrayMap.MovedEntry) {
+				entry = ((MovedEntry) entry).getPrevious();
+			}
 			if (entry == null) {
 				return null;
 			}
@@ -314,7 +702,7 @@ public class TripleIntObjectReferenceArrayMap<T> implements TripleIntObjectMap<T
 		
 		public T putIfAbsent(T value);
 		
-		public T put(T value);
+		public boolean replace(T old, T value);
 		
 		public int getDepth();
 		
@@ -322,6 +710,78 @@ public class TripleIntObjectReferenceArrayMap<T> implements TripleIntObjectMap<T
 		
 	}
 	
+	private class SearchEntry implements Comparable<SearchEntry> {
+		
+		private final long distance;
+		private final Entry<T> entry;
+		private final int shift;
+		private final long px;
+		private final long py;
+		private final long pz;
+		
+		/**
+		 * Creates an entry for the nearest first search
+		 * 
+		 * @param distance the distance to the entry, or the minimum distance to the keys below a branch
+		 * @param entry the branch or leaf
+		 * @param shift the shift for the slots in the branch, or -1 for a leaf
+		 * @param px the bits of the x coordinate which select the branch
+		 * @param py the bits of the y coordinate which select the branch
+		 * @param pz the bits of the z coordinate which select the branch
+		 */
+		public SearchEntry(long distance, Entry<T> entry, int shift, long px, long py, long pz) {
+			this.distance = distance;
+			this.entry = entry;
+			this.shift = shift;
+			this.px = px;
+			this.py = py;
+			this.pz = pz;
+		}
+
+		@Override
+		public int compareTo(SearchEntry o) {
+			if (distance != o.distance) {
+				return distance < o.distance ? -1 : 1;
+			}
+			// Leaves are visited before branches at the same distance
+			return shift - o.shift;
+		}
+		
+	}
+	
+	private static class ValuesSnapshot<T> {
+		
+		private final int version;
+		private final Collection<T> values;
+		
+		public ValuesSnapshot(int version, Collection<T> values) {
+			this.version = version;
+			this.values = values;
+		}
+		
+		public int getVersion() {
+			return version;
+		}
+		
+		public Collection<T> getValues() {
+			return values;
+		}
+		
+	}
+	
+	private static class ValueCount {
+		
+		/**
+		 * The number of keys which map to the value, including puts in progress
+		 */
+		private final AtomicInteger keys = new AtomicInteger(1);
+		/**
+		 * The number of removes of the value in progress
+		 */
+		private final AtomicInteger removing = new AtomicInteger(0);
+		
+	}
+	
 	private class AtomicReferenceArrayEntry implements Entry<T> {
 		
 		private final int depth;
@@ -375,17 +835,30 @@ public class TripleIntObjectReferenceArrayMap<T> implements TripleIntObjectMap<T
 		}
 
 		@Override
-		public T put(T value) {
+		public boolean replace(T old, T value) {
 			throw new UnsupportedOperationException("The AtomicReferenceArrayEntry class does not contain key/value pairs");
 		}
 		
-		public boolean addNewEntry(int x, int y, int z, int shift, Entry<T> subEntry) {
-			int index = getIndex(x, y, z, shift);
-			return array.compareAndSet(index, null, subEntry);
+		public Entry<T> get(int index) {
+			return array.get(index);
+		}
+		
+		public void set(int index, Entry<T> entry) {
+			array.set(index, entry);
+		}
+		
+		public boolean compareAndSet(int index, Entry<T> expect, Entry<T> update) {
+			return array.compareAndSet(index, expect, update);
 		}
 		
 	}
 	
+	/**
+	 * A leaf holding a key/value pair.<br>
+	 * <br>
+	 * A leaf is created with a non-null value, and a null value indicates that the 
+	 * leaf has been removed.  A removed leaf is never reused.
+	 */
 	private class LeafEntry implements Entry<T> {
 		
 		private final AtomicReference<T> value;
@@ -393,11 +866,11 @@ public class TripleIntObjectReferenceArrayMap<T> implements TripleIntObjectMap<T
 		private final int y;
 		private final int z;
 		
-		public LeafEntry(int x, int y, int z) {
+		public LeafEntry(int x, int y, int z, T value) {
 			this.x = x;
 			this.y = y;
 			this.z = z;
-			this.value = new AtomicReference<T>();
+			this.value = new AtomicReference<T>(value);
 		}
 
 		@Override
@@ -425,22 +898,24 @@ public class TripleIntObjectReferenceArrayMap<T> implements TripleIntObjectMap<T
 			return this.value.compareAndSet(value, null);
 		}
 
+		/**
+		 * Gets the current value
+		 * 
+		 * @return the current value, or null if the leaf has been removed
+		 */
 		@Override
 		public T putIfAbsent(T value) {
-			while (true) {
-				T old = this.value.get();
-				if (old != null) {
-					return old;
-				}
-				if (this.value.compareAndSet(null, value)) {
-					return null;
-				}
-			}
+			return this.value.get();
 		}
 
+		/**
+		 * Replaces the current value, but only if it is the expected value
+		 * 
+		 * @return true on success
+		 */
 		@Override
-		public T put(T value) {
-			return this.value.getAndSet(value);
+		public boolean replace(T old, T value) {
+			return this.value.compareAndSet(old, value);
 		}
 
 		@Override
@@ -472,6 +947,69 @@ public class TripleIntObjectReferenceArrayMap<T> implements TripleIntObjectMap<T
 		
 	}
 	
+	/**
+	 * A marker which replaces an empty slot or a leaf when the tree is resized.  
+	 * Reads use the previous contents of the slot.
+	 */
+	private class MovedEntry implements Entry<T> {
+		
+		private final Entry<T> previous;
+		
+		public MovedEntry(Entry<T> previous) {
+			this.previous = previous;
+		}
+		
+		public Entry<T> getPrevious() {
+			return previous;
+		}
+
+		@Override
+		public Entry<T> getSubEntry(int x, int y, int z, int shift) {
+			throw new UnsupportedOperationException("The MovedEntry class does not support this method");
+		}
+
+		@Override
+		public boolean testKey(int x, int y, int z) {
+			throw new UnsupportedOperationException("The MovedEntry class does not support this method");
+		}
+
+		@Override
+		public T getValue() {
+			throw new UnsupportedOperationException("The MovedEntry class does not support this method");
+		}
+
+		@Override
+		public T remove() {
+			throw new UnsupportedOperationException("The MovedEntry class does not support this method");
+		}
+
+		@Override
+		public boolean remove(T value) {
+			throw new UnsupportedOperationException("The MovedEntry class does not support this method");
+		}
+
+		@Override
+		public T putIfAbsent(T value) {
+			throw new UnsupportedOperationException("The MovedEntry class does not support this method");
+		}
+
+		@Override
+		public boolean replace(T old, T value) {
+			throw new UnsupportedOperationException("The MovedEntry class does not support this method");
+		}
+
+		@Override
+		public int getDepth() {
+			throw new UnsupportedOperationException("The MovedEntry class does not support this method");
+		}
+
+		@Override
+		public int getInitialShift() {
+			throw new UnsupportedOperationException("The MovedEntry class does not support this method");
+		}
+		
+	}
+	
 	private int getIndex(int x, int y, int z, int shift) {
 		x = x >> shift;
 		y = y >> shift;
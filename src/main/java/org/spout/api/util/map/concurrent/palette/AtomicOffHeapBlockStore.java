@@ -0,0 +1,91 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent.palette;
+
+import org.spout.api.util.map.concurrent.OffHeapArena;
+
+/**
+ * A palette block store which keeps its packed block array off-heap, in an {@link OffHeapArena}.<br>
+ * <br>
+ * Off-heap stores reduce the heap which must be scanned by the garbage collector when many chunks are loaded.  The store must be freed when its chunk is unloaded.
+ */
+public class AtomicOffHeapBlockStore extends AtomicPaletteBlockStore {
+	
+	private final AtomicOffHeapShortIntArray store;
+	
+	public AtomicOffHeapBlockStore(int shift, boolean storeState, int dirtySize) {
+		this(shift, storeState, dirtySize, false, OffHeapArena.getDefault());
+	}
+	
+	/**
+	 * Creates a store
+	 * 
+	 * @param shift log2(the side length of the store)
+	 * @param storeState true to store the old and new states of dirty blocks
+	 * @param dirtySize the length of the dirty arrays
+	 * @param dirtyBitSet true to also track dirty blocks in a bitset, which never overflows
+	 * @param arena the arena to allocate the packed array from
+	 */
+	public AtomicOffHeapBlockStore(int shift, boolean storeState, int dirtySize, boolean dirtyBitSet, OffHeapArena arena) {
+		this(shift, storeState, dirtySize, dirtyBitSet, new AtomicOffHeapShortIntArray(1 << (3 * shift), arena));
+	}
+	
+	public AtomicOffHeapBlockStore(int shift, boolean storeState, int dirtySize, boolean dirtyBitSet, OffHeapArena arena, int[] palette, int blockArrayWidth, int[] variableWidthBlockArray) {
+		this(shift, storeState, dirtySize, dirtyBitSet, arena);
+		store.set(palette, blockArrayWidth, variableWidthBlockArray);
+	}
+	
+	private AtomicOffHeapBlockStore(int shift, boolean storeState, int dirtySize, boolean dirtyBitSet, AtomicOffHeapShortIntArray store) {
+		super(shift, storeState, dirtySize, dirtyBitSet, store);
+		this.store = store;
+	}
+	
+	/**
+	 * Gets the off-heap memory used by the store
+	 * 
+	 * @return the memory used, in bytes
+	 */
+	public int getOffHeapBytes() {
+		return store.getOffHeapBytes();
+	}
+	
+	/**
+	 * Gets if the store has been freed
+	 * 
+	 * @return true if freed
+	 */
+	public boolean isFreed() {
+		return store.isFreed();
+	}
+	
+	/**
+	 * Releases the off-heap memory used by the store.  This should be called when the chunk is unloaded, the store cannot be used after it is freed.
+	 */
+	public void free() {
+		store.free();
+	}
+}
@@ -0,0 +1,601 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent.palette;
+
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.spout.api.util.concurrent.OptimisticReadWriteLock;
+import org.spout.api.util.map.concurrent.OffHeapArena;
+import org.spout.api.util.map.concurrent.OffHeapBlock;
+
+/**
+ * An integer array that has a short index.  The array is atomic and is backed by a palette, with the packed palette ids stored off-heap in an {@link OffHeapArena}.<br>
+ * <br>
+ * The array uses the same encodings as {@link AtomicShortIntArray}, uniform, a palette with a width of 1, 2, 4, 8 or 16 bits, or direct 32 bit values.  Only the palette is stored on the heap.<br>
+ * <br>
+ * The off-heap memory must be released by calling {@link #free()} when the array is no longer used.
+ */
+public class AtomicOffHeapShortIntArray implements AtomicShortIntStore {
+	
+	private final int length;
+	private final OffHeapArena arena;
+	
+	/**
+	 * The current encoding, or null once the array is freed.  When the encoding is replaced, the old packed block is freed.
+	 */
+	private volatile State state;
+	
+	/**
+	 * Locks<br>
+	 * Updates to the packed array take a shared hold on the lock, so multiple threads can update the array concurrently.<br>
+	 * Replacing the encoding holds the write lock.<br>
+	 * Reads do not lock.  A read checks that the encoding was not replaced while it was reading, since the old block may have been freed and reused.
+	 */
+	private final OptimisticReadWriteLock lock = new OptimisticReadWriteLock();
+	
+	/**
+	 * Creates an array in the default arena
+	 * 
+	 * @param length the length of the array
+	 */
+	public AtomicOffHeapShortIntArray(int length) {
+		this(length, OffHeapArena.getDefault());
+	}
+	
+	/**
+	 * Creates an array
+	 * 
+	 * @param length the length of the array
+	 * @param arena the arena to allocate the packed array from
+	 */
+	public AtomicOffHeapShortIntArray(int length, OffHeapArena arena) {
+		this.length = length;
+		this.arena = arena;
+		this.state = new State(0);
+	}
+	
+	@Override
+	public int width() {
+		int width = getState().width;
+		// Direct arrays report the same width as AtomicShortIntDirectBackingArray
+		return width == 32 ? AtomicShortIntPaletteBackingArray.roundUpWidth(length - 1) : width;
+	}
+	
+	@Override
+	public int length() {
+		return length;
+	}
+	
+	/**
+	 * Gets the off-heap memory used by the array
+	 * 
+	 * @return the memory used, in bytes
+	 */
+	public int getOffHeapBytes() {
+		State s = state;
+		return s == null || s.packed == null ? 0 : s.packed.capacity();
+	}
+	
+	@Override
+	public int get(int i) {
+		while (true) {
+			State s = getState();
+			int value = s.get(i);
+			if (state == s) {
+				return value;
+			}
+		}
+	}
+	
+	@Override
+	public int set(int i, int newValue) {
+		while (true) {
+			try {
+				lock.sharedLock();
+				try {
+					return getState().set(i, newValue);
+				} finally {
+					lock.sharedUnlock();
+				}
+			} catch (PaletteFullException pfe) {
+				lock.lock();
+				try {
+					try {
+						return getState().set(i, newValue);
+					} catch (PaletteFullException pfe2) {
+						expand();
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void set(int[] indexes, int[] values, int[] oldValues, int count) {
+		lock.lock();
+		try {
+			for (int j = 0; j < count; j++) {
+				while (true) {
+					try {
+						int old = getState().set(indexes[j], values[j]);
+						if (oldValues != null) {
+							oldValues[j] = old;
+						}
+						break;
+					} catch (PaletteFullException pfe) {
+						expand();
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public void get(int[] indexes, int[] values, int count) {
+		for (int j = 0; j < count; j++) {
+			values[j] = get(indexes[j]);
+		}
+	}
+	
+	@Override
+	public void unpackTo(int[] dest) {
+		while (true) {
+			State s = getState();
+			for (int i = 0; i < length; i++) {
+				dest[i] = s.get(i);
+			}
+			if (state == s) {
+				return;
+			}
+		}
+	}
+	
+	@Override
+	public int[] unpackPaletteIndexes(short[] dest) {
+		return null;
+	}
+	
+	@Override
+	public void set(int[] initial) {
+		if (initial.length != length) {
+			throw new IllegalArgumentException("Array length mismatch, expected " + length + ", got " + initial.length);
+		}
+		lock.lock();
+		try {
+			TIntHashSet inUse = new TIntHashSet();
+			for (int i = 0; i < length; i++) {
+				inUse.add(initial[i]);
+			}
+			replace(createState(inUse.size(), initial));
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public void set(int[] palette, int blockArrayWidth, int[] variableWidthBlockArray) {
+		lock.lock();
+		try {
+			State s;
+			if (palette.length == 0) {
+				s = new State(32);
+				s.copyPacked(variableWidthBlockArray);
+			} else if (palette.length == 1) {
+				s = new State(0);
+				s.uniformValue = palette[0];
+			} else {
+				s = new State(blockArrayWidth, palette.length);
+				for (int i = 0; i < palette.length; i++) {
+					s.palette.set(i, palette[i]);
+					s.idLookup.putIfAbsent(palette[i], (short) i);
+				}
+				s.paletteCounter.set(palette.length);
+				s.copyPacked(variableWidthBlockArray);
+			}
+			replace(s);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public boolean compareAndSet(int i, int expect, int update) {
+		while (true) {
+			try {
+				lock.sharedLock();
+				try {
+					return getState().compareAndSet(i, expect, update);
+				} finally {
+					lock.sharedUnlock();
+				}
+			} catch (PaletteFullException pfe) {
+				lock.lock();
+				try {
+					expand();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Gets if the array could be compressed.  The off-heap array does not track palette references, so this is true unless the array is uniform.
+	 * 
+	 * @return true if the array may be compressed
+	 */
+	@Override
+	public boolean needsCompression() {
+		return getState().width != 0;
+	}
+	
+	@Override
+	public void compress() {
+		compress(new TIntHashSet());
+	}
+	
+	@Override
+	public void compress(TIntHashSet inUseSet) {
+		lock.lock();
+		try {
+			State s = getState();
+			if (s.width == 0) {
+				return;
+			}
+			inUseSet.clear();
+			int[] values = new int[length];
+			for (int i = 0; i < length; i++) {
+				values[i] = s.get(i);
+				inUseSet.add(values[i]);
+			}
+			int unique = inUseSet.size();
+			if (unique > 1 && (AtomicShortIntPaletteBackingArray.roundUpWidth(unique - 1) >= width() || unique > AtomicShortIntPaletteBackingArray.getAllowedPalette(length))) {
+				return;
+			}
+			replace(createState(unique, values));
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public int[] getPalette() {
+		while (true) {
+			State s = getState();
+			int[] palette;
+			if (s.width == 0) {
+				palette = new int[] {s.uniformValue};
+			} else if (s.width == 32) {
+				palette = new int[0];
+			} else {
+				int size = Math.min(s.paletteCounter.get(), s.paletteSize);
+				palette = new int[size];
+				for (int i = 0; i < size; i++) {
+					palette[i] = s.palette.get(i);
+				}
+			}
+			if (state == s) {
+				return palette;
+			}
+		}
+	}
+	
+	@Override
+	public int[] getBackingArray() {
+		while (true) {
+			State s = getState();
+			int[] array = s.width == 0 ? new int[0] : s.packed.toIntArray();
+			if (state == s) {
+				return array;
+			}
+		}
+	}
+	
+	@Override
+	public void lock() {
+		lock.lock();
+	}
+	
+	@Override
+	public void unlock() {
+		lock.unlock();
+	}
+	
+	@Override
+	public boolean tryLock() {
+		return lock.tryLock();
+	}
+	
+	@Override
+	public boolean isUniform() {
+		return getState().width == 0;
+	}
+	
+	/**
+	 * Gets if the array has been freed
+	 * 
+	 * @return true if freed
+	 */
+	public boolean isFreed() {
+		return state == null;
+	}
+	
+	/**
+	 * Releases the off-heap memory used by the array.  The array cannot be used after it is freed.
+	 */
+	public void free() {
+		lock.lock();
+		try {
+			State s = getState();
+			state = null;
+			if (s.packed != null) {
+				s.packed.free();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private State getState() {
+		State s = state;
+		if (s == null) {
+			throw new IllegalStateException("Array has been freed");
+		}
+		return s;
+	}
+	
+	/**
+	 * Replaces the encoding with a wider encoding.  The write lock must be held.
+	 */
+	private void expand() {
+		State old = getState();
+		State s;
+		if (old.width == 0) {
+			s = new State(1, -1);
+			s.addToPalette(old.uniformValue);
+		} else if (old.maxPaletteSize) {
+			s = new State(32);
+		} else {
+			s = new State(old.width <= 8 ? (old.width << 1) : 16, -1);
+			int size = Math.min(old.paletteCounter.get(), old.paletteSize);
+			for (int i = 0; i < size; i++) {
+				s.addToPalette(old.palette.get(i));
+			}
+		}
+		for (int i = 0; i < length; i++) {
+			s.setNoFail(i, old.get(i));
+		}
+		replace(s);
+	}
+	
+	private State createState(int unique, int[] values) {
+		State s;
+		if (unique == 1) {
+			s = new State(0);
+			s.uniformValue = values[0];
+			return s;
+		} else if (unique > AtomicShortIntPaletteBackingArray.getAllowedPalette(length)) {
+			s = new State(32);
+		} else {
+			s = new State(AtomicShortIntPaletteBackingArray.roundUpWidth(unique - 1), -1);
+		}
+		for (int i = 0; i < length; i++) {
+			s.setNoFail(i, values[i]);
+		}
+		return s;
+	}
+	
+	/**
+	 * Publishes a new encoding and frees the old packed block.  The write lock must be held.
+	 */
+	private void replace(State s) {
+		State old = getState();
+		state = s;
+		if (old.packed != null) {
+			old.packed.free();
+		}
+	}
+	
+	/**
+	 * An encoding of the array.  Once published, only the packed ids and the allocated palette entries change
+	 */
+	private class State {
+		private final int width;
+		private final OffHeapBlock packed;
+		private final int indexShift;
+		private final int subIndexMask;
+		private final int valueMask;
+		private final int paletteSize;
+		private final boolean maxPaletteSize;
+		private final AtomicIntegerArray palette;
+		private final AtomicInteger paletteCounter;
+		private final AtomicIntShortSingleUseHashMap idLookup;
+		private int uniformValue;
+		
+		/**
+		 * Creates a uniform or direct encoding
+		 */
+		public State(int width) {
+			this.width = width;
+			this.paletteSize = 0;
+			this.maxPaletteSize = true;
+			this.palette = null;
+			this.paletteCounter = null;
+			this.idLookup = null;
+			this.indexShift = 0;
+			this.subIndexMask = 0;
+			this.valueMask = -1;
+			this.packed = width == 0 ? null : arena.allocate(length);
+		}
+		
+		/**
+		 * Creates a palette encoding
+		 * 
+		 * @param width the width of each packed id
+		 * @param paletteSize the size of the palette, or -1 to use the largest palette for the width
+		 */
+		public State(int width, int paletteSize) {
+			this.width = width;
+			int allowedPalette = AtomicShortIntPaletteBackingArray.getAllowedPalette(length);
+			if (paletteSize < 0) {
+				paletteSize = Math.min(AtomicShortIntPaletteBackingArray.widthToPaletteSize(width), allowedPalette);
+			}
+			this.paletteSize = paletteSize;
+			this.maxPaletteSize = paletteSize >= allowedPalette;
+			this.palette = new AtomicIntegerArray(paletteSize);
+			this.paletteCounter = new AtomicInteger(0);
+			this.idLookup = new AtomicIntShortSingleUseHashMap(paletteSize + (paletteSize >> 2));
+			this.indexShift = 5 - Integer.numberOfTrailingZeros(width);
+			this.subIndexMask = (1 << indexShift) - 1;
+			this.valueMask = (1 << width) - 1;
+			int valuesPerInt = 32 / width;
+			if (length % valuesPerInt != 0) {
+				throw new IllegalArgumentException("The length must be a multiple of " + valuesPerInt + " for arrays of width " + width);
+			}
+			this.packed = arena.allocate(length / valuesPerInt);
+		}
+		
+		public int get(int i) {
+			if (width == 0) {
+				return uniformValue;
+			} else if (width == 32) {
+				return packed.get(i);
+			}
+			int id = (packed.get(i >> indexShift) >>> ((i & subIndexMask) * width)) & valueMask;
+			// The id may be invalid if the block was freed during the read, the caller checks for that
+			return id < paletteSize ? palette.get(id) : 0;
+		}
+		
+		public int set(int i, int value) throws PaletteFullException {
+			if (width == 0) {
+				if (value != uniformValue) {
+					throw AtomicShortIntBackingArray.paletteFull;
+				}
+				return value;
+			} else if (width == 32) {
+				while (true) {
+					int old = packed.get(i);
+					if (packed.compareAndSet(i, old, value)) {
+						return old;
+					}
+				}
+			}
+			int id = getId(value);
+			int index = i >> indexShift;
+			int shift = (i & subIndexMask) * width;
+			while (true) {
+				int prev = packed.get(index);
+				int next = (prev & ~(valueMask << shift)) | (id << shift);
+				if (packed.compareAndSet(index, prev, next)) {
+					return palette.get((prev >>> shift) & valueMask);
+				}
+			}
+		}
+		
+		public boolean compareAndSet(int i, int expect, int update) throws PaletteFullException {
+			if (width == 0) {
+				if (expect != uniformValue) {
+					return false;
+				} else if (expect != update) {
+					throw AtomicShortIntBackingArray.paletteFull;
+				}
+				return true;
+			} else if (width == 32) {
+				return packed.compareAndSet(i, expect, update);
+			}
+			short expId = idLookup.get(expect);
+			if (idLookup.isEmptyValue(expId)) {
+				return false;
+			}
+			int newId = getId(update);
+			int index = i >> indexShift;
+			int shift = (i & subIndexMask) * width;
+			while (true) {
+				int prev = packed.get(index);
+				if (((prev >>> shift) & valueMask) != expId) {
+					return false;
+				}
+				int next = (prev & ~(valueMask << shift)) | (newId << shift);
+				if (packed.compareAndSet(index, prev, next)) {
+					return true;
+				}
+			}
+		}
+		
+		public void setNoFail(int i, int value) {
+			try {
+				set(i, value);
+			} catch (PaletteFullException pfe) {
+				throw new IllegalStateException("Unable to copy old array to new array, as palette was filled, length " + length + ", paletteSize " + paletteSize);
+			}
+		}
+		
+		public void addToPalette(int value) {
+			try {
+				getId(value);
+			} catch (PaletteFullException pfe) {
+				throw new IllegalStateException("Unable to copy old palette to new palette, as palette was filled, paletteSize " + paletteSize);
+			}
+		}
+		
+		public void copyPacked(int[] values) {
+			if (values.length != packed.length()) {
+				throw new IllegalArgumentException("Length of packed array did not match expected");
+			}
+			for (int i = 0; i < values.length; i++) {
+				packed.set(i, values[i]);
+			}
+		}
+		
+		/**
+		 * Gets the id for the given value, allocating an id if required
+		 */
+		public int getId(int value) throws PaletteFullException {
+			short id = idLookup.get(value);
+			if (!idLookup.isEmptyValue(id)) {
+				return id;
+			}
+			id = (short) paletteCounter.getAndIncrement();
+			if (id >= paletteSize) {
+				throw AtomicShortIntBackingArray.paletteFull;
+			}
+			short oldId = idLookup.putIfAbsent(value, id);
+			if (!idLookup.isEmptyValue(oldId)) {
+				id = oldId;
+			}
+			palette.set(id, value);
+			return id;
+		}
+	}
+}
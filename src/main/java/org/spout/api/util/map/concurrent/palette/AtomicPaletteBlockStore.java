@@ -29,28 +29,46 @@ package org.spout.api.util.map.concurrent.palette;
 import gnu.trove.set.hash.TIntHashSet;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.spout.api.material.Material;
 import org.spout.api.material.block.BlockFullState;
 import org.spout.api.material.source.MaterialSource;
 import org.spout.api.math.Vector3;
 import org.spout.api.render.RenderMaterial;
+import org.spout.api.util.IntTripleConsumer;
+import org.spout.api.util.cuboid.CuboidBlockMaterialBuffer;
 import org.spout.api.util.map.concurrent.AtomicBlockStore;
+import org.spout.api.util.map.concurrent.AtomicDirtyBlockSet;
+import org.spout.api.util.map.concurrent.BlockStoreSnapshot;
 
 public class AtomicPaletteBlockStore implements AtomicBlockStore {
 	
+	/**
+	 * The number of times a snapshot is attempted without locking, before the store is locked
+	 */
+	private static final int SNAPSHOT_ATTEMPTS = 4;
+	
 	private final int side;
 	private final int shift;
 	private final int doubleShift;
 	private final int length;
 	private final boolean storeState;
-	private final AtomicShortIntArray store;
+	private final AtomicShortIntStore store;
 	private final byte[] dirtyX;
 	private final byte[] dirtyY;
 	private final byte[] dirtyZ;
 	private final int[] newState;
 	private final int[] oldState;
 	private final AtomicInteger dirtyBlocks = new AtomicInteger(0);
+	private final AtomicDirtyBlockSet dirtySet;
+	/**
+	 * Writes increment writesStarted before changing the store and writesCompleted afterwards, so a reader can tell if a write overlapped a copy
+	 */
+	private final AtomicLong writesStarted = new AtomicLong(0);
+	private final AtomicLong writesCompleted = new AtomicLong(0);
+	private final AtomicReference<BlockStoreSnapshot> snapshot = new AtomicReference<BlockStoreSnapshot>();
 	
 	public AtomicPaletteBlockStore(int shift, boolean storeState) {
 		this(shift, storeState, 10);
@@ -61,11 +79,39 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 	}
 	
 	public AtomicPaletteBlockStore(int shift, boolean storeState, int dirtySize) {
+		this(shift, storeState, dirtySize, false);
+	}
+	
+	/**
+	 * Creates a store
+	 * 
+	 * @param shift log2(the side length of the store)
+	 * @param storeState true to store the old and new states of dirty blocks
+	 * @param dirtySize the length of the dirty arrays
+	 * @param dirtyBitSet true to also track dirty blocks in a bitset, which never overflows
+	 */
+	public AtomicPaletteBlockStore(int shift, boolean storeState, int dirtySize, boolean dirtyBitSet) {
+		this(shift, storeState, dirtySize, dirtyBitSet, new AtomicShortIntArray(1 << (3 * shift)));
+	}
+	
+	/**
+	 * Creates a store which is backed by the given array
+	 * 
+	 * @param shift log2(the side length of the store)
+	 * @param storeState true to store the old and new states of dirty blocks
+	 * @param dirtySize the length of the dirty arrays
+	 * @param dirtyBitSet true to also track dirty blocks in a bitset, which never overflows
+	 * @param store the backing array, with a length of side * side * side
+	 */
+	protected AtomicPaletteBlockStore(int shift, boolean storeState, int dirtySize, boolean dirtyBitSet, AtomicShortIntStore store) {
 		this.side = 1 << shift;
 		this.shift = shift;
 		this.doubleShift = shift << 1;
 		int size = side * side * side;
-		store = new AtomicShortIntArray(size);
+		if (store.length() != size) {
+			throw new IllegalArgumentException("Backing array length mismatch, expected " + size + ", got " + store.length());
+		}
+		this.store = store;
 		this.length = size;
 		this.storeState = storeState;
 		dirtyX = new byte[dirtySize];
@@ -78,6 +124,7 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 			oldState = null;
 			newState = null;
 		}
+		dirtySet = dirtyBitSet ? new AtomicDirtyBlockSet(shift) : null;
 	}
 
 	public AtomicPaletteBlockStore(int shift, boolean storeState, int dirtySize, short[] initial) {
@@ -97,7 +144,11 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 	}
 	
 	public AtomicPaletteBlockStore(int shift, boolean storeState, int dirtySize, int[] palette, int blockArrayWidth, int[] variableWidthBlockArray) {
-		this(shift, storeState, dirtySize);
+		this(shift, storeState, dirtySize, false, palette, blockArrayWidth, variableWidthBlockArray);
+	}
+	
+	public AtomicPaletteBlockStore(int shift, boolean storeState, int dirtySize, boolean dirtyBitSet, int[] palette, int blockArrayWidth, int[] variableWidthBlockArray) {
+		this(shift, storeState, dirtySize, dirtyBitSet);
 		store.set(palette, blockArrayWidth, variableWidthBlockArray);
 	}
 	
@@ -115,9 +166,11 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 	public int getAndSetBlock(int x, int y, int z, short id, short data) {
 		int oldState = BlockFullState.getPacked(id, data);
 		int newState = 0;
+		writesStarted.incrementAndGet();
 		try {
 			return newState = store.set(getIndex(x, y, z), oldState);
 		} finally {
+			writesCompleted.incrementAndGet();
 			markDirty(x, y, z, oldState, newState);
 		}
 	}
@@ -159,7 +212,13 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 	public boolean compareAndSetBlock(int x, int y, int z, short expectId, short expectData, short newId, short newData) {
 		int exp = BlockFullState.getPacked(expectId, expectData);
 		int update = BlockFullState.getPacked(newId, newData);
-		boolean success = store.compareAndSet(getIndex(x, y, z), exp, update);
+		boolean success;
+		writesStarted.incrementAndGet();
+		try {
+			success = store.compareAndSet(getIndex(x, y, z), exp, update);
+		} finally {
+			writesCompleted.incrementAndGet();
+		}
 		if (success && exp != update) {
 			markDirty(x, y, z, exp, update);
 		}
@@ -167,11 +226,132 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 	}
 
 	@Override
-	public boolean needsCompression() {
-		// TODO - needs removal or optimisation
+	public boolean compareAndSetBlocks(int[] indexes, int[] expect, int[] update, int count) {
+		if (count == 0) {
+			return true;
+		}
+		int[] oldStates = new int[count];
+		store.lock();
+		try {
+			for (int j = 0; j < count; j++) {
+				if (store.get(indexes[j]) != expect[j]) {
+					return false;
+				}
+			}
+			writesStarted.incrementAndGet();
+			try {
+				store.set(indexes, update, oldStates, count);
+			} finally {
+				writesCompleted.incrementAndGet();
+			}
+		} finally {
+			store.unlock();
+		}
+		markDirty(indexes, oldStates, update, count);
 		return true;
 	}
 
+	@Override
+	public int setBlocks(int x, int y, int z, CuboidBlockMaterialBuffer buffer) {
+		int count = getOverlap(x, y, z, buffer);
+		if (count == 0) {
+			return 0;
+		}
+		int[] indexes = new int[count];
+		int[] newStates = new int[count];
+		int[] oldStates = new int[count];
+		short[] ids = buffer.getRawId();
+		short[] data = buffer.getRawData();
+		int[] bufferIndexes = getOverlapIndexes(x, y, z, buffer, indexes, count);
+		for (int j = 0; j < count; j++) {
+			int bufferIndex = bufferIndexes[j];
+			newStates[j] = BlockFullState.getPacked(ids[bufferIndex], data[bufferIndex]);
+		}
+		writesStarted.incrementAndGet();
+		try {
+			store.set(indexes, newStates, oldStates, count);
+		} finally {
+			writesCompleted.incrementAndGet();
+		}
+		return markDirty(indexes, oldStates, newStates, count);
+	}
+
+	@Override
+	public void getBlocks(int x, int y, int z, CuboidBlockMaterialBuffer buffer) {
+		int count = getOverlap(x, y, z, buffer);
+		if (count == 0) {
+			return;
+		}
+		int[] indexes = new int[count];
+		int[] states = new int[count];
+		short[] ids = buffer.getRawId();
+		short[] data = buffer.getRawData();
+		int[] bufferIndexes = getOverlapIndexes(x, y, z, buffer, indexes, count);
+		store.get(indexes, states, count);
+		for (int j = 0; j < count; j++) {
+			int bufferIndex = bufferIndexes[j];
+			ids[bufferIndex] = BlockFullState.getId(states[j]);
+			data[bufferIndex] = BlockFullState.getData(states[j]);
+		}
+	}
+
+	/**
+	 * Gets the number of blocks in the overlap between this store and a buffer
+	 */
+	private int getOverlap(int x, int y, int z, CuboidBlockMaterialBuffer buffer) {
+		Vector3 base = buffer.getBase();
+		Vector3 size = buffer.getSize();
+		int sx = getOverlap(base.getFloorX() - x, size.getFloorX());
+		int sy = getOverlap(base.getFloorY() - y, size.getFloorY());
+		int sz = getOverlap(base.getFloorZ() - z, size.getFloorZ());
+		return sx * sy * sz;
+	}
+
+	private int getOverlap(int base, int size) {
+		int start = Math.max(0, base);
+		int end = Math.min(side, base + size);
+		return Math.max(0, end - start);
+	}
+
+	/**
+	 * Fills an array with the store indexes of the overlap between this store and a buffer, in store order
+	 * 
+	 * @return the matching buffer indexes
+	 */
+	private int[] getOverlapIndexes(int x, int y, int z, CuboidBlockMaterialBuffer buffer, int[] indexes, int count) {
+		Vector3 base = buffer.getBase();
+		Vector3 size = buffer.getSize();
+		int bx = base.getFloorX() - x;
+		int by = base.getFloorY() - y;
+		int bz = base.getFloorZ() - z;
+		int sizeX = size.getFloorX();
+		int sizeZ = size.getFloorZ();
+		int startX = Math.max(0, bx);
+		int startY = Math.max(0, by);
+		int startZ = Math.max(0, bz);
+		int endX = Math.min(side, bx + sizeX);
+		int endY = Math.min(side, by + size.getFloorY());
+		int endZ = Math.min(side, bz + sizeZ);
+		int[] bufferIndexes = new int[count];
+		int j = 0;
+		for (int yy = startY; yy < endY; yy++) {
+			for (int zz = startZ; zz < endZ; zz++) {
+				int index = getIndex(startX, yy, zz);
+				int bufferIndex = ((yy - by) * sizeZ + (zz - bz)) * sizeX + (startX - bx);
+				for (int xx = startX; xx < endX; xx++) {
+					indexes[j] = index++;
+					bufferIndexes[j++] = bufferIndex++;
+				}
+			}
+		}
+		return bufferIndexes;
+	}
+
+	@Override
+	public boolean needsCompression() {
+		return store.needsCompression();
+	}
+
 	@Override
 	public short[] getBlockIdArray() {
 		return getBlockIdArray(new short[length]);
@@ -179,13 +359,7 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 
 	@Override
 	public short[] getBlockIdArray(short[] array) {
-		if (array.length != length) {
-			array = new short[length];
-		}
-		for (int i = 0; i < length; i++) {
-			array[i] = BlockFullState.getId(store.get(i));
-		}
-		return array;
+		return unpackTo(array, false);
 	}
 
 	@Override
@@ -195,11 +369,31 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 
 	@Override
 	public short[] getDataArray(short[] array) {
+		return unpackTo(array, true);
+	}
+	
+	/**
+	 * Copies the block ids or data into an array.  If the store uses a palette, the palette indexes are unpacked directly into the array and then mapped to ids or data.
+	 */
+	private short[] unpackTo(short[] array, boolean data) {
 		if (array.length != length) {
 			array = new short[length];
 		}
-		for (int i = 0; i < length; i++) {
-			array[i] = BlockFullState.getData(store.get(i));
+		int[] palette = store.unpackPaletteIndexes(array);
+		if (palette != null) {
+			short[] lookup = new short[palette.length];
+			for (int i = 0; i < palette.length; i++) {
+				lookup[i] = data ? BlockFullState.getData(palette[i]) : BlockFullState.getId(palette[i]);
+			}
+			for (int i = 0; i < length; i++) {
+				array[i] = lookup[array[i] & 0xFFFF];
+			}
+		} else {
+			int[] states = new int[length];
+			store.unpackTo(states);
+			for (int i = 0; i < length; i++) {
+				array[i] = data ? BlockFullState.getData(states[i]) : BlockFullState.getId(states[i]);
+			}
 		}
 		return array;
 	}
@@ -211,7 +405,65 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 	
 	@Override
 	public void compress(TIntHashSet inUseSet) {
-		store.compress(inUseSet);
+		// Compression changes the palette and width, so it counts as a write for snapshots
+		writesStarted.incrementAndGet();
+		try {
+			store.compress(inUseSet);
+		} finally {
+			writesCompleted.incrementAndGet();
+		}
+	}
+
+	@Override
+	public long getVersion() {
+		return writesCompleted.get();
+	}
+	
+	@Override
+	public BlockStoreSnapshot getSnapshot() {
+		BlockStoreSnapshot cached = snapshot.get();
+		if (cached != null && cached.getVersion() == writesCompleted.get()) {
+			return cached;
+		}
+		for (int i = 0; i < SNAPSHOT_ATTEMPTS; i++) {
+			long version = writesCompleted.get();
+			if (writesStarted.get() != version) {
+				Thread.yield();
+				continue;
+			}
+			BlockStoreSnapshot copy = copySnapshot(version);
+			if (writesStarted.get() == version) {
+				return cacheSnapshot(copy);
+			}
+		}
+		store.lock();
+		try {
+			return cacheSnapshot(copySnapshot(writesCompleted.get()));
+		} finally {
+			store.unlock();
+		}
+	}
+	
+	/**
+	 * Copies the store into a snapshot.  The copy is discarded by the caller if a write started while it was being made.
+	 * 
+	 * @param version the version of the snapshot
+	 * @return the snapshot
+	 */
+	protected BlockStoreSnapshot copySnapshot(long version) {
+		return new BlockStoreSnapshot(shift, version, store.getPalette(), store.width(), store.getBackingArray());
+	}
+	
+	private BlockStoreSnapshot cacheSnapshot(BlockStoreSnapshot copy) {
+		while (true) {
+			BlockStoreSnapshot cached = snapshot.get();
+			if (cached != null && cached.getVersion() >= copy.getVersion()) {
+				return cached.getVersion() == copy.getVersion() ? cached : copy;
+			}
+			if (snapshot.compareAndSet(cached, copy)) {
+				return copy;
+			}
+		}
 	}
 
 	@Override
@@ -226,6 +478,9 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 
 	@Override
 	public boolean resetDirtyArrays() {
+		if (dirtySet != null) {
+			dirtySet.drain(null);
+		}
 		return dirtyBlocks.getAndSet(0) > 0;
 	}
 	
@@ -261,7 +516,35 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 		return newState[i];
 	}
 
+	@Override
+	public boolean forEachDirty(IntTripleConsumer consumer) {
+		if (dirtySet != null) {
+			dirtySet.forEachDirty(consumer);
+			return true;
+		}
+		int count = dirtyBlocks.get();
+		if (count > dirtyX.length) {
+			return false;
+		}
+		for (int i = 0; i < count; i++) {
+			consumer.accept(dirtyX[i] & 0xFF, dirtyY[i] & 0xFF, dirtyZ[i] & 0xFF);
+		}
+		return true;
+	}
+	
+	/**
+	 * Gets the dirty block bitset, which includes per-section summary bits
+	 * 
+	 * @return the bitset, or null if the store was created without one
+	 */
+	public AtomicDirtyBlockSet getDirtySet() {
+		return dirtySet;
+	}
+
 	public void markDirty(int x, int y, int z, int oldState, int newState) {
+		if (dirtySet != null) {
+			dirtySet.mark(x, y, z);
+		}
 		int index = incrementDirtyIndex();
 		if (index < dirtyX.length) {
 			dirtyX[index] = (byte) x;
@@ -274,6 +557,62 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 		}
 	}
 	
+	/**
+	 * Marks the blocks which changed as dirty, reserving space in the dirty arrays for all of them at once
+	 * 
+	 * @param indexes the block indexes
+	 * @param oldStates the old states of the blocks
+	 * @param newStates the new states of the blocks
+	 * @param count the number of blocks
+	 * @return the number of blocks which changed
+	 */
+	private int markDirty(int[] indexes, int[] oldStates, int[] newStates, int count) {
+		int changed = 0;
+		for (int j = 0; j < count; j++) {
+			if (oldStates[j] != newStates[j]) {
+				changed++;
+			}
+		}
+		if (changed == 0) {
+			return 0;
+		}
+		if (dirtySet != null) {
+			for (int j = 0; j < count; j++) {
+				if (oldStates[j] != newStates[j]) {
+					dirtySet.mark(indexes[j]);
+				}
+			}
+		}
+		int start;
+		int end;
+		while (true) {
+			start = dirtyBlocks.get();
+			if (start > dirtyX.length) {
+				return changed;
+			}
+			end = Math.min(start + changed, dirtyX.length + 1);
+			if (dirtyBlocks.compareAndSet(start, end)) {
+				break;
+			}
+		}
+		end = Math.min(end, dirtyX.length);
+		int mask = side - 1;
+		for (int j = 0; j < count && start < end; j++) {
+			if (oldStates[j] != newStates[j]) {
+				int index = indexes[j];
+				dirtyX[start] = (byte) (index & mask);
+				dirtyY[start] = (byte) (index >> doubleShift);
+				dirtyZ[start] = (byte) ((index >> shift) & mask);
+				if (this.oldState != null) {
+					this.oldState[start] = oldStates[j];
+					this.newState[start] = newStates[j];
+				}
+				start++;
+			}
+		}
+		return changed;
+	}
+	
 	public int incrementDirtyIndex() {
 		boolean success = false;
 		int index = -1;
@@ -0,0 +1,140 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent.palette;
+
+import org.spout.api.material.block.BlockFullState;
+import org.spout.api.util.map.concurrent.BlockStoreSnapshot;
+
+/**
+ * A palette block store which splits the cube into smaller sections, each with its own uniform, palette or direct encoding.<br>
+ * <br>
+ * Sections of 4x4x4 or 8x8x8 blocks allow mostly uniform chunks, such as chunks of air with a few blocks, to use much less memory than a single palette array.
+ */
+public class AtomicSectionedBlockStore extends AtomicPaletteBlockStore {
+	
+	private final int shift;
+	private final int doubleShift;
+	private final AtomicSectionedShortIntArray sections;
+	
+	public AtomicSectionedBlockStore(int shift, int sectionShift, boolean storeState, int dirtySize) {
+		this(shift, sectionShift, storeState, dirtySize, false);
+	}
+	
+	/**
+	 * Creates a store
+	 * 
+	 * @param shift log2(the side length of the store)
+	 * @param sectionShift log2(the side length of each section), between 2 and shift
+	 * @param storeState true to store the old and new states of dirty blocks
+	 * @param dirtySize the length of the dirty arrays
+	 * @param dirtyBitSet true to also track dirty blocks in a bitset, which never overflows
+	 */
+	public AtomicSectionedBlockStore(int shift, int sectionShift, boolean storeState, int dirtySize, boolean dirtyBitSet) {
+		this(shift, storeState, dirtySize, dirtyBitSet, new AtomicSectionedShortIntArray(shift, sectionShift));
+	}
+	
+	public AtomicSectionedBlockStore(int shift, int sectionShift, boolean storeState, int dirtySize, boolean dirtyBitSet, int[] palette, int blockArrayWidth, int[] variableWidthBlockArray) {
+		this(shift, sectionShift, storeState, dirtySize, dirtyBitSet);
+		sections.set(palette, blockArrayWidth, variableWidthBlockArray);
+	}
+	
+	private AtomicSectionedBlockStore(int shift, boolean storeState, int dirtySize, boolean dirtyBitSet, AtomicSectionedShortIntArray sections) {
+		super(shift, storeState, dirtySize, dirtyBitSet, sections);
+		this.shift = shift;
+		this.doubleShift = shift << 1;
+		this.sections = sections;
+	}
+	
+	/**
+	 * Gets the number of sections which store a single value
+	 * 
+	 * @return the number of uniform sections
+	 */
+	public int getUniformSections() {
+		int uniform = 0;
+		for (int s = 0; s < sections.getSectionCount(); s++) {
+			if (sections.isSectionUniform(s)) {
+				uniform++;
+			}
+		}
+		return uniform;
+	}
+	
+	/**
+	 * Copies the store into a snapshot.  The sections are exported once, rather than once each for the palette, width and packed array.
+	 */
+	@Override
+	protected BlockStoreSnapshot copySnapshot(long version) {
+		AtomicShortIntArray exported = sections.export();
+		return new BlockStoreSnapshot(shift, version, exported.getPalette(), exported.width(), exported.getBackingArray());
+	}
+	
+	@Override
+	public short[] getBlockIdArray(short[] array) {
+		return copyTo(array, false);
+	}
+	
+	@Override
+	public short[] getDataArray(short[] array) {
+		return copyTo(array, true);
+	}
+	
+	/**
+	 * Copies the block ids or data into an array.  Uniform sections are filled without reading each element.
+	 */
+	private short[] copyTo(short[] array, boolean data) {
+		int length = sections.length();
+		if (array.length != length) {
+			array = new short[length];
+		}
+		int sectionSide = 1 << sections.getSectionShift();
+		for (int s = 0; s < sections.getSectionCount(); s++) {
+			AtomicShortIntBackingArray section = sections.getSection(s);
+			int base = sections.getSectionBase(s);
+			boolean uniform = section instanceof AtomicShortIntUniformBackingArray;
+			int state = section.get(0);
+			short value = data ? BlockFullState.getData(state) : BlockFullState.getId(state);
+			int local = 0;
+			for (int y = 0; y < sectionSide; y++) {
+				for (int z = 0; z < sectionSide; z++) {
+					int index = base + (y << doubleShift) + (z << shift);
+					if (uniform) {
+						for (int x = 0; x < sectionSide; x++) {
+							array[index++] = value;
+						}
+					} else {
+						for (int x = 0; x < sectionSide; x++) {
+							state = section.get(local++);
+							array[index++] = data ? BlockFullState.getData(state) : BlockFullState.getId(state);
+						}
+					}
+				}
+			}
+		}
+		return array;
+	}
+}
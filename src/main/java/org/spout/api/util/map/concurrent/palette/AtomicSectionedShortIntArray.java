@@ -0,0 +1,477 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent.palette;
+
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.spout.api.util.concurrent.OptimisticReadWriteLock;
+
+/**
+ * An integer array that has a short index and represents a cube.  The cube is split into smaller cubic sections and each section has its own backing array.<br>
+ * <br>
+ * Uniform sections only store a single value, and sections with few values use a narrow palette, so mostly uniform cubes use very little memory.  
+ * Sections containing zero share a single backing array.<br>
+ * <br>
+ * Elements are indexed in the same order as the whole cube, (y << (2 * shift)) + (z << shift) + x.
+ */
+public class AtomicSectionedShortIntArray implements AtomicShortIntStore {
+
+	private final int shift;
+	private final int doubleShift;
+	private final int mask;
+	private final int sectionShift;
+	private final int sectionDoubleShift;
+	private final int sectionMask;
+	private final int sectionsShift;
+	private final int sectionsDoubleShift;
+	private final int sectionLength;
+	private final int length;
+	private final AtomicShortIntBackingArray emptySection;
+	private final AtomicReferenceArray<AtomicShortIntBackingArray> sections;
+
+	/**
+	 * Locks<br>
+	 * Updates to a section take a shared hold on the lock, so multiple threads can update the array concurrently.<br>
+	 * Replacing a section holds the write lock.
+	 * Reads to the array are atomic and do not require any locking.
+	 */
+	private final OptimisticReadWriteLock lock = new OptimisticReadWriteLock();
+
+	/**
+	 * Creates an array for a cube
+	 * 
+	 * @param shift log2(the side length of the cube)
+	 * @param sectionShift log2(the side length of each section), between 2 and shift
+	 */
+	public AtomicSectionedShortIntArray(int shift, int sectionShift) {
+		if (sectionShift < 2 || sectionShift > shift) {
+			throw new IllegalArgumentException("Section shift must be between 2 and " + shift + ", got " + sectionShift);
+		}
+		this.shift = shift;
+		this.doubleShift = shift << 1;
+		this.mask = (1 << shift) - 1;
+		this.sectionShift = sectionShift;
+		this.sectionDoubleShift = sectionShift << 1;
+		this.sectionMask = (1 << sectionShift) - 1;
+		this.sectionsShift = shift - sectionShift;
+		this.sectionsDoubleShift = sectionsShift << 1;
+		this.sectionLength = 1 << (3 * sectionShift);
+		this.length = 1 << (3 * shift);
+		this.emptySection = new AtomicShortIntUniformBackingArray(sectionLength);
+		this.sections = new AtomicReferenceArray<AtomicShortIntBackingArray>(1 << (3 * sectionsShift));
+		for (int s = 0; s < sections.length(); s++) {
+			sections.set(s, emptySection);
+		}
+	}
+
+	/**
+	 * Gets the width of the packed array for the whole cube.  The packed array is recalculated for each call, so {@link #export()} 
+	 * should be used when more than one of the width, palette and packed array is needed.
+	 * 
+	 * @return the width
+	 */
+	@Override
+	public int width() {
+		return export().width();
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Gets the number of sections
+	 * 
+	 * @return the number of sections
+	 */
+	public int getSectionCount() {
+		return sections.length();
+	}
+
+	/**
+	 * Gets log2(the side length of each section)
+	 * 
+	 * @return the section shift
+	 */
+	public int getSectionShift() {
+		return sectionShift;
+	}
+
+	/**
+	 * Gets the backing array for a section.  Elements in the section are indexed in the same order as the cube, but relative to the section.
+	 * 
+	 * @param s the section index
+	 * @return the backing array
+	 */
+	AtomicShortIntBackingArray getSection(int s) {
+		return sections.get(s);
+	}
+
+	/**
+	 * Gets if a section is uniform
+	 * 
+	 * @param s the section index
+	 * @return true if the section stores a single value
+	 */
+	public boolean isSectionUniform(int s) {
+		return sections.get(s) instanceof AtomicShortIntUniformBackingArray;
+	}
+
+	/**
+	 * Gets the index of the first element of a section, in the cube
+	 * 
+	 * @param s the section index
+	 * @return the index
+	 */
+	public int getSectionBase(int s) {
+		int sectionsMask = (1 << sectionsShift) - 1;
+		int x = (s & sectionsMask) << sectionShift;
+		int z = ((s >> sectionsShift) & sectionsMask) << sectionShift;
+		int y = (s >> sectionsDoubleShift) << sectionShift;
+		return (y << doubleShift) + (z << shift) + x;
+	}
+
+	@Override
+	public int get(int i) {
+		return sections.get(getSectionIndex(i)).get(getLocalIndex(i));
+	}
+
+	@Override
+	public int set(int i, int newValue) {
+		int s = getSectionIndex(i);
+		int local = getLocalIndex(i);
+		while (true) {
+			try {
+				lock.sharedLock();
+				try {
+					return sections.get(s).set(local, newValue);
+				} finally {
+					lock.sharedUnlock();
+				}
+			} catch (PaletteFullException pfe) {
+				lock.lock();
+				try {
+					try {
+						return sections.get(s).set(local, newValue);
+					} catch (PaletteFullException pfe2) {
+						expand(s);
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void set(int[] indexes, int[] values, int[] oldValues, int count) {
+		lock.lock();
+		try {
+			for (int j = 0; j < count; j++) {
+				int s = getSectionIndex(indexes[j]);
+				int local = getLocalIndex(indexes[j]);
+				while (true) {
+					try {
+						int old = sections.get(s).set(local, values[j]);
+						if (oldValues != null) {
+							oldValues[j] = old;
+						}
+						break;
+					} catch (PaletteFullException pfe) {
+						expand(s);
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void get(int[] indexes, int[] values, int count) {
+		for (int j = 0; j < count; j++) {
+			values[j] = get(indexes[j]);
+		}
+	}
+
+	@Override
+	public void unpackTo(int[] dest) {
+		int[] values = new int[sectionLength];
+		for (int s = 0; s < sections.length(); s++) {
+			sections.get(s).unpackTo(values);
+			int base = getSectionBase(s);
+			int local = 0;
+			for (int y = 0; y <= sectionMask; y++) {
+				for (int z = 0; z <= sectionMask; z++) {
+					int index = base + (y << doubleShift) + (z << shift);
+					for (int x = 0; x <= sectionMask; x++) {
+						dest[index++] = values[local++];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Each section has its own palette, so there is no single palette for the array
+	 * 
+	 * @return null
+	 */
+	@Override
+	public int[] unpackPaletteIndexes(short[] dest) {
+		return null;
+	}
+
+	@Override
+	public void set(int[] initial) {
+		if (initial.length != length) {
+			throw new IllegalArgumentException("Array length mismatch, expected " + length + ", got " + initial.length);
+		}
+		lock.lock();
+		try {
+			int[] values = new int[sectionLength];
+			for (int s = 0; s < sections.length(); s++) {
+				int base = getSectionBase(s);
+				int local = 0;
+				for (int y = 0; y <= sectionMask; y++) {
+					for (int z = 0; z <= sectionMask; z++) {
+						int index = base + (y << doubleShift) + (z << shift);
+						for (int x = 0; x <= sectionMask; x++) {
+							values[local++] = initial[index++];
+						}
+					}
+				}
+				sections.set(s, createSection(values));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void set(int[] palette, int blockArrayWidth, int[] variableWidthBlockArray) {
+		AtomicShortIntArray decoded = new AtomicShortIntArray(length);
+		decoded.set(palette, blockArrayWidth, variableWidthBlockArray);
+		int[] initial = new int[length];
+		for (int i = 0; i < length; i++) {
+			initial[i] = decoded.get(i);
+		}
+		set(initial);
+	}
+
+	@Override
+	public boolean compareAndSet(int i, int expect, int update) {
+		int s = getSectionIndex(i);
+		int local = getLocalIndex(i);
+		while (true) {
+			try {
+				lock.sharedLock();
+				try {
+					return sections.get(s).compareAndSet(local, expect, update);
+				} finally {
+					lock.sharedUnlock();
+				}
+			} catch (PaletteFullException pfe) {
+				lock.lock();
+				try {
+					expand(s);
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean needsCompression() {
+		for (int s = 0; s < sections.length(); s++) {
+			if (sectionNeedsCompression(sections.get(s))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean sectionNeedsCompression(AtomicShortIntBackingArray section) {
+		// Sections which contain a single value are replaced by uniform sections, even when they are already narrow
+		return section.needsCompression() || (section.width() > 0 && section.getUsedPaletteEntries() == 1);
+	}
+
+	@Override
+	public void compress() {
+		compress(new TIntHashSet());
+	}
+
+	/**
+	 * Attempts to compress each section.  Sections which contain a single value become uniform.
+	 * 
+	 * @param inUseSet set to use to store used ids
+	 */
+	@Override
+	public void compress(TIntHashSet inUseSet) {
+		lock.lock();
+		try {
+			for (int s = 0; s < sections.length(); s++) {
+				AtomicShortIntBackingArray section = sections.get(s);
+				if (!sectionNeedsCompression(section)) {
+					continue;
+				}
+				int unique = section.getUsedPaletteEntries();
+				if (unique < 0) {
+					unique = section.getUnique(inUseSet);
+				}
+				if (unique == 1) {
+					sections.set(s, createUniform(section.get(0)));
+				} else if (AtomicShortIntPaletteBackingArray.roundUpWidth(unique - 1) < section.width() && unique <= AtomicShortIntPaletteBackingArray.getAllowedPalette(sectionLength)) {
+					sections.set(s, new AtomicShortIntPaletteBackingArray(section, sectionLength, true, false, unique));
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the palette for the packed array for the whole cube.  The palette is recalculated for each call, so {@link #export()} 
+	 * should be used when more than one of the width, palette and packed array is needed.
+	 * 
+	 * @return the palette
+	 */
+	@Override
+	public int[] getPalette() {
+		return export().getPalette();
+	}
+
+	/**
+	 * Gets the packed array for the whole cube, in the same format as {@link AtomicShortIntArray}.  The packed array is recalculated for each call, 
+	 * so {@link #export()} should be used when more than one of the width, palette and packed array is needed.
+	 * 
+	 * @return the packed array
+	 */
+	@Override
+	public int[] getBackingArray() {
+		return export().getBackingArray();
+	}
+
+	@Override
+	public void lock() {
+		lock.lock();
+	}
+
+	@Override
+	public void unlock() {
+		lock.unlock();
+	}
+
+	@Override
+	public boolean tryLock() {
+		return lock.tryLock();
+	}
+
+	@Override
+	public boolean isUniform() {
+		AtomicShortIntBackingArray first = sections.get(0);
+		if (!(first instanceof AtomicShortIntUniformBackingArray)) {
+			return false;
+		}
+		int value = first.get(0);
+		for (int s = 1; s < sections.length(); s++) {
+			AtomicShortIntBackingArray section = sections.get(s);
+			if (!(section instanceof AtomicShortIntUniformBackingArray) || section.get(0) != value) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces a full section with a wider section.  The write lock must be held.
+	 * 
+	 * @param s the section index
+	 */
+	private void expand(int s) {
+		AtomicShortIntBackingArray section = sections.get(s);
+		if (section.isPaletteMaxSize()) {
+			sections.set(s, new AtomicShortIntDirectBackingArray(section));
+		} else {
+			sections.set(s, new AtomicShortIntPaletteBackingArray(section, true));
+		}
+	}
+
+	private AtomicShortIntBackingArray createSection(int[] values) {
+		TIntHashSet inUse = new TIntHashSet();
+		for (int i = 0; i < values.length; i++) {
+			inUse.add(values[i]);
+		}
+		int unique = inUse.size();
+		if (unique == 1) {
+			return createUniform(values[0]);
+		} else if (unique > AtomicShortIntPaletteBackingArray.getAllowedPalette(sectionLength)) {
+			return new AtomicShortIntDirectBackingArray(sectionLength, values.clone());
+		} else {
+			return new AtomicShortIntPaletteBackingArray(sectionLength, unique, values);
+		}
+	}
+
+	private AtomicShortIntBackingArray createUniform(int value) {
+		if (value == 0) {
+			return emptySection;
+		}
+		return new AtomicShortIntUniformBackingArray(sectionLength, value);
+	}
+
+	/**
+	 * Copies the array into a single palette array, which is used for the packed format.  The width, palette and packed array of the copy 
+	 * are consistent with each other.
+	 * 
+	 * @return the copy
+	 */
+	public AtomicShortIntArray export() {
+		int[] values = new int[length];
+		unpackTo(values);
+		AtomicShortIntArray exported = new AtomicShortIntArray(length);
+		exported.set(values);
+		return exported;
+	}
+
+	private int getSectionIndex(int i) {
+		int x = i & mask;
+		int z = (i >> shift) & mask;
+		int y = i >> doubleShift;
+		return ((y >> sectionShift) << sectionsDoubleShift) + ((z >> sectionShift) << sectionsShift) + (x >> sectionShift);
+	}
+
+	private int getLocalIndex(int i) {
+		int x = i & sectionMask;
+		int z = (i >> shift) & sectionMask;
+		int y = (i >> doubleShift) & sectionMask;
+		return (y << sectionDoubleShift) + (z << sectionShift) + x;
+	}
+}
@@ -28,16 +28,17 @@ package org.spout.api.util.map.concurrent.palette;
 
 import gnu.trove.set.hash.TIntHashSet;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.spout.api.Spout;
+import org.spout.api.util.concurrent.OptimisticReadWriteLock;
 
 /**
  * An integer array that has a short index.  The array is atomic and is backed by a palette based lookup system.
  */
-public class AtomicShortIntArray {
+public class AtomicShortIntArray implements AtomicShortIntStore {
 	
 	/**
 	 * The length of the array
@@ -50,16 +51,33 @@ public class AtomicShortIntArray {
 	private final AtomicReference<AtomicShortIntBackingArray> store = new AtomicReference<AtomicShortIntBackingArray>();
 	
 	/**
-	 * Locks<br>
-	 * A ReadWrite lock is used to managing locking<br>
-	 * When copying to a new store instance, and updating to new the store reference, all updates must be stopped.  The write lock is used as the resize lock.<br>
-	 * When making changes to the data stored in an array instance, multiple threads can access the array concurrently.  The read lock is used for the update lock.
-	 * Reads to the array are atomic and do not require any locking.
+	 * The number of writer stripes, must be a power of 2
+	 */
+	private final static int STRIPES = 8;
+	/**
+	 * The stripes are spaced 16 ints apart, so that each stripe is on its own cache line
+	 */
+	private final static int STRIPE_SHIFT = 4;
+	/**
+	 * The number of elements copied by a thread at a time when the store is resized
+	 */
+	private final static int RESIZE_CHUNK = 512;
+	
+	/**
+	 * Locking<br>
+	 * Reads to the array are atomic and do not require any locking.<br>
+	 * <br>
+	 * Writers do not lock.  Each writer increments its stripe of the writers counter, checks that no resize is in progress and then updates the store.<br>
 	 * <br>
+	 * When the palette fills, the writer publishes a resize.  New writers see the resize and help to copy the store instead of updating it.  
+	 * Once the writers already updating the store have finished, the old store can no longer change.  
+	 * The new store is created and all threads which see the resize copy chunks of the old store into it.  The thread which copies the last chunk updates the store reference.<br>
+	 * <br>
+	 * Operations which replace or update the whole store hold the exclusive lock.  While it is held, writers wait on the lock.
 	 */
-	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-	private final Lock resizeLock = lock.writeLock();
-	private final Lock updateLock = lock.readLock();
+	private final AtomicIntegerArray writers = new AtomicIntegerArray(STRIPES << STRIPE_SHIFT);
+	private final AtomicReference<Resize> resize = new AtomicReference<Resize>();
+	private final OptimisticReadWriteLock exclusiveLock = new OptimisticReadWriteLock();
 	
 	public AtomicShortIntArray(int length) {
 		this.length = length;
@@ -121,39 +139,100 @@ public class AtomicShortIntArray {
 	 */
 	public int set(int i, int newValue) {
 		while (true) {
+			AtomicShortIntBackingArray s = null;
+			int stripe = enterWrite();
 			try {
-				updateLock.lock();
-				try {
-					return store.get().set(i, newValue);
-				} finally {
-					updateLock.unlock();
+				if (canWrite()) {
+					s = store.get();
+					return s.set(i, newValue);
 				}
 			} catch (PaletteFullException pfe) {
-				resizeLock.lock();
+			} finally {
+				exitWrite(stripe);
+			}
+			resize(s);
+		}
+	}
+	
+	/**
+	 * Sets a number of elements and stores their old values.<br>
+	 * <br>
+	 * The resize lock is held for the whole update, so the update is atomic with respect to other writes.  
+	 * If the new values do not fit in the palette, the store is resized once to fit all of them.
+	 * 
+	 * @param indexes the indexes of the elements, sorted indexes are updated more efficiently
+	 * @param values the new values
+	 * @param oldValues the array to store the old values in, or null
+	 * @param count the number of elements to set
+	 */
+	public void set(int[] indexes, int[] values, int[] oldValues, int count) {
+		lock();
+		try {
+			while (true) {
 				try {
-					try {
-						return store.get().set(i, newValue);
-					} catch (PaletteFullException pfe2) {
-						if (store.get().isPaletteMaxSize()) {
-							store.set(new AtomicShortIntDirectBackingArray(store.get()));
-						} else {
-							store.set(new AtomicShortIntPaletteBackingArray(store.get(), true));
-						}		
+					store.get().set(indexes, values, oldValues, count);
+					return;
+				} catch (PaletteFullException pfe) {
+					AtomicShortIntBackingArray s = store.get();
+					TIntHashSet inUse = new TIntHashSet();
+					if (s instanceof AtomicShortIntUniformBackingArray) {
+						inUse.add(s.get(0));
+					} else {
+						s.getUnique(inUse);
+					}
+					for (int j = 0; j < count; j++) {
+						inUse.add(values[j]);
+					}
+					int unique = inUse.size();
+					if (unique > AtomicShortIntPaletteBackingArray.getAllowedPalette(length)) {
+						store.set(new AtomicShortIntDirectBackingArray(s));
+					} else {
+						store.set(new AtomicShortIntPaletteBackingArray(s, length, true, false, unique));
 					}
-				} finally {
-					resizeLock.unlock();
 				}
 			}
+		} finally {
+			unlock();
 		}
 	}
 	
+	/**
+	 * Gets a number of elements.  Tearing may occur if the array is updated during this method call.
+	 * 
+	 * @param indexes the indexes of the elements
+	 * @param values the array to store the values in
+	 * @param count the number of elements to get
+	 */
+	public void get(int[] indexes, int[] values, int count) {
+		store.get().get(indexes, values, count);
+	}
+	
+	/**
+	 * Copies all the elements into an array.  Tearing may occur if the array is updated during this method call.
+	 * 
+	 * @param dest the destination array, which must be at least as long as this array
+	 */
+	public void unpackTo(int[] dest) {
+		store.get().unpackTo(dest);
+	}
+	
+	/**
+	 * Copies the palette index of each element into an array.  Tearing may occur if the array is updated during this method call.
+	 * 
+	 * @param dest the destination array, which must be at least as long as this array
+	 * @return the palette which the indexes refer to, or null if no palette is in use, in which case the destination array is not changed
+	 */
+	public int[] unpackPaletteIndexes(short[] dest) {
+		return store.get().unpackPaletteIndexes(dest);
+	}
+	
 	/**
 	 * Sets the array equal to the given array.  The array should be the same length as this array
 	 * 
 	 * @param initial the array containing the new values
 	 */
 	public void set(int[] initial) {
-		resizeLock.lock();
+		lock();
 		try {
 			if (initial.length != length) {
 				throw new IllegalArgumentException("Array length mismatch, expected " + length + ", got " + initial.length);
@@ -168,7 +247,7 @@ public class AtomicShortIntArray {
 				store.set(new AtomicShortIntPaletteBackingArray(length, unique, initial));
 			}
 		} finally {
-			resizeLock.unlock();
+			unlock();
 		}
 	}
 	
@@ -180,7 +259,7 @@ public class AtomicShortIntArray {
 	 * @param variableWidthBlockArray the array containing the new values, packed into ints
 	 */
 	public void set(int[] palette, int blockArrayWidth, int[] variableWidthBlockArray) {
-		resizeLock.lock();
+		lock();
 		try {
 			if (palette.length == 0) {
 				store.set(new AtomicShortIntDirectBackingArray(length, variableWidthBlockArray));
@@ -190,7 +269,7 @@ public class AtomicShortIntArray {
 				store.set(new AtomicShortIntPaletteBackingArray(length, palette, blockArrayWidth, variableWidthBlockArray));
 			}
 		} finally {
-			resizeLock.unlock();
+			unlock();
 		}
 	}
 
@@ -204,28 +283,39 @@ public class AtomicShortIntArray {
 	 */
 	public boolean compareAndSet(int i, int expect, int update) {
 		while (true) {
+			AtomicShortIntBackingArray s = null;
+			int stripe = enterWrite();
 			try {
-				updateLock.lock();
-				try {
-					return store.get().compareAndSet(i, expect, update);
-				} finally {
-					updateLock.unlock();
+				if (canWrite()) {
+					s = store.get();
+					return s.compareAndSet(i, expect, update);
 				}
 			} catch (PaletteFullException pfe) {
-				resizeLock.lock();
-				try {
-					if (store.get().isPaletteMaxSize()) {
-						store.set(new AtomicShortIntDirectBackingArray(store.get()));
-					} else {
-						store.set(new AtomicShortIntPaletteBackingArray(store.get(), true));
-					}
-				} finally {
-					resizeLock.unlock();
-				}
+			} finally {
+				exitWrite(stripe);
 			}
+			resize(s);
 		}
 	}
 	
+	/**
+	 * Gets if the array could be compressed.  Palette arrays track the number of references to each palette entry, so this does not scan the array.
+	 * 
+	 * @return true if the array may be compressed
+	 */
+	public boolean needsCompression() {
+		return store.get().needsCompression();
+	}
+	
+	/**
+	 * Gets the number of palette entries which are referenced by at least one element
+	 * 
+	 * @return the number of entries, or -1 if the array does not use a palette
+	 */
+	public int getUsedPaletteEntries() {
+		return store.get().getUsedPaletteEntries();
+	}
+	
 	/**
 	 * Attempts to compress the array
 	 */
@@ -239,13 +329,17 @@ public class AtomicShortIntArray {
 	 * @param set to use to store used ids
 	 */
 	public void compress(TIntHashSet inUseSet) {
-		resizeLock.lock();
+		lock();
 		try {
 			AtomicShortIntBackingArray s = store.get();
-			if (s instanceof AtomicShortIntUniformBackingArray) {
+			if (!s.needsCompression()) {
 				return;
 			}
-			int unique = s.getUnique(inUseSet);
+			// The reference counts are exact while the lock is held
+			int unique = s.getUsedPaletteEntries();
+			if (unique < 0) {
+				unique = s.getUnique(inUseSet);
+			}
 			if (AtomicShortIntPaletteBackingArray.roundUpWidth(unique - 1) >= s.width()) {
 				return;
 			}
@@ -259,7 +353,7 @@ public class AtomicShortIntArray {
 			}
 			s = store.get();
 		} finally {
-			resizeLock.unlock();
+			unlock();
 		}
 	}
 	
@@ -316,14 +410,20 @@ public class AtomicShortIntArray {
 	 * Locks the store so that reads and writes are prevented
 	 */
 	public void lock() {
-		resizeLock.lock();
+		exclusiveLock.lock();
+		if (exclusiveLock.getHoldCount() == 1) {
+			blockWriters();
+		}
 	}
 	
 	/**
 	 * Unlocks the store
 	 */
 	public void unlock() {
-		resizeLock.unlock();
+		if (exclusiveLock.getHoldCount() == 1) {
+			resize.set(null);
+		}
+		exclusiveLock.unlock();
 	}
 	
 	/**
@@ -332,7 +432,13 @@ public class AtomicShortIntArray {
 	 * @return true on success
 	 */
 	public boolean tryLock() {
-		return resizeLock.tryLock();
+		if (!exclusiveLock.tryLock()) {
+			return false;
+		}
+		if (exclusiveLock.getHoldCount() == 1) {
+			blockWriters();
+		}
+		return true;
 	}
 	
 	/**
@@ -341,4 +447,146 @@ public class AtomicShortIntArray {
 	public boolean isUniform() {
 		return store.get() instanceof AtomicShortIntUniformBackingArray;
 	}
+	
+	/**
+	 * Publishes a marker for the exclusive lock holder and waits for the writers which are updating the store to finish.  The exclusive lock must be held.
+	 */
+	private void blockWriters() {
+		Resize marker = new Resize(null);
+		while (!resize.compareAndSet(null, marker)) {
+			Resize r = resize.get();
+			if (r != null) {
+				help(r);
+			}
+		}
+		awaitWriters();
+	}
+	
+	private int enterWrite() {
+		int stripe = ((int) Thread.currentThread().getId() & (STRIPES - 1)) << STRIPE_SHIFT;
+		writers.incrementAndGet(stripe);
+		return stripe;
+	}
+	
+	private void exitWrite(int stripe) {
+		writers.decrementAndGet(stripe);
+	}
+	
+	/**
+	 * Checks if a writer may update the store.  This must be called after entering the writers counter.
+	 * 
+	 * @return true if no resize is in progress, or the current thread holds the exclusive lock
+	 */
+	private boolean canWrite() {
+		Resize r = resize.get();
+		return r == null || (r.from == null && exclusiveLock.isHeldByCurrentThread());
+	}
+	
+	/**
+	 * Waits for all writers to leave the writers counter.  New writers will see the published resize and leave immediately.
+	 */
+	private void awaitWriters() {
+		boolean active = true;
+		while (active) {
+			active = false;
+			for (int i = 0; i < STRIPES && !active; i++) {
+				active = writers.get(i << STRIPE_SHIFT) != 0;
+			}
+			if (active) {
+				Thread.yield();
+			}
+		}
+	}
+	
+	/**
+	 * Resizes the store after its palette filled, or helps with a resize which is already in progress
+	 * 
+	 * @param s the store which was full, or null if a resize was in progress
+	 */
+	private void resize(AtomicShortIntBackingArray s) {
+		Resize r = resize.get();
+		if (r != null && r.from == null && exclusiveLock.isHeldByCurrentThread()) {
+			// The exclusive lock holder can replace the store directly
+			if (s != null && store.get() == s) {
+				if (s.isPaletteMaxSize()) {
+					store.set(new AtomicShortIntDirectBackingArray(s));
+				} else {
+					store.set(new AtomicShortIntPaletteBackingArray(s, true));
+				}
+			}
+			return;
+		}
+		if (r == null) {
+			if (s == null || store.get() != s) {
+				return;
+			}
+			Resize created = new Resize(s);
+			if (resize.compareAndSet(null, created)) {
+				if (store.get() != s) {
+					resize.compareAndSet(created, null);
+					return;
+				}
+				awaitWriters();
+				// The old store can no longer change, so its palette contains every value
+				if (s.isPaletteMaxSize()) {
+					created.to = new AtomicShortIntDirectBackingArray(length);
+				} else {
+					created.to = new AtomicShortIntPaletteBackingArray(s, s.getPalette());
+				}
+			}
+			r = resize.get();
+			if (r == null) {
+				return;
+			}
+		}
+		help(r);
+	}
+	
+	/**
+	 * Helps to complete a resize, or waits for the exclusive lock to be released
+	 * 
+	 * @param r the resize
+	 */
+	private void help(Resize r) {
+		if (r.from == null) {
+			exclusiveLock.lock();
+			exclusiveLock.unlock();
+			return;
+		}
+		int chunks = (length + RESIZE_CHUNK - 1) / RESIZE_CHUNK;
+		while (resize.get() == r) {
+			AtomicShortIntBackingArray to = r.to;
+			int chunk;
+			if (to == null || (chunk = r.nextChunk.getAndIncrement()) >= chunks) {
+				Thread.yield();
+				continue;
+			}
+			int end = Math.min(length, (chunk + 1) * RESIZE_CHUNK);
+			try {
+				for (int i = chunk * RESIZE_CHUNK; i < end; i++) {
+					to.set(i, r.from.get(i));
+				}
+			} catch (PaletteFullException pfe) {
+				throw new IllegalStateException("Unable to copy old array to new array, as palette was filled");
+			}
+			if (r.copied.incrementAndGet() == chunks) {
+				store.compareAndSet(r.from, to);
+				resize.compareAndSet(r, null);
+			}
+		}
+	}
+	
+	/**
+	 * A resize in progress, or a marker for the exclusive lock holder if there is no old store
+	 */
+	private static class Resize {
+		private final AtomicShortIntBackingArray from;
+		private final AtomicInteger nextChunk = new AtomicInteger(0);
+		private final AtomicInteger copied = new AtomicInteger(0);
+		private volatile AtomicShortIntBackingArray to;
+		
+		public Resize(AtomicShortIntBackingArray from) {
+			this.from = from;
+		}
+	}
 }
@@ -107,8 +107,81 @@ public abstract class AtomicShortIntBackingArray {
 	 */
 	public abstract boolean compareAndSet(int i, int expect, int update) throws PaletteFullException;
 	
+	/**
+	 * Sets a number of elements and stores their old values.<br>
+	 * <br>
+	 * If a PaletteFullException is thrown, no elements have been changed.
+	 * 
+	 * @param indexes the indexes of the elements
+	 * @param values the new values
+	 * @param oldValues the array to store the old values in, or null
+	 * @param count the number of elements to set
+	 * @throws PaletteFullException
+	 */
+	public void set(int[] indexes, int[] values, int[] oldValues, int count) throws PaletteFullException {
+		for (int j = 0; j < count; j++) {
+			int old = set(indexes[j], values[j]);
+			if (oldValues != null) {
+				oldValues[j] = old;
+			}
+		}
+	}
+	
+	/**
+	 * Gets a number of elements
+	 * 
+	 * @param indexes the indexes of the elements
+	 * @param values the array to store the values in
+	 * @param count the number of elements to get
+	 */
+	public void get(int[] indexes, int[] values, int count) {
+		for (int j = 0; j < count; j++) {
+			values[j] = get(indexes[j]);
+		}
+	}
+	
+	/**
+	 * Copies all the elements into an array.  Tearing may occur if the array is updated during this method call.
+	 * 
+	 * @param dest the destination array, which must be at least as long as this array
+	 */
+	public void unpackTo(int[] dest) {
+		for (int i = 0; i < length; i++) {
+			dest[i] = get(i);
+		}
+	}
+	
+	/**
+	 * Copies the palette index of each element into an array.  Tearing may occur if the array is updated during this method call.
+	 * 
+	 * @param dest the destination array, which must be at least as long as this array
+	 * @return the palette which the indexes refer to, or null if the array does not use a palette, in which case the destination array is not changed
+	 */
+	public int[] unpackPaletteIndexes(short[] dest) {
+		return null;
+	}
+	
 	public abstract boolean isPaletteMaxSize();
 	
+	/**
+	 * Gets the number of palette entries which are referred to by at least one element
+	 * 
+	 * @return the number of entries, or -1 if the array does not track palette references
+	 */
+	public int getUsedPaletteEntries() {
+		return -1;
+	}
+	
+	/**
+	 * Gets if the array could be replaced by a narrower array.  This uses the palette reference counts, so it does not scan the array.
+	 * 
+	 * @return true if the array can be compressed, or if the array does not track palette references
+	 */
+	public boolean needsCompression() {
+		int used = getUsedPaletteEntries();
+		return used < 0 || AtomicShortIntPaletteBackingArray.roundUpWidth(used - 1) < width();
+	}
+	
 	/**
 	 * Gets the number of unique entries in the array
 	 * 
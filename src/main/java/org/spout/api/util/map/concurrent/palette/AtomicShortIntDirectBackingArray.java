@@ -92,6 +92,14 @@ public class AtomicShortIntDirectBackingArray extends AtomicShortIntBackingArray
 		return store.compareAndSet(i, expect, update);
 	}
 
+	@Override
+	public void unpackTo(int[] dest) {
+		int length = length();
+		for (int i = 0; i < length; i++) {
+			dest[i] = store.get(i);
+		}
+	}
+
 	@Override
 	public boolean isPaletteMaxSize() {
 		return true;
@@ -44,6 +44,10 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
 	private final AtomicIntegerArray palette;
 	private final AtomicInteger paletteCounter;
 	private final boolean maxPaletteSize;
+	/**
+	 * The number of elements which refer to each palette entry.  The counts are updated after each write, so they are exact when there are no writes in progress.
+	 */
+	private final AtomicIntegerArray references;
 
 	public AtomicShortIntPaletteBackingArray(int length) {
 		this(null, length, false, false, CALCULATE_UNIQUE);
@@ -75,6 +79,8 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
 		palette = new AtomicIntegerArray(paletteSize);
 		paletteCounter = new AtomicInteger(0);
 		idLookup = new AtomicIntShortSingleUseHashMap(paletteSize + (paletteSize >> 2));
+		references = new AtomicIntegerArray(paletteSize);
+		references.set(0, length);
 		try {
 			if (previous == null) { // sets id=0 to map to value=0 (so non-set elements are zero)
 				paletteCounter.incrementAndGet();
@@ -89,6 +95,36 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
 		}
 	}
 	
+	/**
+	 * Creates an empty array with the width that the previous array would expand to.  The given values are added to the palette, so that copying the previous array does not allocate palette ids.<br>
+	 * <br>
+	 * The elements are not copied from the previous array.
+	 * 
+	 * @param previous the previous array
+	 * @param initialPalette the values to add to the palette
+	 */
+	AtomicShortIntPaletteBackingArray(AtomicShortIntBackingArray previous, int[] initialPalette) {
+		super(previous.length());
+		int oldWidth = previous.width();
+		width = oldWidth == 0 ? 1 : oldWidth <= 8 ? (oldWidth << 1) : (16);
+		int allowedPalette = AtomicShortIntPaletteBackingArray.getAllowedPalette(length());
+		paletteSize = Math.min(widthToPaletteSize(width), allowedPalette);
+		maxPaletteSize = paletteSize == allowedPalette;
+		store = new AtomicVariableWidthArray(length(), width);
+		palette = new AtomicIntegerArray(paletteSize);
+		paletteCounter = new AtomicInteger(0);
+		idLookup = new AtomicIntShortSingleUseHashMap(paletteSize + (paletteSize >> 2));
+		references = new AtomicIntegerArray(paletteSize);
+		references.set(0, length());
+		try {
+			for (int i = 0; i < initialPalette.length; i++) {
+				getId(initialPalette[i]);
+			}
+		} catch (PaletteFullException pfe) {
+			throw new IllegalStateException("Unable to copy old palette to new palette, as palette was filled, length " + length() + ", paletteSize " + paletteSize);
+		}
+	}
+	
 	public AtomicShortIntPaletteBackingArray(int length, int unique, int[] initial) {
 		super(length);
 		width = roundUpWidth(unique - 1);
@@ -99,6 +135,8 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
 		palette = new AtomicIntegerArray(paletteSize);
 		store = new AtomicVariableWidthArray(length, width);
 		idLookup = new AtomicIntShortSingleUseHashMap(paletteSize + (paletteSize >> 2));
+		references = new AtomicIntegerArray(paletteSize);
+		references.set(0, length);
 		try {
 			for (int i = 0; i < length; i++) {
 				set(i, initial[i]);
@@ -121,6 +159,16 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
 		for (int i = 0; i < paletteSize; i++) {
 			idLookup.putIfAbsent(palette[i], (short) i);
 		}
+		int[] ids = new int[length];
+		store.unpackTo(ids);
+		int[] counts = new int[paletteSize];
+		for (int i = 0; i < length; i++) {
+			if (ids[i] >= paletteSize) {
+				throw new IllegalArgumentException("Packed array refers to palette entry " + ids[i] + ", but the palette only has " + paletteSize + " entries");
+			}
+			counts[ids[i]]++;
+		}
+		references = new AtomicIntegerArray(counts);
 	}
 
 	@Override
@@ -151,10 +199,65 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
 	@Override
 	public int set(int i, int newValue) throws PaletteFullException {
 		int id = getId(newValue);
+		references.incrementAndGet(id);
 		int oldId = store.getAndSet(i, id);
+		references.decrementAndGet(oldId);
 		return palette.get(oldId);
 	}
 
+	@Override
+	public void set(int[] indexes, int[] values, int[] oldValues, int count) throws PaletteFullException {
+		// Palette ids are allocated for all the values before any elements are changed
+		int[] ids = new int[count];
+		int lastValue = 0;
+		int lastId = -1;
+		for (int j = 0; j < count; j++) {
+			if (lastId == -1 || values[j] != lastValue) {
+				lastValue = values[j];
+				lastId = getId(lastValue);
+			}
+			ids[j] = lastId;
+		}
+		for (int j = 0; j < count; j++) {
+			references.incrementAndGet(ids[j]);
+		}
+		int[] oldIds = oldValues != null ? oldValues : new int[count];
+		store.getAndSet(indexes, ids, oldIds, count);
+		for (int j = 0; j < count; j++) {
+			references.decrementAndGet(oldIds[j]);
+		}
+		if (oldValues != null) {
+			for (int j = 0; j < count; j++) {
+				oldValues[j] = palette.get(oldValues[j]);
+			}
+		}
+	}
+
+	@Override
+	public void get(int[] indexes, int[] values, int count) {
+		store.get(indexes, values, count);
+		for (int j = 0; j < count; j++) {
+			values[j] = palette.get(values[j]);
+		}
+	}
+
+	@Override
+	public void unpackTo(int[] dest) {
+		// The ids are read before the palette, so every id which is read already has its palette entry
+		store.unpackTo(dest);
+		int[] values = toIntArray(palette, paletteSize);
+		int length = length();
+		for (int i = 0; i < length; i++) {
+			dest[i] = values[dest[i]];
+		}
+	}
+
+	@Override
+	public int[] unpackPaletteIndexes(short[] dest) {
+		store.unpackTo(dest);
+		return toIntArray(palette, paletteSize);
+	}
+
 	@Override
 	public boolean compareAndSet(int i, int expect, int update) throws PaletteFullException {
 		short expId = idLookup.get(expect);
@@ -162,7 +265,34 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
 			return false;
 		}
 		int newId = getId(update);
-		return store.compareAndSet(i, expId, newId);
+		if (store.compareAndSet(i, expId, newId)) {
+			references.incrementAndGet(newId);
+			references.decrementAndGet(expId);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Gets the number of elements which refer to a palette entry
+	 * 
+	 * @param id the palette id
+	 * @return the number of elements
+	 */
+	public int getReferenceCount(int id) {
+		return references.get(id);
+	}
+	
+	@Override
+	public int getUsedPaletteEntries() {
+		int size = Math.min(paletteCounter.get(), paletteSize);
+		int used = 0;
+		for (int i = 0; i < size; i++) {
+			if (references.get(i) > 0) {
+				used++;
+			}
+		}
+		return used;
 	}
 	
 	/**
@@ -226,7 +356,7 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
 
 	@Override
 	public int[] getPalette() {
-		return toIntArray(palette, paletteCounter.get());
+		return toIntArray(palette, Math.min(paletteCounter.get(), paletteSize));
 	}
 
 	@Override
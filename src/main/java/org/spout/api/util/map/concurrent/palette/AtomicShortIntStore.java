@@ -0,0 +1,187 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent.palette;
+
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * An atomic integer array with a short index, used as the backing store for palette based block stores
+ */
+public interface AtomicShortIntStore {
+
+	/**
+	 * Gets the width of the packed array returned by {@link #getBackingArray()}, in bits
+	 * 
+	 * @return the width
+	 */
+	public int width();
+
+	/**
+	 * Gets the length of the array
+	 *
+	 * @return the length
+	 */
+	public int length();
+
+	/**
+	 * Gets an element from the array at a given index
+	 *
+	 * @param i the index
+	 * @return the element
+	 */
+	public int get(int i);
+
+	/**
+	 * Sets an element to the given value
+	 *
+	 * @param i the index
+	 * @param newValue the new value
+	 * @return the old value
+	 */
+	public int set(int i, int newValue);
+
+	/**
+	 * Sets a number of elements and stores their old values.  The update is atomic with respect to other writes.
+	 * 
+	 * @param indexes the indexes of the elements
+	 * @param values the new values
+	 * @param oldValues the array to store the old values in, or null
+	 * @param count the number of elements to set
+	 */
+	public void set(int[] indexes, int[] values, int[] oldValues, int count);
+
+	/**
+	 * Gets a number of elements.  Tearing may occur if the array is updated during this method call.
+	 * 
+	 * @param indexes the indexes of the elements
+	 * @param values the array to store the values in
+	 * @param count the number of elements to get
+	 */
+	public void get(int[] indexes, int[] values, int count);
+
+	/**
+	 * Copies all the elements into an array.  Tearing may occur if the array is updated during this method call.
+	 * 
+	 * @param dest the destination array, which must be at least as long as this array
+	 */
+	public void unpackTo(int[] dest);
+
+	/**
+	 * Copies the palette index of each element into an array.  Tearing may occur if the array is updated during this method call.
+	 * 
+	 * @param dest the destination array, which must be at least as long as this array
+	 * @return the palette which the indexes refer to, or null if the array does not use a single palette, in which case the destination array is not changed
+	 */
+	public int[] unpackPaletteIndexes(short[] dest);
+
+	/**
+	 * Sets the array equal to the given array.  The array should be the same length as this array
+	 * 
+	 * @param initial the array containing the new values
+	 */
+	public void set(int[] initial);
+
+	/**
+	 * Sets the array equal to the given palette based array.  The main array should be the same length as this array
+	 * 
+	 * @param palette the palette, if the palette is of length 0, variableWidthBlockArray contains the data, in flat format
+	 * @param blockArrayWidth the with of each entry in the main array
+	 * @param variableWidthBlockArray the array containing the new values, packed into ints
+	 */
+	public void set(int[] palette, int blockArrayWidth, int[] variableWidthBlockArray);
+
+	/**
+	 * Sets the element at the given index, but only if the previous value was the expected value.
+	 *
+	 * @param i the index
+	 * @param expect the expected value
+	 * @param update the new value
+	 * @return true on success
+	 */
+	public boolean compareAndSet(int i, int expect, int update);
+
+	/**
+	 * Gets if the array could be compressed
+	 * 
+	 * @return true if the array may be compressed
+	 */
+	public boolean needsCompression();
+
+	/**
+	 * Attempts to compress the array
+	 */
+	public void compress();
+
+	/**
+	 * Attempts to compress the array
+	 * 
+	 * @param inUseSet set to use to store used ids
+	 */
+	public void compress(TIntHashSet inUseSet);
+
+	/**
+	 * Gets the palette for the packed array returned by {@link #getBackingArray()}, or an array of zero length if no palette is in use.<br>
+	 * <br>
+	 * Data tearing may occur if the store is updated during this method call.
+	 * 
+	 * @return the palette
+	 */
+	public int[] getPalette();
+
+	/**
+	 * Gets the packed array for the whole store.  This is a flat array if there is no palette in use.<br>
+	 * <br>
+	 * Data tearing may occur if the store is updated during this method call.
+	 * 
+	 * @return the packed array
+	 */
+	public int[] getBackingArray();
+
+	/**
+	 * Locks the store so that writes are prevented
+	 */
+	public void lock();
+
+	/**
+	 * Unlocks the store
+	 */
+	public void unlock();
+
+	/**
+	 * Attempts to lock the store
+	 * 
+	 * @return true on success
+	 */
+	public boolean tryLock();
+
+	/**
+	 * Gets if every element in the store has the same value
+	 * 
+	 * @return true if the store is uniform
+	 */
+	public boolean isUniform();
+}
@@ -26,6 +26,7 @@
  */
 package org.spout.api.util.map.concurrent.palette;
 
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class AtomicShortIntUniformBackingArray extends AtomicShortIntBackingArray {
@@ -86,6 +87,21 @@ public class AtomicShortIntUniformBackingArray extends AtomicShortIntBackingArra
 		return newValue;
 	}
 
+	@Override
+	public void set(int[] indexes, int[] values, int[] oldValues, int count) throws PaletteFullException {
+		int value = store.get();
+		for (int j = 0; j < count; j++) {
+			if (values[j] != value) {
+				throw paletteFull;
+			}
+		}
+		if (oldValues != null) {
+			for (int j = 0; j < count; j++) {
+				oldValues[j] = value;
+			}
+		}
+	}
+
 	@Override
 	public boolean compareAndSet(int i, int expect, int update) throws PaletteFullException {
 		if (store.get() != expect) {
@@ -98,6 +114,28 @@ public class AtomicShortIntUniformBackingArray extends AtomicShortIntBackingArra
 		}
 	}
 
+	@Override
+	public void unpackTo(int[] dest) {
+		Arrays.fill(dest, 0, length(), store.get());
+	}
+
+	@Override
+	public int[] unpackPaletteIndexes(short[] dest) {
+		int value = store.get();
+		Arrays.fill(dest, 0, length(), (short) 0);
+		return new int[] {value};
+	}
+
+	@Override
+	public int getUsedPaletteEntries() {
+		return 1;
+	}
+
+	@Override
+	public boolean needsCompression() {
+		return false;
+	}
+
 	@Override
 	public boolean isPaletteMaxSize() {
 		return false;
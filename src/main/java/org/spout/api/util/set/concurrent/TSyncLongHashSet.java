@@ -28,13 +28,16 @@ package org.spout.api.util.set.concurrent;
 
 import gnu.trove.TLongCollection;
 import gnu.trove.impl.Constants;
+import gnu.trove.impl.hash.TPrimitiveHash;
 import gnu.trove.iterator.TLongIterator;
 import gnu.trove.procedure.TLongProcedure;
 import gnu.trove.set.TLongSet;
 import gnu.trove.set.hash.TLongHashSet;
 
 import java.util.Collection;
+import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -48,6 +51,9 @@ import org.spout.api.math.MathHelper;
  *
  * By default, it creates 16 sub-maps and there is a separate read/write lock
  * for each submap.
+ *
+ * The forEach method and the iterator do not lock the set.  They read each sub-set directly and
+ * retry any value which was being written, so they are weakly consistent and do not block writers.
  */
 public class TSyncLongHashSet implements TLongSet {
 	private final int setCount;
@@ -55,6 +61,10 @@ public class TSyncLongHashSet implements TLongSet {
 	private final int hashScramble;
 	private final ReadWriteLock[] lockArray;
 	private final TLongHashSet[] setArray;
+	/**
+	 * The version of each sub-set, which is odd while the sub-set is being written
+	 */
+	private final AtomicIntegerArray versions;
 	private final long no_entry_value;
 	private final AtomicInteger totalValues = new AtomicInteger(0);
 
@@ -113,6 +123,7 @@ public class TSyncLongHashSet implements TLongSet {
 		this.hashScramble = (setCount << 8) + 1;
 		setArray = new TLongHashSet[setCount];
 		lockArray = new ReadWriteLock[setCount];
+		versions = new AtomicIntegerArray(setCount);
 		for (int i = 0; i < setCount; i++) {
 			setArray[i] = new TLongHashSet(initialCapacity / setCount, loadFactor, noEntryValue);
 			lockArray[i] = new ReentrantReadWriteLock();
@@ -130,10 +141,12 @@ public class TSyncLongHashSet implements TLongSet {
 	private void clear(int m) {
 		Lock lock = lockArray[m].writeLock();
 		lock.lock();
+		versions.incrementAndGet(m);
 		try {
 			totalValues.addAndGet(-setArray[m].size());
 			setArray[m].clear();
 		} finally {
+			versions.incrementAndGet(m);
 			lock.unlock();
 		}
 	}
@@ -209,6 +222,7 @@ public class TSyncLongHashSet implements TLongSet {
 		int m = setHash(entry);
 		Lock lock = lockArray[m].writeLock();
 		lock.lock();
+		versions.incrementAndGet(m);
 		try {
 			boolean success = setArray[m].add(entry);
 			if (success) {
@@ -216,6 +230,7 @@ public class TSyncLongHashSet implements TLongSet {
 			}
 			return success;
 		} finally {
+			versions.incrementAndGet(m);
 			lock.unlock();
 		}
 	}
@@ -225,6 +240,7 @@ public class TSyncLongHashSet implements TLongSet {
 		int m = setHash(key);
 		Lock lock = lockArray[m].writeLock();
 		lock.lock();
+		versions.incrementAndGet(m);
 		try {
 			boolean success = setArray[m].remove(key);
 			if (success) {
@@ -232,6 +248,7 @@ public class TSyncLongHashSet implements TLongSet {
 			}
 			return success;
 		} finally {
+			versions.incrementAndGet(m);
 			lock.unlock();
 		}
 	}
@@ -249,7 +266,7 @@ public class TSyncLongHashSet implements TLongSet {
 
 	@Override
 	public TLongIterator iterator() {
-		throw new UnsupportedOperationException();
+		return new ValueIterator();
 	}
 
 	@Override
@@ -314,6 +331,123 @@ public class TSyncLongHashSet implements TLongSet {
 
 	@Override
 	public boolean forEach(TLongProcedure procedure) {
-		throw new UnsupportedOperationException();
+		Cursor cursor = new Cursor();
+		while (cursor.next()) {
+			if (!procedure.execute(cursor.value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until a sub-set is not being written
+	 *
+	 * @return the version of the sub-set
+	 */
+	private int awaitVersion(int m) {
+		int version;
+		while (((version = versions.get(m)) & 1) != 0) {
+			Thread.yield();
+		}
+		return version;
+	}
+
+	/**
+	 * Reads the values in each sub-set without locking.<br>
+	 * <br>
+	 * Each value is read between two reads of the sub-set version, and is read again if the version changed.
+	 * If the sub-set was resized, the cursor continues with the old arrays, which are no longer written,
+	 * so each value is visited at most once.
+	 */
+	private final class Cursor {
+		private int m = -1;
+		private int index = 0;
+		private long[] values;
+		private byte[] states;
+		private boolean resized;
+		private long value;
+
+		public boolean next() {
+			while (true) {
+				if (index == 0) {
+					if (++m >= setCount) {
+						return false;
+					}
+					load();
+					continue;
+				}
+				if (read(--index)) {
+					return true;
+				}
+			}
+		}
+
+		private void load() {
+			while (true) {
+				int version = awaitVersion(m);
+				TLongHashSet set = setArray[m];
+				values = set._set;
+				states = set._states;
+				if (versions.get(m) == version) {
+					break;
+				}
+			}
+			index = states.length;
+			resized = false;
+		}
+
+		private boolean read(int i) {
+			while (true) {
+				int version = resized ? 0 : awaitVersion(m);
+				byte state = states[i];
+				long v = values[i];
+				if (resized || versions.get(m) == version) {
+					if (state != TPrimitiveHash.FULL) {
+						return false;
+					}
+					value = v;
+					return true;
+				}
+				awaitVersion(m);
+				resized = setArray[m]._set != values;
+			}
+		}
+	}
+
+	private final class ValueIterator implements TLongIterator {
+		private final Cursor cursor = new Cursor();
+		private boolean hasNext;
+		private boolean hasCurrent = false;
+		private long value;
+
+		public ValueIterator() {
+			hasNext = cursor.next();
+		}
+
+		@Override
+		public long next() {
+			if (!hasNext) {
+				throw new NoSuchElementException();
+			}
+			value = cursor.value;
+			hasCurrent = true;
+			hasNext = cursor.next();
+			return value;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		@Override
+		public void remove() {
+			if (!hasCurrent) {
+				throw new IllegalStateException("No value to remove");
+			}
+			TSyncLongHashSet.this.remove(value);
+			hasCurrent = false;
+		}
 	}
 }
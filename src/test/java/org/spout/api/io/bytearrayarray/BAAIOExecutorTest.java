@@ -0,0 +1,157 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.bytearrayarray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spout.api.io.regionfile.SRFCodec;
+
+public class BAAIOExecutorTest {
+	private File file;
+	private BAAWrapper wrapper;
+	private BAAIOExecutor executor;
+
+	@Before
+	public void setup() throws IOException {
+		file = File.createTempFile("baaio", ".dat");
+		file.delete();
+		wrapper = new BAAWrapper(file, 8, 256, 120000);
+		executor = new BAAIOExecutor(4);
+	}
+
+	@After
+	public void cleanup() {
+		executor.shutdown();
+		wrapper.attemptClose();
+		file.delete();
+	}
+
+	@Test
+	public void readWrite() throws InterruptedException, ExecutionException {
+		assertNull("Empty block read returned data", executor.readAsync(wrapper, 0).get());
+
+		List<Future<Boolean>> writes = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < 256; i++) {
+			writes.add(executor.writeAsync(wrapper, i, ByteBuffer.wrap(data(i, i))));
+		}
+		for (Future<Boolean> write : writes) {
+			assertTrue("Write failed", write.get());
+		}
+
+		List<Future<ByteBuffer>> reads = new ArrayList<Future<ByteBuffer>>();
+		for (int i = 0; i < 256; i++) {
+			reads.add(executor.readAsync(wrapper, i));
+		}
+		for (int i = 0; i < 256; i++) {
+			check(reads.get(i).get(), data(i, i));
+		}
+	}
+
+	@Test
+	public void ordering() throws InterruptedException, ExecutionException {
+		Future<Boolean> last = null;
+		for (int n = 0; n < 100; n++) {
+			last = executor.writeAsync(wrapper, 7, ByteBuffer.wrap(data(7, n)));
+		}
+		// A read queued after a write must observe the write
+		check(executor.readAsync(wrapper, 7).get(), data(7, 99));
+		assertTrue("Write failed", last.get());
+		check(executor.readAsync(wrapper, 7).get(), data(7, 99));
+	}
+
+	@Test
+	public void readFailure() throws IOException, InterruptedException {
+		File checked = File.createTempFile("baaio", ".dat");
+		checked.delete();
+		BAAWrapper checkedWrapper = new BAAWrapper(checked, 8, 256, 120000, SRFCodec.NONE, null, null, true);
+		try {
+			byte[] data = new byte[1000];
+			Arrays.fill(data, (byte) 0x5A);
+			OutputStream out = checkedWrapper.getBlockOutputStream(3);
+			out.write(data);
+			out.close();
+			assertTrue("Unable to close file", checkedWrapper.attemptClose());
+
+			// Corrupt the block
+			RandomAccessFile raf = new RandomAccessFile(checked, "rw");
+			try {
+				byte[] contents = new byte[(int) raf.length()];
+				raf.readFully(contents);
+				int position = 0;
+				while (contents[position] != 0x5A) {
+					position++;
+				}
+				raf.seek(position + 500);
+				raf.write(0);
+			} finally {
+				raf.close();
+			}
+
+			try {
+				executor.readAsync(checkedWrapper, 3).get();
+				fail("Corrupt block read as data");
+			} catch (ExecutionException e) {
+				assertTrue("Read failure was not an IOException", e.getCause() instanceof IOException);
+			}
+		} finally {
+			checkedWrapper.attemptClose();
+			checked.delete();
+		}
+	}
+
+	private static byte[] data(int i, int version) {
+		byte[] data = new byte[100 + i];
+		for (int j = 0; j < data.length; j++) {
+			data[j] = (byte) (i + version + j);
+		}
+		return data;
+	}
+
+	private static void check(ByteBuffer buffer, byte[] expected) {
+		assertEquals("Length mismatch", expected.length, buffer.remaining());
+		for (int j = 0; j < expected.length; j++) {
+			assertEquals("Data mismatch", expected[j], buffer.get());
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.bytearrayarray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spout.api.io.regionfile.SRFCodec;
+import org.spout.api.io.regionfile.SRFWriteBehind;
+
+public class BAAPoolTest {
+	private static final int FILES = 4;
+
+	private File[] files = new File[FILES];
+	private BAAWrapper[] wrappers = new BAAWrapper[FILES];
+	private BAAPool pool;
+
+	@Before
+	public void setup() throws IOException {
+		pool = new BAAPool(2);
+		for (int i = 0; i < FILES; i++) {
+			files[i] = File.createTempFile("baapool", ".dat");
+			files[i].delete();
+			wrappers[i] = new BAAWrapper(files[i], 8, 16, 120000, SRFCodec.DEFLATE, null, pool);
+		}
+	}
+
+	@After
+	public void cleanup() {
+		pool.shutdown();
+		for (int i = 0; i < FILES; i++) {
+			wrappers[i].attemptClose();
+			files[i].delete();
+		}
+	}
+
+	@Test
+	public void eviction() throws IOException {
+		write(0, 10);
+		write(1, 11);
+		assertEquals("Open count mismatch", 2, pool.getOpenCount());
+		assertEquals("Miss count mismatch", 2, pool.getMisses());
+
+		// Touch file 0 so that file 1 is the least recently used
+		assertEquals("Read mismatch", 10, read(0));
+		assertEquals("Hit count mismatch", 1, pool.getHits());
+
+		write(2, 12);
+		assertEquals("Pool over capacity", 2, pool.getOpenCount());
+		assertEquals("Eviction count mismatch", 1, pool.getEvictions());
+
+		// File 1 was evicted, so reading it is a miss, which evicts file 0
+		long misses = pool.getMisses();
+		assertEquals("Data lost after eviction", 11, read(1));
+		assertEquals("Evicted file did not miss", misses + 1, pool.getMisses());
+		assertEquals("Data lost after eviction", 10, read(0));
+		assertEquals("Data lost after eviction", 12, read(2));
+		assertEquals("Pool over capacity", 2, pool.getOpenCount());
+	}
+
+	@Test
+	public void pinned() throws IOException {
+		write(0, 1);
+		OutputStream out = wrappers[0].getBlockOutputStream(1);
+		try {
+			write(1, 2);
+			write(2, 3);
+			// File 0 is the least recently used, but has an open stream
+			assertTrue("Pinned file not skipped", pool.getPinnedSkips() > 0);
+			out.write(4);
+		} finally {
+			out.close();
+		}
+		assertEquals("Write to pinned file lost", 4, wrappers[0].getBlockInputStream(1).read());
+	}
+
+	@Test
+	public void evictionAfterRelease() throws IOException, InterruptedException {
+		BAAPool checkedPool = new BAAPool(1, 10);
+		File[] checkedFiles = new File[2];
+		BAAWrapper[] checkedWrappers = new BAAWrapper[2];
+		try {
+			for (int i = 0; i < checkedFiles.length; i++) {
+				checkedFiles[i] = File.createTempFile("baapool", ".dat");
+				checkedFiles[i].delete();
+				checkedWrappers[i] = new BAAWrapper(checkedFiles[i], 8, 16, 120000, SRFCodec.DEFLATE, null, checkedPool);
+			}
+			OutputStream out = checkedWrappers[0].getBlockOutputStream(0);
+			try {
+				OutputStream other = checkedWrappers[1].getBlockOutputStream(0);
+				other.write(1);
+				other.close();
+				assertEquals("Pinned file evicted", 2, checkedPool.getOpenCount());
+			} finally {
+				out.close();
+			}
+			// No file is opened after the stream is closed, so only the capacity check can evict the file
+			for (int i = 0; i < 100 && checkedPool.getOpenCount() > 1; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals("Pool not returned to capacity", 1, checkedPool.getOpenCount());
+		} finally {
+			checkedPool.shutdown();
+			for (int i = 0; i < checkedFiles.length; i++) {
+				if (checkedWrappers[i] != null) {
+					checkedWrappers[i].attemptClose();
+				}
+				checkedFiles[i].delete();
+			}
+		}
+	}
+
+	@Test
+	public void intervalCommit() throws IOException, InterruptedException {
+		File file = File.createTempFile("baapool", ".dat");
+		file.delete();
+		File journalFile = new File(file.getPath() + ".journal");
+		BAAWrapper wrapper = new BAAWrapper(file, 8, 16, 120000, SRFCodec.DEFLATE, new SRFWriteBehind(50, Integer.MAX_VALUE), pool);
+		try {
+			OutputStream out = wrapper.getBlockOutputStream(0);
+			out.write(5);
+			out.close();
+			assertFalse("Journal written before the commit interval", journalFile.exists());
+			// timeoutCheck is never called, so only the pool can commit the write
+			for (int i = 0; i < 100 && !journalFile.exists(); i++) {
+				Thread.sleep(10);
+			}
+			assertTrue("Write not committed after the commit interval", journalFile.exists());
+		} finally {
+			wrapper.attemptClose();
+			file.delete();
+			journalFile.delete();
+		}
+	}
+
+	private void write(int file, int value) throws IOException {
+		OutputStream out = wrappers[file].getBlockOutputStream(0);
+		out.write(value);
+		out.close();
+	}
+
+	private int read(int file) throws IOException {
+		InputStream in = wrappers[file].getBlockInputStream(0);
+		try {
+			return in.read();
+		} finally {
+			in.close();
+		}
+	}
+}
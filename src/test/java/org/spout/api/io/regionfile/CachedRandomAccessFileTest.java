@@ -26,10 +26,12 @@
  */
 package org.spout.api.io.regionfile;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -130,6 +132,82 @@ public class CachedRandomAccessFileTest {
 		}
 	}
 
+	@Test
+	public void eviction() throws IOException {
+		File file1 = File.createTempFile("craftest", ".dat");
+		File file2 = File.createTempFile("craftest", ".dat");
+		try {
+			// Room for 8 pages shared by both files
+			CachedPagePool pool = new CachedPagePool(8 << 8);
+			CachedRandomAccessFile craf1 = new CachedRandomAccessFile(file1, "rw", 8, pool);
+			CachedRandomAccessFile craf2 = new CachedRandomAccessFile(file2, "rw", 8, pool);
+
+			Random r = new Random(1);
+			byte[] data1 = new byte[64 << 8];
+			byte[] data2 = new byte[64 << 8];
+			r.nextBytes(data1);
+			r.nextBytes(data2);
+
+			for (int i = 0; i < data1.length; i += 100) {
+				craf1.seek(i);
+				craf1.write(data1, i, Math.min(100, data1.length - i));
+				craf2.seek(i);
+				craf2.write(data2, i, Math.min(100, data2.length - i));
+			}
+
+			assertTrue("Pool exceeded its budget", pool.getUsed() <= pool.getBudget());
+			assertTrue("No pages evicted", pool.getEvictions() > 0);
+			assertTrue("No dirty pages written back", pool.getWriteBacks() > 0);
+			assertTrue("No cache hits", pool.getHits() > 0);
+			assertEquals("File length mismatch", data1.length, craf1.length());
+
+			byte[] read = new byte[data1.length];
+			craf1.seek(0);
+			craf1.readFully(read);
+			assertArray(data1, read);
+			craf2.seek(0);
+			craf2.readFully(read);
+			assertArray(data2, read);
+
+			craf1.close();
+			craf2.close();
+			assertEquals("Pages not released on close", 0, pool.getPageCount());
+
+			craf1 = new CachedRandomAccessFile(file1, "r", 8, pool);
+			craf1.readFully(read);
+			assertArray(data1, read);
+			craf1.close();
+		} finally {
+			file1.delete();
+			file2.delete();
+		}
+	}
+
+	@Test
+	public void hitRate() throws IOException {
+		File file = File.createTempFile("craftest", ".dat");
+		try {
+			CachedPagePool pool = new CachedPagePool(64 << 8);
+			CachedRandomAccessFile craf = new CachedRandomAccessFile(file, "rw", 8, pool);
+			byte[] page = new byte[1 << 8];
+			for (int i = 0; i < 16; i++) {
+				craf.write(page, 0, page.length);
+			}
+			long misses = pool.getMisses();
+			for (int j = 0; j < 10; j++) {
+				craf.seek(0);
+				for (int i = 0; i < 16; i++) {
+					craf.readFully(page);
+				}
+			}
+			assertEquals("Cached pages read from file", misses, pool.getMisses());
+			assertTrue("Hit rate too low", pool.getHitRate() > 0.9F);
+			craf.close();
+		} finally {
+			file.delete();
+		}
+	}
+
 	private void assertArray(byte[] array, byte b) {
 		for (int i = 0; i < array.length; i++) {
 			assertTrue("Array not all " + b, array[i] == b);
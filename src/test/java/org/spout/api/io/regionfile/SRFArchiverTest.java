@@ -0,0 +1,227 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SRFArchiverTest {
+	private static final int FILES = 6;
+	private static final int ENTRIES = 64;
+
+	private File root;
+	private File source;
+	private File target;
+	private File archive;
+
+	@Before
+	public void setup() throws IOException {
+		root = File.createTempFile("srfarchive", "");
+		root.delete();
+		root.mkdir();
+		source = new File(root, "source");
+		target = new File(root, "target");
+		archive = new File(root, "world.srfa");
+	}
+
+	@After
+	public void cleanup() {
+		delete(root);
+	}
+
+	@Test
+	public void exportImport() throws IOException {
+		byte[][][] data = new byte[FILES][ENTRIES][];
+		Random r = new Random(1);
+		for (int f = 0; f < FILES; f++) {
+			File file = getFile(source, f);
+			file.getParentFile().mkdirs();
+			SimpleRegionFile srf = new SimpleRegionFile(file, 8, ENTRIES, 1000, f % 2 == 0 ? SRFCodec.DEFLATE : SRFCodec.LZF, null, f == 0);
+			try {
+				for (int i = 0; i < ENTRIES; i++) {
+					if (i % 3 != 0) {
+						data[f][i] = new byte[1 + r.nextInt(2000)];
+						r.nextBytes(data[f][i]);
+						write(srf, i, data[f][i]);
+					}
+				}
+				// Grow some blocks, so that they move and leave holes in the file
+				for (int i = 1; i < ENTRIES; i += 6) {
+					data[f][i] = new byte[data[f][i].length + 4000];
+					r.nextBytes(data[f][i]);
+					write(srf, i, data[f][i]);
+				}
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+		}
+
+		OutputStream out = new FileOutputStream(archive);
+		List<SRFArchiver.Entry> index;
+		try {
+			index = new SRFArchiver(3).exportFolder(source, null, out);
+		} finally {
+			out.close();
+		}
+		assertEquals("Exported file count", FILES, index.size());
+
+		List<SRFArchiver.Entry> listed = SRFArchiver.list(archive);
+		assertEquals("Listed file count", FILES, listed.size());
+		for (int f = 0; f < FILES; f++) {
+			assertEquals("Listed path mismatch", index.get(f).getPath(), listed.get(f).getPath());
+			assertEquals("Listed offset mismatch", index.get(f).getOffset(), listed.get(f).getOffset());
+			assertEquals("Listed block count mismatch", ENTRIES - (ENTRIES + 2) / 3, listed.get(f).getBlocks());
+		}
+
+		InputStream in = new FileInputStream(archive);
+		try {
+			assertEquals("Imported file count", FILES, new SRFArchiver(3).importFolder(in, target));
+		} finally {
+			in.close();
+		}
+
+		for (int f = 0; f < FILES; f++) {
+			File file = getFile(target, f);
+			assertTrue("Imported file not defragmented", file.length() <= getFile(source, f).length());
+			SimpleRegionFile srf = new SimpleRegionFile(file, 8, ENTRIES, 1000);
+			try {
+				assertEquals("Checksum setting not preserved", f == 0, srf.hasChecksums());
+				assertEquals("Codec not preserved", (f % 2 == 0 ? SRFCodec.DEFLATE : SRFCodec.LZF).getId(), srf.getCodec().getId());
+				assertTrue("Imported file fragmented", srf.getFragmentation() < 0.01F);
+				for (int i = 0; i < ENTRIES; i++) {
+					InputStream blockIn = srf.getInputStream(i);
+					if (data[f][i] == null) {
+						assertNull("Deleted block " + i + " imported", blockIn);
+					} else {
+						assertArrayEquals("Block " + i + " of file " + f + " mismatch", data[f][i], readFully(blockIn));
+					}
+				}
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+		}
+
+		in = new FileInputStream(archive);
+		try {
+			new SRFArchiver(1).importFolder(in, target);
+			fail("Existing region file overwritten");
+		} catch (SRFException e) {
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void exportSkipsOtherFiles() throws IOException {
+		File file = getFile(source, 0);
+		file.getParentFile().mkdirs();
+		byte[] data = new byte[500];
+		new Random(2).nextBytes(data);
+		SimpleRegionFile srf = new SimpleRegionFile(file, 8, ENTRIES, 1000);
+		try {
+			write(srf, 3, data);
+		} finally {
+			assertTrue("Unable to close file", srf.attemptClose());
+		}
+
+		byte[] text = "Not a region file".getBytes("UTF-8");
+		File other = new File(source, "notes.txt");
+		OutputStream otherOut = new FileOutputStream(other);
+		try {
+			otherOut.write(text);
+		} finally {
+			otherOut.close();
+		}
+		File empty = new File(source, "empty.sod");
+		empty.createNewFile();
+
+		OutputStream out = new FileOutputStream(archive);
+		List<SRFArchiver.Entry> index;
+		try {
+			index = new SRFArchiver(2).exportFolder(source, null, out);
+		} finally {
+			out.close();
+		}
+		assertEquals("Exported file count", 1, index.size());
+		assertEquals("Non region file modified by export", text.length, other.length());
+		InputStream otherIn = new FileInputStream(other);
+		try {
+			assertArrayEquals("Non region file modified by export", text, readFully(otherIn));
+		} finally {
+			otherIn.close();
+		}
+		assertEquals("Empty file modified by export", 0, empty.length());
+	}
+
+	private static File getFile(File folder, int f) {
+		return new File(folder, "region" + (f % 2) + File.separator + f + ".sod");
+	}
+
+	private static void write(SimpleRegionFile srf, int i, byte[] data) throws IOException {
+		OutputStream out = srf.getOutputStream(i);
+		out.write(data);
+		out.close();
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while ((read = in.read(buf)) != -1) {
+			out.write(buf, 0, read);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SRFCodecTest {
+	private static final SRFCodec[] CODECS = new SRFCodec[] {SRFCodec.NONE, SRFCodec.deflate(1), SRFCodec.DEFLATE, SRFCodec.deflate(9), SRFCodec.LZF};
+
+	@Test
+	public void roundTrip() throws IOException {
+		Random r = new Random(1234);
+		byte[] randomBytes = new byte[100000];
+		r.nextBytes(randomBytes);
+		byte[][] payloads = new byte[][] {new byte[0], new byte[] {1}, new byte[3], randomBytes, new byte[200000], chunkPayload(r), chunkPayload(r)};
+
+		for (SRFCodec codec : CODECS) {
+			for (byte[] payload : payloads) {
+				assertArrayEquals("Round trip mismatch for " + codec, payload, decode(codec, encode(codec, payload)));
+			}
+		}
+	}
+
+	@Test
+	public void codecRegistry() {
+		for (SRFCodec codec : CODECS) {
+			SRFCodec registered = SRFCodec.getCodec(codec.getId());
+			assertEquals("Registered codec name mismatch", codec.getName(), registered.getName());
+		}
+	}
+
+	@Test
+	public void regionFileCodec() throws IOException {
+		Random r = new Random(4321);
+		byte[] payload = chunkPayload(r);
+
+		File file = File.createTempFile("srfcodec", ".dat");
+		file.delete();
+		try {
+			SimpleRegionFile srf = new SimpleRegionFile(file, 8, 16, 1000, SRFCodec.LZF);
+			OutputStream out = srf.getOutputStream(3);
+			out.write(payload);
+			out.close();
+			assertTrue("Unable to close region file", srf.attemptClose());
+
+			// The codec stored in the header takes priority
+			srf = new SimpleRegionFile(file, 8, 16, 1000, SRFCodec.DEFLATE);
+			assertEquals("Codec not read from header", SRFCodec.LZF, srf.getCodec());
+			assertArrayEquals("Block mismatch after reopening", payload, readFully(srf.getInputStream(3)));
+			assertTrue("Unable to close region file", srf.attemptClose());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void benchmark() throws IOException {
+		Random r = new Random(5678);
+		byte[][] payloads = new byte[64][];
+		long rawSize = 0;
+		for (int i = 0; i < payloads.length; i++) {
+			payloads[i] = chunkPayload(r);
+			rawSize += payloads[i].length;
+		}
+
+		System.out.println("Codec benchmark, " + payloads.length + " chunks, " + rawSize + " bytes");
+		for (SRFCodec codec : CODECS) {
+			byte[][] encoded = new byte[payloads.length][];
+			// warm up
+			for (int i = 0; i < payloads.length; i++) {
+				encoded[i] = encode(codec, payloads[i]);
+				decode(codec, encoded[i]);
+			}
+
+			long compressedSize = 0;
+			long encodeTime = -System.nanoTime();
+			for (int i = 0; i < payloads.length; i++) {
+				encoded[i] = encode(codec, payloads[i]);
+				compressedSize += encoded[i].length;
+			}
+			encodeTime += System.nanoTime();
+
+			long decodeTime = -System.nanoTime();
+			for (int i = 0; i < payloads.length; i++) {
+				decode(codec, encoded[i]);
+			}
+			decodeTime += System.nanoTime();
+
+			System.out.println(codec + ": ratio " + (compressedSize * 100 / rawSize) + "%, encode " + throughput(rawSize, encodeTime) + " MB/s, decode " + throughput(rawSize, decodeTime) + " MB/s");
+		}
+	}
+
+	private static long throughput(long bytes, long nanos) {
+		return (bytes * 1000L) / Math.max(1, nanos);
+	}
+
+	private static byte[] encode(SRFCodec codec, byte[] payload) throws IOException {
+		ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+		OutputStream out = codec.wrapOutputStream(byteOut);
+		out.write(payload);
+		out.close();
+		return byteOut.toByteArray();
+	}
+
+	private static byte[] decode(SRFCodec codec, byte[] encoded) throws IOException {
+		return readFully(codec.wrapInputStream(new ByteArrayInputStream(encoded)));
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while ((read = in.read(buf)) != -1) {
+			out.write(buf, 0, read);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Creates a payload with the same layout as a serialized chunk: block ids, block data, block light and sky light
+	 */
+	private static byte[] chunkPayload(Random r) throws IOException {
+		ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(byteOut);
+		int surface = r.nextInt(16);
+		for (int i = 0; i < 4096; i++) {
+			int y = (i >> 8) & 0xF;
+			short id;
+			if (y < surface) {
+				id = (short) (r.nextInt(32) == 0 ? 14 + r.nextInt(3) : 1);
+			} else if (y == surface) {
+				id = 2;
+			} else {
+				id = 0;
+			}
+			out.writeShort(id);
+		}
+		for (int i = 0; i < 4096; i++) {
+			out.writeShort(r.nextInt(64) == 0 ? r.nextInt(16) : 0);
+		}
+		for (int i = 0; i < 2048; i++) {
+			out.writeByte(r.nextInt(16) == 0 ? r.nextInt(256) : 0);
+		}
+		for (int i = 0; i < 2048; i++) {
+			out.writeByte(((i >> 7) & 0xF) > surface ? 0xFF : 0);
+		}
+		out.close();
+		return byteOut.toByteArray();
+	}
+}
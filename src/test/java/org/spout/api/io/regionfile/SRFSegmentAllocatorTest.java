@@ -0,0 +1,109 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.regionfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SRFSegmentAllocatorTest {
+
+	@Test
+	public void reserve() {
+		SRFSegmentAllocator allocator = new SRFSegmentAllocator();
+		assertTrue("Unable to reserve header", allocator.reserve(0, 2));
+		assertTrue("Unable to reserve block", allocator.reserve(10, 5));
+		assertEquals("Limit mismatch", 15, allocator.getLimit());
+		assertEquals("Free segment mismatch", 8, allocator.getFreeSegments());
+		assertFalse("Overlapping reservation succeeded", allocator.reserve(9, 2));
+		assertFalse("Overlapping reservation succeeded", allocator.reserve(14, 2));
+		assertTrue("Unable to extend into tail", allocator.reserve(15, 3));
+		assertTrue("Unable to reserve gap", allocator.reserve(2, 8));
+		assertEquals("Free segment mismatch", 0, allocator.getFreeSegments());
+	}
+
+	@Test
+	public void bestFit() {
+		SRFSegmentAllocator allocator = new SRFSegmentAllocator();
+		allocator.reserve(0, 100);
+		allocator.release(10, 5);
+		allocator.release(30, 2);
+		allocator.release(50, 3);
+		assertEquals("Free run count mismatch", 3, allocator.getFreeRuns());
+		assertEquals("Best fit not used", 30, allocator.allocate(2));
+		assertEquals("Best fit not used", 50, allocator.allocate(3));
+		assertEquals("Split run not used", 10, allocator.allocate(4));
+		assertEquals("Remainder of split run not used", 14, allocator.allocate(1));
+		assertEquals("Allocation not appended", 100, allocator.allocate(6));
+		assertEquals("No runs should be free", 0, allocator.getFreeSegments());
+	}
+
+	@Test
+	public void releaseMergesAndTrimsTail() {
+		SRFSegmentAllocator allocator = new SRFSegmentAllocator();
+		allocator.reserve(0, 20);
+		allocator.release(5, 5);
+		allocator.release(12, 3);
+		allocator.release(10, 2);
+		assertEquals("Adjacent runs not merged", 1, allocator.getFreeRuns());
+		assertEquals("Merged run not allocated", 5, allocator.allocate(10));
+		allocator.release(15, 5);
+		assertEquals("Tail not trimmed", 15, allocator.getLimit());
+		assertEquals("Tail run kept", 0, allocator.getFreeRuns());
+		assertEquals("Allocation below limit mismatch", -1, allocator.allocateBelow(1, 15));
+	}
+
+	@Test
+	public void randomAgainstBitmap() {
+		Random r = new Random(42);
+		SRFSegmentAllocator allocator = new SRFSegmentAllocator();
+		BitSet used = new BitSet();
+		List<int[]> blocks = new ArrayList<int[]>();
+		for (int n = 0; n < 20000; n++) {
+			if (blocks.isEmpty() || r.nextInt(3) != 0) {
+				int length = 1 + r.nextInt(16);
+				int start = allocator.allocate(length);
+				assertTrue("Allocated segments already in use", used.nextSetBit(start) < 0 || used.nextSetBit(start) >= start + length);
+				used.set(start, start + length);
+				blocks.add(new int[] {start, length});
+			} else {
+				int[] block = blocks.remove(r.nextInt(blocks.size()));
+				allocator.release(block[0], block[1]);
+				used.clear(block[0], block[0] + block[1]);
+			}
+			assertEquals("Limit mismatch", used.length(), allocator.getLimit());
+			assertEquals("Free segment mismatch", used.length() - used.cardinality(), allocator.getFreeSegments());
+		}
+	}
+}
@@ -26,18 +26,32 @@
  */
 package org.spout.api.io.regionfile;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 import org.junit.Test;
 
+import org.spout.api.io.bytearrayarray.BAABlockView;
 import org.spout.api.io.bytearrayarray.BAAClosedException;
 import org.spout.api.io.bytearrayarray.ByteArrayArray;
 
@@ -163,6 +177,533 @@ public class SimpleRegionFileTest {
 		file.delete();
 	}
 
+	@Test
+	public void blockView() throws IOException {
+		File file = createTempFile();
+		try {
+			SimpleRegionFile srf = new SimpleRegionFile(file, 8, 64, 1000, SRFCodec.NONE);
+			try {
+				Random r = new Random(1);
+				// Large enough to span several mapped pages
+				byte[] data = new byte[300000];
+				r.nextBytes(data);
+				write(srf, 5, data);
+
+				assertNull("View returned for empty block", srf.getBlockView(4));
+
+				BAABlockView view = srf.getBlockView(5);
+				try {
+					assertEquals("View length mismatch", data.length, view.getLength());
+					ByteBuffer[] buffers = view.getBuffers();
+					assertTrue("Expected the view to span multiple pages", buffers.length > 1);
+					int pos = 0;
+					for (ByteBuffer buffer : buffers) {
+						assertTrue("View buffer is writable", buffer.isReadOnly());
+						while (buffer.hasRemaining()) {
+							assertEquals("View data mismatch at " + pos, data[pos++], buffer.get());
+						}
+					}
+					assertEquals("View buffers length mismatch", data.length, pos);
+					assertArrayEquals("View stream mismatch", data, readFully(view.getInputStream()));
+					assertFalse("File closed while a view was open", srf.attemptClose());
+				} finally {
+					view.close();
+				}
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void blockViewCompressed() throws IOException {
+		File file = createTempFile();
+		try {
+			SimpleRegionFile srf = new SimpleRegionFile(file, 8, 64, 1000);
+			try {
+				byte[] data = new byte[10000];
+				for (int i = 0; i < data.length; i++) {
+					data[i] = (byte) (i / 100);
+				}
+				write(srf, 0, data);
+				BAABlockView view = srf.getBlockView(0);
+				try {
+					assertTrue("Data not compressed", view.getLength() < data.length);
+					assertArrayEquals("Decoded view mismatch", data, readFully(view.getInputStream()));
+				} finally {
+					view.close();
+				}
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void cachedPages() throws IOException {
+		File file = createTempFile();
+		try {
+			// The budget only holds a few pages, so pages are evicted and written back while the blocks are written
+			CachedPagePool pagePool = new CachedPagePool(4 << 16);
+			SimpleRegionFile srf = new SimpleRegionFile(file, 8, 64, 1000, SRFCodec.NONE, null, true, pagePool);
+			byte[][] data = new byte[64][];
+			Random r = new Random(4);
+			try {
+				for (int i = 0; i < 64; i++) {
+					data[i] = new byte[1000 + r.nextInt(20000)];
+					r.nextBytes(data[i]);
+					write(srf, i, data[i]);
+				}
+				for (int i = 0; i < 64; i++) {
+					assertArrayEquals("Cached block mismatch", data[i], readFully(srf.getInputStream(i)));
+				}
+				BAABlockView view = srf.getBlockView(5);
+				try {
+					assertArrayEquals("Cached block view mismatch", data[5], readFully(view.getInputStream()));
+				} finally {
+					view.close();
+				}
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+			assertTrue("Pages not evicted", pagePool.getEvictions() > 0);
+
+			srf = new SimpleRegionFile(file, 8, 64, 1000);
+			try {
+				for (int i = 0; i < 64; i++) {
+					assertArrayEquals("Block written through cached pages lost", data[i], readFully(srf.getInputStream(i)));
+				}
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void writeBehind() throws IOException {
+		File file = createTempFile();
+		try {
+			File journalFile = SRFJournal.getJournalFile(file);
+			SRFWriteBehind settings = new SRFWriteBehind(Integer.MAX_VALUE, Integer.MAX_VALUE);
+			SimpleRegionFile srf = new SimpleRegionFile(file, 8, 64, 1000, SRFCodec.NONE, settings);
+			byte[] first = new byte[1000];
+			Arrays.fill(first, (byte) 1);
+			byte[] second = new byte[2000];
+			Arrays.fill(second, (byte) 2);
+			try {
+				write(srf, 1, first);
+				assertArrayEquals("Pending write not visible", first, readFully(srf.getInputStream(1)));
+				assertFalse("Journal written before commit", journalFile.exists());
+				srf.commit();
+				assertTrue("Journal not written by commit", journalFile.length() > first.length);
+				assertArrayEquals("Committed write not visible", first, readFully(srf.getInputStream(1)));
+				write(srf, 2, second);
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+			assertFalse("Journal not deleted on close", journalFile.exists());
+
+			srf = new SimpleRegionFile(file, 8, 64, 1000);
+			try {
+				assertArrayEquals("Block lost after reopening", first, readFully(srf.getInputStream(1)));
+				assertArrayEquals("Block pending at close lost after reopening", second, readFully(srf.getInputStream(2)));
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void secondOpen() throws IOException {
+		File file = createTempFile();
+		try {
+			File journalFile = SRFJournal.getJournalFile(file);
+			SimpleRegionFile srf = new SimpleRegionFile(file, 8, 64, 1000, SRFCodec.NONE, new SRFWriteBehind(Integer.MAX_VALUE, Integer.MAX_VALUE));
+			byte[] data = new byte[1000];
+			Arrays.fill(data, (byte) 3);
+			try {
+				write(srf, 4, data);
+				srf.commit();
+				long journalLength = journalFile.length();
+				try {
+					new SimpleRegionFile(file, 8, 64, 1000, SRFCodec.NONE);
+					fail("Second instance opened for the same file");
+				} catch (SRFException e) {
+				}
+				assertEquals("Journal changed by a failed second open", journalLength, journalFile.length());
+				write(srf, 5, data);
+				srf.commit();
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+
+			srf = new SimpleRegionFile(file, 8, 64, 1000);
+			try {
+				assertArrayEquals("Block lost after a failed second open", data, readFully(srf.getInputStream(4)));
+				assertArrayEquals("Block lost after a failed second open", data, readFully(srf.getInputStream(5)));
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void journalRecovery() throws IOException {
+		File file = createTempFile();
+		try {
+			File journalFile = SRFJournal.getJournalFile(file);
+			File savedJournal = File.createTempFile("srftest", ".journal");
+			try {
+				byte[] committed = new byte[5000];
+				Arrays.fill(committed, (byte) 7);
+				SimpleRegionFile srf = new SimpleRegionFile(file, 8, 64, 1000, SRFCodec.NONE, new SRFWriteBehind(Integer.MAX_VALUE, Integer.MAX_VALUE));
+				write(srf, 3, committed);
+				srf.commit();
+				copy(journalFile, savedJournal, 0);
+				assertTrue("Unable to close file", srf.attemptClose());
+
+				srf = new SimpleRegionFile(file, 8, 64, 1000, SRFCodec.NONE);
+				write(srf, 3, new byte[100]);
+				assertTrue("Unable to close file", srf.attemptClose());
+
+				// Simulate a crash after the journal was forced, followed by a partially written commit
+				copy(savedJournal, journalFile, 64);
+
+				srf = new SimpleRegionFile(file, 8, 64, 1000, SRFCodec.NONE);
+				try {
+					assertFalse("Journal not deleted after recovery", journalFile.exists());
+					assertArrayEquals("Committed write not replayed", committed, readFully(srf.getInputStream(3)));
+				} finally {
+					assertTrue("Unable to close file", srf.attemptClose());
+				}
+			} finally {
+				savedJournal.delete();
+				journalFile.delete();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void compaction() throws IOException {
+		File file = createTempFile();
+		try {
+			SimpleRegionFile srf = new SimpleRegionFile(file, 8, 64, 1000, SRFCodec.NONE);
+			try {
+				byte[][] data = new byte[64][];
+				Random r = new Random(2);
+				for (int i = 0; i < 64; i++) {
+					data[i] = new byte[256 + r.nextInt(4096)];
+					r.nextBytes(data[i]);
+					write(srf, i, data[i]);
+				}
+				// Grow some blocks so that they move to the end of the file, and then delete blocks near the start
+				for (int i = 16; i < 24; i++) {
+					data[i] = new byte[data[i].length + 8192];
+					r.nextBytes(data[i]);
+					write(srf, i, data[i]);
+				}
+				for (int i = 0; i < 32; i++) {
+					if (i < 16 || i >= 24) {
+						write(srf, i, new byte[0]);
+						data[i] = new byte[0];
+					}
+				}
+				float fragmentation = srf.getFragmentation();
+				assertTrue("File not fragmented", fragmentation > 0.1F);
+
+				int moved = srf.compact(64);
+				assertTrue("No blocks moved", moved > 0);
+				assertTrue("Fragmentation not reduced", srf.getFragmentation() < fragmentation);
+
+				for (int i = 0; i < 64; i++) {
+					InputStream in = srf.getInputStream(i);
+					byte[] read = in == null ? new byte[0] : readFully(in);
+					assertArrayEquals("Block " + i + " mismatch after compaction", data[i], read);
+				}
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+
+			srf = new SimpleRegionFile(file, 8, 64, 1000, SRFCodec.NONE);
+			try {
+				InputStream in = srf.getInputStream(40);
+				assertTrue("Block lost after reopening compacted file", in != null);
+				in.close();
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void compactionWriteBehind() throws IOException {
+		File file = createTempFile();
+		File crashed = createTempFile();
+		try {
+			SimpleRegionFile srf = new SimpleRegionFile(file, 8, 64, 1000, SRFCodec.NONE, new SRFWriteBehind(Integer.MAX_VALUE, Integer.MAX_VALUE));
+			byte[][] data = new byte[8][];
+			try {
+				for (int i = 0; i < 8; i++) {
+					data[i] = new byte[1000];
+					Arrays.fill(data[i], (byte) (i + 1));
+					write(srf, i, data[i]);
+				}
+				srf.commit();
+				// The grown block moves to the end of the file, but the FAT on disk still points at its old segments until the write is committed
+				byte[] grown = new byte[2000];
+				Arrays.fill(grown, (byte) 64);
+				write(srf, 0, grown);
+				srf.compact(64);
+				// Simulate a crash after compaction
+				copy(file, crashed, 0);
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+
+			srf = new SimpleRegionFile(crashed, 8, 64, 1000, SRFCodec.NONE);
+			try {
+				byte[] read = readFully(srf.getInputStream(0));
+				assertTrue("Block overwritten by compaction", read.length == 2000 || Arrays.equals(data[0], read));
+				for (int i = 1; i < 8; i++) {
+					assertArrayEquals("Block " + i + " mismatch after compaction", data[i], readFully(srf.getInputStream(i)));
+				}
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+		} finally {
+			file.delete();
+			crashed.delete();
+		}
+	}
+
+	@Test
+	public void compactionTruncate() throws IOException {
+		File file = createTempFile();
+		try {
+			SimpleRegionFile srf = new SimpleRegionFile(file, 8, 64, 1000, SRFCodec.NONE);
+			try {
+				byte[][] data = new byte[64][];
+				Random r = new Random(4);
+				for (int i = 0; i < 64; i++) {
+					data[i] = new byte[16000];
+					r.nextBytes(data[i]);
+					write(srf, i, data[i]);
+				}
+				for (int i = 1; i < 48; i++) {
+					write(srf, i, new byte[0]);
+				}
+				long length = file.length();
+
+				// Compaction locks each block it visits, so only the 16 blocks at the end of the file are visited and block 0 can stay open
+				BAABlockView view = srf.getBlockView(0);
+				try {
+					assertEquals("Blocks not moved", 16, srf.compact(16));
+					assertEquals("File truncated while a view was open", length, file.length());
+					assertArrayEquals("View data changed by compaction", data[0], readFully(view.getInputStream()));
+				} finally {
+					view.close();
+				}
+
+				srf.compact(16);
+				assertTrue("File not truncated by compaction", file.length() < length);
+				assertArrayEquals("Block 0 mismatch after truncation", data[0], readFully(srf.getInputStream(0)));
+				for (int i = 48; i < 64; i++) {
+					assertArrayEquals("Block " + i + " mismatch after truncation", data[i], readFully(srf.getInputStream(i)));
+				}
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void checksums() throws IOException {
+		File file = createTempFile();
+		try {
+			byte[] data = new byte[3000];
+			new Random(3).nextBytes(data);
+			SimpleRegionFile srf = new SimpleRegionFile(file, 8, 64, 1000, SRFCodec.NONE, null, true);
+			try {
+				assertTrue("Checksums not enabled", srf.hasChecksums());
+				write(srf, 2, data);
+				write(srf, 9, data);
+				assertArrayEquals("Checksummed block mismatch", data, readFully(srf.getInputStream(2)));
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+
+			List<SRFScanner.Problem> problems = new SRFScanner(1, true).scan(file);
+			assertTrue("Problems found in valid file " + problems, problems.isEmpty());
+
+			corrupt(file, 9, 100);
+
+			srf = new SimpleRegionFile(file, 8, 64, 1000, SRFCodec.NONE);
+			try {
+				assertTrue("Checksums not enabled after reopening", srf.hasChecksums());
+				assertArrayEquals("Valid block rejected", data, readFully(srf.getInputStream(2)));
+				try {
+					srf.getInputStream(9);
+					fail("Corrupt block not detected on read");
+				} catch (SRFException e) {
+				}
+				try {
+					srf.getBlockView(9);
+					fail("Corrupt block not detected by view");
+				} catch (SRFException e) {
+				}
+			} finally {
+				assertTrue("Unable to close file", srf.attemptClose());
+			}
+
+			problems = new SRFScanner(1, false).scan(file);
+			assertEquals("Scanner problem count", 1, problems.size());
+			assertEquals("Scanner reported wrong block", 9, problems.get(0).getBlock());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void scanCorruptHeader() throws IOException {
+		File file = createTempFile();
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+			try {
+				out.writeInt(3);
+				out.writeInt(8);
+				// The FAT size overflows an int
+				out.writeInt(0x20000000);
+				out.writeInt(0);
+				out.writeInt(1);
+				out.write(new byte[1000]);
+			} finally {
+				out.close();
+			}
+			List<SRFScanner.Problem> problems = new SRFScanner(1, true).scan(file);
+			assertEquals("Scanner problem count", 1, problems.size());
+			assertEquals("Scanner reported a block for a header problem", -1, problems.get(0).getBlock());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void scanFolder() throws IOException {
+		File file = createTempFile();
+		try {
+			File folder = new File(file.getPath() + ".dir");
+			folder.mkdir();
+			File[] files = new File[4];
+			try {
+				byte[] data = new byte[1000];
+				for (int i = 0; i < files.length; i++) {
+					files[i] = new File(folder, "region" + i + ".sod");
+					SimpleRegionFile srf = new SimpleRegionFile(files[i], 8, 64, 1000, SRFCodec.DEFLATE, null, i % 2 == 0);
+					try {
+						for (int j = 0; j < 8; j++) {
+							write(srf, j, data);
+						}
+					} finally {
+						assertTrue("Unable to close file", srf.attemptClose());
+					}
+				}
+				corrupt(files[1], 4, 10);
+				corrupt(files[2], 6, 10);
+
+				List<SRFScanner.Problem> problems = new SRFScanner(4, true).scan(folder, null);
+				assertEquals("Scanner problem count " + problems, 2, problems.size());
+				for (SRFScanner.Problem problem : problems) {
+					assertTrue("Problem reported in valid file", problem.getFile().equals(files[1]) || problem.getFile().equals(files[2]));
+				}
+			} finally {
+				for (File f : files) {
+					if (f != null) {
+						f.delete();
+					}
+				}
+				folder.delete();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static File createTempFile() throws IOException {
+		File file = File.createTempFile("srftest", ".dat");
+		file.delete();
+		return file;
+	}
+
+	private static void corrupt(File file, int block, int offset) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			int version = raf.readInt();
+			int segmentSize = raf.readInt();
+			raf.readInt();
+			raf.readInt();
+			int flags = raf.readInt();
+			raf.seek(SimpleRegionFile.getFATOffset(version) + block * SimpleRegionFile.getFATEntrySize(flags));
+			long position = ((long) raf.readInt() << segmentSize) + offset;
+			raf.seek(position);
+			int b = raf.read();
+			raf.seek(position);
+			raf.write(b ^ 0xFF);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void copy(File from, File to, int garbage) throws IOException {
+		FileInputStream in = new FileInputStream(from);
+		byte[] data;
+		try {
+			data = new byte[(int) from.length()];
+			new DataInputStream(in).readFully(data);
+		} finally {
+			in.close();
+		}
+		FileOutputStream out = new FileOutputStream(to);
+		try {
+			out.write(data);
+			out.write(Arrays.copyOf(data, Math.min(garbage, data.length)));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void write(SimpleRegionFile srf, int i, byte[] data) throws IOException {
+		OutputStream out = srf.getOutputStream(i);
+		out.write(data);
+		out.close();
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while ((read = in.read(buf)) != -1) {
+			out.write(buf, 0, read);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
 	private boolean checkEntryMatch(int entry) throws IOException {
 		byte[] expected = dataCache[entry];
 		if (expected == null) {
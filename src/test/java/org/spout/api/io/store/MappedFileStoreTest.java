@@ -0,0 +1,198 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.io.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.spout.api.io.store.simple.BinaryFileStore;
+import org.spout.api.io.store.simple.MappedFileStore;
+import org.spout.api.io.store.simple.SimpleStore;
+
+public class MappedFileStoreTest {
+	File file = new File("mappedtest.dat");
+	File temp = new File("mappedtest.dat.tmp");
+	File backup = new File("mappedtest.dat.bak");
+
+	String[] keys = new String[] {"key1", "key2", "key3", "key4"};
+	int[] ids = new int[] {1, 2, -1, 1000, 77};
+
+	@After
+	public void cleanup() {
+		file.delete();
+		temp.delete();
+		backup.delete();
+	}
+
+	@Test
+	public void saveReload() {
+		file.delete();
+		MappedFileStore subject = new MappedFileStore(file);
+		set(subject);
+		assertTrue("Save failed", subject.save());
+		check(reload());
+	}
+
+	@Test
+	public void appendAfterSave() {
+		file.delete();
+		MappedFileStore subject = new MappedFileStore(file);
+		subject.set(keys[0], ids[0]);
+		subject.save();
+		for (int i = 1; i < keys.length; i++) {
+			subject.set(keys[i], ids[i]);
+		}
+		subject.remove(keys[0]);
+		assertFalse("Duplicate value accepted", subject.setIfAbsent("other", ids[1]));
+		assertTrue("Absent key rejected", subject.setIfAbsent("other", 5000));
+
+		// Appended records are read back without saving again
+		MappedFileStore reloaded = reload();
+		assertNull("Removed key reloaded", reloaded.get(keys[0]));
+		for (int i = 1; i < keys.length; i++) {
+			assertEquals("Appended key mismatch", ids[i], (int) reloaded.get(keys[i]));
+		}
+		assertEquals("Reverse lookup mismatch", "other", reloaded.reverseGet(5000));
+	}
+
+	@Test
+	public void compaction() {
+		file.delete();
+		MappedFileStore subject = new MappedFileStore(file);
+		subject.save();
+		for (int j = 0; j < 100; j++) {
+			for (int i = 0; i < keys.length; i++) {
+				subject.set(keys[i], ids[i] + j * 10000);
+			}
+			subject.save();
+		}
+		assertTrue("Log not compacted", file.length() < 1 << 20);
+		MappedFileStore reloaded = reload();
+		assertEquals("Store size mismatch", keys.length, reloaded.getSize());
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals("Compacted key mismatch", ids[i] + 99 * 10000, (int) reloaded.get(keys[i]));
+		}
+	}
+
+	@Test
+	public void recoverInterruptedRewrite() throws IOException {
+		file.delete();
+		MappedFileStore subject = new MappedFileStore(file);
+		set(subject);
+		assertTrue("Save failed", subject.save());
+		subject.setFile(null);
+
+		// The rewrite completed the new log, but the old log was removed before the new log was renamed
+		assertTrue("Unable to rename log", file.renameTo(temp));
+		check(reload());
+		assertFalse("Temporary file not removed", temp.exists());
+
+		// The rewrite was interrupted before the new log was complete
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(new byte[] {1, 2, 3});
+		} finally {
+			out.close();
+		}
+		check(reload());
+		assertFalse("Temporary file not removed", temp.exists());
+	}
+
+	@Test
+	public void loadBinaryFileStore() {
+		file.delete();
+		backup.delete();
+		BinaryFileStore old = new BinaryFileStore(file);
+		set(old);
+		assertTrue("Save failed", old.save());
+		check(reload());
+		// The file has been converted, and the original can still be read by BinaryFileStore
+		check(reload());
+		BinaryFileStore original = new BinaryFileStore(backup);
+		assertTrue("Backup not readable", original.load());
+		check(original);
+	}
+
+	@Test
+	public void concurrentSetIfAbsent() throws InterruptedException {
+		file.delete();
+		final MappedFileStore subject = new MappedFileStore(file);
+		subject.save();
+		final AtomicInteger added = new AtomicInteger(0);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 5000; i++) {
+						if (subject.setIfAbsent("key" + i, i)) {
+							added.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals("Keys added more than once", 5000, added.get());
+		MappedFileStore reloaded = reload();
+		assertEquals("Store size mismatch", 5000, reloaded.getSize());
+		for (int i = 0; i < 5000; i++) {
+			assertEquals("Key mismatch", i, (int) reloaded.get("key" + i));
+		}
+	}
+
+	private MappedFileStore reload() {
+		MappedFileStore subject = new MappedFileStore(file);
+		assertTrue("Load failed", subject.load());
+		return subject;
+	}
+
+	private void set(SimpleStore<Integer> subject) {
+		for (int i = 0; i < keys.length; i++) {
+			subject.set(keys[i], ids[i]);
+		}
+	}
+
+	private void check(SimpleStore<Integer> subject) {
+		for (int i = 0; i < keys.length; i++) {
+			assertTrue("Check mismatch", subject.get(keys[i]).equals(ids[i]));
+		}
+	}
+}
@@ -26,12 +26,23 @@
  */
 package org.spout.api.util.concurrent;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 import org.junit.Test;
 
 public class OptimisticReadWriteLockTest {
 	private final int LENGTH = 1000000;
+	private final int THREADS = 4;
+	private final int BENCHMARK_LENGTH = 500000;
+	private final int STRESS_LENGTH = 100000;
 
 	private OptimisticReadWriteLock lock = new OptimisticReadWriteLock();
 
@@ -129,4 +140,310 @@ public class OptimisticReadWriteLockTest {
 		System.out.println("- Write lock attempt failed (as expected)");
 		System.out.println();
 	}
+
+	@Test
+	public void sharedLockTest() throws InterruptedException {
+		OptimisticReadWriteLock lock = new OptimisticReadWriteLock();
+
+		assertTrue("Shared lock failed when the lock was free", lock.trySharedLock());
+		assertEquals("Shared count incorrect", 1, lock.getSharedCount());
+		int seq = lock.tryReadLock();
+		assertTrue("Optimistic read failed during a shared hold", seq != OptimisticReadWriteLock.UNSTABLE);
+		assertTrue("Write lock successful during a shared hold", lock.tryWriteLock() == OptimisticReadWriteLock.UNSTABLE);
+		assertTrue("Failed write lock attempt invalidated an optimistic read", lock.readUnlock(seq));
+		assertTrue("Write lock upgrade successful during a shared hold", lock.tryConvertToWriteLock(seq) == OptimisticReadWriteLock.UNSTABLE);
+		assertTrue("Timed write lock successful during a shared hold", lock.tryWriteLock(1, TimeUnit.MILLISECONDS) == OptimisticReadWriteLock.UNSTABLE);
+		lock.sharedUnlock();
+
+		seq = lock.tryWriteLock();
+		assertTrue("Write lock failed after the shared hold was released", seq != OptimisticReadWriteLock.UNSTABLE);
+		assertTrue("Shared lock failed for the write lock owner", lock.trySharedLock());
+		lock.sharedUnlock();
+		assertTrue("Lock not write locked after owner released a shared hold", lock.isWriteLocked());
+		lock.writeUnlock(seq);
+
+		final OptimisticReadWriteLock other = new OptimisticReadWriteLock();
+		final int otherSeq = other.writeLock();
+		final AtomicBoolean shared = new AtomicBoolean(false);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				shared.set(other.trySharedLock());
+			}
+		};
+		t.start();
+		t.join();
+		assertFalse("Shared lock successful while another thread held the write lock", shared.get());
+		other.writeUnlock(otherSeq);
+	}
+
+	@Test
+	public void convertTest() {
+		OptimisticReadWriteLock lock = new OptimisticReadWriteLock();
+
+		int seq = lock.readLock();
+		int writeSeq = lock.tryConvertToWriteLock(seq);
+		assertEquals("Upgrade failed when no write occurred", seq, writeSeq);
+		assertTrue("Lock not write locked after upgrade", lock.isWriteLocked());
+		lock.writeUnlock(writeSeq);
+
+		long failures = lock.getOptimisticFailures();
+		seq = lock.readLock();
+		lock.writeUnlock(lock.writeLock());
+		assertTrue("Upgrade successful after an intervening write", lock.tryConvertToWriteLock(seq) == OptimisticReadWriteLock.UNSTABLE);
+		assertFalse("Read successful after an intervening write", lock.readUnlock(seq));
+		assertEquals("Optimistic failures not counted", failures + 2, lock.getOptimisticFailures());
+	}
+
+	@Test
+	public void reentrantTest() {
+		OptimisticReadWriteLock lock = new OptimisticReadWriteLock();
+
+		int seq = lock.readLock();
+		lock.lock();
+		assertTrue("Reentrant lock failed", lock.tryLock());
+		lock.lock();
+		assertEquals("Hold count incorrect", 3, lock.getHoldCount());
+		assertTrue("Sequence based write lock is reentrant", lock.tryWriteLock() == OptimisticReadWriteLock.UNSTABLE);
+		lock.unlock();
+		lock.unlock();
+		assertTrue("Lock released before all holds were released", lock.isWriteLocked());
+		lock.unlock();
+		assertFalse("Lock not released after all holds were released", lock.isWriteLocked());
+		assertEquals("Hold count incorrect", 0, lock.getHoldCount());
+		assertFalse("Read successful after a write", lock.readUnlock(seq));
+
+		seq = lock.writeLock();
+		lock.lock();
+		lock.unlock();
+		assertTrue("Reentrant unlock released a sequence based write lock", lock.isWriteLocked());
+		lock.writeUnlock(seq);
+		assertFalse("Lock not released", lock.isWriteLocked());
+	}
+
+	@Test
+	public void timeoutTest() throws InterruptedException {
+		final OptimisticReadWriteLock lock = new OptimisticReadWriteLock();
+		final int seq = lock.writeLock();
+
+		long start = System.nanoTime();
+		assertTrue("Timed write lock successful when the write lock was active", lock.tryWriteLock(10, TimeUnit.MILLISECONDS) == OptimisticReadWriteLock.UNSTABLE);
+		assertTrue("Timed write lock returned before the timeout", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(10));
+		assertEquals("Write contention not counted", 1, lock.getWriteContentions());
+
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException ie) {
+				}
+				lock.writeUnlock(seq);
+			}
+		};
+		t.start();
+		int newSeq = lock.tryWriteLock(10, TimeUnit.SECONDS);
+		assertTrue("Timed write lock failed after the write lock was released", newSeq != OptimisticReadWriteLock.UNSTABLE);
+		assertEquals("Sequence number not incremented by the write", seq + 2, newSeq);
+		lock.writeUnlock(newSeq);
+		t.join();
+	}
+
+	@Test
+	public void writerPreferenceTest() throws InterruptedException {
+		final OptimisticReadWriteLock lock = new OptimisticReadWriteLock();
+		final AtomicBoolean written = new AtomicBoolean(false);
+
+		lock.sharedLock();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				int seq = lock.writeLock();
+				written.set(true);
+				lock.writeUnlock(seq);
+			}
+		};
+		writer.start();
+		while (!lock.isWriteLocked()) {
+			Thread.yield();
+		}
+
+		final AtomicBoolean sharedAfterWrite = new AtomicBoolean(false);
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				lock.sharedLock();
+				sharedAfterWrite.set(written.get());
+				lock.sharedUnlock();
+			}
+		};
+		reader.start();
+		Thread.sleep(10);
+		assertFalse("Writer acquired the lock while a shared hold was active", written.get());
+		lock.sharedUnlock();
+
+		writer.join();
+		reader.join();
+		assertTrue("Writer did not acquire the lock", written.get());
+		assertTrue("Shared hold overtook a waiting writer", sharedAfterWrite.get());
+		assertTrue("Read contention not counted", lock.getReadContentions() > 0);
+	}
+
+	@Test
+	public void concurrentTest() throws InterruptedException {
+		final OptimisticReadWriteLock lock = new OptimisticReadWriteLock();
+		final int[] data = new int[2];
+		final AtomicInteger writes = new AtomicInteger(0);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final int id = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(id);
+					for (int j = 0; j < STRESS_LENGTH; j++) {
+						switch (r.nextInt(6)) {
+							case 0: {
+								int seq = lock.writeLock();
+								data[0]++;
+								data[1]++;
+								writes.incrementAndGet();
+								lock.writeUnlock(seq);
+								break;
+							}
+							case 1: {
+								lock.lock();
+								lock.lock();
+								data[0]++;
+								data[1]++;
+								writes.incrementAndGet();
+								lock.unlock();
+								lock.unlock();
+								break;
+							}
+							case 2: {
+								int seq;
+								do {
+									seq = lock.readLock();
+								} while (lock.tryConvertToWriteLock(seq) == OptimisticReadWriteLock.UNSTABLE);
+								data[0]++;
+								data[1]++;
+								writes.incrementAndGet();
+								lock.writeUnlock(seq);
+								break;
+							}
+							case 3: {
+								lock.sharedLock();
+								if (data[0] != data[1]) {
+									failed.set(true);
+								}
+								lock.sharedUnlock();
+								break;
+							}
+							default: {
+								int a;
+								int b;
+								int seq;
+								do {
+									seq = lock.readLock();
+									a = data[0];
+									b = data[1];
+								} while (!lock.readUnlock(seq));
+								if (a != b) {
+									failed.set(true);
+								}
+							}
+						}
+					}
+				}
+			};
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertFalse("Inconsistent read", failed.get());
+		assertEquals("Write lost", writes.get(), data[0]);
+		assertEquals("Write lost", writes.get(), data[1]);
+		assertFalse("Lock still write locked", lock.isWriteLocked());
+		assertEquals("Shared holds not released", 0, lock.getSharedCount());
+	}
+
+	@Test
+	public void readHeavyBenchmark() throws InterruptedException {
+		benchmark("Read heavy", 32);
+	}
+
+	@Test
+	public void writeHeavyBenchmark() throws InterruptedException {
+		benchmark("Write heavy", 2);
+	}
+
+	private void benchmark(String name, final int readsPerWrite) throws InterruptedException {
+		final OptimisticReadWriteLock optimistic = new OptimisticReadWriteLock();
+		final ReentrantReadWriteLock reentrant = new ReentrantReadWriteLock();
+		final int[] optimisticData = new int[1];
+		final int[] reentrantData = new int[1];
+
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < BENCHMARK_LENGTH; j++) {
+						if (j % readsPerWrite == 0) {
+							int seq = optimistic.writeLock();
+							optimisticData[0]++;
+							optimistic.writeUnlock(seq);
+						} else {
+							int seq;
+							do {
+								seq = optimistic.readLock();
+							} while (!optimistic.readUnlock(seq));
+						}
+					}
+				}
+			};
+		}
+		long optimisticTime = time(threads);
+
+		for (int i = 0; i < THREADS; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < BENCHMARK_LENGTH; j++) {
+						if (j % readsPerWrite == 0) {
+							reentrant.writeLock().lock();
+							reentrantData[0]++;
+							reentrant.writeLock().unlock();
+						} else {
+							reentrant.readLock().lock();
+							reentrant.readLock().unlock();
+						}
+					}
+				}
+			};
+		}
+		long reentrantTime = time(threads);
+
+		assertEquals("Write lost", THREADS * ((BENCHMARK_LENGTH + readsPerWrite - 1) / readsPerWrite), optimisticData[0]);
+		System.out.println(name + " (" + THREADS + " threads, " + (readsPerWrite - 1) + " reads per write): OptimisticReadWriteLock " + optimisticTime / 1000000 + "ms, ReentrantReadWriteLock " + reentrantTime / 1000000 + "ms");
+		System.out.println("Optimistic failures " + optimistic.getOptimisticFailures() + ", read contentions " + optimistic.getReadContentions() + ", write contentions " + optimistic.getWriteContentions());
+	}
+
+	private long time(Thread[] threads) throws InterruptedException {
+		long start = System.nanoTime();
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		return System.nanoTime() - start;
+	}
 }
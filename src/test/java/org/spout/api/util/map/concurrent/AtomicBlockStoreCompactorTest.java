@@ -0,0 +1,131 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.spout.api.util.map.concurrent.palette.AtomicPaletteBlockStore;
+
+public class AtomicBlockStoreCompactorTest {
+	private static final int SHIFT = 4;
+	private static final int SIDE = 1 << SHIFT;
+
+	@Test
+	public void incrementalCompaction() {
+		AtomicBlockStoreCompactor compactor = new AtomicBlockStoreCompactor();
+		AtomicPaletteBlockStore[] stores = new AtomicPaletteBlockStore[50];
+		for (int i = 0; i < stores.length; i++) {
+			stores[i] = new AtomicPaletteBlockStore(SHIFT, false, 10);
+			assertFalse("Uniform store needs compression", stores[i].needsCompression());
+			// Place 40 different blocks, then replace all but one of them with air
+			for (int x = 0; x < SIDE; x++) {
+				for (int z = 0; z < 3; z++) {
+					stores[i].setBlock(x, 5, z, (short) (1 + x + z * SIDE), (short) 0);
+				}
+			}
+			assertFalse("Store with used palette needs compression", stores[i].needsCompression());
+			for (int x = 0; x < SIDE; x++) {
+				for (int z = 0; z < 3; z++) {
+					if (x != 0 || z != 0) {
+						stores[i].setBlock(x, 5, z, (short) 0, (short) 0);
+					}
+				}
+			}
+			assertTrue("Store with unused palette entries does not need compression", stores[i].needsCompression());
+			assertTrue("Store not queued", compactor.request(stores[i]));
+			assertFalse("Store queued twice", compactor.request(stores[i]));
+		}
+		assertEquals("Pending stores", stores.length, compactor.getPending());
+
+		// One store is locked by another thread, so it is deferred
+		final AtomicPaletteBlockStore locked = stores[0];
+		Thread locker = lockInOtherThread(locked);
+		int ticks = 0;
+		while (compactor.getPending() > 1) {
+			compactor.compact(0);
+			compactor.compact(100000);
+			ticks++;
+		}
+		assertEquals("Locked store compacted", 1, compactor.getPending());
+		assertTrue("Locked store not deferred", compactor.getDeferred() > 0);
+		locker.interrupt();
+		while (compactor.getPending() > 0) {
+			compactor.compact(100000);
+		}
+		System.out.println("Compacted " + compactor.getCompacted() + " stores over " + ticks + " ticks, deferred " + compactor.getDeferred() + " times");
+
+		for (AtomicPaletteBlockStore store : stores) {
+			assertFalse("Store needs compression after compaction", store.needsCompression());
+			assertEquals("Compacted width", 1, store.getPackedWidth());
+			assertEquals("Block changed by compaction", 1, store.getBlockId(0, 5, 0));
+			assertEquals("Block changed by compaction", 0, store.getBlockId(1, 5, 0));
+		}
+		assertEquals("Compacted stores", stores.length, compactor.getCompacted());
+
+		// A store which was compacted elsewhere after being queued is skipped
+		for (int x = 0; x < SIDE; x++) {
+			stores[1].setBlock(x, 6, 0, (short) (100 + x), (short) 0);
+			stores[1].setBlock(x, 6, 0, (short) 0, (short) 0);
+		}
+		assertTrue("Store with unused palette entries does not need compression", stores[1].needsCompression());
+		compactor.request(stores[1]);
+		stores[1].compress();
+		compactor.compact(100000);
+		assertEquals("Store compacted elsewhere was not skipped", 1, compactor.getSkipped());
+	}
+
+	private static Thread lockInOtherThread(final AtomicBlockStore store) {
+		final Object started = new Object();
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				store.writeLock();
+				try {
+					synchronized (started) {
+						started.notifyAll();
+					}
+					Thread.sleep(60000);
+				} catch (InterruptedException e) {
+				} finally {
+					store.writeUnlock();
+				}
+			}
+		};
+		synchronized (started) {
+			thread.start();
+			try {
+				started.wait();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return thread;
+	}
+}
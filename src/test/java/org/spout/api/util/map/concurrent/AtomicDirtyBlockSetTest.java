@@ -0,0 +1,147 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.spout.api.util.IntTripleConsumer;
+import org.spout.api.util.map.concurrent.palette.AtomicPaletteBlockStore;
+
+public class AtomicDirtyBlockSetTest {
+	private static final int SHIFT = 4;
+	private static final int SIDE = 1 << SHIFT;
+
+	@Test
+	public void markAndDrain() {
+		AtomicDirtyBlockSet set = new AtomicDirtyBlockSet(SHIFT);
+		assertFalse("Empty set dirty", set.isDirty());
+
+		Random r = new Random(1);
+		final Set<Integer> expected = new HashSet<Integer>();
+		for (int i = 0; i < 300; i++) {
+			int x = r.nextInt(SIDE);
+			int y = r.nextInt(SIDE);
+			int z = r.nextInt(SIDE);
+			boolean added = expected.add(key(x, y, z));
+			assertEquals("Mark return value", added, set.mark(x, y, z));
+			assertTrue("Marked block not dirty", set.isDirty(x, y, z));
+		}
+		assertTrue("Set not dirty", set.isDirty());
+		assertEquals("Dirty count", expected.size(), set.getDirtyCount());
+
+		for (int section = 0; section < set.getSections(); section++) {
+			boolean dirty = false;
+			for (int i = section << 6; i < (section + 1) << 6; i++) {
+				dirty |= expected.contains(key(i & (SIDE - 1), i >> (SHIFT << 1), (i >> SHIFT) & (SIDE - 1)));
+			}
+			assertEquals("Section summary bit", dirty, set.isSectionDirty(section));
+		}
+
+		final Set<Integer> visited = new HashSet<Integer>();
+		set.forEachDirty(new IntTripleConsumer() {
+			@Override
+			public void accept(int x, int y, int z) {
+				assertTrue("Block visited twice", visited.add(key(x, y, z)));
+			}
+		});
+		assertEquals("Visited blocks", expected, visited);
+
+		visited.clear();
+		assertTrue("Drain found no blocks", set.drain(new IntTripleConsumer() {
+			@Override
+			public void accept(int x, int y, int z) {
+				visited.add(key(x, y, z));
+			}
+		}));
+		assertEquals("Drained blocks", expected, visited);
+		assertFalse("Drained set dirty", set.isDirty());
+		assertEquals("Drained set count", 0, set.getDirtyCount());
+		assertFalse("Second drain found blocks", set.drain(null));
+	}
+
+	@Test
+	public void concurrentMark() throws InterruptedException {
+		final AtomicDirtyBlockSet set = new AtomicDirtyBlockSet(SHIFT);
+		final int blocks = SIDE * SIDE * SIDE;
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = offset; i < blocks; i += 4) {
+						set.mark(i);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals("Dirty count", blocks, set.getDirtyCount());
+	}
+
+	@Test
+	public void storeOverflow() {
+		AtomicPaletteBlockStore arrays = new AtomicPaletteBlockStore(SHIFT, false, 10);
+		AtomicPaletteBlockStore bitset = new AtomicPaletteBlockStore(SHIFT, false, 10, true);
+		for (int i = 0; i < 20; i++) {
+			arrays.setBlock(i & 15, i >> 4, 3, (short) 1, (short) 0);
+			bitset.setBlock(i & 15, i >> 4, 3, (short) 1, (short) 0);
+		}
+		assertTrue("Dirty arrays not overflowed", bitset.isDirtyOverflow());
+
+		final int[] count = new int[1];
+		IntTripleConsumer counter = new IntTripleConsumer() {
+			@Override
+			public void accept(int x, int y, int z) {
+				assertEquals("Dirty block z", 3, z);
+				count[0]++;
+			}
+		};
+		assertFalse("Overflowed arrays visited", arrays.forEachDirty(counter));
+		assertTrue("Bitset not visited", bitset.forEachDirty(counter));
+		assertEquals("Dirty blocks visited", 20, count[0]);
+
+		bitset.resetDirtyArrays();
+		count[0] = 0;
+		bitset.forEachDirty(counter);
+		assertEquals("Dirty blocks visited after reset", 0, count[0]);
+	}
+
+	private static int key(int x, int y, int z) {
+		return (((y << SHIFT) + z) << SHIFT) + x;
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.spout.api.geo.cuboid.ContainerFillOrder;
+import org.spout.api.geo.cuboid.LightContainer;
+
+public class AtomicLightStoreTest {
+	private static final int SHIFT = 4;
+	private static final int SIDE = 1 << SHIFT;
+	private static final int LENGTH = SIDE * SIDE * SIDE;
+	private static final int NIBBLES_PER_THREAD_GROUP = 8;
+
+	@Test
+	public void setAndCompareAndSet() {
+		AtomicLightStore store = new AtomicLightStore(SHIFT);
+		byte[] expected = new byte[LENGTH];
+		Random r = new Random(1);
+		for (int i = 0; i < 20000; i++) {
+			int index = r.nextInt(LENGTH);
+			byte light = (byte) r.nextInt(16);
+			if (r.nextBoolean()) {
+				assertEquals("Old light level", expected[index], store.set(index, light));
+				expected[index] = light;
+			} else {
+				byte expect = (byte) r.nextInt(16);
+				boolean success = store.compareAndSet(index, expect, light);
+				assertEquals("Compare and set result", expect == expected[index], success);
+				if (success) {
+					expected[index] = light;
+				}
+			}
+		}
+		for (int x = 0; x < SIDE; x++) {
+			for (int y = 0; y < SIDE; y++) {
+				for (int z = 0; z < SIDE; z++) {
+					assertEquals("Light level", expected[(y * SIDE + z) * SIDE + x], store.get(x, y, z));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void fill() {
+		AtomicLightStore store = new AtomicLightStore(SHIFT);
+		store.fill((byte) 3);
+		store.fill(5, 1000, (byte) 15);
+		store.fillLayers(12, SIDE, (byte) 7);
+		for (int i = 0; i < LENGTH; i++) {
+			int exp = i >= 12 * SIDE * SIDE ? 7 : (i >= 5 && i < 1000) ? 15 : 3;
+			assertEquals("Light level at " + i, exp, store.get(i));
+		}
+		int[] runs = store.getRuns();
+		assertArrayEquals("Runs", new int[] {(5 << 4) | 3, (995 << 4) | 15, ((12 * SIDE * SIDE - 1000) << 4) | 3, ((4 * SIDE * SIDE) << 4) | 7}, runs);
+	}
+
+	@Test
+	public void exportFormats() {
+		AtomicLightStore store = new AtomicLightStore(SHIFT);
+		Random r = new Random(2);
+		for (int i = 0; i < LENGTH; i++) {
+			store.set(i, (byte) (r.nextInt(10) < 8 ? 15 : r.nextInt(16)));
+		}
+		byte[] nibbles = store.getNibbleArray();
+		assertEquals("Nibble array length", LENGTH / 2, nibbles.length);
+		for (int i = 0; i < LENGTH; i++) {
+			int nibble = (i & 1) == 0 ? nibbles[i >> 1] & 0xF : (nibbles[i >> 1] >> 4) & 0xF;
+			assertEquals("Nibble at " + i, store.get(i), nibble);
+		}
+		AtomicLightStore copy = new AtomicLightStore(SHIFT, nibbles);
+		assertArrayEquals("Nibble array round trip", nibbles, copy.getNibbleArray());
+
+		AtomicLightStore fromRuns = new AtomicLightStore(SHIFT);
+		fromRuns.setRuns(store.getRuns());
+		assertArrayEquals("Run round trip", nibbles, fromRuns.getNibbleArray());
+
+		AtomicLightStore uniform = new AtomicLightStore(SHIFT);
+		uniform.fill((byte) 15);
+		assertArrayEquals("Uniform runs", new int[] {(LENGTH << 4) | 15}, uniform.getRuns());
+	}
+
+	@Test
+	public void copyTo() {
+		AtomicLightStore store = new AtomicLightStore(SHIFT);
+		Random r = new Random(3);
+		for (int i = 0; i < LENGTH; i++) {
+			store.set(i, (byte) r.nextInt(16));
+		}
+		for (ContainerFillOrder order : ContainerFillOrder.values()) {
+			TestLightContainer container = new TestLightContainer(order);
+			store.copyTo(container);
+			assertEquals("Container not filled for " + order, LENGTH, container.index);
+			int i = 0;
+			for (int third = 0; third < SIDE; third++) {
+				for (int second = 0; second < SIDE; second++) {
+					for (int first = 0; first < SIDE; first++) {
+						int[] coords = new int[3];
+						coords[axis(order.name().charAt(0))] = first;
+						coords[axis(order.name().charAt(1))] = second;
+						coords[axis(order.name().charAt(2))] = third;
+						assertEquals("Light level for " + order, store.get(coords[0], coords[1], coords[2]), container.light[i++]);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void concurrentNibbles() throws InterruptedException {
+		final AtomicLightStore store = new AtomicLightStore(SHIFT);
+		Thread[] threads = new Thread[NIBBLES_PER_THREAD_GROUP];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					// Each thread increments its own nibble in every int, so the threads contend for the same ints
+					for (int pass = 0; pass < 15; pass++) {
+						for (int i = offset; i < LENGTH; i += NIBBLES_PER_THREAD_GROUP) {
+							byte old = store.get(i);
+							assertTrue("Nibble changed by another thread", store.compareAndSet(i, old, (byte) (old + 1)));
+						}
+					}
+				}
+			};
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		for (int i = 0; i < LENGTH; i++) {
+			assertEquals("Lost update at " + i, 15, store.get(i));
+		}
+		assertFalse("Compare and set succeeded with wrong expected value", store.compareAndSet(0, (byte) 3, (byte) 4));
+	}
+
+	@Test
+	public void copyTiming() {
+		AtomicLightStore store = new AtomicLightStore(SHIFT);
+		AtomicByteArray bytes = new AtomicByteArray(LENGTH);
+		Random r = new Random(4);
+		for (int i = 0; i < LENGTH; i++) {
+			byte light = (byte) r.nextInt(16);
+			store.set(i, light);
+			bytes.set(i, light);
+		}
+		TestLightContainer container = new TestLightContainer(ContainerFillOrder.XZY);
+		int passes = 200;
+		long start = System.nanoTime();
+		for (int pass = 0; pass < passes; pass++) {
+			container.index = 0;
+			for (int i = 0; i < LENGTH; i++) {
+				container.setLightLevel(bytes.get(i));
+			}
+		}
+		long perByte = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int pass = 0; pass < passes; pass++) {
+			container.index = 0;
+			store.copyTo(container);
+		}
+		long packed = System.nanoTime() - start;
+		System.out.println("Byte array copy: " + (perByte / passes / 1000) + "us per store");
+		System.out.println("Nibble store copy: " + (packed / passes / 1000) + "us per store");
+	}
+
+	private static int axis(char c) {
+		return c == 'X' ? 0 : c == 'Y' ? 1 : 2;
+	}
+
+	private static class TestLightContainer implements LightContainer {
+		private final ContainerFillOrder order;
+		private final byte[] light = new byte[LENGTH];
+		private int index = 0;
+
+		public TestLightContainer(ContainerFillOrder order) {
+			this.order = order;
+		}
+
+		@Override
+		public ContainerFillOrder getOrder() {
+			return order;
+		}
+
+		@Override
+		public void setLightLevel(byte light) {
+			this.light[index++] = light;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.spout.api.util.map.concurrent.palette.AtomicOffHeapBlockStore;
+import org.spout.api.util.map.concurrent.palette.AtomicPaletteBlockStore;
+
+public class AtomicOffHeapBlockStoreTest {
+	private static final int SHIFT = 4;
+	private static final int SIDE = 1 << SHIFT;
+	private static final int LENGTH = SIDE * SIDE * SIDE;
+
+	@Test
+	public void matchesPaletteStore() {
+		OffHeapArena arena = new OffHeapArena(1 << 16);
+		AtomicPaletteBlockStore expected = new AtomicPaletteBlockStore(SHIFT, false, 10);
+		AtomicOffHeapBlockStore store = new AtomicOffHeapBlockStore(SHIFT, false, 10, false, arena);
+		assertEquals("Uniform store used memory", 0, arena.getUsedBytes());
+
+		Random r = new Random(1);
+		// The number of distinct blocks doubles each pass, so every width is used
+		for (int distinct = 2; distinct <= 4096; distinct <<= 1) {
+			for (int i = 0; i < 2000; i++) {
+				int x = r.nextInt(SIDE);
+				int y = r.nextInt(SIDE);
+				int z = r.nextInt(SIDE);
+				short id = (short) r.nextInt(distinct);
+				expected.setBlock(x, y, z, id, (short) 0);
+				store.setBlock(x, y, z, id, (short) 0);
+			}
+			check(expected, store);
+			assertEquals("Width mismatch for " + distinct + " blocks", expected.getPackedWidth(), store.getPackedWidth());
+		}
+		assertEquals("Direct store memory", LENGTH * 4, store.getOffHeapBytes());
+		assertEquals("Arena memory", store.getOffHeapBytes(), arena.getUsedBytes());
+
+		AtomicPaletteBlockStore loaded = new AtomicPaletteBlockStore(SHIFT, false, 10, store.getPalette(), store.getPackedWidth(), store.getPackedArray());
+		check(loaded, store);
+
+		for (int i = 0; i < LENGTH; i++) {
+			expected.setBlock(i & (SIDE - 1), i >> (SHIFT << 1), (i >> SHIFT) & (SIDE - 1), (short) (i % 3), (short) 0);
+			store.setBlock(i & (SIDE - 1), i >> (SHIFT << 1), (i >> SHIFT) & (SIDE - 1), (short) (i % 3), (short) 0);
+		}
+		store.compress();
+		assertEquals("Compressed width", 2, store.getPackedWidth());
+		check(expected, store);
+
+		expected.compress();
+		AtomicOffHeapBlockStore reloaded = new AtomicOffHeapBlockStore(SHIFT, false, 10, false, arena, expected.getPalette(), expected.getPackedWidth(), expected.getPackedArray());
+		check(expected, reloaded);
+
+		store.free();
+		reloaded.free();
+		assertEquals("Memory used after free", 0, arena.getUsedBytes());
+		assertEquals("Live blocks after free", 0, arena.getLiveBlocks());
+		try {
+			store.getBlockId(0, 0, 0);
+			fail("Freed store was read");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void arenaReuse() {
+		OffHeapArena arena = new OffHeapArena(1 << 16);
+		for (int i = 0; i < 100; i++) {
+			AtomicOffHeapBlockStore store = new AtomicOffHeapBlockStore(SHIFT, false, 10, false, arena);
+			for (int j = 0; j < 100; j++) {
+				store.setBlock(j & (SIDE - 1), 0, j >> SHIFT, (short) j, (short) 0);
+			}
+			store.free();
+		}
+		assertEquals("Live blocks", 0, arena.getLiveBlocks());
+		assertTrue("Freed blocks were not reused", arena.getReuses() > 0);
+		assertEquals("Reserved memory", arena.getSlabSize(), arena.getReservedBytes());
+	}
+
+	@Test
+	public void parallel() throws InterruptedException {
+		final AtomicOffHeapBlockStore store = new AtomicOffHeapBlockStore(SHIFT, false, 10, false, new OffHeapArena(1 << 16));
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = offset; i < LENGTH; i += 4) {
+						store.setBlock(i & (SIDE - 1), i >> (SHIFT << 1), (i >> SHIFT) & (SIDE - 1), (short) (i % 300), (short) 0);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		short[] ids = store.getBlockIdArray();
+		for (int i = 0; i < LENGTH; i++) {
+			assertEquals("Block id at " + i, i % 300, ids[i]);
+		}
+		store.free();
+	}
+
+	private static void check(AtomicPaletteBlockStore expected, AtomicPaletteBlockStore store) {
+		assertArrayEquals("Block id array mismatch", expected.getBlockIdArray(), store.getBlockIdArray());
+		assertArrayEquals("Data array mismatch", expected.getDataArray(), store.getDataArray());
+	}
+}
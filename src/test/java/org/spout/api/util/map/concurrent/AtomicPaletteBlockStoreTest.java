@@ -0,0 +1,233 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.spout.api.material.block.BlockFullState;
+import org.spout.api.util.cuboid.CuboidBlockMaterialBuffer;
+import org.spout.api.util.map.concurrent.palette.AtomicPaletteBlockStore;
+
+public class AtomicPaletteBlockStoreTest {
+	private static final int SHIFT = 4;
+	private static final int SIDE = 1 << SHIFT;
+
+	@Test
+	public void setBlocks() {
+		Random r = new Random(1);
+		for (int distinct : new int[] {1, 3, 40, 2000}) {
+			AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, true, 10);
+			// The buffer overlaps the store, starting at (4, -2, 3) in store coordinates
+			CuboidBlockMaterialBuffer buffer = new CuboidBlockMaterialBuffer(4, -2, 3, 20, 10, 8);
+			short[] id = buffer.getRawId();
+			short[] data = buffer.getRawData();
+			for (int i = 0; i < id.length; i++) {
+				id[i] = (short) (1 + r.nextInt(distinct));
+				data[i] = (short) r.nextInt(2);
+			}
+
+			int changed = store.setBlocks(0, 0, 0, buffer);
+			assertEquals("Changed block count", 12 * 8 * 8, changed);
+			assertTrue("Dirty overflow not set", store.isDirtyOverflow());
+
+			for (int x = 0; x < SIDE; x++) {
+				for (int y = 0; y < SIDE; y++) {
+					for (int z = 0; z < SIDE; z++) {
+						int expected = 0;
+						if (x >= 4 && y < 8 && z >= 3 && z < 11) {
+							int index = ((y + 2) * 8 + (z - 3)) * 20 + (x - 4);
+							expected = BlockFullState.getPacked(id[index], data[index]);
+						}
+						assertEquals("Block mismatch at " + x + ", " + y + ", " + z + " for " + distinct + " states", expected, store.getFullData(x, y, z));
+					}
+				}
+			}
+
+			CuboidBlockMaterialBuffer read = new CuboidBlockMaterialBuffer(-3, 0, 0, 24, SIDE, SIDE);
+			store.getBlocks(0, 0, 0, read);
+			for (int x = 0; x < SIDE; x++) {
+				for (int y = 0; y < SIDE; y++) {
+					for (int z = 0; z < SIDE; z++) {
+						int index = (y * SIDE + z) * 24 + (x + 3);
+						assertEquals("Read mismatch", store.getFullData(x, y, z), BlockFullState.getPacked(read.getRawId()[index], read.getRawData()[index]));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void dirtyBlocks() {
+		AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, true, 10);
+		CuboidBlockMaterialBuffer buffer = new CuboidBlockMaterialBuffer(2, 3, 4, 2, 1, 2);
+		short[] id = buffer.getRawId();
+		id[0] = 5;
+		id[3] = 7;
+
+		assertEquals("Changed block count", 2, store.setBlocks(0, 0, 0, buffer));
+		assertEquals("Dirty block count", 2, store.getDirtyBlocks());
+		assertEquals("Dirty block position", 2, store.getDirtyBlock(0).getFloorX());
+		assertEquals("Dirty block position", 3, store.getDirtyBlock(0).getFloorY());
+		assertEquals("Dirty block position", 4, store.getDirtyBlock(0).getFloorZ());
+		assertEquals("Dirty block position", 3, store.getDirtyBlock(1).getFloorX());
+		assertEquals("Dirty block position", 5, store.getDirtyBlock(1).getFloorZ());
+		assertEquals("Dirty old state", 0, store.getDirtyOldState(1));
+		assertEquals("Dirty new state", BlockFullState.getPacked((short) 7, (short) 0), store.getDirtyNewState(1));
+
+		assertEquals("Unchanged blocks marked dirty", 0, store.setBlocks(0, 0, 0, buffer));
+		assertEquals("Non-overlapping buffer changed blocks", 0, store.setBlocks(100, 0, 0, buffer));
+	}
+
+	@Test
+	public void compareAndSetBlocks() {
+		AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, true, 10);
+		int stone = BlockFullState.getPacked((short) 1, (short) 0);
+		int water = BlockFullState.getPacked((short) 8, (short) 3);
+		store.setBlock(1, 1, 1, (short) 1, (short) 0);
+		store.resetDirtyArrays();
+
+		int[] indexes = new int[] {getIndex(1, 1, 1), getIndex(2, 1, 1), getIndex(1, 2, 1)};
+		int[] expect = new int[] {stone, 0, 0};
+		int[] update = new int[] {water, water, stone};
+		assertTrue("Group with matching blocks failed", store.compareAndSetBlocks(indexes, expect, update, 3));
+		assertEquals("Block not updated", water, store.getFullData(1, 1, 1));
+		assertEquals("Block not updated", water, store.getFullData(2, 1, 1));
+		assertEquals("Block not updated", stone, store.getFullData(1, 2, 1));
+		assertEquals("Dirty block count", 3, store.getDirtyBlocks());
+
+		store.resetDirtyArrays();
+		update = new int[] {0, 0, 0};
+		assertFalse("Group with a mismatched block succeeded", store.compareAndSetBlocks(indexes, expect, update, 3));
+		assertEquals("Failed group changed a block", water, store.getFullData(1, 1, 1));
+		assertEquals("Failed group changed a block", stone, store.getFullData(1, 2, 1));
+		assertEquals("Failed group marked blocks as dirty", 0, store.getDirtyBlocks());
+
+		assertTrue("Empty group failed", store.compareAndSetBlocks(indexes, expect, update, 0));
+	}
+
+	@Test
+	public void compareAndSetBlocksParallel() throws InterruptedException {
+		final AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, 10);
+		final int cells = 8;
+		final int total = 100;
+		// Block data is used as a counter, and each group moves one unit between two cells, so the total is preserved
+		store.setBlock(0, 0, 0, (short) 1, (short) total);
+		for (int i = 1; i < cells; i++) {
+			store.setBlock(i, 0, 0, (short) 1, (short) 0);
+		}
+		Thread[] threads = new Thread[4];
+		final int[] successes = new int[threads.length];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(thread);
+					int[] indexes = new int[2];
+					int[] expect = new int[2];
+					int[] update = new int[2];
+					for (int i = 0; i < 5000; i++) {
+						int from = r.nextInt(cells);
+						int to = (from + 1 + r.nextInt(cells - 1)) % cells;
+						indexes[0] = from;
+						indexes[1] = to;
+						expect[0] = store.getFullData(from);
+						expect[1] = store.getFullData(to);
+						int fromData = BlockFullState.getData(expect[0]);
+						if (fromData == 0) {
+							continue;
+						}
+						update[0] = BlockFullState.getPacked((short) 1, (short) (fromData - 1));
+						update[1] = BlockFullState.getPacked((short) 1, (short) (BlockFullState.getData(expect[1]) + 1));
+						if (store.compareAndSetBlocks(indexes, expect, update, 2)) {
+							successes[thread]++;
+						}
+					}
+				}
+			};
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		int sum = 0;
+		for (int i = 0; i < cells; i++) {
+			sum += store.getData(i, 0, 0);
+		}
+		assertEquals("Group updates were not atomic", total, sum);
+		int count = 0;
+		for (int s : successes) {
+			count += s;
+		}
+		assertTrue("No groups succeeded", count > 0);
+	}
+
+	private static int getIndex(int x, int y, int z) {
+		return (y << (SHIFT << 1)) + (z << SHIFT) + x;
+	}
+
+	@Test
+	public void bulkTiming() {
+		int shift = 5;
+		int side = 1 << shift;
+		CuboidBlockMaterialBuffer buffer = new CuboidBlockMaterialBuffer(0, 0, 0, side, side, side);
+		Random r = new Random(2);
+		short[] id = buffer.getRawId();
+		for (int i = 0; i < id.length; i++) {
+			id[i] = (short) (1 + r.nextInt(50));
+		}
+
+		long perBlock = 0;
+		long bulk = 0;
+		for (int repeat = 0; repeat < 50; repeat++) {
+			AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(shift, false, 10);
+			long start = System.nanoTime();
+			for (int y = 0; y < side; y++) {
+				for (int z = 0; z < side; z++) {
+					for (int x = 0; x < side; x++) {
+						store.setBlock(x, y, z, id[(y * side + z) * side + x], (short) 0);
+					}
+				}
+			}
+			perBlock += System.nanoTime() - start;
+
+			store = new AtomicPaletteBlockStore(shift, false, 10);
+			start = System.nanoTime();
+			store.setBlocks(0, 0, 0, buffer);
+			bulk += System.nanoTime() - start;
+		}
+		System.out.println("Per block setBlock: " + (perBlock / 50000) + "us per store");
+		System.out.println("Bulk setBlocks: " + (bulk / 50000) + "us per store");
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.spout.api.material.block.BlockFullState;
+import org.spout.api.util.map.concurrent.palette.AtomicPaletteBlockStore;
+import org.spout.api.util.map.concurrent.palette.AtomicSectionedBlockStore;
+
+public class AtomicSectionedBlockStoreTest {
+	private static final int SHIFT = 4;
+	private static final int SIDE = 1 << SHIFT;
+
+	@Test
+	public void matchesPaletteStore() {
+		for (int sectionShift = 2; sectionShift <= 3; sectionShift++) {
+			Random r = new Random(sectionShift);
+			AtomicPaletteBlockStore expected = new AtomicPaletteBlockStore(SHIFT, false, 10);
+			AtomicSectionedBlockStore store = new AtomicSectionedBlockStore(SHIFT, sectionShift, false, 10);
+			assertTrue("New store not uniform", store.isBlockUniform());
+			int sections = 1 << (3 * (SHIFT - sectionShift));
+			assertEquals("Uniform sections", sections, store.getUniformSections());
+
+			// Stone below y = 8, a few ores where x < 8 and a layer of many different blocks at y = 12
+			for (int x = 0; x < SIDE; x++) {
+				for (int z = 0; z < SIDE; z++) {
+					for (int y = 0; y < 8; y++) {
+						set(expected, store, x, y, z, 1, 0);
+					}
+					set(expected, store, x, 12, z, 2 + r.nextInt(200), r.nextInt(4));
+				}
+			}
+			for (int i = 0; i < 20; i++) {
+				set(expected, store, r.nextInt(8), r.nextInt(8), r.nextInt(SIDE), 14, 0);
+			}
+			assertFalse("Store uniform", store.isBlockUniform());
+			check(expected, store);
+			// Sections which were filled with a single block only become uniform when compressed
+			store.compress();
+			assertTrue("No uniform sections", store.getUniformSections() > 0);
+			check(expected, store);
+
+			AtomicPaletteBlockStore loaded = new AtomicPaletteBlockStore(SHIFT, false, 10, store.getPalette(), store.getPackedWidth(), store.getPackedArray());
+			check(loaded, store);
+			AtomicSectionedBlockStore reloaded = new AtomicSectionedBlockStore(SHIFT, sectionShift, false, 10, false, expected.getPalette(), expected.getPackedWidth(), expected.getPackedArray());
+			check(expected, reloaded);
+
+			int uniform = store.getUniformSections();
+			for (int x = 0; x < SIDE; x++) {
+				for (int z = 0; z < SIDE; z++) {
+					set(expected, store, x, 12, z, 0, 0);
+				}
+			}
+			store.compress();
+			assertTrue("Compress did not make sections uniform", store.getUniformSections() > uniform);
+			check(expected, store);
+
+			assertTrue("Compare and set failed", store.compareAndSetBlock(1, 15, 1, (short) 0, (short) 0, (short) 7, (short) 2));
+			assertFalse("Compare and set succeeded", store.compareAndSetBlock(1, 15, 1, (short) 0, (short) 0, (short) 8, (short) 2));
+			assertEquals("Compare and set result", BlockFullState.getPacked((short) 7, (short) 2), store.getFullData(1, 15, 1));
+		}
+	}
+
+	@Test
+	public void parallel() throws InterruptedException {
+		final AtomicSectionedBlockStore store = new AtomicSectionedBlockStore(SHIFT, 2, false, 10);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = offset; i < SIDE * SIDE * SIDE; i += 4) {
+						store.setBlock(i & (SIDE - 1), i >> (SHIFT << 1), (i >> SHIFT) & (SIDE - 1), (short) (i % 97), (short) 0);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		short[] ids = store.getBlockIdArray();
+		for (int i = 0; i < ids.length; i++) {
+			assertEquals("Block id at " + i, i % 97, ids[i]);
+		}
+	}
+
+	private static void set(AtomicPaletteBlockStore expected, AtomicPaletteBlockStore store, int x, int y, int z, int id, int data) {
+		expected.setBlock(x, y, z, (short) id, (short) data);
+		store.setBlock(x, y, z, (short) id, (short) data);
+	}
+
+	private static void check(AtomicPaletteBlockStore expected, AtomicPaletteBlockStore store) {
+		for (int x = 0; x < SIDE; x++) {
+			for (int y = 0; y < SIDE; y++) {
+				for (int z = 0; z < SIDE; z++) {
+					assertEquals("Block mismatch at " + x + ", " + y + ", " + z, expected.getFullData(x, y, z), store.getFullData(x, y, z));
+				}
+			}
+		}
+		assertArrayEquals("Block id array mismatch", expected.getBlockIdArray(), store.getBlockIdArray());
+		assertArrayEquals("Data array mismatch", expected.getDataArray(), store.getDataArray());
+	}
+}
@@ -26,12 +26,21 @@
  */
 package org.spout.api.util.map.concurrent;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.junit.Test;
 import org.spout.api.util.map.concurrent.palette.AtomicShortIntArray;
+import org.spout.api.util.map.concurrent.palette.AtomicShortIntBackingArray;
+import org.spout.api.util.map.concurrent.palette.AtomicShortIntDirectBackingArray;
+import org.spout.api.util.map.concurrent.palette.AtomicShortIntPaletteBackingArray;
+import org.spout.api.util.map.concurrent.palette.AtomicShortIntUniformBackingArray;
+import org.spout.api.util.map.concurrent.palette.PaletteFullException;
 
 public class AtomicShortIntArrayTest {
 	
@@ -211,6 +220,41 @@ public class AtomicShortIntArrayTest {
 		}
 	}
 	
+	@Test
+	public void referenceCounts() {
+		
+		printTest("Reference Counts");
+		
+		AtomicShortIntArray array = new AtomicShortIntArray(256);
+		
+		for (int i = 0; i < 256; i++) {
+			array.set(i, 100 + (i & 7));
+		}
+		
+		assertTrue("Array with 8 used values needs compression", !array.needsCompression());
+		
+		for (int i = 0; i < 256; i++) {
+			if ((i & 7) >= 2) {
+				array.set(i, 100);
+			}
+		}
+		array.compareAndSet(1, 101, 102);
+		array.compareAndSet(1, 101, 103);
+		
+		assertEquals("Used palette entries", 3, array.getUsedPaletteEntries());
+		assertTrue("Array with 3 used values does not need compression", array.needsCompression());
+		
+		array.compress();
+		
+		assertEquals("Compressed width", 2, array.width());
+		assertTrue("Array needs compression after compression", !array.needsCompression());
+		assertEquals("Used palette entries after compression", 3, array.getUsedPaletteEntries());
+		for (int i = 0; i < 256; i++) {
+			int exp = (i & 7) == 1 ? (i == 1 ? 102 : 101) : 100;
+			assertEquals("Value changed by compression", exp, array.get(i));
+		}
+	}
+	
 	@Test
 	public void compareAndSet() {
 		
@@ -236,6 +280,47 @@ public class AtomicShortIntArrayTest {
 		
 	}
 	
+	@Test
+	public void referenceCountTotals() {
+		
+		printTest("Reference Count Totals");
+		
+		Random r = new Random();
+		
+		int[] initial = new int[256];
+		for (int i = 0; i < initial.length; i++) {
+			initial[i] = r.nextInt(10);
+		}
+		AtomicShortIntPaletteBackingArray backing = new AtomicShortIntPaletteBackingArray(initial.length, 16, initial);
+		
+		try {
+			for (int i = 0; i < 1000; i++) {
+				int index = r.nextInt(initial.length);
+				if (r.nextBoolean()) {
+					backing.set(index, r.nextInt(10));
+				} else {
+					backing.compareAndSet(index, r.nextInt(10), r.nextInt(10));
+				}
+			}
+		} catch (PaletteFullException pfe) {
+			throw new IllegalStateException("Palette filled with only 10 values", pfe);
+		}
+		
+		int[] counts = new int[10];
+		for (int i = 0; i < initial.length; i++) {
+			counts[backing.get(i)]++;
+		}
+		int[] palette = backing.getPalette();
+		int used = 0;
+		for (int i = 0; i < palette.length; i++) {
+			assertEquals("Reference count for " + palette[i], counts[palette[i]], backing.getReferenceCount(i));
+			if (counts[palette[i]] > 0) {
+				used++;
+			}
+		}
+		assertEquals("Used palette entries", used, backing.getUsedPaletteEntries());
+	}
+	
 	private void checkCompress(int unique, int expWidth, int base) {
 		System.out.println("Setting 256 values from a set of " + unique);
 		
@@ -306,6 +391,114 @@ public class AtomicShortIntArrayTest {
 		
 	}
 	
+	@Test
+	public void contention() throws InterruptedException {
+		
+		printTest("Contention Test");
+		
+		int length = 4096;
+		int rounds = 20;
+		for (int threads = 8; threads <= 32; threads <<= 1) {
+			long lockFree = 0;
+			long locked = 0;
+			for (int round = 0; round < rounds; round++) {
+				AtomicShortIntArray array = new AtomicShortIntArray(length);
+				lockFree += runContention(array, null, threads, round);
+				for (int i = 0; i < length; i++) {
+					assertEquals("Element mismatch at " + i, contentionValue(i, round), array.get(i));
+				}
+				LockedShortIntArray reference = new LockedShortIntArray(length);
+				locked += runContention(null, reference, threads, round);
+			}
+			System.out.println(threads + " threads, copy on grow: " + (lockFree / rounds / 1000) + "us per array, locked resize: " + (locked / rounds / 1000) + "us per array");
+		}
+	}
+	
+	/**
+	 * Fills an array from a number of threads.  The number of distinct values increases as the array fills, so the array is resized through each width.
+	 */
+	private long runContention(final AtomicShortIntArray array, final LockedShortIntArray reference, int threads, final int round) throws InterruptedException {
+		final int length = array != null ? array.length() : reference.length;
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] thread = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int base = t;
+			final int step = threads;
+			thread[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException ie) {
+						return;
+					}
+					for (int i = base; i < length; i += step) {
+						if (array != null) {
+							array.set(i, contentionValue(i, round));
+						} else {
+							reference.set(i, contentionValue(i, round));
+						}
+					}
+				}
+			};
+			thread[t].start();
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		for (int t = 0; t < threads; t++) {
+			thread[t].join();
+		}
+		return System.nanoTime() - startTime;
+	}
+	
+	private static int contentionValue(int i, int round) {
+		// Each 256 elements, the number of distinct values doubles, up to the full length
+		int distinct = 1 << Math.min(12, (i >> 8) + 1);
+		return round + (i * 7919) % distinct;
+	}
+	
+	/**
+	 * The previous resize protocol, where every writer holds a read lock and the store is resized while holding the write lock
+	 */
+	private static class LockedShortIntArray {
+		private final int length;
+		private final AtomicReference<AtomicShortIntBackingArray> store = new AtomicReference<AtomicShortIntBackingArray>();
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		
+		public LockedShortIntArray(int length) {
+			this.length = length;
+			store.set(new AtomicShortIntUniformBackingArray(length));
+		}
+		
+		public int set(int i, int newValue) {
+			while (true) {
+				try {
+					lock.readLock().lock();
+					try {
+						return store.get().set(i, newValue);
+					} finally {
+						lock.readLock().unlock();
+					}
+				} catch (PaletteFullException pfe) {
+					lock.writeLock().lock();
+					try {
+						try {
+							return store.get().set(i, newValue);
+						} catch (PaletteFullException pfe2) {
+							if (store.get().isPaletteMaxSize()) {
+								store.set(new AtomicShortIntDirectBackingArray(store.get()));
+							} else {
+								store.set(new AtomicShortIntPaletteBackingArray(store.get(), true));
+							}
+						}
+					} finally {
+						lock.writeLock().unlock();
+					}
+				}
+			}
+		}
+	}
+	
 	private void printPaletteUse(String message) {
 		System.out.println("Palette usage " + message + " " + a.getPaletteUsage() + " / " + a.getPaletteSize());
 	}
@@ -26,6 +26,7 @@
  */
 package org.spout.api.util.map.concurrent;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Random;
@@ -111,6 +112,66 @@ public class AtomicVariableWidthArrayTest {
 		}
 	}
 
+	@Test
+	public void unpackTo() {
+		for (int i = 1; i <= 32; i = i << 1) {
+			setup(i);
+			for (int j = 0; j < LENGTH; j++) {
+				array.set(j, arrayData[j]);
+			}
+			int[] unpacked = new int[LENGTH];
+			array.unpackTo(unpacked);
+			assertArrayEquals("Width = " + i + " Unpacked int array mismatch", arrayData, unpacked);
+			if (i <= 16) {
+				short[] unpackedShorts = new short[LENGTH];
+				array.unpackTo(unpackedShorts);
+				for (int j = 0; j < LENGTH; j++) {
+					assertTrue("Width = " + i + " Unpacked short array mismatch at " + j, (unpackedShorts[j] & 0xFFFF) == arrayData[j]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void unpackThroughput() {
+		int[] dest = new int[LENGTH];
+		short[] shortDest = new short[LENGTH];
+		int repeats = 2000;
+		for (int i = 1; i <= 16; i = i << 1) {
+			setup(i);
+			for (int j = 0; j < LENGTH; j++) {
+				array.set(j, arrayData[j]);
+			}
+			// Warm up both paths, so that they are compiled before timing
+			for (int r = 0; r < repeats; r++) {
+				array.unpackTo(dest);
+				array.unpackTo(shortDest);
+				for (int j = 0; j < LENGTH; j++) {
+					dest[j] = array.get(j);
+				}
+			}
+			long start = System.nanoTime();
+			for (int r = 0; r < repeats; r++) {
+				for (int j = 0; j < LENGTH; j++) {
+					dest[j] = array.get(j);
+				}
+			}
+			long single = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int r = 0; r < repeats; r++) {
+				array.unpackTo(dest);
+			}
+			long bulk = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int r = 0; r < repeats; r++) {
+				array.unpackTo(shortDest);
+			}
+			long bulkShort = System.nanoTime() - start;
+			long elements = (long) LENGTH * repeats;
+			System.out.println("Width " + i + ": get(i) " + (elements * 1000 / single) + "M/s, unpackTo(int[]) " + (elements * 1000 / bulk) + "M/s, unpackTo(short[]) " + (elements * 1000 / bulkShort) + "M/s");
+		}
+	}
+
 	private void compareAndSetTrue(int index, int value) {
 		assertTrue("Width = " + width + " Compare and set attempt failed, index = " + index + ", expected value incorrect " + array.get(index) + " expected " + value, array.compareAndSet(index, arrayData[index], value));
 		arrayData[index] = value  & valueMask;
@@ -0,0 +1,135 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.spout.api.util.cuboid.CuboidBlockMaterialBuffer;
+import org.spout.api.util.map.concurrent.palette.AtomicOffHeapBlockStore;
+import org.spout.api.util.map.concurrent.palette.AtomicPaletteBlockStore;
+import org.spout.api.util.map.concurrent.palette.AtomicSectionedBlockStore;
+
+public class BlockStoreSnapshotTest {
+	private static final int SHIFT = 4;
+	private static final int SIDE = 1 << SHIFT;
+
+	@Test
+	public void snapshotsShareUntilWrite() {
+		AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, 10);
+		BlockStoreSnapshot first = store.getSnapshot();
+		assertTrue("Empty store snapshot not uniform", first.isUniform());
+		assertSame("Unchanged store returned a new snapshot", first, store.getSnapshot());
+
+		store.setBlock(1, 2, 3, (short) 5, (short) 1);
+		BlockStoreSnapshot second = store.getSnapshot();
+		assertNotSame("Changed store returned the old snapshot", first, second);
+		assertTrue("Version not increased", second.getVersion() > first.getVersion());
+		assertEquals("Old snapshot changed", 0, first.getBlockId(1, 2, 3));
+		assertEquals("New snapshot block id", 5, second.getBlockId(1, 2, 3));
+		assertEquals("New snapshot block data", 1, second.getData(1, 2, 3));
+		assertSame("Unpacked array not shared", second.getBlockIdArray(), store.getSnapshot().getBlockIdArray());
+	}
+
+	@Test
+	public void matchesStore() {
+		Random r = new Random(3);
+		for (int distinct : new int[] {1, 2, 5, 40, 2000}) {
+			AtomicBlockStore[] stores = new AtomicBlockStore[] {
+					new AtomicPaletteBlockStore(SHIFT, false, 10),
+					new AtomicSectionedBlockStore(SHIFT, 3, false, 10),
+					new AtomicOffHeapBlockStore(SHIFT, false, 10)};
+			for (AtomicBlockStore store : stores) {
+				for (int i = 0; i < 1000; i++) {
+					store.setBlock(r.nextInt(SIDE), r.nextInt(SIDE), r.nextInt(SIDE), (short) r.nextInt(distinct), (short) r.nextInt(2));
+				}
+				BlockStoreSnapshot snapshot = store.getSnapshot();
+				for (int x = 0; x < SIDE; x++) {
+					for (int y = 0; y < SIDE; y++) {
+						for (int z = 0; z < SIDE; z++) {
+							assertEquals("Snapshot mismatch for " + store.getClass().getSimpleName() + " with " + distinct + " states", store.getFullData(x, y, z), snapshot.getFullData(x, y, z));
+						}
+					}
+				}
+				assertArrayEquals("Block id array mismatch", store.getBlockIdArray(), snapshot.getBlockIdArray());
+				assertArrayEquals("Block data array mismatch", store.getDataArray(), snapshot.getDataArray());
+				store.compress();
+				assertArrayEquals("Snapshot after compression mismatch", store.getBlockIdArray(), store.getSnapshot().getBlockIdArray());
+			}
+		}
+	}
+
+	@Test
+	public void noTearing() throws InterruptedException {
+		final AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, 10);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				CuboidBlockMaterialBuffer buffer = new CuboidBlockMaterialBuffer(0, 0, 0, SIDE, 4, SIDE);
+				short id = 1;
+				while (running.get()) {
+					Arrays.fill(buffer.getRawId(), id);
+					store.setBlocks(0, 0, 0, buffer);
+					id = (short) (id % 300 + 1);
+				}
+			}
+		};
+		writer.start();
+		try {
+			int distinct = 0;
+			long last = -1;
+			long end = System.currentTimeMillis() + 500;
+			while (System.currentTimeMillis() < end) {
+				BlockStoreSnapshot snapshot = store.getSnapshot();
+				if (snapshot.getVersion() != last) {
+					distinct++;
+					last = snapshot.getVersion();
+				}
+				short[] ids = snapshot.getBlockIdArray();
+				int length = SIDE * SIDE * 4;
+				for (int i = 1; i < length; i++) {
+					if (ids[i] != ids[0]) {
+						throw new AssertionError("Snapshot contained a partial update, " + ids[i] + " != " + ids[0] + " at " + i);
+					}
+				}
+			}
+			System.out.println("Checked " + distinct + " distinct snapshots");
+		} finally {
+			running.set(false);
+			writer.join();
+		}
+	}
+}
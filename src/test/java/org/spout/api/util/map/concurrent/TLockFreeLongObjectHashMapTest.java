@@ -0,0 +1,246 @@
+/*
+ * This file is part of SpoutAPI.
+ *
+ * Copyright (c) 2011-2012, Spout LLC <http://www.spout.org/>
+ * SpoutAPI is licensed under the Spout License Version 1.
+ *
+ * SpoutAPI is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * SpoutAPI is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.api.util.map.concurrent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TLockFreeLongObjectHashMapTest {
+	private final static int[] BENCHMARK_THREADS = new int[] {1, 2, 4, 8, 16, 32, 64};
+	private final static int BENCHMARK_OPERATIONS = 400000;
+	private final static int BENCHMARK_KEYS = 4096;
+
+	@Test
+	public void matchesTroveMap() {
+		Random r = new Random(1);
+		TLockFreeLongObjectHashMap<Integer> map = new TLockFreeLongObjectHashMap<Integer>(4);
+		TLongObjectHashMap<Integer> reference = new TLongObjectHashMap<Integer>();
+		for (int i = 0; i < 200000; i++) {
+			// A small key range, so keys are often removed and added again
+			long key = r.nextInt(3000) - 1500L;
+			if (r.nextInt(4) == 0) {
+				key = (key << 40) ^ key;
+			}
+			int value = r.nextInt();
+			switch (r.nextInt(5)) {
+				case 0:
+				case 1:
+					assertEquals("Put result", reference.put(key, value), map.put(key, value));
+					break;
+				case 2:
+					assertEquals("Put if absent result", reference.putIfAbsent(key, value), map.putIfAbsent(key, value));
+					break;
+				case 3:
+					assertEquals("Remove result", reference.remove(key), map.remove(key));
+					break;
+				default:
+					// Values are compared by identity, so the value must come from the map under test
+					Integer current = map.get(key);
+					if (current != null && r.nextBoolean()) {
+						assertTrue("Remove with matching value failed", map.remove(key, current));
+						reference.remove(key);
+					} else {
+						assertFalse("Remove with wrong value succeeded", map.remove(key, value));
+					}
+			}
+			assertEquals("Get result", reference.get(key), map.get(key));
+			assertEquals("Size", reference.size(), map.size());
+		}
+		long[] keys = map.keys();
+		long[] expectedKeys = reference.keys();
+		Arrays.sort(keys);
+		Arrays.sort(expectedKeys);
+		assertArrayEquals("Keys", expectedKeys, keys);
+		for (long key : expectedKeys) {
+			assertTrue("Missing value", map.containsValue(reference.get(key)));
+		}
+		map.clear();
+		assertTrue("Map not empty after clear", map.isEmpty());
+		assertNull("Value after clear", map.get(expectedKeys[0]));
+	}
+
+	@Test
+	public void resizeAndTombstones() {
+		TLockFreeLongObjectHashMap<Long> map = new TLockFreeLongObjectHashMap<Long>(16);
+		for (long i = 0; i < 100000; i++) {
+			map.put(i, i);
+			assertEquals("Value lost during resize", Long.valueOf(i >> 1), map.get(i >> 1));
+		}
+		int capacity = map.getCapacity();
+		for (long i = 0; i < 100000; i++) {
+			assertEquals("Removed value", Long.valueOf(i), map.remove(i));
+		}
+		assertEquals("Size after removal", 0, map.size());
+		// Adding and removing new keys fills the table with tombstones, which must be cleared without growing the table
+		for (long i = 100000; i < 1000000; i++) {
+			map.put(i, i);
+			map.remove(i);
+		}
+		assertTrue("Table grew with no live keys, " + map.getCapacity() + " > " + capacity, map.getCapacity() <= capacity);
+	}
+
+	@Test
+	public void noEntryKey() {
+		TLockFreeLongObjectHashMap<String> map = new TLockFreeLongObjectHashMap<String>(16, -1L);
+		assertNull("Value for missing key", map.put(-1L, "a"));
+		assertNull("Value for missing key", map.put(0L, "b"));
+		assertEquals("No entry key value", "a", map.get(-1L));
+		assertEquals("Size", 2, map.size());
+		assertEquals("No entry key removal", "a", map.remove(-1L));
+		assertEquals("Size", 1, map.size());
+		assertEquals("Zero key value", "b", map.get(0L));
+	}
+
+	@Test
+	public void parallel() throws InterruptedException {
+		final TLockFreeLongObjectHashMap<Long> map = new TLockFreeLongObjectHashMap<Long>(8);
+		final int threads = 8;
+		final int perThread = 20000;
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final AtomicInteger inserted = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						Random r = new Random(thread);
+						for (int i = 0; i < perThread; i++) {
+							// Each thread owns the keys equal to its index mod threads, and reads everyone's keys
+							long key = (long) i * threads + thread;
+							map.put(key, key * 3);
+							if (i % 3 == 0) {
+								assertEquals("Own key removed", Long.valueOf(key * 3), map.remove(key));
+							}
+							long other = r.nextInt(perThread * threads);
+							Long value = map.get(other);
+							if (value != null && value != other * 3) {
+								throw new AssertionError("Wrong value for " + other + ", got " + value);
+							}
+							if (map.putIfAbsent(-1 - (long) (i & 1023), (long) thread) == null) {
+								inserted.incrementAndGet();
+							}
+						}
+					} catch (Throwable e) {
+						error.compareAndSet(null, e);
+					}
+				}
+			};
+			workers[t].start();
+		}
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+		assertEquals("Put if absent inserted a key twice", 1024, inserted.get());
+		int expected = 1024;
+		for (int t = 0; t < threads; t++) {
+			for (int i = 0; i < perThread; i++) {
+				long key = (long) i * threads + t;
+				if (i % 3 == 0) {
+					assertNull("Removed key present", map.get(key));
+				} else {
+					expected++;
+					assertEquals("Key lost", Long.valueOf(key * 3), map.get(key));
+				}
+			}
+		}
+		assertEquals("Size", expected, map.size());
+		assertEquals("Key count", expected, map.keys().length);
+	}
+
+	@Test
+	public void readMostlyBenchmark() throws InterruptedException {
+		for (int threads : BENCHMARK_THREADS) {
+			long locked = run(new TSyncLongObjectHashMap<Long>(), threads);
+			long lockFree = run(new TLockFreeLongObjectHashMap<Long>(), threads);
+			System.out.println(threads + " threads: TSyncLongObjectHashMap " + (locked / 1000000) + "ms, TLockFreeLongObjectHashMap " + (lockFree / 1000000) + "ms");
+		}
+	}
+
+	private static long run(final TSyncLongObjectMap<Long> map, int threads) throws InterruptedException {
+		for (long i = 0; i < BENCHMARK_KEYS; i += 2) {
+			map.put(i, i);
+		}
+		final CountDownLatch start = new CountDownLatch(1);
+		final int operations = BENCHMARK_OPERATIONS / threads;
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int seed = t;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < operations; i++) {
+						long key = r.nextInt(BENCHMARK_KEYS);
+						// 1 in 16 operations is a write
+						if ((i & 15) == 0) {
+							if ((key & 1) == 0) {
+								map.put(key, key);
+							} else {
+								map.remove(key);
+							}
+						} else {
+							map.get(key);
+						}
+					}
+				}
+			};
+			workers[t].start();
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		return System.nanoTime() - startTime;
+	}
+}
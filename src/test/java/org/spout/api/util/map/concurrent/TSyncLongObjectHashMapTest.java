@@ -26,15 +26,21 @@
  */
 package org.spout.api.util.map.concurrent;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import gnu.trove.TCollections;
+import gnu.trove.iterator.TLongObjectIterator;
 import gnu.trove.map.TLongObjectMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.procedure.TLongObjectProcedure;
+import gnu.trove.procedure.TLongProcedure;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -113,6 +119,99 @@ public class TSyncLongObjectHashMapTest {
 
 	}
 
+	@Test
+	public void testIteration() {
+		TSyncLongObjectHashMap<Integer> map = new TSyncLongObjectHashMap<Integer>(16);
+		for (int i = 0; i < 1000; i++) {
+			map.put(i, i * 3);
+		}
+		final boolean[] visited = new boolean[1000];
+		assertTrue(map.forEachEntry(new TLongObjectProcedure<Integer>() {
+			@Override
+			public boolean execute(long key, Integer value) {
+				assertEquals(key * 3, value.intValue());
+				assertFalse("Key visited twice", visited[(int) key]);
+				visited[(int) key] = true;
+				return true;
+			}
+		}));
+		for (int i = 0; i < 1000; i++) {
+			assertTrue("Key not visited " + i, visited[i]);
+		}
+
+		final AtomicInteger count = new AtomicInteger();
+		assertFalse(map.forEachKey(new TLongProcedure() {
+			@Override
+			public boolean execute(long key) {
+				return count.incrementAndGet() < 10;
+			}
+		}));
+		assertEquals(10, count.get());
+
+		TLongObjectIterator<Integer> itr = map.iterator();
+		int entries = 0;
+		while (itr.hasNext()) {
+			itr.advance();
+			assertEquals(itr.key() * 3, itr.value().intValue());
+			if ((itr.key() & 1) == 0) {
+				itr.remove();
+			} else {
+				itr.setValue(-1);
+			}
+			entries++;
+		}
+		assertEquals(1000, entries);
+		assertEquals(500, map.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals((i & 1) == 0 ? null : Integer.valueOf(-1), map.get(i));
+		}
+	}
+
+	@Test
+	public void testConcurrentIteration() throws InterruptedException {
+		final TSyncLongObjectHashMap<Integer> map = new TSyncLongObjectHashMap<Integer>(4, 16);
+		for (int i = 0; i < 1000; i++) {
+			map.put(i, i * 3);
+		}
+		final AtomicBoolean running = new AtomicBoolean(true);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				Random rand = new Random(1);
+				while (running.get()) {
+					int key = 1000 + rand.nextInt(100000);
+					if (rand.nextBoolean()) {
+						map.put(key, key * 3);
+					} else {
+						map.remove(key);
+					}
+				}
+			}
+		};
+		writer.start();
+		try {
+			for (int pass = 0; pass < 50; pass++) {
+				final int[] visits = new int[1000];
+				map.forEachEntry(new TLongObjectProcedure<Integer>() {
+					@Override
+					public boolean execute(long key, Integer value) {
+						assertEquals("Torn entry", key * 3, value.intValue());
+						if (key < 1000) {
+							visits[(int) key]++;
+						}
+						return true;
+					}
+				});
+				for (int i = 0; i < 1000; i++) {
+					assertEquals("Stable key " + i, 1, visits[i]);
+				}
+			}
+		} finally {
+			running.set(false);
+			writer.join();
+		}
+	}
+
 	private static long runJoin(Thread[] threads, String name) {
 		long startTime = System.nanoTime();
 		for (int t = 0; t < THREADS; t++) {
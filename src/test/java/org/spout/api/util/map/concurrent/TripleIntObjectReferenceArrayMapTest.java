@@ -26,14 +26,21 @@
  */
 package org.spout.api.util.map.concurrent;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import gnu.trove.TCollections;
 import gnu.trove.map.TLongObjectMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import org.junit.Test;
 
@@ -48,6 +55,11 @@ public class TripleIntObjectReferenceArrayMapTest {
 	private final static int THREADS = 20;
 	private final static boolean PRINT_ALL_TESTS = false;
 	private final static int REPEATS = 5;
+	
+	private final static int UPDATE_THREADS = 8;
+	private final static int UPDATE_KEYS = 32;
+	private final static int UPDATE_LENGTH = 20000;
+	private final static int UPDATE_ROUNDS = 20;
 
 	private final TripleIntObjectReferenceArrayMap<FakeObject> map = new TripleIntObjectReferenceArrayMap<FakeObject>(3);
 	
@@ -189,6 +201,312 @@ public class TripleIntObjectReferenceArrayMapTest {
 		
 	}
 	
+	@Test
+	public void concurrentUpdateTest() throws InterruptedException {
+		for (int round = 0; round < UPDATE_ROUNDS; round++) {
+			final TripleIntObjectReferenceArrayMap<FakeObject> map = new TripleIntObjectReferenceArrayMap<FakeObject>(2);
+			final int[][] keys = new int[UPDATE_KEYS][];
+			Random r = new Random(round);
+			// Keys which only differ in a few bits collide at the leaves, and force the tree to be resized
+			for (int i = 0; i < UPDATE_KEYS; i++) {
+				keys[i] = new int[] {r.nextInt(4) << (2 * r.nextInt(16)), r.nextInt(4) << (2 * r.nextInt(16)), r.nextInt(4) << (2 * r.nextInt(16))};
+			}
+			final AtomicInteger ids = new AtomicInteger(0);
+			UpdateThread[] threads = new UpdateThread[UPDATE_THREADS];
+			for (int t = 0; t < UPDATE_THREADS; t++) {
+				threads[t] = new UpdateThread(map, keys, ids, round * UPDATE_THREADS + t);
+			}
+			for (int t = 0; t < UPDATE_THREADS; t++) {
+				threads[t].start();
+			}
+			for (int t = 0; t < UPDATE_THREADS; t++) {
+				threads[t].join();
+				assertTrue("Update thread failed: " + threads[t].error, threads[t].error == null);
+			}
+
+			// Every value stored must have been taken out exactly once, or still be in the map
+			IdentityHashMap<FakeObject, Boolean> remaining = new IdentityHashMap<FakeObject, Boolean>();
+			for (UpdateThread t : threads) {
+				for (FakeObject f : t.added) {
+					assertTrue("Value added twice", remaining.put(f, Boolean.TRUE) == null);
+				}
+			}
+			for (UpdateThread t : threads) {
+				for (FakeObject f : t.taken) {
+					assertTrue("Value taken twice or never added " + f.getX() + ", " + f.getY() + ", " + f.getZ(), remaining.remove(f) != null);
+				}
+			}
+			IdentityHashMap<FakeObject, Boolean> present = new IdentityHashMap<FakeObject, Boolean>();
+			for (int[] key : keys) {
+				FakeObject f = map.get(key[0], key[1], key[2]);
+				if (f != null) {
+					present.put(f, Boolean.TRUE);
+					assertTrue("Value at the wrong key", f.test(key[0], key[1], key[2]));
+					assertTrue("Value in map was not expected", remaining.containsKey(f));
+				}
+			}
+			assertEquals("Values lost", remaining.size(), present.size());
+			assertEquals("Value collection size", present.size(), map.valueCollection().size());
+		}
+	}
+	
+	@Test
+	public void duplicateValueTest() {
+		TripleIntObjectReferenceArrayMap<FakeObject> map = new TripleIntObjectReferenceArrayMap<FakeObject>(2);
+		FakeObject f = new FakeObject(0, 0, 0);
+		map.put(0, 0, 0, f);
+		
+		boolean thrown = false;
+		try {
+			map.put(1, 0, 0, f);
+		} catch (IllegalStateException ise) {
+			thrown = true;
+		}
+		assertTrue("IllegalStateException was not thrown when putting a value which is already at another key", thrown);
+		
+		thrown = false;
+		try {
+			map.putIfAbsent(1, 0, 0, f);
+		} catch (IllegalStateException ise) {
+			thrown = true;
+		}
+		assertTrue("IllegalStateException was not thrown when putting a value which is already at another key with putIfAbsent", thrown);
+		assertTrue("Rejected value was stored", map.get(1, 0, 0) == null);
+		assertEquals("Value collection size", 1, map.valueCollection().size());
+		
+		assertTrue("Value was not removed", map.remove(0, 0, 0) == f);
+		assertTrue("Value could not be put after it was removed", map.put(1, 0, 0, f) == null);
+		assertEquals("Value collection size", 1, map.valueCollection().size());
+	}
+	
+	@Test
+	public void concurrentMoveTest() throws InterruptedException {
+		final TripleIntObjectReferenceArrayMap<FakeObject> map = new TripleIntObjectReferenceArrayMap<FakeObject>(2);
+		final FakeObject[] values = new FakeObject[UPDATE_KEYS];
+		// Each value moves between the keys (i, 0, 0) and (i, 1, 0)
+		final int[] locations = new int[UPDATE_KEYS];
+		final AtomicIntegerArray claimed = new AtomicIntegerArray(UPDATE_KEYS);
+		final ConcurrentLinkedQueue<Integer> removes = new ConcurrentLinkedQueue<Integer>();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = new FakeObject(i, 0, 0, i);
+			map.put(i, 0, 0, values[i]);
+		}
+		// A thread which moves a value asks another thread to remove it, and puts it at its new key as soon as the remove is visible, 
+		// so the put races with the end of the remove
+		Thread[] threads = new Thread[UPDATE_THREADS];
+		final Throwable[] errors = new Throwable[UPDATE_THREADS];
+		for (int t = 0; t < UPDATE_THREADS; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Random rand = new Random(thread);
+					try {
+						for (int i = 0; i < UPDATE_LENGTH; i++) {
+							int v = rand.nextInt(values.length);
+							if (!claimed.compareAndSet(v, 0, 1)) {
+								removeQueued();
+								continue;
+							}
+							int from = locations[v];
+							removes.add(v);
+							while (map.get(v, from, 0) == values[v]) {
+								if (!removeQueued()) {
+									Thread.yield();
+								}
+							}
+							if (map.put(v, 1 - from, 0, values[v]) != null) {
+								throw new IllegalStateException("Value displaced another value");
+							}
+							locations[v] = 1 - from;
+							claimed.set(v, 0);
+						}
+					} catch (Throwable t) {
+						errors[thread] = t;
+					}
+				}
+				
+				private boolean removeQueued() {
+					Integer v = removes.poll();
+					if (v == null) {
+						return false;
+					}
+					if (!map.remove(v, locations[v], 0, values[v])) {
+						throw new IllegalStateException("Value was not at its key");
+					}
+					return true;
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < UPDATE_THREADS; t++) {
+			threads[t].join();
+			assertTrue("Move thread failed: " + errors[t], errors[t] == null);
+		}
+		for (int i = 0; i < values.length; i++) {
+			assertTrue("Value missing from its key", map.get(i, locations[i], 0) == values[i]);
+			assertTrue("Value left at its old key", map.get(i, 1 - locations[i], 0) == null);
+		}
+		Collection<FakeObject> valueCollection = map.valueCollection();
+		assertEquals("Value collection size", values.length, valueCollection.size());
+	}
+	
+	private static class UpdateThread extends Thread {
+		private final TripleIntObjectReferenceArrayMap<FakeObject> map;
+		private final int[][] keys;
+		private final AtomicInteger ids;
+		private final Random rand;
+		private final List<FakeObject> added = new ArrayList<FakeObject>();
+		private final List<FakeObject> taken = new ArrayList<FakeObject>();
+		private volatile Throwable error;
+		
+		public UpdateThread(TripleIntObjectReferenceArrayMap<FakeObject> map, int[][] keys, AtomicInteger ids, long seed) {
+			this.map = map;
+			this.keys = keys;
+			this.ids = ids;
+			this.rand = new Random(seed);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				for (int i = 0; i < UPDATE_LENGTH; i++) {
+					int[] key = keys[rand.nextInt(keys.length)];
+					int x = key[0];
+					int y = key[1];
+					int z = key[2];
+					switch (rand.nextInt(4)) {
+						case 0: {
+							FakeObject f = new FakeObject(x, y, z, ids.incrementAndGet());
+							added.add(f);
+							FakeObject old = map.put(x, y, z, f);
+							if (old != null) {
+								taken.add(old);
+							}
+							break;
+						}
+						case 1: {
+							FakeObject f = new FakeObject(x, y, z, ids.incrementAndGet());
+							FakeObject old = map.putIfAbsent(x, y, z, f);
+							if (old == null) {
+								added.add(f);
+							} else if (!old.test(x, y, z)) {
+								throw new IllegalStateException("putIfAbsent returned a value for a different key");
+							}
+							break;
+						}
+						case 2: {
+							FakeObject old = map.remove(x, y, z);
+							if (old != null) {
+								taken.add(old);
+							}
+							break;
+						}
+						default: {
+							FakeObject old = map.get(x, y, z);
+							if (old != null && map.remove(x, y, z, old)) {
+								taken.add(old);
+							}
+						}
+					}
+				}
+			} catch (Throwable t) {
+				error = t;
+			}
+		}
+	}
+	
+	@Test
+	public void boxQueryTest() {
+		boxQueryTest(new TripleIntObjectReferenceArrayMap<FakeObject>(2), 1 << 30);
+		boxQueryTest(new TripleIntObjectReferenceArrayMap<FakeObject>(3), 64);
+		boxQueryTest(new TSyncInt21TripleObjectHashMap<FakeObject>(), 1 << 19);
+		boxQueryTest(new TSyncInt21TripleObjectHashMap<FakeObject>(), 16);
+	}
+	
+	private static void boxQueryTest(TripleIntObjectMap<FakeObject> map, int range) {
+		Random r = new Random(range);
+		List<FakeObject> objects = new ArrayList<FakeObject>();
+		for (int i = 0; i < 2000; i++) {
+			FakeObject f = new FakeObject(r.nextInt(range) - (range >> 1), r.nextInt(range) - (range >> 1), r.nextInt(range) - (range >> 1));
+			if (map.putIfAbsent(f.getX(), f.getY(), f.getZ(), f) == null) {
+				objects.add(f);
+			}
+		}
+		
+		for (int i = 0; i < 50; i++) {
+			FakeObject center = objects.get(r.nextInt(objects.size()));
+			int edge = 1 + r.nextInt(Math.max(2, range >> (i & 7)));
+			final int minX = center.getX() - r.nextInt(edge);
+			final int minY = center.getY() - r.nextInt(edge);
+			final int minZ = center.getZ() - r.nextInt(edge);
+			final int maxX = minX + edge;
+			final int maxY = minY + edge;
+			final int maxZ = minZ + edge;
+			
+			final IdentityHashMap<FakeObject, Boolean> visited = new IdentityHashMap<FakeObject, Boolean>();
+			assertTrue(map.forEachInBox(minX, minY, minZ, maxX, maxY, maxZ, new TripleIntObjectProcedure<FakeObject>() {
+				@Override
+				public boolean execute(int x, int y, int z, FakeObject value) {
+					assertTrue("Value at the wrong key", value.test(x, y, z));
+					assertTrue("Key outside of the box", x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ);
+					assertTrue("Value visited twice", visited.put(value, Boolean.TRUE) == null);
+					return true;
+				}
+			}));
+			int expected = 0;
+			for (FakeObject f : objects) {
+				int x = f.getX();
+				int y = f.getY();
+				int z = f.getZ();
+				if (x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ) {
+					assertTrue("Value in the box was not visited", visited.containsKey(f));
+					expected++;
+				}
+			}
+			assertEquals(expected, visited.size());
+			
+			final int cx = center.getX();
+			final int cy = center.getY();
+			final int cz = center.getZ();
+			final int maxDistance = edge;
+			final long[] last = new long[] {-1};
+			visited.clear();
+			assertTrue(map.forEachNearest(cx, cy, cz, maxDistance, new TripleIntObjectProcedure<FakeObject>() {
+				@Override
+				public boolean execute(int x, int y, int z, FakeObject value) {
+					long distance = Math.abs((long) x - cx) + Math.abs((long) y - cy) + Math.abs((long) z - cz);
+					assertTrue("Value at the wrong key", value.test(x, y, z));
+					assertTrue("Key too far away", distance <= maxDistance);
+					assertTrue("Keys not visited in order of distance", distance >= last[0]);
+					assertTrue("Value visited twice", visited.put(value, Boolean.TRUE) == null);
+					last[0] = distance;
+					return true;
+				}
+			}));
+			expected = 0;
+			for (FakeObject f : objects) {
+				if (Math.abs((long) f.getX() - cx) + Math.abs((long) f.getY() - cy) + Math.abs((long) f.getZ() - cz) <= maxDistance) {
+					assertTrue("Value in range was not visited", visited.containsKey(f));
+					expected++;
+				}
+			}
+			assertEquals(expected, visited.size());
+			
+			final int[] count = new int[1];
+			assertTrue("forEachNearest did not stop", !map.forEachNearest(cx, cy, cz, Integer.MAX_VALUE, new TripleIntObjectProcedure<FakeObject>() {
+				@Override
+				public boolean execute(int x, int y, int z, FakeObject value) {
+					if (count[0]++ == 0) {
+						assertTrue("Nearest key was not the center", value.test(cx, cy, cz));
+					}
+					return count[0] < 3;
+				}
+			}));
+			assertEquals(3, count[0]);
+		}
+	}
+	
 	private static FakeObject[] shuffle(FakeObject[] a) {
 		
 		Random r = new Random();
@@ -362,6 +680,18 @@ public class TripleIntObjectReferenceArrayMapTest {
 			// TODO Auto-generated method stub
 			return null;
 		}
+
+		@Override
+		public boolean forEachInBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, TripleIntObjectProcedure<? super FakeObject> procedure) {
+			// TODO Auto-generated method stub
+			return true;
+		}
+
+		@Override
+		public boolean forEachNearest(int x, int y, int z, int maxDistance, TripleIntObjectProcedure<? super FakeObject> procedure) {
+			// TODO Auto-generated method stub
+			return true;
+		}
 		
 	}
 	
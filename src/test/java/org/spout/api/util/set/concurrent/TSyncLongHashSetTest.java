@@ -26,12 +26,17 @@
  */
 package org.spout.api.util.set.concurrent;
 
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.procedure.TLongProcedure;
 import gnu.trove.set.TLongSet;
 
 import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Before;
@@ -106,6 +111,84 @@ public class TSyncLongHashSetTest {
 		
 	}
 
+	@Test
+	public void testIteration() {
+		TSyncLongHashSet set = new TSyncLongHashSet(16);
+		for (int i = 0; i < 1000; i++) {
+			set.add(i);
+		}
+		final boolean[] visited = new boolean[1000];
+		assertTrue(set.forEach(new TLongProcedure() {
+			@Override
+			public boolean execute(long value) {
+				assertFalse("Value visited twice", visited[(int) value]);
+				visited[(int) value] = true;
+				return true;
+			}
+		}));
+		for (int i = 0; i < 1000; i++) {
+			assertTrue("Value not visited " + i, visited[i]);
+		}
+
+		TLongIterator itr = set.iterator();
+		int values = 0;
+		while (itr.hasNext()) {
+			if ((itr.next() & 1) == 0) {
+				itr.remove();
+			}
+			values++;
+		}
+		assertEquals(1000, values);
+		assertEquals(500, set.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals((i & 1) != 0, set.contains(i));
+		}
+	}
+
+	@Test
+	public void testConcurrentIteration() throws InterruptedException {
+		final TSyncLongHashSet set = new TSyncLongHashSet(4, 16);
+		for (int i = 0; i < 1000; i++) {
+			set.add(i);
+		}
+		final AtomicBoolean running = new AtomicBoolean(true);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				Random rand = new Random(1);
+				while (running.get()) {
+					int value = 1000 + rand.nextInt(100000);
+					if (rand.nextBoolean()) {
+						set.add(value);
+					} else {
+						set.remove(value);
+					}
+				}
+			}
+		};
+		writer.start();
+		try {
+			for (int pass = 0; pass < 50; pass++) {
+				final int[] visits = new int[1000];
+				set.forEach(new TLongProcedure() {
+					@Override
+					public boolean execute(long value) {
+						if (value < 1000) {
+							visits[(int) value]++;
+						}
+						return true;
+					}
+				});
+				for (int i = 0; i < 1000; i++) {
+					assertEquals("Stable value " + i, 1, visits[i]);
+				}
+			}
+		} finally {
+			running.set(false);
+			writer.join();
+		}
+	}
+
 	private static long runJoin(Thread[] threads, String name) {
 		long startTime = System.nanoTime();
 		for (int t = 0; t < THREADS; t++) {